@@ -0,0 +1,187 @@
+﻿#nullable enable
+
+using System;
+using System.Collections.Generic;
+using System.IO;
+using System.Linq;
+using System.Security.Cryptography;
+using System.Text;
+using System.Threading.Tasks;
+using UbisoftConnectProxy.JavaInterop.Dtos;
+using Xunit;
+
+namespace UbisoftConnectProxy.Tests
+{
+    public class HeaderCodecTests
+    {
+        [Fact]
+        public async Task WritesTheGoldenBytes()
+        {
+            HeaderCodec encoder = new(), decoder = new();
+            var messages = ReadGolden();
+            Assert.True(messages.Count > 10);
+            for (int i = 0; i < messages.Count; i++)
+            {
+                var (headers, expected) = messages[i];
+                byte[] bytes = Encode(encoder, headers);
+                string actual = expected.StartsWith("sha256 ") ? "sha256 " + ToHex(SHA256.HashData(bytes)) : ToHex(bytes);
+                Assert.True(expected == actual, $"message {i + 1} of the golden file: expected {expected}, got {actual}");
+                AssertHeadersEqual(headers, await Decode(decoder, bytes));
+            }
+        }
+
+        [Fact]
+        public async Task RoundTripsRandomHeaders()
+        {
+            HeaderCodec encoder = new(), decoder = new();
+            var random = new Random(42);
+            // few distinct headers, so many are repeated, and enough for the table to evict by count as well as by size
+            var pool = new List<HeaderDto>();
+            for (int i = 0; i < 2000; i++)
+            {
+                int length = random.Next(10) == 0 ? 2000 + random.Next(3000) : random.Next(40);
+                pool.Add(Header("X-Name-" + random.Next(400), RandomValue(random, length), "v" + i));
+            }
+            for (int i = 0; i < 3000; i++)
+            {
+                var headers = new HeaderDto[random.Next(12)];
+                for (int j = 0; j < headers.Length; j++)
+                {
+                    headers[j] = pool[Math.Min(random.Next(300) + random.Next(300), pool.Count - 1)];
+                }
+                AssertHeadersEqual(headers, await Decode(decoder, Encode(encoder, headers)));
+            }
+        }
+
+        [Fact]
+        public async Task ReturnsTheSameInstancesForRepeatedHeaders()
+        {
+            HeaderCodec encoder = new(), decoder = new();
+            HeaderDto[] headers = { Header("Authorization", "Ubi_v1 t=abc"), Header("X-New", "1") };
+            var first = await Decode(decoder, Encode(encoder, headers));
+            var second = await Decode(decoder, Encode(encoder, headers));
+            Assert.Same(first[0], second[0]);
+            Assert.Same(first[1], second[1]);
+
+            var other = await Decode(decoder, Encode(encoder, new[] { Header("X-New", "2") }));
+            Assert.Same(first[1].Name, other[0].Name);
+        }
+
+        [Fact]
+        public async Task RejectsAnIndexOutsideTheTable()
+        {
+            // one header, indexed, index 0 of an empty table
+            byte[] bytes = { 1, 0, 0 };
+            await Assert.ThrowsAsync<IOException>(() => Decode(new HeaderCodec(), bytes));
+        }
+
+        [Fact]
+        public async Task ChecksTheLengthBeforeWritingAnything()
+        {
+            HeaderCodec encoder = new(), decoder = new();
+            HeaderDto[] tooLong = { Header("X-Ok", "1"), Header("X-Long", new string('\u20ac', 30000)) };
+            var stream = new MemoryStream();
+            Assert.Throws<IOException>(() => encoder.Write(stream, tooLong));
+            Assert.Equal(0, stream.Length);
+
+            // the tables are still in sync
+            HeaderDto[] headers = { Header("X-Ok", "1") };
+            AssertHeadersEqual(headers, await Decode(decoder, Encode(encoder, headers)));
+            AssertHeadersEqual(headers, await Decode(decoder, Encode(encoder, headers)));
+        }
+
+        private static byte[] Encode(HeaderCodec codec, HeaderDto[] headers)
+        {
+            var stream = new MemoryStream();
+            codec.Write(stream, headers);
+            return stream.ToArray();
+        }
+
+        private static async Task<HeaderDto[]> Decode(HeaderCodec codec, byte[] bytes)
+        {
+            var stream = new MemoryStream(bytes);
+            var headers = await codec.ReadAsync(stream);
+            Assert.True(stream.Position == stream.Length, "bytes left after the headers");
+            return headers;
+        }
+
+        private static void AssertHeadersEqual(HeaderDto[] expected, HeaderDto[] actual)
+        {
+            Assert.Equal(expected.Length, actual.Length);
+            for (int i = 0; i < expected.Length; i++)
+            {
+                Assert.Equal(expected[i].Name, actual[i].Name);
+                Assert.Equal(expected[i].Values, actual[i].Values);
+            }
+        }
+
+        private static HeaderDto Header(string name, params string[] values)
+        {
+            return new HeaderDto { Name = name, Values = values };
+        }
+
+        private static string RandomValue(Random random, int length)
+        {
+            var chars = new char[length];
+            for (int i = 0; i < length; i++)
+            {
+                int kind = random.Next(20);
+                chars[i] = kind == 0 ? (char)random.Next(0x800) : kind == 1 ? '\u20ac' : (char)('a' + random.Next(26));
+            }
+            return new string(chars);
+        }
+
+        /// <summary>
+        /// See testdata/header-codec-golden.txt for the format.
+        /// </summary>
+        private static List<(HeaderDto[] Headers, string Expected)> ReadGolden()
+        {
+            var path = Path.Combine(AppContext.BaseDirectory, "testdata", "header-codec-golden.txt");
+            var messages = new List<(HeaderDto[], string)>();
+            var headers = new List<HeaderDto>();
+            foreach (var line in File.ReadAllLines(path, Encoding.UTF8))
+            {
+                if (line.StartsWith("> "))
+                {
+                    int colon = line.IndexOf(": ");
+                    var values = line[(colon + 2)..].Split(" | ").Select(Unescape).ToArray();
+                    headers.Add(Header(line[2..colon], values));
+                }
+                else if (line.StartsWith("="))
+                {
+                    messages.Add((headers.ToArray(), line[1..].Trim()));
+                    headers.Clear();
+                }
+            }
+            return messages;
+        }
+
+        private static string Unescape(string value)
+        {
+            if (value.StartsWith("*"))
+            {
+                int space = value.IndexOf(' ');
+                return string.Concat(Enumerable.Repeat(value[(space + 1)..], int.Parse(value[1..space])));
+            }
+            var sb = new StringBuilder();
+            for (int i = 0; i < value.Length; i++)
+            {
+                if (string.CompareOrdinal(value, i, "\\u", 0, 2) == 0)
+                {
+                    sb.Append((char)Convert.ToInt32(value.Substring(i + 2, 4), 16));
+                    i += 5;
+                }
+                else
+                {
+                    sb.Append(value[i]);
+                }
+            }
+            return sb.ToString();
+        }
+
+        private static string ToHex(byte[] bytes)
+        {
+            return Convert.ToHexString(bytes).ToLowerInvariant();
+        }
+    }
+}
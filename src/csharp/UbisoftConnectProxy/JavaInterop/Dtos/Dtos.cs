@@ -3,7 +3,6 @@
 using System;
 using System.Collections.Generic;
 using System.IO;
-using System.Text;
 using System.Threading;
 using System.Threading.Tasks;
 
@@ -38,41 +37,75 @@ namespace UbisoftConnectProxy.JavaInterop.Dtos
         public HeaderDto[] Headers { get; set; } = null!;
         public byte[] Content { get; set; } = null!;
 
-        public virtual async Task ReadAsync(Stream stream)
+        public Task ReadAsync(Stream stream) => ReadAsync(stream, null);
+
+        /// <summary>
+        /// Without a codec, only plain headers can be read.
+        /// </summary>
+        public virtual async Task ReadAsync(Stream stream, HeaderCodec? codec)
         {
-            Headers = await stream.ReadListAsync(async () =>
+            int numHeaders = await stream.ReadJIntAsync();
+            if (numHeaders == HeaderCodec.Compact)
+            {
+                if (codec == null)
+                {
+                    throw new IOException("Compact headers were not negotiated");
+                }
+                Headers = await codec.ReadAsync(stream);
+            }
+            else
             {
-                var header = new HeaderDto();
-                await header.ReadAsync(stream);
-                return header;
-            });
+                Headers = new HeaderDto[numHeaders];
+                for (int i = 0; i < Headers.Length; i++)
+                {
+                    Headers[i] = new HeaderDto();
+                    await Headers[i].ReadAsync(stream);
+                }
+            }
             Content = await stream.ReadFullyAsync(await stream.ReadJIntAsync());
         }
 
-        public virtual void Write(Stream stream)
+        public void Write(Stream stream) => Write(stream, null);
+
+        /// <summary>
+        /// Without a codec, the headers are written plain (protocol version 1).
+        /// </summary>
+        public virtual void Write(Stream stream, HeaderCodec? codec)
         {
-            stream.WriteList(Headers, x => x.Write(stream));
+            if (codec == null)
+            {
+                stream.WriteList(Headers, x => x.Write(stream));
+            }
+            else
+            {
+                stream.WriteJInt(HeaderCodec.Compact);
+                codec.Write(stream, Headers);
+            }
             stream.WriteJInt(Content.Length);
             stream.Write(Content);
         }
     }
 
-    public abstract class MessageDto<T> : IDataObject where T : IDataObject, new()
+    public abstract class MessageDto<T> : IDataObject where T : HttpDataDto, new()
     {
         public int RequestId { get; set; }
         public T Data { get; set; } = default!;
 
-        public async Task ReadAsync(Stream stream)
+        public Task ReadAsync(Stream stream) => ReadAsync(stream, null);
+
+        public async Task ReadAsync(Stream stream, HeaderCodec? codec)
         {
             RequestId = await stream.ReadJIntAsync();
             Data = new T();
-            await Data.ReadAsync(stream);
+            await Data.ReadAsync(stream, codec);
         }
 
-        public void Write(Stream stream)
+        public void Write(Stream stream) => Write(stream, null);
+
+        public void Write(Stream stream, HeaderCodec? codec)
         {
             stream.WriteJInt(RequestId);
-            Data.Write(stream);
+            Data.Write(stream, codec);
         }
     }
 
@@ -91,6 +124,70 @@ namespace UbisoftConnectProxy.JavaInterop.Dtos
         public const byte MsgId = 10;
     }
 
+    /// <summary>
+    /// Start of a request whose body follows as BodyChunkDto messages, ended by a BodyEndDto. Data.Content is empty.
+    /// Java will stream the response back the same way.
+    /// </summary>
+    public class RequestHeadDto : MessageDto<RequestDataDto>
+    {
+        public const byte MsgId = 13;
+    }
+
+    /// <summary>
+    /// Status and headers of a streamed response, Data.Content is empty.
+    /// </summary>
+    public class ResponseHeadDto : MessageDto<ResponseDataDto>
+    {
+        public const byte MsgId = 3;
+    }
+
+    public class BodyChunkDto : IDataObject
+    {
+        public const byte ResponseMsgId = 4;
+        public const byte RequestMsgId = 14;
+
+        public int RequestId { get; set; }
+        public byte[] Data { get; set; } = null!;
+
+        public async Task ReadAsync(Stream stream)
+        {
+            RequestId = await stream.ReadJIntAsync();
+            Data = await stream.ReadFullyAsync(await stream.ReadJIntAsync());
+        }
+
+        public void Write(Stream stream)
+        {
+            stream.WriteJInt(RequestId);
+            stream.WriteJInt(Data.Length);
+            stream.Write(Data);
+        }
+    }
+
+    public class BodyEndDto : IDataObject
+    {
+        public const byte ResponseMsgId = 5;
+        public const byte RequestMsgId = 15;
+
+        public int RequestId { get; set; }
+
+        /// <summary>
+        /// The body is incomplete, the receiver should abort.
+        /// </summary>
+        public bool Failed { get; set; }
+
+        public async Task ReadAsync(Stream stream)
+        {
+            RequestId = await stream.ReadJIntAsync();
+            Failed = await stream.ReadByteAsync() == 1;
+        }
+
+        public void Write(Stream stream)
+        {
+            stream.WriteJInt(RequestId);
+            stream.WriteByte(Failed ? (byte)1 : (byte)0);
+        }
+    }
+
     public enum Ready : byte
     {
         Hosts, Starting, Running
@@ -113,6 +210,108 @@ namespace UbisoftConnectProxy.JavaInterop.Dtos
         }
     }
 
+    /// <summary>
+    /// Sent first, Java answers with the protocol version both sides use from then on. Java versions that don't
+    /// know it would disconnect, so the webserver must not be used with them.
+    /// </summary>
+    public class WebserverHello : IDataObject
+    {
+        public const byte MsgId = 16;
+        /// <summary>
+        /// 1: plain headers, 2: headers compressed with HeaderCodec, 3: several channels,
+        /// 4: CancelDto and RequestDataDto.TimeoutMillis.
+        /// </summary>
+        public const int CurrentProtocolVersion = 4;
+
+        public int MaxProtocolVersion { get; set; }
+
+        public async Task ReadAsync(Stream stream)
+        {
+            MaxProtocolVersion = await stream.ReadJIntAsync();
+        }
+
+        public void Write(Stream stream)
+        {
+            stream.WriteJInt(MaxProtocolVersion);
+        }
+    }
+
+    public class JavaHello : IDataObject
+    {
+        public const byte MsgId = 6;
+        public const int SessionTokenLength = 16;
+
+        public int ProtocolVersion { get; set; }
+        /// <summary>
+        /// Only for version 3 and newer: how many channels to open, the others join with ChannelHello.
+        /// </summary>
+        public int NumChannels { get; set; } = 1;
+        public byte[] SessionToken { get; set; } = Array.Empty<byte>();
+
+        public async Task ReadAsync(Stream stream)
+        {
+            ProtocolVersion = await stream.ReadJIntAsync();
+            if (ProtocolVersion >= 3)
+            {
+                NumChannels = await stream.ReadJIntAsync();
+                SessionToken = await stream.ReadFullyAsync(SessionTokenLength);
+            }
+        }
+
+        public void Write(Stream stream)
+        {
+            stream.WriteJInt(ProtocolVersion);
+            if (ProtocolVersion >= 3)
+            {
+                stream.WriteJInt(NumChannels);
+                stream.Write(SessionToken);
+            }
+        }
+    }
+
+    /// <summary>
+    /// The client went away, Java aborts the request and does not answer it (protocol version 4).
+    /// </summary>
+    public class CancelDto : IDataObject
+    {
+        public const byte MsgId = 18;
+
+        public int RequestId { get; set; }
+
+        public async Task ReadAsync(Stream stream)
+        {
+            RequestId = await stream.ReadJIntAsync();
+        }
+
+        public void Write(Stream stream)
+        {
+            stream.WriteJInt(RequestId);
+        }
+    }
+
+    /// <summary>
+    /// First message on every channel but the first one.
+    /// </summary>
+    public class ChannelHello : IDataObject
+    {
+        public const byte MsgId = 17;
+
+        public byte[] SessionToken { get; set; } = Array.Empty<byte>();
+        public int ChannelIndex { get; set; }
+
+        public async Task ReadAsync(Stream stream)
+        {
+            SessionToken = await stream.ReadFullyAsync(JavaHello.SessionTokenLength);
+            ChannelIndex = await stream.ReadJIntAsync();
+        }
+
+        public void Write(Stream stream)
+        {
+            stream.Write(SessionToken);
+            stream.WriteJInt(ChannelIndex);
+        }
+    }
+
     public class WebserverErrorDto : IDataObject
     {
         public const byte MsgId = 12;
@@ -137,19 +336,29 @@ namespace UbisoftConnectProxy.JavaInterop.Dtos
     {
         public string Uri { get; set; } = null!;
         public string Method { get; set; } = null!;
+        /// <summary>
+        /// How long we wait for the response (head), 0 for Java's default. From protocol version 4 on, it follows
+        /// RequestDto and RequestHeadDto on the wire, see WriteTimeout.
+        /// </summary>
+        public int TimeoutMillis { get; set; }
 
-        public override async Task ReadAsync(Stream stream)
+        public void WriteTimeout(Stream stream)
+        {
+            stream.WriteJInt(TimeoutMillis);
+        }
+
+        public override async Task ReadAsync(Stream stream, HeaderCodec? codec)
         {
             Uri = await stream.ReadJUTF8Async();
             Method = await stream.ReadJUTF8Async();
-            await base.ReadAsync(stream);
+            await base.ReadAsync(stream, codec);
         }
 
-        public override void Write(Stream stream)
+        public override void Write(Stream stream, HeaderCodec? codec)
         {
             stream.WriteJUTF8(Uri);
             stream.WriteJUTF8(Method);
-            base.Write(stream);
+            base.Write(stream, codec);
         }
     }
 
@@ -157,16 +366,16 @@ namespace UbisoftConnectProxy.JavaInterop.Dtos
     {
         public int StatusCode { get; set; }
 
-        public override async Task ReadAsync(Stream stream)
+        public override async Task ReadAsync(Stream stream, HeaderCodec? codec)
         {
             StatusCode = await stream.ReadJIntAsync();
-            await base.ReadAsync(stream);
+            await base.ReadAsync(stream, codec);
         }
 
-        public override void Write(Stream stream)
+        public override void Write(Stream stream, HeaderCodec? codec)
         {
             stream.WriteJInt(StatusCode);
-            base.Write(stream);
+            base.Write(stream, codec);
         }
     }
 
@@ -205,17 +414,54 @@ namespace UbisoftConnectProxy.JavaInterop.Dtos
             stream.WriteByte((byte)(value >> 0));
         }
 
+        /// <summary>
+        /// Like DataOutput.writeUTF: modified UTF-8, where NUL takes 2 bytes and each half of a surrogate pair 3,
+        /// instead of the 4 bytes of UTF-8.
+        /// </summary>
         public static void WriteJUTF8(this Stream stream, string value)
         {
-            var bytes = Encoding.UTF8.GetBytes(value);
-            if (bytes.Length > ushort.MaxValue)
+            int length = GetJUTF8Length(value);
+            if (length > ushort.MaxValue)
             {
-                throw new IOException($"String value too long ({bytes.Length})");
+                throw new IOException($"String value too long ({length})");
             }
-            stream.WriteJUShort((ushort)bytes.Length);
+            var bytes = new byte[length];
+            int i = 0;
+            foreach (char c in value)
+            {
+                if (c >= 1 && c <= 0x7F)
+                {
+                    bytes[i++] = (byte)c;
+                }
+                else if (c <= 0x7FF)
+                {
+                    bytes[i++] = (byte)(0xC0 | (c >> 6));
+                    bytes[i++] = (byte)(0x80 | (c & 0x3F));
+                }
+                else
+                {
+                    bytes[i++] = (byte)(0xE0 | (c >> 12));
+                    bytes[i++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+                    bytes[i++] = (byte)(0x80 | (c & 0x3F));
+                }
+            }
+            stream.WriteJUShort((ushort)length);
             stream.Write(bytes);
         }
 
+        /// <summary>
+        /// The number of bytes WriteJUTF8 writes for the value, without the length.
+        /// </summary>
+        public static int GetJUTF8Length(string value)
+        {
+            int length = 0;
+            foreach (char c in value)
+            {
+                length += c >= 1 && c <= 0x7F ? 1 : c <= 0x7FF ? 2 : 3;
+            }
+            return length;
+        }
+
         public static async Task<int> ReadJIntAsync(this Stream stream)
         {
             byte[] data = await stream.ReadFullyAsync(4);
@@ -237,11 +483,39 @@ namespace UbisoftConnectProxy.JavaInterop.Dtos
                 | (data[1] << 0));
         }
 
+        /// <summary>
+        /// Like DataInput.readUTF, see WriteJUTF8.
+        /// </summary>
         public static async Task<string> ReadJUTF8Async(this Stream stream)
         {
             int length = await stream.ReadJUShortAsync();
             byte[] bytes = await stream.ReadFullyAsync(length);
-            return Encoding.UTF8.GetString(bytes);
+            var chars = new char[length];
+            int numChars = 0;
+            for (int i = 0; i < length;)
+            {
+                int b = bytes[i];
+                if (b < 0x80)
+                {
+                    chars[numChars++] = (char)b;
+                    i++;
+                }
+                else if ((b & 0xE0) == 0xC0 && i + 1 < length && (bytes[i + 1] & 0xC0) == 0x80)
+                {
+                    chars[numChars++] = (char)(((b & 0x1F) << 6) | (bytes[i + 1] & 0x3F));
+                    i += 2;
+                }
+                else if ((b & 0xF0) == 0xE0 && i + 2 < length && (bytes[i + 1] & 0xC0) == 0x80 && (bytes[i + 2] & 0xC0) == 0x80)
+                {
+                    chars[numChars++] = (char)(((b & 0x0F) << 12) | ((bytes[i + 1] & 0x3F) << 6) | (bytes[i + 2] & 0x3F));
+                    i += 3;
+                }
+                else
+                {
+                    throw new IOException($"Malformed modified UTF-8 at byte {i}");
+                }
+            }
+            return new string(chars, 0, numChars);
         }
 
         public static async Task<byte[]> ReadFullyAsync(this Stream stream, int numBytes, CancellationToken cancellationToken = default)
@@ -0,0 +1,252 @@
+﻿#nullable enable
+
+using System.Collections.Generic;
+using System.IO;
+using System.Text;
+using System.Threading.Tasks;
+
+namespace UbisoftConnectProxy.JavaInterop.Dtos
+{
+    /// <summary>
+    /// HPACK-like compression of the headers for one direction of the connection (protocol version 2).
+    /// Names are sent as an index into a static table, or into the names seen before. A header that was sent
+    /// before is sent as a single index into a table of recent headers, which both sides update the same way.
+    /// Must see the messages in wire order. Must match HeaderCodec.java.
+    /// </summary>
+    public sealed class HeaderCodec
+    {
+        /// <summary>
+        /// Written instead of the number of headers, the compressed headers follow.
+        /// </summary>
+        public const int Compact = -1;
+
+        private const int TableSize = 16 * 1024;
+        private const int EntryOverhead = 32;
+        private const int MaxNames = 256;
+
+        private const byte Indexed = 0, LiteralAdded = 1, Literal = 2;
+
+        private static readonly string[] StaticNames =
+        {
+            "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Access-Control-Allow-Origin", "Age",
+            "Allow", "Authorization", "Cache-Control", "Connection", "Content-Disposition", "Content-Encoding",
+            "Content-Language", "Content-Length", "Content-Location", "Content-Range", "Content-Type", "Cookie",
+            "Date", "ETag", "Expect", "Expires", "Host", "If-Match", "If-Modified-Since", "If-None-Match", "If-Range",
+            "If-Unmodified-Since", "Keep-Alive", "Last-Modified", "Location", "Origin", "Pragma", "Range", "Referer",
+            "Retry-After", "Server", "Set-Cookie", "Strict-Transport-Security", "Transfer-Encoding", "User-Agent",
+            "Vary", "Via", "WWW-Authenticate", "Ubi-AppId", "Ubi-SessionId", "Ubi-RequestedPlatformType",
+            "Ubi-LocaleCode", "X-Forwarder-Overload"
+        };
+
+        private readonly List<string> _names = new();
+        // only used for encoding
+        private readonly Dictionary<string, int> _nameIndices = new();
+        private readonly Dictionary<string, long> _entryIds = new();
+
+        // ring of recent headers, entry with id n is at n % length
+        private readonly Entry?[] _entries = new Entry?[TableSize / EntryOverhead];
+        private long _numAdded;
+        private int _numEntries, _tableSize;
+
+        public HeaderCodec()
+        {
+            foreach (var name in StaticNames)
+            {
+                _nameIndices[name] = _names.Count;
+                _names.Add(name);
+            }
+        }
+
+        public void Write(Stream stream, HeaderDto[] headers)
+        {
+            // checked first, as failing halfway would leave the tables out of sync
+            foreach (var header in headers)
+            {
+                CheckLength(header.Name);
+                foreach (var value in header.Values)
+                {
+                    CheckLength(value);
+                }
+            }
+
+            WriteVarInt(stream, headers.Length);
+            foreach (var header in headers)
+            {
+                var key = CreateKey(header);
+                if (_entryIds.TryGetValue(key, out long id))
+                {
+                    stream.WriteByte(Indexed);
+                    WriteVarInt(stream, (int)(_numAdded - 1 - id));
+                    continue;
+                }
+
+                int size = SizeOf(header);
+                bool add = size <= TableSize / 4;
+                stream.WriteByte(add ? LiteralAdded : Literal);
+                if (_nameIndices.TryGetValue(header.Name, out int nameIndex))
+                {
+                    WriteVarInt(stream, nameIndex + 1);
+                }
+                else
+                {
+                    WriteVarInt(stream, 0);
+                    stream.WriteJUTF8(header.Name);
+                    AddName(header.Name);
+                }
+                WriteVarInt(stream, header.Values.Length);
+                foreach (var value in header.Values)
+                {
+                    stream.WriteJUTF8(value);
+                }
+                if (add)
+                {
+                    _entryIds[key] = AddEntry(header, size, key);
+                }
+            }
+        }
+
+        public async Task<HeaderDto[]> ReadAsync(Stream stream)
+        {
+            var headers = new HeaderDto[await ReadVarIntAsync(stream)];
+            for (int i = 0; i < headers.Length; i++)
+            {
+                byte type = await stream.ReadByteAsync();
+                if (type == Indexed)
+                {
+                    int index = await ReadVarIntAsync(stream);
+                    if (index >= _numEntries)
+                    {
+                        throw new IOException($"Invalid header index {index}");
+                    }
+                    headers[i] = _entries[(_numAdded - 1 - index) % _entries.Length]!.Header;
+                    continue;
+                }
+                if (type != LiteralAdded && type != Literal)
+                {
+                    throw new IOException($"Invalid header type {type}");
+                }
+
+                string name;
+                int nameIndex = await ReadVarIntAsync(stream);
+                if (nameIndex == 0)
+                {
+                    name = await stream.ReadJUTF8Async();
+                    AddName(name);
+                }
+                else if (nameIndex <= _names.Count)
+                {
+                    name = _names[nameIndex - 1];
+                }
+                else
+                {
+                    throw new IOException($"Invalid header name index {nameIndex}");
+                }
+                var values = new string[await ReadVarIntAsync(stream)];
+                for (int j = 0; j < values.Length; j++)
+                {
+                    values[j] = await stream.ReadJUTF8Async();
+                }
+                var header = new HeaderDto { Name = name, Values = values };
+                if (type == LiteralAdded)
+                {
+                    AddEntry(header, SizeOf(header), null);
+                }
+                headers[i] = header;
+            }
+            return headers;
+        }
+
+        private void AddName(string name)
+        {
+            if (_names.Count < StaticNames.Length + MaxNames)
+            {
+                _nameIndices[name] = _names.Count;
+                _names.Add(name);
+            }
+        }
+
+        private long AddEntry(HeaderDto header, int size, string? key)
+        {
+            while (_tableSize + size > TableSize || _numEntries == _entries.Length)
+            {
+                long oldestId = _numAdded - _numEntries;
+                long slot = oldestId % _entries.Length;
+                var oldest = _entries[slot]!;
+                if (oldest.Key != null && _entryIds.TryGetValue(oldest.Key, out long id) && id == oldestId)
+                {
+                    _entryIds.Remove(oldest.Key);
+                }
+                _entries[slot] = null;
+                _tableSize -= oldest.Size;
+                _numEntries--;
+            }
+            long newId = _numAdded++;
+            _entries[newId % _entries.Length] = new Entry(header, size, key);
+            _tableSize += size;
+            _numEntries++;
+            return newId;
+        }
+
+        private static string CreateKey(HeaderDto header)
+        {
+            StringBuilder sb = new(header.Name);
+            foreach (var value in header.Values)
+            {
+                sb.Append('\0').Append(value);
+            }
+            return sb.ToString();
+        }
+
+        // in UTF-16 code units, just like Java's String.length()
+        private static int SizeOf(HeaderDto header)
+        {
+            int size = EntryOverhead + header.Name.Length;
+            foreach (var value in header.Values)
+            {
+                size += value.Length;
+            }
+            return size;
+        }
+
+        private static void CheckLength(string value)
+        {
+            int length = JavaBinaryStuff.GetJUTF8Length(value);
+            if (length > ushort.MaxValue)
+            {
+                throw new IOException($"Header too long ({length})");
+            }
+        }
+
+        private static void WriteVarInt(Stream stream, int value)
+        {
+            uint v = (uint)value;
+            while ((v & ~0x7Fu) != 0)
+            {
+                stream.WriteByte((byte)((v & 0x7F) | 0x80));
+                v >>= 7;
+            }
+            stream.WriteByte((byte)v);
+        }
+
+        private static async Task<int> ReadVarIntAsync(Stream stream)
+        {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7)
+            {
+                byte b = await stream.ReadByteAsync();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                {
+                    if (value < 0)
+                    {
+                        break;
+                    }
+                    return value;
+                }
+            }
+            throw new IOException("Invalid varint");
+        }
+
+        private sealed record Entry(HeaderDto Header, int Size, string? Key);
+    }
+}
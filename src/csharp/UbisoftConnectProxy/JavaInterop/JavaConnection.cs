@@ -2,6 +2,7 @@
 
 using System;
 using System.IO;
+using System.Threading.Tasks;
 using UbisoftConnectProxy.JavaInterop.Dtos;
 
 namespace UbisoftConnectProxy.JavaInterop
@@ -16,38 +17,99 @@ namespace UbisoftConnectProxy.JavaInterop
         private readonly Action<Exception?> _onDisconnected;
         private readonly Action _onJavaDnsReady;
         private readonly Action<ResponseDto> _onResponse;
+        private readonly Action<int, IDataObject> _onResponsePart;
+
+        // can always read compact headers
+        private readonly HeaderCodec _headerDecoder = new();
+        // null until Java agreed to compact headers
+        private HeaderCodec? _headerEncoder;
+        private int _protocolVersion = 1;
+        private readonly TaskCompletionSource<JavaHello> _hello = new();
 
         /// <summary>
         /// Create a connection from a bidirectional Stream.
         /// </summary>
-        public JavaConnection(Stream stream, Action<Exception?> onDisconnected, Action onJavaDnsReady, Action<ResponseDto> onResponse)
+        public JavaConnection(Stream stream, Action<Exception?> onDisconnected, Action onJavaDnsReady, Action<ResponseDto> onResponse,
+            Action<int, IDataObject> onResponsePart)
+            : this(stream, onDisconnected, onJavaDnsReady, onResponse, onResponsePart,
+                  new WebserverHello { MaxProtocolVersion = WebserverHello.CurrentProtocolVersion }, WebserverHello.MsgId)
+        {
+        }
+
+        /// <summary>
+        /// Another channel to the same Java session (protocol version 3 and newer), with the token from its JavaHello.
+        /// </summary>
+        public JavaConnection(Stream stream, Action<Exception?> onDisconnected, Action<ResponseDto> onResponse,
+            Action<int, IDataObject> onResponsePart, JavaHello hello, int channelIndex)
+            : this(stream, onDisconnected, () => throw new IOException("DnsReady on an extra channel"), onResponse, onResponsePart,
+                  new ChannelHello { SessionToken = hello.SessionToken, ChannelIndex = channelIndex }, ChannelHello.MsgId)
+        {
+            // Java knows compact headers, or it would not have asked for more channels
+            _headerEncoder = new();
+            _protocolVersion = hello.ProtocolVersion;
+        }
+
+        private JavaConnection(Stream stream, Action<Exception?> onDisconnected, Action onJavaDnsReady, Action<ResponseDto> onResponse,
+            Action<int, IDataObject> onResponsePart, IDataObject hello, byte helloMsgId)
         {
             Misc.ThrowIfHasNoSynchronizationContext();
 
             _onDisconnected = onDisconnected;
             _onJavaDnsReady = onJavaDnsReady;
             _onResponse = onResponse;
+            _onResponsePart = onResponsePart;
 
             _stream = stream;
             _sender = new(_stream, Disconnect);
+            Send(hello, helloMsgId);
 
             ReceiveLoopAsync();
         }
 
-        public void Send(RequestDto dto) => Send(dto, RequestDto.MsgId);
+        /// <summary>
+        /// Java's answer to the WebserverHello, only on the first channel.
+        /// </summary>
+        public Task<JavaHello> Hello => _hello.Task;
+
+        public void Send(RequestDto dto) => Send(stream => WriteRequest(stream, dto), RequestDto.MsgId);
         public void SendReady(Ready what) => Send(new WebserverReady { Ready = what }, WebserverReady.MsgId);
         public void Send(WebserverErrorDto dto) => Send(dto, WebserverErrorDto.MsgId);
+        public void Send(RequestHeadDto dto) => Send(stream => WriteRequest(stream, dto), RequestHeadDto.MsgId);
+        public void SendRequestChunk(BodyChunkDto dto) => Send(dto, BodyChunkDto.RequestMsgId);
+        public void SendRequestEnd(BodyEndDto dto) => Send(dto, BodyEndDto.RequestMsgId);
+
+        /// <summary>
+        /// Does nothing if Java is too old to understand it.
+        /// </summary>
+        public void SendCancel(int requestId)
+        {
+            if (_protocolVersion >= 4)
+            {
+                Send(new CancelDto { RequestId = requestId }, CancelDto.MsgId);
+            }
+        }
+
+        private void WriteRequest(Stream stream, MessageDto<RequestDataDto> dto)
+        {
+            dto.Write(stream, _headerEncoder);
+            if (_protocolVersion >= 4)
+            {
+                dto.Data.WriteTimeout(stream);
+            }
+        }
+
+        private void Send(IDataObject? dto, byte msgId) => Send(dto == null ? null : (Action<Stream>)dto.Write, msgId);
 
-        private void Send(IDataObject? dto, byte msgId)
+        private void Send(Action<Stream>? write, byte msgId)
         {
             ThrowIfDisposed();
 
             using MemoryStream fullMessage = new();
             fullMessage.WriteByte(msgId);
-            if (dto != null)
+            if (write != null)
             {
                 using MemoryStream serialized = new();
-                dto.Write(serialized);
+                write(serialized);
                 fullMessage.WriteJInt((int)serialized.Length);
                 fullMessage.Write(serialized.ToArray());
             }
@@ -79,12 +141,42 @@ namespace UbisoftConnectProxy.JavaInterop
                         if (msgId == ResponseDto.MsgId)
                         {
                             ResponseDto response = new();
-                            await response.ReadAsync(ms);
+                            await response.ReadAsync(ms, _headerDecoder);
                             if (!Disposed)
                             {
                                 _onResponse(response);
                             }
                         }
+                        else if (msgId == ResponseHeadDto.MsgId)
+                        {
+                            ResponseHeadDto head = new();
+                            await head.ReadAsync(ms, _headerDecoder);
+                            OnResponsePart(head.RequestId, head);
+                        }
+                        else if (msgId == BodyChunkDto.ResponseMsgId)
+                        {
+                            BodyChunkDto chunk = new();
+                            await chunk.ReadAsync(ms);
+                            OnResponsePart(chunk.RequestId, chunk);
+                        }
+                        else if (msgId == BodyEndDto.ResponseMsgId)
+                        {
+                            BodyEndDto end = new();
+                            await end.ReadAsync(ms);
+                            OnResponsePart(end.RequestId, end);
+                        }
+                        else if (msgId == JavaHello.MsgId)
+                        {
+                            JavaHello hello = new();
+                            await hello.ReadAsync(ms);
+                            // Java reads both kinds, so requests can switch right away
+                            if (hello.ProtocolVersion >= 2)
+                            {
+                                _headerEncoder = new();
+                            }
+                            _protocolVersion = hello.ProtocolVersion;
+                            _hello.TrySetResult(hello);
+                        }
                         else
                         {
                             throw new IOException($"Unknown message '{msgId}'");
@@ -98,6 +190,14 @@ namespace UbisoftConnectProxy.JavaInterop
             }
         }
 
+        private void OnResponsePart(int requestId, IDataObject part)
+        {
+            if (!Disposed)
+            {
+                _onResponsePart(requestId, part);
+            }
+        }
+
         private void Disconnect(Exception? e)
         {
             if (Disposed)
@@ -119,6 +219,7 @@ namespace UbisoftConnectProxy.JavaInterop
             }
             catch { }
             _sender.Dispose();
+            _hello.TrySetException(_disconnectException ?? new IOException("Disconnected"));
             _onDisconnected.Invoke(_disconnectException);
         }
     }
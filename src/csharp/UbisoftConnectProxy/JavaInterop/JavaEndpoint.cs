@@ -0,0 +1,54 @@
+﻿#nullable enable
+
+using System.IO;
+using System.Net;
+using System.Net.Sockets;
+using System.Threading.Tasks;
+
+namespace UbisoftConnectProxy.JavaInterop
+{
+    /// <summary>
+    /// Where Java listens, as given on the command line: a number is a TCP port on loopback, anything else the path of a Unix domain socket (Windows 10 and newer).
+    /// </summary>
+    public sealed class JavaEndpoint
+    {
+        private readonly ushort _port;
+        private readonly string? _socketPath;
+
+        public JavaEndpoint(string address)
+        {
+            if (ushort.TryParse(address, out ushort port))
+            {
+                _port = port;
+            }
+            else
+            {
+                _socketPath = address;
+            }
+        }
+
+        public async Task<Stream> ConnectAsync()
+        {
+            if (_socketPath == null)
+            {
+                TcpClient tcpClient = new();
+                tcpClient.NoDelay = true;
+                await tcpClient.ConnectAsync(IPAddress.Loopback, _port);
+                return tcpClient.GetStream();
+            }
+            Socket socket = new(AddressFamily.Unix, SocketType.Stream, ProtocolType.Unspecified);
+            try
+            {
+                await socket.ConnectAsync(new UnixDomainSocketEndPoint(_socketPath));
+            }
+            catch
+            {
+                socket.Dispose();
+                throw;
+            }
+            return new NetworkStream(socket, true);
+        }
+
+        public override string ToString() => _socketPath ?? _port.ToString();
+    }
+}
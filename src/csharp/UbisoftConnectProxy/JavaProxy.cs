@@ -4,6 +4,7 @@ using Microsoft.AspNetCore.Http;
 using System;
 using System.IO;
 using System.Linq;
+using System.Threading;
 using System.Threading.Tasks;
 using UbisoftConnectProxy.JavaInterop.Dtos;
 
@@ -11,6 +12,12 @@ namespace UbisoftConnectProxy
 {
     public class JavaProxy : IProxy
     {
+        /// <summary>
+        /// Send bodies in chunks, so that the response can be written while Java still receives it.
+        /// </summary>
+        private static readonly bool StreamBodies = true;
+        private const int ChunkSize = 64 * 1024;
+
         private readonly Synchronizer _synchronizer;
 
         //private readonly DirectoryInfo _logFolder;
@@ -31,6 +38,12 @@ namespace UbisoftConnectProxy
 
         public async Task ForwardAsync(HttpContext context)
         {
+            if (StreamBodies)
+            {
+                await ForwardStreamedAsync(context);
+                return;
+            }
+
             byte[] content;
             await using (MemoryStream memoryStream = new())
             {
@@ -38,16 +51,7 @@ namespace UbisoftConnectProxy
                 content = memoryStream.ToArray();
             }
 
-            RequestDataDto requestDto = new()
-            {
-                Uri = "https://" + context.Request.Host + context.Request.Path +
-                                    (context.Request.QueryString.HasValue ? context.Request.QueryString.Value : ""),
-                Method = context.Request.Method,
-                Content = content,
-                Headers = context.Request.Headers
-                    .Select(x => new HeaderDto { Name = x.Key, Values = x.Value.ToArray() })
-                    .ToArray(),
-            };
+            RequestDataDto requestDto = CreateRequest(context, content);
 
             Console.WriteLine($"Forwarding {requestDto.Method} {requestDto.Uri}");
 
@@ -60,35 +64,147 @@ namespace UbisoftConnectProxy
 
             try
             {
-                foreach (var header in dto.Headers)
+                WriteHead(context, dto);
+                await context.Response.Body.WriteAsync(dto.Content);
+                await context.Response.Body.FlushAsync();
+            }
+            catch (Exception e)
+            {
+                _synchronizer.SynchronizationContext.Post(x => _synchronizer.Logic.OnProxyError(e), null);
+            }
+        }
+
+        private async Task ForwardStreamedAsync(HttpContext context)
+        {
+            var logic = _synchronizer.Logic;
+            var syncContext = _synchronizer.SynchronizationContext;
+
+            RequestDataDto head = CreateRequest(context, Array.Empty<byte>());
+            Console.WriteLine($"Forwarding {head.Method} {head.Uri} (streamed)");
+
+            var streamed = await syncContext.DispatchAsync(() => Task.FromResult(logic.StartStreamedRequest(head)));
+            if (streamed == null)
+            {
+                context.Response.StatusCode = 500;
+                return;
+            }
+
+            try
+            {
+                // 1. Request body
+                bool failed = true;
+                try
+                {
+                    byte[] buffer = new byte[ChunkSize];
+                    int read;
+                    while ((read = await context.Request.Body.ReadAsync(buffer, context.RequestAborted)) > 0)
+                    {
+                        var chunk = buffer.AsSpan(0, read).ToArray();
+                        syncContext.Post(x => logic.SendRequestChunk(streamed.RequestId, chunk), null);
+                    }
+                    failed = false;
+                }
+                finally
                 {
-                    switch (header.Name.ToLowerInvariant())
+                    syncContext.Post(x => logic.EndRequest(streamed.RequestId, failed), null);
+                }
+
+                // 2. Response, same timeout as non-streamed requests until the head arrives
+                IDataObject first;
+                using (CancellationTokenSource cts = CancellationTokenSource.CreateLinkedTokenSource(context.RequestAborted))
+                {
+                    cts.CancelAfter(TimeSpan.FromMilliseconds(Logic.RequestTimeoutMillis));
+                    try
+                    {
+                        first = await streamed.Parts.Reader.ReadAsync(cts.Token);
+                    }
+                    catch (OperationCanceledException)
                     {
-                        case "strict-transport-security":
-                        case "connection":
-                        case "keep-alive":
-                            break;
-                        case "content-type": context.Response.ContentType = string.Join(",", header.Values); break;
-                        case "content-length": context.Response.ContentLength = int.Parse(string.Join(",", header.Values)); break;
-                        default:
-                            foreach (var headerValue in header.Values)
-                            {
-                                context.Response.Headers.Add(header.Name, headerValue);
-                            }
-                            break;
+                        context.Response.StatusCode = 500;
+                        return;
                     }
                 }
 
-                Console.WriteLine("Status of response: " + dto.StatusCode);
-                context.Response.StatusCode = dto.StatusCode;
+                if (first is ResponseDto complete)
+                {
+                    WriteHead(context, complete.Data);
+                    await context.Response.Body.WriteAsync(complete.Data.Content);
+                    await context.Response.Body.FlushAsync();
+                    return;
+                }
 
-                await context.Response.Body.WriteAsync(dto.Content);
-                await context.Response.Body.FlushAsync();
+                WriteHead(context, ((ResponseHeadDto)first).Data);
+                await foreach (var part in streamed.Parts.Reader.ReadAllAsync(context.RequestAborted))
+                {
+                    if (part is BodyChunkDto chunk)
+                    {
+                        await context.Response.Body.WriteAsync(chunk.Data, context.RequestAborted);
+                        await context.Response.Body.FlushAsync(context.RequestAborted);
+                    }
+                    else if (part is BodyEndDto end && end.Failed)
+                    {
+                        // upstream broke off, the client must not take this as a complete response
+                        context.Abort();
+                    }
+                }
             }
             catch (Exception e)
             {
-                _synchronizer.SynchronizationContext.Post(x => _synchronizer.Logic.OnProxyError(e), null);
+                // cut off, e.g. because the client was too slow, the client must not take this as a complete response
+                if (context.Response.HasStarted)
+                {
+                    context.Abort();
+                }
+                else
+                {
+                    context.Response.StatusCode = 500;
+                }
+                syncContext.Post(x => logic.OnProxyError(e), null);
+            }
+            finally
+            {
+                syncContext.Post(x => logic.ForgetStreamedRequest(streamed.RequestId), null);
+            }
+        }
+
+        private static RequestDataDto CreateRequest(HttpContext context, byte[] content)
+        {
+            return new()
+            {
+                Uri = "https://" + context.Request.Host + context.Request.Path +
+                                    (context.Request.QueryString.HasValue ? context.Request.QueryString.Value : ""),
+                Method = context.Request.Method,
+                TimeoutMillis = Logic.RequestTimeoutMillis,
+                Content = content,
+                Headers = context.Request.Headers
+                    .Select(x => new HeaderDto { Name = x.Key, Values = x.Value.ToArray() })
+                    .ToArray(),
+            };
+        }
+
+        private static void WriteHead(HttpContext context, ResponseDataDto dto)
+        {
+            foreach (var header in dto.Headers)
+            {
+                switch (header.Name.ToLowerInvariant())
+                {
+                    case "strict-transport-security":
+                    case "connection":
+                    case "keep-alive":
+                        break;
+                    case "content-type": context.Response.ContentType = string.Join(",", header.Values); break;
+                    case "content-length": context.Response.ContentLength = int.Parse(string.Join(",", header.Values)); break;
+                    default:
+                        foreach (var headerValue in header.Values)
+                        {
+                            context.Response.Headers.Add(header.Name, headerValue);
+                        }
+                        break;
+                }
             }
+
+            Console.WriteLine("Status of response: " + dto.StatusCode);
+            context.Response.StatusCode = dto.StatusCode;
         }
     }
 }
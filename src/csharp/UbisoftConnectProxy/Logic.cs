@@ -5,10 +5,10 @@ using System.Collections.Generic;
 using System.IO;
 using System.Linq;
 using System.Net;
-using System.Net.Sockets;
 using System.Runtime.InteropServices;
 using System.Security.Cryptography.X509Certificates;
 using System.Threading;
+using System.Threading.Channels;
 using System.Threading.Tasks;
 using UbisoftConnectProxy.JavaInterop;
 using UbisoftConnectProxy.JavaInterop.Dtos;
@@ -17,13 +17,22 @@ namespace UbisoftConnectProxy
 {
     public class Logic
     {
+        /// <summary>
+        /// How long we wait for a response (head) from Java, which stops waiting for upstream then too.
+        /// </summary>
+        public const int RequestTimeoutMillis = 30000;
+
         private readonly Dictionary<int, PendingRequest> _pendingRequests = new();
+        private readonly Dictionary<int, StreamedRequest> _streamedRequests = new();
         private readonly X509Certificate2 _certificate;
 
         private int _nextRequestId;
         private JavaConnection? _javaConnection;
+        // requests are spread over these by id, control messages stay on _javaConnection
+        private JavaConnection[] _javaChannels = Array.Empty<JavaConnection>();
         private Webserver? _webserver;
 
+        private bool _javaDisconnected;
         private Task? _disposeTask;
 
         public Logic()
@@ -54,17 +63,16 @@ namespace UbisoftConnectProxy
             _certificate = new X509Certificate2(File.ReadAllBytes(certFile.FullName), "password");
         }
 
-        public async Task RunAsync(ushort javaTcpPort)
+        public async Task RunAsync(JavaEndpoint javaEndpoint)
         {
             // 1. Connect to Java
-            WriteCheck("Step 1: Connecting to Java on " + javaTcpPort);
+            WriteCheck("Step 1: Connecting to Java on " + javaEndpoint);
             TaskCompletionSource tcsJavaDnsReady = new();
-            TcpClient tcpClient = new();
-            tcpClient.NoDelay = true;
-            await tcpClient.ConnectAsync(IPAddress.Loopback, javaTcpPort);
+            Stream stream = await javaEndpoint.ConnectAsync();
             // connection established! (crashes when a second DnsReady is received, as it should)
-            _javaConnection = new(tcpClient.GetStream(), OnJavaDisconnected, tcsJavaDnsReady.SetResult, OnResponse);
-            WriteSuccess("Connected");
+            _javaConnection = new(stream, OnJavaDisconnected, tcsJavaDnsReady.SetResult, OnResponse, OnResponsePart);
+            await ConnectChannelsAsync(javaEndpoint, await _javaConnection.Hello);
+            WriteSuccess(_javaChannels.Length > 1 ? $"Connected ({_javaChannels.Length} channels)" : "Connected");
 
             // 2. Remove from hosts
             WriteCheck("Step 2: Removing redirect from hosts");
@@ -153,9 +161,48 @@ namespace UbisoftConnectProxy
             _javaConnection?.SendReady(Ready.Running);
         }
 
+        /// <summary>
+        /// Opens the other channels Java asked for, so big responses don't hold up the small ones.
+        /// </summary>
+        private async Task ConnectChannelsAsync(JavaEndpoint javaEndpoint, JavaHello hello)
+        {
+            List<JavaConnection> channels = new() { _javaConnection! };
+            for (int i = 1; hello.ProtocolVersion >= 3 && i < hello.NumChannels; i++)
+            {
+                channels.Add(new(await javaEndpoint.ConnectAsync(), OnJavaDisconnected, OnResponse, OnResponsePart, hello, i));
+            }
+            _javaChannels = channels.ToArray();
+        }
+
+        /// <summary>
+        /// The channel for everything of that request, or null if Java is not connected.
+        /// </summary>
+        private JavaConnection? GetChannel(int requestId)
+        {
+            var channels = _javaChannels;
+            return channels.Length == 0 ? _javaConnection : channels[(uint)requestId % channels.Length];
+        }
+
         private void OnJavaDisconnected(Exception? e)
         {
+            if (_javaDisconnected)
+            {
+                return;
+            }
+            _javaDisconnected = true;
+            // responses on the other channels would be lost anyway
+            var channels = _javaChannels;
+            _javaChannels = Array.Empty<JavaConnection>();
             _javaConnection = null;
+            foreach (var channel in channels)
+            {
+                channel.Dispose();
+            }
+            foreach (var streamed in _streamedRequests.Values)
+            {
+                streamed.Parts.Writer.TryComplete(new IOException("Java disconnected"));
+            }
+            _streamedRequests.Clear();
             Quit("Java disconnected: " + e);
         }
 
@@ -344,6 +391,83 @@ namespace UbisoftConnectProxy
             {
                 request.TaskCompleter.TrySetResult(response);
             }
+            else
+            {
+                // Java may answer a streamed request in one piece (e.g. when rejecting it)
+                OnResponsePart(response.RequestId, response);
+            }
+        }
+
+        void OnResponsePart(int requestId, IDataObject part)
+        {
+            if (_streamedRequests.TryGetValue(requestId, out var streamed))
+            {
+                // waiting would stall the other requests on the Java channel, so a client that falls too far behind loses its response
+                if (!streamed.Parts.Writer.TryWrite(part))
+                {
+                    Console.WriteLine($"Client too slow for streamed request {requestId}, cancelling it");
+                    streamed.Parts.Writer.TryComplete(new IOException($"Client too slow, {StreamedRequest.MaxBufferedParts} parts not read yet"));
+                    _streamedRequests.Remove(requestId);
+                    GetChannel(requestId)?.SendCancel(requestId);
+                    return;
+                }
+                if (part is BodyEndDto || part is ResponseDto)
+                {
+                    streamed.Parts.Writer.TryComplete();
+                    _streamedRequests.Remove(requestId);
+                }
+            }
+        }
+
+        /// <summary>
+        /// Sends the head of a request, the body must follow via SendRequestChunk and EndRequest. Returns null if Java is not connected.
+        /// </summary>
+        public StreamedRequest? StartStreamedRequest(RequestDataDto head)
+        {
+            StreamedRequest streamed = new(_nextRequestId++);
+            var channel = GetChannel(streamed.RequestId);
+            if (channel == null)
+            {
+                return null;
+            }
+
+            _streamedRequests.Add(streamed.RequestId, streamed);
+            channel.Send(new RequestHeadDto
+            {
+                RequestId = streamed.RequestId,
+                Data = head,
+            });
+            return streamed;
+        }
+
+        public void SendRequestChunk(int requestId, byte[] data)
+        {
+            GetChannel(requestId)?.SendRequestChunk(new BodyChunkDto
+            {
+                RequestId = requestId,
+                Data = data,
+            });
+        }
+
+        public void EndRequest(int requestId, bool failed)
+        {
+            GetChannel(requestId)?.SendRequestEnd(new BodyEndDto
+            {
+                RequestId = requestId,
+                Failed = failed,
+            });
+        }
+
+        /// <summary>
+        /// Forgets the request, in case the client went away before the response was complete. Java is told to abort it.
+        /// </summary>
+        public void ForgetStreamedRequest(int requestId)
+        {
+            if (_streamedRequests.Remove(requestId, out var streamed))
+            {
+                streamed.Parts.Writer.TryComplete();
+                GetChannel(requestId)?.SendCancel(requestId);
+            }
         }
 
         public async Task<ResponseDataDto> DoRequestAsync(RequestDataDto requestData)
@@ -354,9 +478,10 @@ namespace UbisoftConnectProxy
                 Data = requestData,
             };
 
-            if (_javaConnection != null)
+            var channel = GetChannel(requestDto.RequestId);
+            if (channel != null)
             {
-                _javaConnection.Send(requestDto);
+                channel.Send(requestDto);
                 PendingRequest pendingRequest = new();
                 _pendingRequests.Add(requestDto.RequestId, pendingRequest);
                 var response = await pendingRequest.TaskCompleter.Task;
@@ -365,6 +490,8 @@ namespace UbisoftConnectProxy
                 {
                     return response.Data;
                 }
+                // timed out, don't let Java wait for upstream any longer
+                GetChannel(requestDto.RequestId)?.SendCancel(requestDto.RequestId);
             }
 
             return new()
@@ -402,8 +529,34 @@ namespace UbisoftConnectProxy
 
         async void CompleteLater()
         {
-            await Task.Delay(TimeSpan.FromSeconds(30));
+            await Task.Delay(TimeSpan.FromMilliseconds(Logic.RequestTimeoutMillis));
             TaskCompleter.TrySetResult(null);
         }
     }
+
+    public class StreamedRequest
+    {
+        /// <summary>
+        /// How many parts may wait for the client to read them, 2 MB with the default chunk size of Java. The request is cancelled when
+        /// there would be more.
+        /// </summary>
+        public const int MaxBufferedParts = 32;
+
+        public int RequestId { get; }
+
+        /// <summary>
+        /// ResponseHeadDto, BodyChunkDto... and BodyEndDto, or a single ResponseDto.
+        /// </summary>
+        public Channel<IDataObject> Parts { get; } = Channel.CreateBounded<IDataObject>(new BoundedChannelOptions(MaxBufferedParts)
+        {
+            FullMode = BoundedChannelFullMode.Wait,
+            SingleReader = true,
+            SingleWriter = true,
+        });
+
+        public StreamedRequest(int requestId)
+        {
+            RequestId = requestId;
+        }
+    }
 }
@@ -3,6 +3,7 @@ using Microsoft.Extensions.Hosting;
 using Nito.AsyncEx;
 using System;
 using System.Threading.Tasks;
+using UbisoftConnectProxy.JavaInterop;
 
 namespace UbisoftConnectProxy
 {
@@ -12,11 +13,11 @@ namespace UbisoftConnectProxy
         {
             if (args.Length != 1)
             {
-                Console.WriteLine("Must give the TCP port of the Java server as the single argument");
+                Console.WriteLine("Must give the TCP port or socket path of the Java server as the single argument");
                 return;
             }
 
-            ushort port = Convert.ToUInt16(args[0]);
+            JavaEndpoint javaEndpoint = new(args[0]);
 
             // make sure the logic is single-threaded, much easier to comprehend :P
             AsyncContextThread act = new();
@@ -29,7 +30,7 @@ namespace UbisoftConnectProxy
 
                     AppDomain.CurrentDomain.UnhandledException += (sender, e) => logic.OnError($"Unhandled exception: {e.ExceptionObject}");
 
-                    await logic.RunAsync(port);
+                    await logic.RunAsync(javaEndpoint);
                 }
                 catch (Exception e)
                 {
@@ -0,0 +1,126 @@
+package com.iosoft.ubiconfor.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.iosoft.ubiconfor.dtos.HeaderCodec;
+import com.iosoft.ubiconfor.dtos.RequestDto;
+import com.iosoft.ubiconfor.dtos.ResponseDto;
+import com.iosoft.ubiconfor.wire.BufferPool;
+import com.iosoft.ubiconfor.wire.ByteBufferInput;
+import com.iosoft.ubiconfor.wire.ByteBufferOutput;
+
+/**
+ * Encoding and decoding of single messages, the same way FrameChannel does it.
+ * Compact headers are measured in the steady state, when every header was seen
+ * before.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DtoCodecBenchmark {
+	@Param({ "minimal", "client" })
+	public String headers;
+
+	@Param({ "0", "1024", "65536", "4194304" })
+	public int bodySize;
+
+	@Param({ "plain", "compact" })
+	public String headerEncoding;
+
+	private final BufferPool _pool = new BufferPool(4, 80 * 1024, true);
+	private final ByteBufferOutput _out = new ByteBufferOutput(_pool);
+	private final ByteBufferInput _in = new ByteBufferInput();
+	private RequestDto _request;
+	private ResponseDto _response;
+	private HeaderCodec _requestEncoder, _requestDecoder, _responseEncoder, _responseDecoder;
+	private ByteBuffer _encodedRequest, _encodedResponse;
+
+	@Setup
+	public void setup() throws IOException {
+		_request = Messages.createRequest(headers, bodySize);
+		_response = Messages.createResponse(headers, bodySize);
+		if (headerEncoding.equals("compact")) {
+			_requestEncoder = new HeaderCodec();
+			_requestDecoder = new HeaderCodec();
+			_responseEncoder = new HeaderCodec();
+			_responseDecoder = new HeaderCodec();
+			// the first message fills the tables
+			new RequestDto().read(_in.wrap(encode(_request, _requestEncoder)), _requestDecoder);
+			new ResponseDto().read(_in.wrap(encode(_response, _responseEncoder)), _responseDecoder);
+		}
+		_encodedRequest = encode(_request, _requestEncoder);
+		_encodedResponse = encode(_response, _responseEncoder);
+	}
+
+	private ByteBuffer encode(RequestDto request, HeaderCodec codec) throws IOException {
+		_out.begin();
+		request.write(_out, codec);
+		return copy(_out.finish());
+	}
+
+	private ByteBuffer encode(ResponseDto response, HeaderCodec codec) throws IOException {
+		_out.begin();
+		response.write(_out, codec);
+		return copy(_out.finish());
+	}
+
+	private ByteBuffer copy(ByteBuffer buffer) {
+		ByteBuffer copy = ByteBuffer.allocateDirect(buffer.remaining());
+		copy.put(buffer).flip();
+		_pool.release(buffer);
+		return copy;
+	}
+
+	@Benchmark
+	public int writeRequest() throws IOException {
+		_out.begin();
+		_request.write(_out, _requestEncoder);
+		return release(_out.finish());
+	}
+
+	@Benchmark
+	public RequestDto readRequest() throws IOException {
+		_encodedRequest.rewind();
+		RequestDto request = new RequestDto();
+		request.read(_in.wrap(_encodedRequest), _requestDecoder);
+		return request;
+	}
+
+	@Benchmark
+	public int writeResponse() throws IOException {
+		_out.begin();
+		_response.write(_out, _responseEncoder);
+		return release(_out.finish());
+	}
+
+	@Benchmark
+	public ResponseDto readResponse() throws IOException {
+		_encodedResponse.rewind();
+		ResponseDto response = new ResponseDto();
+		response.read(_in.wrap(_encodedResponse), _responseDecoder);
+		return response;
+	}
+
+	private int release(ByteBuffer buffer) {
+		int size = buffer.remaining();
+		_pool.release(buffer);
+		return size;
+	}
+}
@@ -0,0 +1,116 @@
+package com.iosoft.ubiconfor.benchmarks;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.iosoft.ubiconfor.Connection;
+import com.iosoft.ubiconfor.WebserverTransport;
+import com.iosoft.ubiconfor.dtos.RequestDto;
+import com.iosoft.ubiconfor.dtos.ResponseDto;
+import com.iosoft.ubiconfor.wire.BufferPool;
+import com.iosoft.ubiconfor.wire.FrameChannel;
+
+/**
+ * The whole path over a loopback socket or a Unix domain socket: a fake
+ * webserver sends requests, the Connection decodes them and answers each one
+ * right away, the fake webserver decodes the answers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FramePathBenchmark {
+	private static final int PIPELINED = 100;
+
+	@Param({ "0", "1024", "65536" })
+	public int bodySize;
+
+	@Param({ "tcp", "unix" })
+	public String transport;
+
+	private final ArrayBlockingQueue<Integer> _responses = new ArrayBlockingQueue<>(PIPELINED);
+	private Connection _connection;
+	private FrameChannel _webserver;
+	private RequestDto _request;
+	private ResponseDto _response;
+
+	@Setup
+	public void setup() throws IOException {
+		_request = Messages.createRequest("client", bodySize);
+		_response = Messages.createResponse("client", bodySize);
+
+		WebserverTransport webserverTransport = WebserverTransport.create(transport);
+		ServerSocketChannel server = webserverTransport.bind();
+		try {
+			SocketChannel webserverSide = webserverTransport.connect(webserverTransport.getAddress(server));
+			SocketChannel javaSide = server.accept();
+
+			_connection = new Connection(javaSide, Runnable::run, e -> {
+			}, this::onRequest, x -> {
+			}, x -> {
+			});
+			_webserver = new FrameChannel(webserverSide, new BufferPool(64, 80 * 1024, true), 256, this::onFrame,
+					e -> {
+					});
+			_webserver.start("Fake webserver");
+		} finally {
+			webserverTransport.unbind(server);
+		}
+	}
+
+	private void onRequest(RequestDto request) {
+		_response.RequestId = request.RequestId;
+		_connection.send(_response);
+	}
+
+	private void onFrame(byte msgId, DataInput in) throws IOException {
+		ResponseDto response = new ResponseDto();
+		response.read(in);
+		_responses.add(response.RequestId);
+	}
+
+	@TearDown
+	public void tearDown() {
+		_webserver.close();
+		_connection.kick();
+	}
+
+	@Benchmark
+	public int roundTrip() throws Exception {
+		_webserver.send(RequestDto.MsgId, _request);
+		return _responses.take();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PIPELINED)
+	public int pipelined() throws Exception {
+		for (int i = 0; i < PIPELINED; i++) {
+			_webserver.send(RequestDto.MsgId, _request);
+		}
+		int sum = 0;
+		for (int i = 0; i < PIPELINED; i++) {
+			sum += _responses.take();
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,134 @@
+package com.iosoft.ubiconfor.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.iosoft.ubiconfor.AdmissionController;
+import com.iosoft.ubiconfor.VirtualThreads;
+import com.iosoft.ubiconfor.dtos.HeaderDto;
+import com.iosoft.ubiconfor.dtos.RequestDataDto;
+import com.iosoft.ubiconfor.dtos.ResponseDataDto;
+import com.iosoft.ubiconfor.upstream.PooledClient;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A burst of long polls through the AdmissionController and the PooledClient,
+ * against a local server that holds each one for holdMillis. Measures the time
+ * until all of them are answered, with the default limits of "-threads=platform"
+ * (64) and "-threads=virtual" (1024). Virtual needs Java 21.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LongPollBenchmark {
+	@Param({ "platform", "virtual" })
+	public String threads;
+
+	@Param({ "1000" })
+	public int numPolls;
+
+	@Param({ "500" })
+	public int holdMillis;
+
+	private HttpServer _server;
+	private ExecutorService _serverExecutor;
+	private AdmissionController _admission;
+	private PooledClient _client;
+	private String _uri;
+
+	@Setup
+	public void setup() throws IOException {
+		boolean virtual = threads.equals("virtual");
+		if (virtual && !VirtualThreads.isSupported()) {
+			throw new IllegalStateException("Virtual threads need Java 21 and the multi-release JAR");
+		}
+
+		_serverExecutor = Executors.newCachedThreadPool();
+		_server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), numPolls * 2);
+		_server.setExecutor(_serverExecutor);
+		_server.createContext("/poll", exchange -> {
+			try {
+				Thread.sleep(holdMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			byte[] body = "{\"events\":[]}".getBytes();
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		_server.start();
+		_uri = "http://127.0.0.1:" + _server.getAddress().getPort() + "/poll";
+
+		// everything has to fit into the queue, only the limit differs
+		_admission = new AdmissionController("Poll", virtual ? 1024 : 64, numPolls, 60000, virtual);
+		_client = new PooledClient(numPolls, 60, 5000, 60000, null);
+	}
+
+	@TearDown
+	public void tearDown() {
+		_admission.shutdown();
+		_client.shutdown();
+		_server.stop(0);
+		_serverExecutor.shutdownNow();
+	}
+
+	@Benchmark
+	public int burst() throws InterruptedException {
+		CountDownLatch done = new CountDownLatch(numPolls);
+		AtomicInteger numFailed = new AtomicInteger();
+		for (int i = 0; i < numPolls; i++) {
+			FutureTask<Void> task = _admission.newTask(() -> {
+				try {
+					_client.execute(createRequest(), new ResponseDataDto());
+				} catch (IOException e) {
+					numFailed.incrementAndGet();
+				}
+				done.countDown();
+			}, reason -> {
+				numFailed.incrementAndGet();
+				done.countDown();
+			});
+			_admission.submit(task);
+		}
+		done.await();
+		if (numFailed.get() > 0) {
+			throw new IllegalStateException(numFailed.get() + " polls failed");
+		}
+		return numPolls;
+	}
+
+	private RequestDataDto createRequest() {
+		RequestDataDto request = new RequestDataDto();
+		request.Method = "GET";
+		request.Uri = _uri;
+		request.Headers = new HeaderDto[0];
+		request.Content = new byte[0];
+		return request;
+	}
+}
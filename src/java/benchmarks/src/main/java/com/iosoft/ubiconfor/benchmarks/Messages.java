@@ -0,0 +1,87 @@
+package com.iosoft.ubiconfor.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.iosoft.ubiconfor.dtos.HeaderDto;
+import com.iosoft.ubiconfor.dtos.RequestDto;
+import com.iosoft.ubiconfor.dtos.ResponseDto;
+
+/**
+ * Messages like the ones seen between the webserver and Java.
+ */
+final class Messages {
+	private Messages() {
+	}
+
+	static RequestDto createRequest(String headerSet, int bodySize) {
+		RequestDto request = new RequestDto();
+		request.RequestId = 4711;
+		request.Data.Uri = "https://channel-service.upc.ubi.com/v1/spaces/6edd234a-abff-4e90-9aab-b9b9c6e49ff7/channels"
+				+ "/0b8cd7c2-1234-4c0d-9e0a-1a2b3c4d5e6f/messages?limit=50";
+		request.Data.Method = bodySize > 0 ? "POST" : "GET";
+		if (headerSet.equals("minimal")) {
+			request.Data.Headers = new HeaderDto[] { header("Host", "channel-service.upc.ubi.com"),
+					header("Accept", "*/*") };
+		} else {
+			request.Data.Headers = new HeaderDto[] { header("Host", "channel-service.upc.ubi.com"),
+					header("Accept", "application/json"), header("Accept-Encoding", "gzip, deflate"),
+					header("Accept-Language", "en-US"), header("Authorization", "Ubi_v1 t=" + token(1400)),
+					header("Connection", "Keep-Alive"), header("Content-Type", "application/json; charset=UTF-8"),
+					header("Ubi-AppId", "f68a4bb5-608a-4ff2-8123-be8ef797e0a6"),
+					header("Ubi-SessionId", "7b9b0ab1-5a3c-4e0e-8a0e-2c1d9f0e8b3a"),
+					header("Ubi-RequestedPlatformType", "uplay"), header("Ubi-LocaleCode", "en-US"),
+					header("User-Agent", "Mozilla/5.0 (Windows NT 6.1; Win64; x64) AppleWebKit/537.36 (KHTML, like"
+							+ " Gecko) UbisoftConnect/131.0.0 Chrome/86.0.4240.198 Safari/537.36") };
+		}
+		request.Data.Content = body(bodySize);
+		return request;
+	}
+
+	static ResponseDto createResponse(String headerSet, int bodySize) {
+		ResponseDto response = new ResponseDto();
+		response.RequestId = 4711;
+		response.Data.StatusCode = 200;
+		if (headerSet.equals("minimal")) {
+			response.Data.Headers = new HeaderDto[] { header("Content-Length", Integer.toString(bodySize)) };
+		} else {
+			response.Data.Headers = new HeaderDto[] { header("Date", "Tue, 18 Oct 2022 08:40:12 GMT"),
+					header("Content-Type", "application/json; charset=utf-8"),
+					header("Content-Length", Integer.toString(bodySize)), header("Connection", "keep-alive"),
+					header("Cache-Control", "no-cache, no-store"), header("Pragma", "no-cache"),
+					header("Expires", "-1"), header("Server", "Microsoft-IIS/10.0"),
+					header("X-Powered-By", "ASP.NET"),
+					header("Strict-Transport-Security", "max-age=31536000; includeSubDomains"),
+					header("Access-Control-Allow-Origin", "*"), header("Vary", "Accept-Encoding") };
+		}
+		response.Data.Content = body(bodySize);
+		return response;
+	}
+
+	private static HeaderDto header(String name, String value) {
+		HeaderDto header = new HeaderDto();
+		header.Name = name;
+		header.Values = new String[] { value };
+		return header;
+	}
+
+	private static String token(int length) {
+		char[] chars = new char[length];
+		Random random = new Random(42);
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+		for (int i = 0; i < length; i++) {
+			chars[i] = alphabet.charAt(random.nextInt(alphabet.length()));
+		}
+		return new String(chars);
+	}
+
+	// JSON-ish, compression does not matter here
+	private static byte[] body(int size) {
+		byte[] body = new byte[size];
+		byte[] pattern = "{\"message\":\"hello\",\"id\":12345},".getBytes();
+		for (int i = 0; i < size; i++) {
+			body[i] = pattern[i % pattern.length];
+		}
+		return size == 0 ? body : Arrays.copyOf(body, size);
+	}
+}
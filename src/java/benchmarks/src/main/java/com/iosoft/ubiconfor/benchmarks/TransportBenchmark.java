@@ -0,0 +1,148 @@
+package com.iosoft.ubiconfor.benchmarks;
+
+import java.io.DataInput;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.iosoft.ubiconfor.dtos.Doorbell;
+import com.iosoft.ubiconfor.wire.BufferPool;
+import com.iosoft.ubiconfor.wire.FrameChannel;
+import com.iosoft.ubiconfor.wire.SharedMemoryChannel;
+
+/**
+ * One frame there and back between two threads, over a loopback socket or
+ * through shared memory whose doorbells go over a loopback socket like in the
+ * forwarder. Leaves out the decoding, see FramePathBenchmark for that.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportBenchmark {
+	private static final byte MSG_ID = 10;
+
+	@Param({ "tcp", "sharedMemory" })
+	public String transport;
+
+	@Param({ "64", "16384" })
+	public int frameSize;
+
+	@Param({ "0", "50" })
+	public int spinMicros;
+
+	private final ArrayBlockingQueue<Integer> _answers = new ArrayBlockingQueue<>(1);
+	private byte[] _frame;
+	private FrameChannel _clientSocket, _serverSocket;
+	private SharedMemoryChannel _client, _server;
+	private File _file;
+
+	@Setup
+	public void setup() throws IOException {
+		_frame = new byte[frameSize];
+		BufferPool pool = new BufferPool(64, 80 * 1024, true);
+		SocketChannel clientSide, serverSide;
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			clientSide = SocketChannel.open(server.getLocalAddress());
+			serverSide = server.accept();
+		}
+		if (transport.equals("tcp")) {
+			_clientSocket = new FrameChannel(clientSide, pool, 256, this::onAnswer, e -> {
+			});
+			_serverSocket = new FrameChannel(serverSide, pool, 256, (msgId, in) -> echo(in, _serverSocket::send),
+					e -> {
+					});
+		} else {
+			File dir = new File("/dev/shm");
+			_file = File.createTempFile("benchmark", ".ring", dir.isDirectory() ? dir : null);
+			MappedByteBuffer created = SharedMemoryChannel.create(_file, 1024 * 1024);
+			MappedByteBuffer opened = SharedMemoryChannel.open(_file);
+			long spinNanos = TimeUnit.MICROSECONDS.toNanos(spinMicros);
+			_clientSocket = new FrameChannel(clientSide, pool, 256, (msgId, in) -> _client.onDoorbell(), e -> {
+			});
+			_serverSocket = new FrameChannel(serverSide, pool, 256, (msgId, in) -> _server.onDoorbell(), e -> {
+			});
+			_server = new SharedMemoryChannel(created, true, pool, spinNanos, (msgId, in) -> echo(in, _server::send),
+					() -> ring(_serverSocket));
+			_client = new SharedMemoryChannel(opened, false, pool, spinNanos, this::onAnswer,
+					() -> ring(_clientSocket));
+		}
+		_clientSocket.start("Client socket");
+		_serverSocket.start("Server socket");
+	}
+
+	private interface Sender {
+		void send(byte msgId, FrameChannel.FrameWriter writer) throws IOException;
+	}
+
+	private static void echo(DataInput in, Sender sender) throws IOException {
+		byte[] frame = new byte[in.readInt()];
+		in.readFully(frame);
+		sender.send(MSG_ID, out -> {
+			out.writeInt(frame.length);
+			out.write(frame);
+		});
+	}
+
+	private static void ring(FrameChannel socket) {
+		try {
+			socket.send(Doorbell.MsgId, out -> {
+			});
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void onAnswer(byte msgId, DataInput in) throws IOException {
+		int length = in.readInt();
+		in.skipBytes(length);
+		_answers.add(length);
+	}
+
+	@TearDown
+	public void tearDown() {
+		_clientSocket.close();
+		_serverSocket.close();
+		if (_client != null) {
+			_client.close();
+			_server.close();
+			_file.delete();
+		}
+	}
+
+	@Benchmark
+	public int roundTrip() throws Exception {
+		FrameChannel.FrameWriter writer = out -> {
+			out.writeInt(_frame.length);
+			out.write(_frame);
+		};
+		if (_client != null) {
+			_client.send(MSG_ID, writer);
+		} else {
+			_clientSocket.send(MSG_ID, writer);
+		}
+		return _answers.take();
+	}
+}
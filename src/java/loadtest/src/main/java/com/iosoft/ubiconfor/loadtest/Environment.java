@@ -0,0 +1,260 @@
+package com.iosoft.ubiconfor.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import com.iosoft.ubiconfor.Config;
+import com.iosoft.ubiconfor.WebserverTransport;
+
+/**
+ * Everything around the forwarder under test: the stub upstream with a
+ * throwaway certificate, the forwarder process pointed at it and the fake
+ * webserver, connected and past the startup messages.
+ * <p>
+ * "-forwarder=classpath" (default: our own, which contains the forwarder) or
+ * "none" to use a forwarder that is already running with "-webserver.port",
+ * "-upstream.address" etc. "-forwarderJvmArgs" are space separated,
+ * "-forwarderLog" is where its output goes. "-protocol=4" is the max protocol
+ * version of the fake webserver. "-transport=tcp" or "unix" is how it connects,
+ * see WebserverTransport (with "none" also "-webserver.socketPath").
+ * <p>
+ * "-sharedMemory=true" lets the fake webserver offer shared memory (protocol
+ * version 5) and turns it on in the forwarder, the requests and small
+ * responses then go through it.
+ * <p>
+ * "-dns=stub" starts a DNS server that resolves channel-service to
+ * "-stub.dnsAddresses" (default 127.0.0.2 where nothing listens, then the stub
+ * upstream on 127.0.0.1) and lets the forwarder look it up there, instead of
+ * giving it the address of the stub upstream.
+ */
+final class Environment implements Closeable {
+	static final String HOST = "channel-service.upc.ubi.com";
+	private static final String STORE_PASSWORD = "loadtest";
+
+	private final File _keyStore;
+	// with a Unix domain socket, where the forwarder puts it
+	private final Path _socketDirectory;
+	private final StubUpstream _upstream;
+	private final StubDns _dns;
+	private final Process _forwarder;
+	private final FakeWebserver _webserver;
+	private final int _protocolVersion;
+	private final String _transport;
+
+	Environment(StubUpstream.Handler handler, String[] forwarderArgs) throws Exception {
+		_keyStore = createKeyStore();
+		StubUpstream upstream = null;
+		StubDns dns = null;
+		Process forwarder = null;
+		Path socketDirectory = null;
+		boolean sharedMemory = Config.getBoolean("sharedMemory", false);
+		try {
+			upstream = new StubUpstream(createSslContext(_keyStore), handler);
+			List<String> upstreamArgs = new ArrayList<>();
+			if (Config.getString("dns", "none").equals("stub")) {
+				dns = new StubDns(HOST, parseAddresses(Config.getString("stub.dnsAddresses", "127.0.0.2,127.0.0.1")));
+				upstreamArgs.add("-upstream.dnsServer=127.0.0.1:" + dns.getPort());
+				upstreamArgs.add("-upstream.port=" + upstream.getPort());
+				System.out.println("Stub DNS on 127.0.0.1:" + dns.getPort());
+			} else {
+				upstreamArgs.add("-upstream.address=127.0.0.1:" + upstream.getPort());
+			}
+			String classpath = Config.getString("forwarder", System.getProperty("java.class.path"));
+			String transportName = Config.getString("transport", "tcp");
+			WebserverTransport transport = WebserverTransport.create(transportName);
+			String webserverAddress;
+			if (classpath.equals("none")) {
+				webserverAddress = transportName.equals("unix") ? Config.getString("webserver.socketPath", "")
+						: Integer.toString(Config.getInt("webserver.port", 44449));
+				System.out.println("Stub upstream on 127.0.0.1:" + upstream.getPort() + ", trust store " + _keyStore);
+			} else {
+				List<String> args = new ArrayList<>(upstreamArgs);
+				args.add("-webserver.transport=" + transportName);
+				if (transportName.equals("unix")) {
+					socketDirectory = Files.createTempDirectory("loadtest");
+					webserverAddress = socketDirectory.resolve("webserver.sock").toString();
+					args.add("-webserver.socketPath=" + webserverAddress);
+				} else {
+					webserverAddress = Integer.toString(findFreePort());
+					args.add("-webserver.port=" + webserverAddress);
+				}
+				if (sharedMemory) {
+					args.add("-wire.sharedMemory=true");
+				}
+				forwarder = launchForwarder(classpath, _keyStore, args, forwarderArgs);
+			}
+
+			Process process = forwarder;
+			_transport = transport.getName();
+			_webserver = FakeWebserver.connect(transport, webserverAddress, 60000,
+					() -> process == null || process.isAlive());
+			_protocolVersion = _webserver.start(Config.getInt("protocol", sharedMemory ? 5 : 4), sharedMemory, 60000);
+			System.out.println("Forwarder running, protocol version " + _protocolVersion);
+		} catch (Exception e) {
+			if (upstream != null) {
+				upstream.close();
+			}
+			if (dns != null) {
+				dns.close();
+			}
+			stop(forwarder);
+			Files.deleteIfExists(_keyStore.toPath());
+			deleteSocketDirectory(socketDirectory);
+			throw e;
+		}
+		_socketDirectory = socketDirectory;
+		_upstream = upstream;
+		_dns = dns;
+		_forwarder = forwarder;
+	}
+
+	FakeWebserver getWebserver() {
+		return _webserver;
+	}
+
+	StubUpstream getUpstream() {
+		return _upstream;
+	}
+
+	int getProtocolVersion() {
+		return _protocolVersion;
+	}
+
+	String getTransport() {
+		return _transport;
+	}
+
+	@Override
+	public void close() throws IOException {
+		_webserver.close();
+		stop(_forwarder);
+		_upstream.close();
+		if (_dns != null) {
+			_dns.close();
+		}
+		Files.deleteIfExists(_keyStore.toPath());
+		deleteSocketDirectory(_socketDirectory);
+	}
+
+	private static void deleteSocketDirectory(Path directory) throws IOException {
+		if (directory != null) {
+			// the forwarder removes the socket once the webserver is connected, but not if it failed
+			Files.deleteIfExists(directory.resolve("webserver.sock"));
+			Files.deleteIfExists(directory);
+		}
+	}
+
+	private static void stop(Process forwarder) {
+		if (forwarder == null) {
+			return;
+		}
+		forwarder.destroy();
+		try {
+			if (!forwarder.waitFor(5, TimeUnit.SECONDS)) {
+				forwarder.destroyForcibly();
+			}
+		} catch (InterruptedException e) {
+			forwarder.destroyForcibly();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static Process launchForwarder(String classpath, File trustStore, List<String> environmentArgs,
+			String[] forwarderArgs) throws IOException {
+		List<String> command = new ArrayList<>();
+		command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+		String jvmArgs = Config.getString("forwarderJvmArgs", "").trim();
+		if (!jvmArgs.isEmpty()) {
+			command.addAll(Arrays.asList(jvmArgs.split(" +")));
+		}
+		command.add("-Djavax.net.ssl.trustStore=" + trustStore.getAbsolutePath());
+		command.add("-Djavax.net.ssl.trustStorePassword=" + STORE_PASSWORD);
+		command.add("-Djavax.net.ssl.trustStoreType=JKS");
+		command.add("-cp");
+		command.add(classpath);
+		command.add("com.iosoft.ubiconfor.UbisoftConnectForwarder");
+		command.add("--headless");
+		command.add("-noexe");
+		command.add("-check443=false");
+		command.add("-metrics.port=0");
+		command.addAll(environmentArgs);
+		// later arguments win
+		command.addAll(Arrays.asList(forwarderArgs));
+
+		File log = new File(Config.getString("forwarderLog", "loadtest-forwarder.log"));
+		System.out.println("Starting the forwarder, output in " + log.getAbsolutePath());
+		return new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+	}
+
+	/**
+	 * A self-signed certificate for channel-service, used by the stub upstream
+	 * and trusted by the forwarder.
+	 */
+	private static File createKeyStore() throws IOException, InterruptedException {
+		File file = File.createTempFile("loadtest", ".jks");
+		Files.delete(file.toPath());
+		Process keytool = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/keytool").getPath(),
+				"-genkeypair", "-alias", "stub", "-keyalg", "RSA", "-keysize", "2048", "-validity", "2", "-dname",
+				"CN=" + HOST, "-ext", "SAN=dns:" + HOST, "-storetype", "JKS", "-keystore", file.getPath(),
+				"-storepass", STORE_PASSWORD, "-keypass", STORE_PASSWORD).redirectErrorStream(true).start();
+		byte[] output = readAll(keytool.getInputStream());
+		if (keytool.waitFor() != 0) {
+			throw new IOException("keytool failed: " + new String(output));
+		}
+		return file;
+	}
+
+	private static SSLContext createSslContext(File keyStoreFile) throws Exception {
+		KeyStore keyStore = KeyStore.getInstance("JKS");
+		try (InputStream in = Files.newInputStream(keyStoreFile.toPath())) {
+			keyStore.load(in, STORE_PASSWORD.toCharArray());
+		}
+		KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(keyStore, STORE_PASSWORD.toCharArray());
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keyManagers.getKeyManagers(), null, null);
+		return context;
+	}
+
+	private static InetAddress[] parseAddresses(String list) throws UnknownHostException {
+		String[] parts = list.split(",");
+		InetAddress[] result = new InetAddress[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			// literals only, nothing is looked up
+			result[i] = InetAddress.getByName(parts[i].trim());
+		}
+		return result;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	private static int findFreePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+}
@@ -0,0 +1,387 @@
+package com.iosoft.ubiconfor.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import com.iosoft.ubiconfor.WebserverTransport;
+import com.iosoft.ubiconfor.dtos.CancelDto;
+import com.iosoft.ubiconfor.dtos.ChannelHello;
+import com.iosoft.ubiconfor.dtos.DataObject;
+import com.iosoft.ubiconfor.dtos.Doorbell;
+import com.iosoft.ubiconfor.dtos.HeaderCodec;
+import com.iosoft.ubiconfor.dtos.JavaDnsReady;
+import com.iosoft.ubiconfor.dtos.JavaHello;
+import com.iosoft.ubiconfor.dtos.RequestDto;
+import com.iosoft.ubiconfor.dtos.ResponseDto;
+import com.iosoft.ubiconfor.dtos.WebserverHello;
+import com.iosoft.ubiconfor.dtos.WebserverReady;
+import com.iosoft.ubiconfor.dtos.WebserverReady.Ready;
+import com.iosoft.ubiconfor.wire.BufferPool;
+import com.iosoft.ubiconfor.wire.SharedMemoryChannel;
+
+/**
+ * Plays the C# webserver: connects to the forwarder, goes through the startup
+ * messages like JavaConnection.cs and then sends requests. Uses plain streams
+ * instead of the forwarder's FrameChannel, so it does not share its bugs.
+ * <p>
+ * With protocol version 3, it opens the channels the forwarder asks for and
+ * spreads the requests over them by id like Logic.cs, so responses arrive on
+ * several receive threads.
+ * <p>
+ * With protocol version 5 and shared memory, the last channel joins over TCP
+ * and then sends all requests through the forwarder's file instead. That needs
+ * the forwarder's SharedMemoryChannel, as there is nothing simpler to compare
+ * with.
+ */
+final class FakeWebserver implements Closeable {
+	private final WebserverTransport _transport;
+	private final String _address;
+	private final Channel _primary;
+	// only the primary until start() opened the others
+	private volatile Channel[] _channels;
+	// takes all requests if set
+	private volatile Channel _shared;
+	private final CompletableFuture<JavaHello> _hello = new CompletableFuture<>();
+	private final CompletableFuture<Void> _dnsReady = new CompletableFuture<>();
+	private final CompletableFuture<Exception> _closed = new CompletableFuture<>();
+	private volatile Consumer<ResponseDto> _onResponse = response -> {
+	};
+
+	private FakeWebserver(WebserverTransport transport, String address, SocketChannel socket) throws IOException {
+		_transport = transport;
+		_address = address;
+		_primary = new Channel(socket, "Fake webserver receiver");
+		_channels = new Channel[] { _primary };
+	}
+
+	/**
+	 * Retries until the forwarder listens or the timeout is over, gives up early
+	 * if the forwarder is gone.
+	 */
+	static FakeWebserver connect(WebserverTransport transport, String address, long timeoutMillis,
+			BooleanSupplier forwarderAlive) throws IOException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (true) {
+			try {
+				return new FakeWebserver(transport, address, transport.connect(address));
+			} catch (SocketException | NoSuchFileException e) {
+				// refused, or the socket file is not there yet
+				if (System.currentTimeMillis() > deadline || !forwarderAlive.getAsBoolean()) {
+					throw e;
+				}
+				sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * The startup messages, returns the negotiated protocol version.
+	 */
+	int start(int maxProtocolVersion, boolean sharedMemory, long timeoutMillis) throws Exception {
+		int version = 1;
+		if (maxProtocolVersion >= 2) {
+			WebserverHello hello = new WebserverHello();
+			hello.MaxProtocolVersion = maxProtocolVersion;
+			hello.SharedMemory = sharedMemory;
+			_primary.send(WebserverHello.MsgId, hello);
+			JavaHello answer = _hello.get(timeoutMillis, TimeUnit.MILLISECONDS);
+			version = answer.ProtocolVersion;
+			if (version >= 2) {
+				_primary.enable(version);
+			}
+			if (version >= 3) {
+				openChannels(answer);
+			}
+		}
+		sendReady(Ready.Hosts);
+		_dnsReady.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		sendReady(Ready.Starting);
+		sendReady(Ready.Running);
+		return version;
+	}
+
+	private void openChannels(JavaHello hello) throws IOException {
+		Channel[] channels = new Channel[hello.NumChannels];
+		channels[0] = _primary;
+		for (int i = 1; i < channels.length; i++) {
+			channels[i] = new Channel(_transport.connect(_address), "Fake webserver receiver " + i);
+			// mapped before joining, the forwarder deletes the file after that
+			boolean shared = i == channels.length - 1 && !hello.SharedMemoryPath.isEmpty();
+			if (shared) {
+				channels[i].share(new File(hello.SharedMemoryPath));
+			}
+			ChannelHello channelHello = new ChannelHello();
+			channelHello.SessionToken = hello.SessionToken;
+			channelHello.ChannelIndex = i;
+			channels[i].sendOverSocket(ChannelHello.MsgId, channelHello);
+			channels[i].enable(hello.ProtocolVersion);
+			if (shared) {
+				_shared = channels[i];
+			}
+		}
+		_channels = channels;
+	}
+
+	boolean isSharedMemory() {
+		return _shared != null;
+	}
+
+	int getNumChannels() {
+		return _channels.length;
+	}
+
+	private void sendReady(Ready what) throws IOException {
+		WebserverReady ready = new WebserverReady();
+		ready.What = what;
+		_primary.send(WebserverReady.MsgId, ready);
+	}
+
+	/**
+	 * Called on the receive threads, with several channels concurrently.
+	 */
+	void setOnResponse(Consumer<ResponseDto> onResponse) {
+		_onResponse = onResponse;
+	}
+
+	void send(RequestDto request) throws IOException {
+		getChannel(request.RequestId).send(request);
+	}
+
+	/**
+	 * On the channel of the request, so it cannot overtake it. Needs protocol
+	 * version 4.
+	 */
+	void cancel(int requestId) throws IOException {
+		CancelDto cancel = new CancelDto();
+		cancel.RequestId = requestId;
+		getChannel(requestId).send(CancelDto.MsgId, cancel);
+	}
+
+	private Channel getChannel(int requestId) {
+		Channel shared = _shared;
+		if (shared != null) {
+			return shared;
+		}
+		Channel[] channels = _channels;
+		return channels[Math.floorMod(requestId, channels.length)];
+	}
+
+	/**
+	 * True once the forwarder closed a connection.
+	 */
+	boolean isClosed() {
+		return _closed.isDone();
+	}
+
+	private void onClosed(Exception e) {
+		_closed.complete(e);
+		_hello.completeExceptionally(e);
+		_dnsReady.completeExceptionally(e);
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (Channel channel : _channels) {
+			channel.close();
+		}
+		_primary.close();
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// not Channels.newInputStream() and newOutputStream(), before Java 19 writing
+	// waits until a read is done
+	private static InputStream newInputStream(SocketChannel socket) {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return len == 0 ? 0 : socket.read(ByteBuffer.wrap(b, off, len));
+			}
+		};
+	}
+
+	private static OutputStream newOutputStream(SocketChannel socket) {
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+				while (buffer.hasRemaining()) {
+					socket.write(buffer);
+				}
+			}
+		};
+	}
+
+	private final class Channel {
+		final SocketChannel Socket;
+		private final DataInputStream _in;
+		private final DataOutputStream _out;
+		private final ByteArrayOutputStream _frame = new ByteArrayOutputStream(64 * 1024);
+		private final DataOutputStream _frameOut = new DataOutputStream(_frame);
+		// only used by the receive thread
+		private final HeaderCodec _headerDecoder = new HeaderCodec();
+		// guarded by this, null until the forwarder agreed to compact headers
+		private HeaderCodec _headerEncoder;
+		private int _protocolVersion = 1;
+		// frames go here instead of the socket once set, the socket only rings
+		private volatile SharedMemoryChannel _shared;
+
+		Channel(SocketChannel socket, String name) throws IOException {
+			Socket = socket;
+			if (socket.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+				socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			}
+			_in = new DataInputStream(new BufferedInputStream(newInputStream(socket), 64 * 1024));
+			_out = new DataOutputStream(new BufferedOutputStream(newOutputStream(socket), 64 * 1024));
+
+			Thread thread = new Thread(this::receiveLoop, name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/**
+		 * Compact headers and, from version 4 on, timeouts.
+		 */
+		synchronized void enable(int protocolVersion) {
+			_headerEncoder = new HeaderCodec();
+			_protocolVersion = protocolVersion;
+		}
+
+		void share(File file) throws IOException {
+			// spins like the forwarder
+			long spinNanos = TimeUnit.MICROSECONDS.toNanos(Runtime.getRuntime().availableProcessors() > 1 ? 50 : 0);
+			_shared = new SharedMemoryChannel(SharedMemoryChannel.open(file), false,
+					new BufferPool(16, 64 * 1024, false), spinNanos, this::onFrame, this::ringDoorbell);
+		}
+
+		synchronized void send(RequestDto request) throws IOException {
+			_frame.reset();
+			request.write(_frameOut, _headerEncoder);
+			if (_protocolVersion >= 4) {
+				request.Data.writeTimeout(_frameOut);
+			}
+			flushFrame(RequestDto.MsgId);
+		}
+
+		synchronized void send(byte msgId, DataObject dto) throws IOException {
+			_frame.reset();
+			dto.write(_frameOut);
+			flushFrame(msgId);
+		}
+
+		synchronized void sendOverSocket(byte msgId, DataObject dto) throws IOException {
+			_frame.reset();
+			dto.write(_frameOut);
+			writeFrame(msgId);
+		}
+
+		private void flushFrame(byte msgId) throws IOException {
+			SharedMemoryChannel shared = _shared;
+			if (shared != null) {
+				shared.send(msgId, out -> out.write(_frame.toByteArray()));
+			} else {
+				writeFrame(msgId);
+			}
+		}
+
+		private void writeFrame(byte msgId) throws IOException {
+			_out.writeByte(msgId);
+			_out.writeInt(_frame.size());
+			_frame.writeTo(_out);
+			_out.flush();
+		}
+
+		private synchronized void ringDoorbell() {
+			try {
+				_frame.reset();
+				writeFrame(Doorbell.MsgId);
+			} catch (IOException e) {
+				onClosed(e);
+			}
+		}
+
+		void close() throws IOException {
+			Socket.close();
+			if (_shared != null) {
+				_shared.close();
+			}
+		}
+
+		private void receiveLoop() {
+			byte[] buffer = new byte[64 * 1024];
+			try {
+				while (true) {
+					byte msgId = _in.readByte();
+					if (msgId == JavaDnsReady.MsgId) {
+						// the only message without a length
+						_dnsReady.complete(null);
+						continue;
+					}
+					int length = _in.readInt();
+					if (length < 0) {
+						throw new IOException("Invalid length " + length + " for msgId " + msgId);
+					}
+					if (buffer.length < length) {
+						buffer = new byte[Math.max(length, buffer.length * 2)];
+					}
+					_in.readFully(buffer, 0, length);
+					onFrame(msgId, new DataInputStream(new ByteArrayInputStream(buffer, 0, length)));
+				}
+			} catch (IOException | RuntimeException e) {
+				onClosed(e);
+			}
+		}
+
+		// on the receive thread, also for the frames in shared memory
+		private void onFrame(byte msgId, DataInput in) throws IOException {
+			if (msgId == ResponseDto.MsgId) {
+				ResponseDto response = new ResponseDto();
+				response.read(in, _headerDecoder);
+				_onResponse.accept(response);
+			} else if (msgId == JavaHello.MsgId) {
+				JavaHello hello = new JavaHello();
+				hello.read(in);
+				_hello.complete(hello);
+			} else if (msgId == Doorbell.MsgId && _shared != null) {
+				_shared.onDoorbell();
+			}
+			// streamed responses are only sent for streamed requests, which we don't send
+		}
+	}
+}
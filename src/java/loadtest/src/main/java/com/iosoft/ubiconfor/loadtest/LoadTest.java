@@ -0,0 +1,304 @@
+package com.iosoft.ubiconfor.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.iosoft.ubiconfor.Config;
+import com.iosoft.ubiconfor.dtos.HeaderDto;
+import com.iosoft.ubiconfor.dtos.RequestDto;
+import com.iosoft.ubiconfor.dtos.ResponseDto;
+import com.iosoft.ubiconfor.metrics.Histogram;
+
+/**
+ * Load test of the forwarder without Windows, the webserver or channel-service:
+ * starts a local stand-in for channel-service, launches the forwarder with
+ * "-noexe" pointed at it and then plays the webserver with a fixed number of
+ * requests in flight.
+ * <p>
+ * Options before "--" are for the load test, everything after it is passed to
+ * the forwarder:
+ *
+ * <pre>
+ * -concurrency=32        requests in flight
+ * -seconds=30            measured duration
+ * -warmupSeconds=10      not measured, lets the JIT of both sides settle
+ * -requestBytes=0        request body, POST if not 0
+ * -sameUri=false         all requests for the same URI (cache, coalescing)
+ * -stub.latencyMillis=20 -stub.jitterMillis=0 -stub.bodyBytes=1024 -stub.errorRate=0
+ * -stub.largeRate=0 -stub.largeBodyBytes=1048576
+ * -cancelRate=0          cancels that many requests after -cancelAfterMillis=100
+ * -timeoutMillis=0       sent with each request, 0 for the forwarder's default
+ * -longPolls=0           parked on top of -concurrency, held for -stub.longPollMillis
+ * -report=file           writes the report, -baseline=file compares with one
+ * </pre>
+ *
+ * Besides the measured requests, the report has the latency of the first
+ * response and the slowest one of the first burst (cold start). With
+ * "-stub.largeRate", also the latencies of just the small responses, to see
+ * how much the big ones hold them up. The long polls are renewed when
+ * answered, but not measured: they are there to fill up the forwarder.
+ *
+ * See Environment for how the forwarder is started.
+ */
+public final class LoadTest {
+	// the forwarder's default for "-wire.smallResponseBytes"
+	private static final int SMALL_RESPONSE_BYTES = 16 * 1024;
+	private final int _concurrency = Config.getInt("concurrency", 32);
+	private final int _requestBytes = Config.getInt("requestBytes", 0);
+	private final boolean _sameUri = Config.getBoolean("sameUri", false);
+	private final double _cancelRate = Double.parseDouble(Config.getString("cancelRate", "0"));
+	private final int _cancelAfterMillis = Config.getInt("cancelAfterMillis", 100);
+	private final int _timeoutMillis = Config.getInt("timeoutMillis", 0);
+	private final int _longPolls = Config.getInt("longPolls", 0);
+	private final ScheduledExecutorService _canceller = Executors.newSingleThreadScheduledExecutor();
+	private final Set<Integer> _cancelledIds = ConcurrentHashMap.newKeySet();
+	private final HeaderDto[] _headers = createHeaders();
+	private final Map<Integer, Long> _sentNanos = new ConcurrentHashMap<>();
+	private final Set<Integer> _longPollIds = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger _nextRequestId = new AtomicInteger();
+	private final Histogram _latencies = new Histogram(), _smallLatencies = new Histogram();
+	private final AtomicLong _numOk = new AtomicLong(), _numRejected = new AtomicLong(),
+			_numErrors = new AtomicLong(), _numSendFailures = new AtomicLong(), _numCancelled = new AtomicLong(),
+			_numAnsweredAfterCancel = new AtomicLong(), _numLongPollsAnswered = new AtomicLong();
+	private volatile boolean _recording, _stopping;
+	private final AtomicLong _maxNanos = new AtomicLong(), _smallMaxNanos = new AtomicLong();
+	// the first burst of requests, right after the forwarder said it is ready
+	private final AtomicLong _firstNanos = new AtomicLong(), _firstBurstMaxNanos = new AtomicLong();
+	private FakeWebserver _webserver;
+
+	private LoadTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int separator = Arrays.asList(args).indexOf("--");
+		String[] ownArgs = separator < 0 ? args : Arrays.copyOfRange(args, 0, separator);
+		String[] forwarderArgs = separator < 0 ? new String[0] : Arrays.copyOfRange(args, separator + 1, args.length);
+		Config.parseArgs(ownArgs);
+		System.exit(new LoadTest().run(forwarderArgs) ? 0 : 1);
+	}
+
+	private boolean run(String[] forwarderArgs) throws Exception {
+		Report report = new Report();
+		SyntheticResponses responses = new SyntheticResponses();
+		int seconds = Config.getInt("seconds", 30), warmupSeconds = Config.getInt("warmupSeconds", 10);
+
+		report.setting("concurrency", _concurrency);
+		report.setting("seconds", seconds);
+		report.setting("requestBytes", _requestBytes);
+		report.setting("sameUri", _sameUri);
+		if (_cancelRate > 0) {
+			report.setting("cancelRate", _cancelRate);
+			report.setting("cancelAfterMillis", _cancelAfterMillis);
+		}
+		report.setting("timeoutMillis", _timeoutMillis);
+		if (_longPolls > 0) {
+			report.setting("longPolls", _longPolls);
+			responses.describeLongPolls(report);
+		}
+		responses.describe(report);
+		report.setting("forwarderArgs", String.join(" ", forwarderArgs));
+
+		try (Environment environment = new Environment(responses, forwarderArgs)) {
+			StubUpstream upstream = environment.getUpstream();
+			_webserver = environment.getWebserver();
+			report.setting("protocol", environment.getProtocolVersion());
+			report.setting("transport", environment.getTransport());
+			report.setting("channels", _webserver.getNumChannels());
+
+			_webserver.setOnResponse(this::onResponse);
+			for (int i = 0; i < _concurrency; i++) {
+				sendNext();
+			}
+			// after, so that the first burst is still the first ids
+			for (int i = 0; i < _longPolls; i++) {
+				sendLongPoll();
+			}
+
+			System.out.println("Warming up for " + warmupSeconds + " s...");
+			Thread.sleep(warmupSeconds * 1000L);
+			long numRequestsBefore = upstream.getNumRequests();
+			_recording = true;
+			long start = System.nanoTime();
+			System.out.println("Measuring for " + seconds + " s...");
+			Thread.sleep(seconds * 1000L);
+			_recording = false;
+			long elapsedNanos = System.nanoTime() - start;
+			long numUpstreamRequests = upstream.getNumRequests() - numRequestsBefore;
+			_stopping = true;
+			// let the requests in flight finish, so the forwarder is not killed in the middle
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (!_sentNanos.isEmpty() && !_webserver.isClosed() && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+
+			addLatencies(report, _latencies.snapshot(), elapsedNanos, _maxNanos.get());
+			if (responses.hasLargeResponses()) {
+				Histogram.Snapshot small = _smallLatencies.snapshot();
+				report.result("smallRequests", small.Count);
+				report.result("smallP50Millis", small.getMillis(0.5));
+				report.result("smallP99Millis", small.getMillis(0.99));
+				report.result("smallMaxMillis", _smallMaxNanos.get() / 1e6);
+			}
+			report.result("ok", _numOk.get());
+			report.result("errors", _numErrors.get());
+			report.result("rejected", _numRejected.get());
+			report.result("sendFailures", _numSendFailures.get());
+			if (_cancelRate > 0) {
+				report.result("cancelled", _numCancelled.get());
+				report.result("answeredAfterCancel", _numAnsweredAfterCancel.get());
+			}
+			if (_longPolls > 0) {
+				report.result("longPollsAnswered", _numLongPollsAnswered.get());
+			}
+			report.result("lost", _sentNanos.size());
+			report.result("upstreamRequests", numUpstreamRequests);
+			report.result("upstreamConnections", upstream.getNumConnections());
+			report.result("firstResponseMillis", _firstNanos.get() / 1e6);
+			report.result("firstBurstMaxMillis", _firstBurstMaxNanos.get() / 1e6);
+		}
+
+		report.finish();
+		return _numSendFailures.get() == 0 && !_webserver.isClosed();
+	}
+
+	static void addLatencies(Report report, Histogram.Snapshot snapshot, long elapsedNanos, long maxNanos) {
+		report.result("requests", snapshot.Count);
+		report.result("throughputPerSecond", snapshot.Count / (elapsedNanos / 1e9));
+		report.result("meanMillis", snapshot.Count == 0 ? 0 : snapshot.SumMicros / 1000.0 / snapshot.Count);
+		report.result("p50Millis", snapshot.getMillis(0.5));
+		report.result("p90Millis", snapshot.getMillis(0.9));
+		report.result("p99Millis", snapshot.getMillis(0.99));
+		report.result("p999Millis", snapshot.getMillis(0.999));
+		report.result("maxMillis", maxNanos / 1e6);
+	}
+
+	private void sendNext() {
+		if (_stopping) {
+			return;
+		}
+		int id = _nextRequestId.incrementAndGet();
+		RequestDto request = createRequest(id, _requestBytes > 0 ? "POST" : "GET",
+				"/loadtest" + (_sameUri ? "" : "?i=" + id), _requestBytes);
+		_sentNanos.put(id, System.nanoTime());
+		if (!send(request)) {
+			_sentNanos.remove(id);
+			return;
+		}
+		if (_cancelRate > 0 && ThreadLocalRandom.current().nextDouble() < _cancelRate) {
+			_canceller.schedule(() -> cancel(id), _cancelAfterMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void sendLongPoll() {
+		if (_stopping) {
+			return;
+		}
+		int id = _nextRequestId.incrementAndGet();
+		_longPollIds.add(id);
+		if (!send(createRequest(id, "GET", "/notifications/longpoll?i=" + id, 0))) {
+			_longPollIds.remove(id);
+		}
+	}
+
+	private RequestDto createRequest(int id, String method, String path, int contentBytes) {
+		RequestDto request = new RequestDto();
+		request.RequestId = id;
+		request.Data.Method = method;
+		request.Data.Uri = "https://" + Environment.HOST + "/v1/spaces/6edd234a-abff-4e90-9aab-b9b9c6e49ff7" + path;
+		request.Data.Headers = _headers;
+		request.Data.Content = new byte[contentBytes];
+		request.Data.TimeoutMillis = _timeoutMillis;
+		return request;
+	}
+
+	private boolean send(RequestDto request) {
+		try {
+			_webserver.send(request);
+			return true;
+		} catch (IOException e) {
+			if (_numSendFailures.incrementAndGet() == 1) {
+				System.out.println("Could not send: " + e);
+			}
+			return false;
+		}
+	}
+
+	private void cancel(int id) {
+		_cancelledIds.add(id);
+		if (_sentNanos.remove(id) == null) {
+			// answered already
+			_cancelledIds.remove(id);
+			return;
+		}
+		try {
+			_webserver.cancel(id);
+			_numCancelled.incrementAndGet();
+		} catch (IOException e) {
+			if (_numSendFailures.incrementAndGet() == 1) {
+				System.out.println("Could not cancel: " + e);
+			}
+		}
+		sendNext();
+	}
+
+	// on the receive threads of the fake webserver
+	private void onResponse(ResponseDto response) {
+		if (_longPollIds.remove(response.RequestId)) {
+			_numLongPollsAnswered.incrementAndGet();
+			sendLongPoll();
+			return;
+		}
+		Long sent = _sentNanos.remove(response.RequestId);
+		if (sent == null) {
+			if (_cancelledIds.remove(response.RequestId)) {
+				_numAnsweredAfterCancel.incrementAndGet();
+			} else {
+				System.out.println("Unexpected response " + response.RequestId);
+			}
+			return;
+		}
+		if (response.RequestId <= _concurrency) {
+			long nanos = System.nanoTime() - sent;
+			_firstNanos.compareAndSet(0, nanos);
+			_firstBurstMaxNanos.accumulateAndGet(nanos, Math::max);
+		}
+		if (_recording) {
+			long nanos = System.nanoTime() - sent;
+			_latencies.record(nanos);
+			_maxNanos.accumulateAndGet(nanos, Math::max);
+			if (response.Data.Content.length <= SMALL_RESPONSE_BYTES) {
+				_smallLatencies.record(nanos);
+				_smallMaxNanos.accumulateAndGet(nanos, Math::max);
+			}
+			int status = response.Data.StatusCode;
+			(status < 400 ? _numOk : status == 503 ? _numRejected : _numErrors).incrementAndGet();
+		}
+		sendNext();
+	}
+
+	private static HeaderDto[] createHeaders() {
+		StringBuilder token = new StringBuilder("Ubi_v1 t=");
+		for (int i = 0; token.length() < 1400; i++) {
+			token.append(Integer.toString(i * 7919 % 36, 36));
+		}
+		return new HeaderDto[] { SyntheticResponses.header("Accept", "application/json"),
+				SyntheticResponses.header("Accept-Encoding", "gzip, deflate"),
+				SyntheticResponses.header("Accept-Language", "en-US"),
+				SyntheticResponses.header("Authorization", token.toString()),
+				SyntheticResponses.header("Content-Type", "application/json; charset=UTF-8"),
+				SyntheticResponses.header("Ubi-AppId", "f68a4bb5-608a-4ff2-8123-be8ef797e0a6"),
+				SyntheticResponses.header("Ubi-SessionId", "7b9b0ab1-5a3c-4e0e-8a0e-2c1d9f0e8b3a"),
+				SyntheticResponses.header("User-Agent",
+						"Mozilla/5.0 (Windows NT 6.1; Win64; x64) UbisoftConnect/131.0.0") };
+	}
+}
@@ -0,0 +1,97 @@
+package com.iosoft.ubiconfor.loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.iosoft.ubiconfor.dtos.HeaderDto;
+import com.iosoft.ubiconfor.journal.JournalEntry;
+import com.iosoft.ubiconfor.journal.JournalReader;
+
+/**
+ * Answers with the responses of a journal: the recorded ones for the same
+ * method and URI in turn, after the recorded upstream time. 404 for requests
+ * that were not recorded.
+ */
+final class RecordedResponses implements StubUpstream.Handler {
+	// the stub sets these itself
+	private static final Set<String> SKIPPED_HEADERS = new HashSet<>(
+			Arrays.asList("connection", "keep-alive", "transfer-encoding", "content-length"));
+	// streamed responses are recorded without their body
+	private static final int MAX_FILLER_BYTES = 64 * 1024 * 1024;
+
+	private final JournalReader _journal;
+	private final Map<String, Recorded> _byTarget = new HashMap<>();
+	private final StubUpstream.Response _notFound = new StubUpstream.Response(404, new HeaderDto[0], new byte[0],
+			0);
+
+	RecordedResponses(JournalReader journal) throws IOException {
+		_journal = journal;
+		for (int i = 0; i < journal.size(); i++) {
+			JournalEntry entry = journal.read(i);
+			// not answered by upstream
+			if (entry.UpstreamNanos < 0 || entry.Error != null) {
+				continue;
+			}
+			String key = createKey(entry.Request.Method, entry.Request.Uri);
+			if (key != null) {
+				_byTarget.computeIfAbsent(key, x -> new Recorded()).Indices.add(i);
+			}
+		}
+	}
+
+	int getNumTargets() {
+		return _byTarget.size();
+	}
+
+	private static String createKey(String method, String uri) {
+		try {
+			URI parsed = new URI(uri);
+			String path = parsed.getRawPath() == null || parsed.getRawPath().isEmpty() ? "/" : parsed.getRawPath();
+			return method + " " + path + (parsed.getRawQuery() == null ? "" : "?" + parsed.getRawQuery());
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	@Override
+	public StubUpstream.Response handle(String method, String target) {
+		Recorded recorded = _byTarget.get(method + " " + target);
+		if (recorded == null) {
+			return _notFound;
+		}
+		int index = recorded.Indices.get(Math.floorMod(recorded.Next.getAndIncrement(), recorded.Indices.size()));
+		JournalEntry entry;
+		try {
+			entry = _journal.read(index);
+		} catch (IOException e) {
+			throw new IllegalStateException("Journal entry " + index + " is broken", e);
+		}
+
+		List<HeaderDto> headers = new ArrayList<>();
+		for (HeaderDto header : entry.Response.Headers) {
+			if (!SKIPPED_HEADERS.contains(header.Name.toLowerCase(Locale.ROOT))) {
+				headers.add(header);
+			}
+		}
+		byte[] body = entry.Response.Content;
+		if (body.length == 0 && entry.NumBytes > 0) {
+			body = SyntheticResponses.createBody((int) Math.min(entry.NumBytes, MAX_FILLER_BYTES));
+		}
+		return new StubUpstream.Response(entry.Response.StatusCode, headers.toArray(new HeaderDto[0]), body,
+				entry.UpstreamNanos);
+	}
+
+	private static final class Recorded {
+		public final List<Integer> Indices = new ArrayList<>();
+		public final AtomicInteger Next = new AtomicInteger();
+	}
+}
@@ -0,0 +1,208 @@
+package com.iosoft.ubiconfor.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.iosoft.ubiconfor.Config;
+import com.iosoft.ubiconfor.dtos.RequestDto;
+import com.iosoft.ubiconfor.dtos.ResponseDto;
+import com.iosoft.ubiconfor.journal.JournalEntry;
+import com.iosoft.ubiconfor.journal.JournalReader;
+import com.iosoft.ubiconfor.metrics.Histogram;
+
+/**
+ * Plays the requests of a journal (recorded with "-journal.dir" on the
+ * forwarder) against a forwarder, with the same environment as LoadTest.
+ *
+ * <pre>
+ * -journal=dir           the recorded journal
+ * -speed=1               1 is the original timing, 4 four times as fast, "max"
+ *                        as fast as possible with the original concurrency: a
+ *                        request starts once fewer requests are in flight than
+ *                        were when it was recorded
+ * -upstream=recorded     the stub answers with the recorded responses and
+ *                        upstream times, "synthetic" like LoadTest (-stub.*)
+ * -report=file           writes the report, -baseline=file compares with one
+ * </pre>
+ */
+public final class Replay {
+	private final JournalReader _journal;
+	// original status per request id - 1
+	private final int[] _statusCodes;
+	private final Map<Integer, Long> _sentNanos = new ConcurrentHashMap<>();
+	private final Histogram _latencies = new Histogram();
+	private final AtomicLong _numMismatches = new AtomicLong(), _numRejected = new AtomicLong();
+	private final Object _lock = new Object();
+	private int _numInFlight;
+	private final AtomicLong _maxNanos = new AtomicLong();
+
+	private Replay(JournalReader journal) {
+		_journal = journal;
+		_statusCodes = new int[journal.size()];
+	}
+
+	public static void main(String[] args) throws Exception {
+		int separator = Arrays.asList(args).indexOf("--");
+		String[] ownArgs = separator < 0 ? args : Arrays.copyOfRange(args, 0, separator);
+		String[] forwarderArgs = separator < 0 ? new String[0] : Arrays.copyOfRange(args, separator + 1, args.length);
+		Config.parseArgs(ownArgs);
+
+		String dir = Config.getString("journal", null);
+		if (dir == null) {
+			System.out.println(
+					"Usage: -journal=dir [-speed=1|N|max] [-upstream=recorded|synthetic] [-- forwarder args]");
+			System.exit(2);
+		}
+		JournalReader journal = new JournalReader(new File(dir));
+		if (journal.size() == 0) {
+			System.out.println("The journal in " + dir + " is empty");
+			System.exit(2);
+		}
+		System.exit(new Replay(journal).run(forwarderArgs) ? 0 : 1);
+	}
+
+	private boolean run(String[] forwarderArgs) throws Exception {
+		String speedText = Config.getString("speed", "1");
+		boolean maxSpeed = speedText.equalsIgnoreCase("max");
+		double speed = maxSpeed ? 0 : Double.parseDouble(speedText);
+		int[] concurrency = maxSpeed ? computeConcurrency() : null;
+		long spanMicros = _journal.getStartMicros(_journal.size() - 1) - _journal.getStartMicros(0);
+
+		Report report = new Report();
+		report.setting("journal", Config.getString("journal", null));
+		report.setting("entries", _journal.size());
+		report.setting("recordedSeconds", spanMicros / 1e6);
+		report.setting("speed", speedText);
+		report.setting("forwarderArgs", String.join(" ", forwarderArgs));
+
+		StubUpstream.Handler responses;
+		String upstream = Config.getString("upstream", "recorded");
+		if (upstream.equals("synthetic")) {
+			SyntheticResponses synthetic = new SyntheticResponses();
+			synthetic.describe(report);
+			responses = synthetic;
+		} else {
+			RecordedResponses recorded = new RecordedResponses(_journal);
+			System.out.println(recorded.getNumTargets() + " different requests recorded");
+			responses = recorded;
+		}
+		report.setting("upstream", upstream);
+
+		int numSendFailures = 0;
+		long elapsedNanos;
+		try (Environment environment = new Environment(responses, forwarderArgs)) {
+			FakeWebserver webserver = environment.getWebserver();
+			webserver.setOnResponse(this::onResponse);
+			System.out.println("Replaying " + _journal.size() + " requests...");
+
+			long start = System.nanoTime();
+			for (int i = 0; i < _journal.size() && !webserver.isClosed(); i++) {
+				if (maxSpeed) {
+					waitForFewerInFlight(concurrency[i]);
+				} else {
+					long due = start
+							+ (long) ((_journal.getStartMicros(i) - _journal.getStartMicros(0)) * 1000 / speed);
+					long wait = due - System.nanoTime();
+					if (wait > 0) {
+						TimeUnit.NANOSECONDS.sleep(wait);
+					}
+				}
+
+				JournalEntry entry = _journal.read(i);
+				_statusCodes[i] = entry.Response.StatusCode;
+				RequestDto request = new RequestDto();
+				request.RequestId = i + 1;
+				request.Data = entry.Request;
+				synchronized (_lock) {
+					_numInFlight++;
+				}
+				_sentNanos.put(request.RequestId, System.nanoTime());
+				try {
+					webserver.send(request);
+				} catch (IOException e) {
+					_sentNanos.remove(request.RequestId);
+					onDone();
+					if (numSendFailures++ == 0) {
+						System.out.println("Could not send: " + e);
+					}
+				}
+			}
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+			while (!_sentNanos.isEmpty() && !webserver.isClosed() && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			elapsedNanos = System.nanoTime() - start;
+			report.setting("protocol", environment.getProtocolVersion());
+			report.setting("transport", environment.getTransport());
+			report.result("upstreamRequests", environment.getUpstream().getNumRequests());
+		}
+
+		LoadTest.addLatencies(report, _latencies.snapshot(), elapsedNanos, _maxNanos.get());
+		report.result("elapsedSeconds", elapsedNanos / 1e9);
+		report.result("statusMismatches", _numMismatches.get());
+		report.result("rejected", _numRejected.get());
+		report.result("sendFailures", numSendFailures);
+		report.result("lost", _sentNanos.size());
+		report.finish();
+		return numSendFailures == 0 && _sentNanos.isEmpty();
+	}
+
+	/**
+	 * For every request, how many were in flight when it started, itself
+	 * included.
+	 */
+	private int[] computeConcurrency() {
+		int[] result = new int[_journal.size()];
+		PriorityQueue<Long> ends = new PriorityQueue<>();
+		for (int i = 0; i < result.length; i++) {
+			long start = _journal.getStartMicros(i);
+			while (!ends.isEmpty() && ends.peek() <= start) {
+				ends.poll();
+			}
+			ends.add(start + _journal.getTotalNanos(i) / 1000);
+			result[i] = ends.size();
+		}
+		return result;
+	}
+
+	private void waitForFewerInFlight(int limit) throws InterruptedException {
+		synchronized (_lock) {
+			while (_numInFlight >= limit) {
+				_lock.wait();
+			}
+		}
+	}
+
+	private void onDone() {
+		synchronized (_lock) {
+			_numInFlight--;
+			_lock.notifyAll();
+		}
+	}
+
+	// on the receive thread of the fake webserver
+	private void onResponse(ResponseDto response) {
+		Long sent = _sentNanos.remove(response.RequestId);
+		if (sent == null) {
+			System.out.println("Unexpected response " + response.RequestId);
+			return;
+		}
+		long nanos = System.nanoTime() - sent;
+		_latencies.record(nanos);
+		_maxNanos.accumulateAndGet(nanos, Math::max);
+		int status = response.Data.StatusCode;
+		if (status == 503) {
+			_numRejected.incrementAndGet();
+		}
+		if (status != _statusCodes[response.RequestId - 1]) {
+			_numMismatches.incrementAndGet();
+		}
+		onDone();
+	}
+}
@@ -0,0 +1,97 @@
+package com.iosoft.ubiconfor.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import com.iosoft.ubiconfor.Config;
+
+/**
+ * Settings and results of one run as "key=value" lines, so that runs against
+ * different builds can be compared with "-baseline=file".
+ */
+final class Report {
+	private final Map<String, String> _settings = new LinkedHashMap<>();
+	private final Map<String, String> _results = new LinkedHashMap<>();
+
+	void setting(String key, Object value) {
+		_settings.put(key, String.valueOf(value));
+	}
+
+	void result(String key, long value) {
+		_results.put(key, Long.toString(value));
+	}
+
+	void result(String key, double value) {
+		_results.put(key, String.format(Locale.ROOT, "%.3f", value));
+	}
+
+	/**
+	 * Prints it, writes it to "-report=file" and compares it with
+	 * "-baseline=file".
+	 */
+	void finish() throws IOException {
+		print();
+		String reportFile = Config.getString("report", null);
+		if (reportFile != null) {
+			write(new File(reportFile));
+		}
+		String baselineFile = Config.getString("baseline", null);
+		if (baselineFile != null) {
+			compare(new File(baselineFile));
+		}
+	}
+
+	void print() {
+		System.out.println("--- settings");
+		_settings.forEach((key, value) -> System.out.println(key + "=" + value));
+		System.out.println("--- results");
+		_results.forEach((key, value) -> System.out.println(key + "=" + value));
+	}
+
+	void write(File file) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		_settings.forEach((key, value) -> sb.append(key).append('=').append(value).append('\n'));
+		_results.forEach((key, value) -> sb.append(key).append('=').append(value).append('\n'));
+		try (OutputStream out = Files.newOutputStream(file.toPath())) {
+			out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Prints every result next to the one of the baseline, and warns if the
+	 * settings differ.
+	 */
+	void compare(File baselineFile) throws IOException {
+		Properties baseline = new Properties();
+		try (InputStream in = Files.newInputStream(baselineFile.toPath())) {
+			baseline.load(in);
+		}
+
+		System.out.println("--- compared to " + baselineFile);
+		_settings.forEach((key, value) -> {
+			String old = baseline.getProperty(key);
+			if (old != null && !old.equals(value)) {
+				System.out.println("Warning: " + key + " was " + old + ", now " + value);
+			}
+		});
+		_results.forEach((key, value) -> {
+			String old = baseline.getProperty(key);
+			if (old == null) {
+				System.out.println(key + ": " + value + " (not in baseline)");
+				return;
+			}
+			double before = Double.parseDouble(old), after = Double.parseDouble(value);
+			String change = before == 0 ? ""
+					: String.format(Locale.ROOT, " (%+.1f%%)", (after - before) * 100 / before);
+			System.out.println(key + ": " + old + " -> " + value + change);
+		});
+	}
+}
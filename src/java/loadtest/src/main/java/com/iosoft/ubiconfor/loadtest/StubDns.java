@@ -0,0 +1,129 @@
+package com.iosoft.ubiconfor.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A DNS server over UDP that knows a single host, enough for the lookups of
+ * the forwarder: one question per query, A and AAAA records, NXDOMAIN for
+ * everything else.
+ */
+final class StubDns implements Closeable {
+	private static final int TYPE_A = 1, TYPE_AAAA = 28;
+
+	private final DatagramSocket _socket;
+	private final String _host;
+	private final InetAddress[] _addresses;
+	private final AtomicLong _numQueries = new AtomicLong();
+
+	StubDns(String host, InetAddress[] addresses) throws IOException {
+		_host = host;
+		_addresses = addresses;
+		_socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+		Thread thread = new Thread(this::receiveLoop, "Stub DNS");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public int getPort() {
+		return _socket.getLocalPort();
+	}
+
+	public long getNumQueries() {
+		return _numQueries.get();
+	}
+
+	@Override
+	public void close() {
+		_socket.close();
+	}
+
+	private void receiveLoop() {
+		byte[] buffer = new byte[512];
+		while (true) {
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			try {
+				_socket.receive(packet);
+			} catch (SocketException e) {
+				// closed
+				return;
+			} catch (IOException e) {
+				System.out.println("Stub DNS failed: " + e);
+				return;
+			}
+			try {
+				byte[] answer = answer(buffer, packet.getLength());
+				_socket.send(new DatagramPacket(answer, answer.length, packet.getSocketAddress()));
+				_numQueries.incrementAndGet();
+			} catch (IOException | RuntimeException e) {
+				System.out.println("Stub DNS: bad query: " + e);
+			}
+		}
+	}
+
+	private byte[] answer(byte[] query, int length) throws IOException {
+		// the question starts after the 12 byte header
+		int position = 12;
+		StringBuilder name = new StringBuilder();
+		while (query[position] != 0) {
+			int labelLength = query[position] & 0xFF;
+			if (name.length() > 0) {
+				name.append('.');
+			}
+			name.append(new String(query, position + 1, labelLength, StandardCharsets.US_ASCII));
+			position += labelLength + 1;
+		}
+		int questionEnd = position + 5;
+		if (questionEnd > length) {
+			throw new IOException("truncated question");
+		}
+		int type = (query[position + 1] & 0xFF) << 8 | query[position + 2] & 0xFF;
+		boolean known = name.toString().equalsIgnoreCase(_host);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		int numAnswers = 0;
+		if (known) {
+			for (InetAddress address : _addresses) {
+				if (type == ((address instanceof Inet6Address) ? TYPE_AAAA : TYPE_A)) {
+					numAnswers++;
+				}
+			}
+		}
+		// id, then response + recursion desired/available + rcode
+		out.write(query, 0, 2);
+		out.writeShort(0x8180 | (known ? 0 : 3));
+		out.writeShort(1);
+		out.writeShort(numAnswers);
+		out.writeShort(0);
+		out.writeShort(0);
+		out.write(query, 12, questionEnd - 12);
+		if (known) {
+			for (InetAddress address : _addresses) {
+				if (type != ((address instanceof Inet6Address) ? TYPE_AAAA : TYPE_A)) {
+					continue;
+				}
+				// pointer to the name in the question
+				out.writeShort(0xC00C);
+				out.writeShort(type);
+				out.writeShort(1);
+				out.writeInt(60);
+				byte[] data = address.getAddress();
+				out.writeShort(data.length);
+				out.write(data);
+			}
+		}
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,200 @@
+package com.iosoft.ubiconfor.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+
+import com.iosoft.ubiconfor.dtos.HeaderDto;
+
+/**
+ * Stands in for channel-service: HTTPS with keep-alive, one thread per
+ * connection, the handler decides what to answer and how late.
+ */
+final class StubUpstream implements Closeable {
+	interface Handler {
+		/**
+		 * Called on the connection threads.
+		 */
+		Response handle(String method, String target);
+	}
+
+	static final class Response {
+		public final int StatusCode;
+		// without Content-Length and Connection, the stub adds them
+		public final HeaderDto[] Headers;
+		public final byte[] Body;
+		public final long DelayNanos;
+
+		Response(int statusCode, HeaderDto[] headers, byte[] body, long delayNanos) {
+			StatusCode = statusCode;
+			Headers = headers;
+			Body = body;
+			DelayNanos = delayNanos;
+		}
+	}
+
+	private final ServerSocket _server;
+	private final Handler _handler;
+	private final AtomicLong _numRequests = new AtomicLong(), _numConnections = new AtomicLong();
+
+	StubUpstream(SSLContext context, Handler handler) throws IOException {
+		_handler = handler;
+		_server = context.getServerSocketFactory().createServerSocket();
+		_server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 256);
+
+		Thread thread = new Thread(this::acceptLoop, "Stub upstream");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public int getPort() {
+		return _server.getLocalPort();
+	}
+
+	public long getNumRequests() {
+		return _numRequests.get();
+	}
+
+	public long getNumConnections() {
+		return _numConnections.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		_server.close();
+	}
+
+	private void acceptLoop() {
+		while (!_server.isClosed()) {
+			Socket socket;
+			try {
+				socket = _server.accept();
+			} catch (IOException e) {
+				// closed
+				return;
+			}
+			_numConnections.incrementAndGet();
+			Thread thread = new Thread(() -> serve(socket), "Stub upstream connection");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private void serve(Socket socket) {
+		try (Socket s = socket) {
+			s.setTcpNoDelay(true);
+			InputStream in = new BufferedInputStream(s.getInputStream(), 16 * 1024);
+			OutputStream out = new BufferedOutputStream(s.getOutputStream(), 16 * 1024);
+			while (serveRequest(in, out)) {
+				// keep-alive
+			}
+		} catch (EOFException | SocketException e) {
+			// the forwarder closed the connection
+		} catch (IOException e) {
+			System.out.println("Stub upstream: " + e);
+		}
+	}
+
+	// returns false if the connection should be closed
+	private boolean serveRequest(InputStream in, OutputStream out) throws IOException {
+		String requestLine = readLine(in, false);
+		if (requestLine == null) {
+			return false;
+		}
+		String[] parts = requestLine.split(" ");
+		if (parts.length != 3) {
+			throw new IOException("Invalid request line: " + requestLine);
+		}
+		long contentLength = 0;
+		boolean close = false;
+		String line;
+		while (!(line = readLine(in, true)).isEmpty()) {
+			int index = line.indexOf(':');
+			if (index < 0) {
+				continue;
+			}
+			String name = line.substring(0, index).trim().toLowerCase(Locale.ROOT);
+			String value = line.substring(index + 1).trim();
+			if (name.equals("content-length")) {
+				contentLength = Long.parseLong(value);
+			} else if (name.equals("connection")) {
+				close = value.equalsIgnoreCase("close");
+			} else if (name.equals("transfer-encoding")) {
+				throw new IOException("Chunked requests are not supported");
+			}
+		}
+		while (contentLength > 0) {
+			long skipped = in.skip(contentLength);
+			if (skipped <= 0) {
+				if (in.read() < 0) {
+					throw new EOFException();
+				}
+				skipped = 1;
+			}
+			contentLength -= skipped;
+		}
+		_numRequests.incrementAndGet();
+
+		Response response = _handler.handle(parts[0], parts[1]);
+		if (response.DelayNanos > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(response.DelayNanos);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+
+		StringBuilder head = new StringBuilder(256);
+		head.append("HTTP/1.1 ").append(response.StatusCode).append(response.StatusCode < 400 ? " OK" : " Error")
+				.append("\r\n");
+		for (HeaderDto header : response.Headers) {
+			for (String value : header.Values) {
+				head.append(header.Name).append(": ").append(value).append("\r\n");
+			}
+		}
+		head.append("Content-Length: ").append(response.Body.length).append("\r\n");
+		if (close) {
+			head.append("Connection: close\r\n");
+		}
+		head.append("\r\n");
+		out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+		out.write(response.Body);
+		out.flush();
+		return !close;
+	}
+
+	// null if the connection was closed before the line started and that is okay
+	private static String readLine(InputStream in, boolean required) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				if (line.size() == 0 && !required) {
+					return null;
+				}
+				throw new EOFException("Connection closed in the middle of a line");
+			}
+			line.write(b);
+		}
+		byte[] bytes = line.toByteArray();
+		int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+		return new String(Arrays.copyOf(bytes, length), StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,82 @@
+package com.iosoft.ubiconfor.loadtest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.iosoft.ubiconfor.Config;
+import com.iosoft.ubiconfor.dtos.HeaderDto;
+
+/**
+ * The same response to every request, after a fixed latency plus jitter, or a
+ * 500 at the configured error rate. Settings "-stub.latencyMillis=20",
+ * "-stub.jitterMillis=0", "-stub.bodyBytes=1024" and "-stub.errorRate=0".
+ * "-stub.largeRate" of the responses get "-stub.largeBodyBytes" instead, like
+ * the occasional big list among the small calls. Targets with "longpoll" are
+ * held for "-stub.longPollMillis=20000" and then answered with an empty list.
+ */
+final class SyntheticResponses implements StubUpstream.Handler {
+	private static final byte[] ERROR_BODY = "{\"error\":\"stub\"}".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] LONG_POLL_BODY = "[]".getBytes(StandardCharsets.US_ASCII);
+
+	private final int _latencyMillis = Config.getInt("stub.latencyMillis", 20);
+	private final int _jitterMillis = Config.getInt("stub.jitterMillis", 0);
+	private final int _bodyBytes = Config.getInt("stub.bodyBytes", 1024);
+	private final double _errorRate = Double.parseDouble(Config.getString("stub.errorRate", "0"));
+	private final int _largeBodyBytes = Config.getInt("stub.largeBodyBytes", 1024 * 1024);
+	private final double _largeRate = Double.parseDouble(Config.getString("stub.largeRate", "0"));
+	private final byte[] _body = createBody(_bodyBytes);
+	private final byte[] _largeBody = _largeRate > 0 ? createBody(_largeBodyBytes) : null;
+	private final int _longPollMillis = Config.getInt("stub.longPollMillis", 20000);
+	private final HeaderDto[] _headers = { header("Content-Type", "application/json; charset=utf-8"),
+			header("Cache-Control", "no-cache, no-store") };
+
+	void describe(Report report) {
+		report.setting("stub.latencyMillis", _latencyMillis);
+		report.setting("stub.jitterMillis", _jitterMillis);
+		report.setting("stub.bodyBytes", _bodyBytes);
+		report.setting("stub.errorRate", _errorRate);
+		if (_largeRate > 0) {
+			report.setting("stub.largeBodyBytes", _largeBodyBytes);
+			report.setting("stub.largeRate", _largeRate);
+		}
+	}
+
+	void describeLongPolls(Report report) {
+		report.setting("stub.longPollMillis", _longPollMillis);
+	}
+
+	boolean hasLargeResponses() {
+		return _largeRate > 0;
+	}
+
+	@Override
+	public StubUpstream.Response handle(String method, String target) {
+		if (target.contains("longpoll")) {
+			return new StubUpstream.Response(200, _headers, LONG_POLL_BODY,
+					TimeUnit.MILLISECONDS.toNanos(_longPollMillis));
+		}
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long delay = TimeUnit.MILLISECONDS
+				.toNanos(_latencyMillis + (_jitterMillis > 0 ? random.nextInt(_jitterMillis + 1) : 0));
+		boolean error = _errorRate > 0 && random.nextDouble() < _errorRate;
+		byte[] body = error ? ERROR_BODY : _largeRate > 0 && random.nextDouble() < _largeRate ? _largeBody : _body;
+		return new StubUpstream.Response(error ? 500 : 200, _headers, body, delay);
+	}
+
+	static byte[] createBody(int size) {
+		byte[] pattern = "{\"message\":\"hello\",\"id\":12345},".getBytes(StandardCharsets.US_ASCII);
+		byte[] body = new byte[size];
+		for (int i = 0; i < size; i++) {
+			body[i] = pattern[i % pattern.length];
+		}
+		return body;
+	}
+
+	static HeaderDto header(String name, String value) {
+		HeaderDto header = new HeaderDto();
+		header.Name = name;
+		header.Values = new String[] { value };
+		return header;
+	}
+}
@@ -0,0 +1,19 @@
+package com.iosoft.ubiconfor;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Java 21 version, used from the multi-release JAR.
+ */
+public final class VirtualThreads {
+	private VirtualThreads() {
+	}
+
+	public static boolean isSupported() {
+		return true;
+	}
+
+	public static ThreadFactory newFactory(String name) {
+		return Thread.ofVirtual().name(name + " ", 1).factory();
+	}
+}
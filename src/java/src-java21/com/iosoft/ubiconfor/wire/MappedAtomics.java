@@ -0,0 +1,47 @@
+package com.iosoft.ubiconfor.wire;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Java 21 version, used from the multi-release JAR: VarHandles instead of
+ * Unsafe.
+ */
+public final class MappedAtomics {
+	private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class,
+			ByteOrder.LITTLE_ENDIAN);
+
+	private MappedAtomics() {
+	}
+
+	public static boolean isSupported() {
+		return true;
+	}
+
+	public static int getIntVolatile(ByteBuffer buffer, int offset) {
+		return (int) INT.getVolatile(buffer, offset);
+	}
+
+	public static void putIntVolatile(ByteBuffer buffer, int offset, int value) {
+		INT.setVolatile(buffer, offset, value);
+	}
+
+	public static boolean compareAndSetInt(ByteBuffer buffer, int offset, int expected, int value) {
+		return INT.compareAndSet(buffer, offset, expected, value);
+	}
+
+	public static long getLongVolatile(ByteBuffer buffer, int offset) {
+		return (long) LONG.getVolatile(buffer, offset);
+	}
+
+	public static void putLongVolatile(ByteBuffer buffer, int offset, long value) {
+		LONG.setVolatile(buffer, offset, value);
+	}
+
+	public static void onSpinWait() {
+		Thread.onSpinWait();
+	}
+}
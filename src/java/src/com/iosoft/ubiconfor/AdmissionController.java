@@ -0,0 +1,165 @@
+package com.iosoft.ubiconfor;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Runs at most maxConcurrent tasks at once, up to maxQueued more wait. A task
+ * that cannot be queued, or waited longer than maxQueueMillis, is rejected
+ * instead of run. Tasks run on platform threads, or on virtual threads if
+ * asked for and supported.
+ */
+public final class AdmissionController {
+	private static final ScheduledExecutorService _sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Admission sweeper");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final ThreadPoolExecutor _executor;
+	private final ArrayBlockingQueue<Runnable> _queue;
+	// keeps this alive until shutdown
+	private final ScheduledFuture<?> _sweep;
+	private final long _maxQueueNanos;
+	private final AtomicInteger _running = new AtomicInteger();
+	private final AtomicLong _numRejected = new AtomicLong();
+
+	public AdmissionController(String name, int maxConcurrent, int maxQueued, int maxQueueMillis) {
+		this(name, maxConcurrent, maxQueued, maxQueueMillis, false);
+	}
+
+	public AdmissionController(String name, int maxConcurrent, int maxQueued, int maxQueueMillis, boolean virtual) {
+		_queue = new ArrayBlockingQueue<>(Math.max(1, maxQueued));
+		_maxQueueNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueMillis);
+		ThreadFactory threadFactory = virtual ? VirtualThreads.newFactory(name) : null;
+		if (threadFactory == null) {
+			AtomicInteger threadCounter = new AtomicInteger();
+			threadFactory = runnable -> {
+				Thread thread = new Thread(runnable, name + " " + threadCounter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			};
+		}
+		// idle virtual threads are not worth keeping
+		_executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, virtual ? 1 : 60, TimeUnit.SECONDS, _queue,
+				threadFactory);
+		_executor.allowCoreThreadTimeOut(true);
+		_sweep = _sweeper.scheduleWithFixedDelay(this::rejectExpired, 100, 100, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * The task can be cancelled, a queued one then gives up its place right away
+	 * and is never rejected. If it gets rejected, onRejected is called with the
+	 * reason instead of running the work.
+	 */
+	public FutureTask<Void> newTask(Runnable work, Consumer<String> onRejected) {
+		return new Ticket(work, onRejected);
+	}
+
+	/**
+	 * Queues a task from newTask. It may be rejected right away.
+	 */
+	public void submit(FutureTask<Void> task) {
+		Ticket ticket = (Ticket) task;
+		try {
+			_executor.execute(ticket);
+		} catch (RejectedExecutionException e) {
+			if (ticket.claim()) {
+				ticket.reject(_executor.isShutdown() ? "shut down" : "queue full");
+			}
+		}
+	}
+
+	/**
+	 * Stops the sweeper, which would otherwise keep this alive forever. Tasks
+	 * still queued run if they have not waited too long, new ones are rejected.
+	 */
+	public void shutdown() {
+		_sweep.cancel(false);
+		_executor.shutdown();
+	}
+
+	private void rejectExpired() {
+		long now = System.nanoTime();
+		for (Runnable runnable : _queue) {
+			Ticket ticket = (Ticket) runnable;
+			if (now - ticket._enqueuedNanos > _maxQueueNanos && ticket.claim()) {
+				_queue.remove(ticket);
+				ticket.reject("queue timeout");
+			}
+		}
+	}
+
+	public int getNumRunning() {
+		return _running.get();
+	}
+
+	public int getNumQueued() {
+		return _queue.size();
+	}
+
+	public long getNumRejected() {
+		return _numRejected.get();
+	}
+
+	private final class Ticket extends FutureTask<Void> {
+		private final long _enqueuedNanos = System.nanoTime();
+		private final Consumer<String> _onRejected;
+		private final AtomicBoolean _claimed = new AtomicBoolean();
+
+		Ticket(Runnable work, Consumer<String> onRejected) {
+			super(work, null);
+			_onRejected = onRejected;
+		}
+
+		/**
+		 * Only one of running and rejecting may happen.
+		 */
+		boolean claim() {
+			return _claimed.compareAndSet(false, true);
+		}
+
+		void reject(String reason) {
+			_numRejected.incrementAndGet();
+			cancel(false);
+			_onRejected.accept(reason);
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			// a running or rejected one has claimed it already
+			claim();
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			_queue.remove(this);
+			return cancelled;
+		}
+
+		@Override
+		public void run() {
+			if (!claim()) {
+				return;
+			}
+			if (System.nanoTime() - _enqueuedNanos > _maxQueueNanos) {
+				reject("queue timeout");
+				return;
+			}
+			_running.incrementAndGet();
+			try {
+				super.run();
+			} finally {
+				_running.decrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package com.iosoft.ubiconfor;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import com.iosoft.helpers.Misc;
+
+/**
+ * Accepts connections of the given transport as SocketChannels (in blocking
+ * mode), the callback runs on the given executor. Accepting is non-blocking
+ * with a selector, so stop() works the same for every transport.
+ */
+public final class ChannelListener {
+	private final WebserverTransport _transport;
+	private final Consumer<SocketChannel> _onAccepted;
+	private final Executor _executor;
+	private volatile ServerSocketChannel _server;
+	private volatile Selector _selector;
+	private volatile String _address;
+
+	public ChannelListener(WebserverTransport transport, Consumer<SocketChannel> onAccepted, Executor executor) {
+		_transport = transport;
+		_onAccepted = onAccepted;
+		_executor = executor;
+	}
+
+	public void start() throws IOException {
+		ServerSocketChannel server = _transport.bind();
+		Selector selector = null;
+		try {
+			server.configureBlocking(false);
+			selector = Selector.open();
+			server.register(selector, SelectionKey.OP_ACCEPT);
+			_address = _transport.getAddress(server);
+		} catch (IOException e) {
+			Misc.forceClose(selector);
+			_transport.unbind(server);
+			throw e;
+		}
+		_server = server;
+		_selector = selector;
+
+		Selector acceptSelector = selector;
+		Thread thread = new Thread(() -> acceptLoop(server, acceptSelector), "ChannelListener " + _address);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public WebserverTransport getTransport() {
+		return _transport;
+	}
+
+	/**
+	 * What the webserver needs to connect, see WebserverTransport.getAddress().
+	 */
+	public String getAddress() {
+		return _address;
+	}
+
+	public void stop() {
+		ServerSocketChannel server = _server;
+		if (server != null) {
+			_transport.unbind(server);
+			_selector.wakeup();
+		}
+	}
+
+	private void acceptLoop(ServerSocketChannel server, Selector selector) {
+		try {
+			while (server.isOpen()) {
+				selector.select();
+				selector.selectedKeys().clear();
+				SocketChannel channel;
+				while ((channel = server.accept()) != null) {
+					SocketChannel accepted = channel;
+					_executor.execute(() -> {
+						if (server.isOpen()) {
+							_onAccepted.accept(accepted);
+						} else {
+							Misc.forceClose(accepted);
+						}
+					});
+				}
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			// closed
+		} finally {
+			Misc.forceClose(selector);
+		}
+	}
+}
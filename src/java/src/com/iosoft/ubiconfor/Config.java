@@ -0,0 +1,55 @@
+package com.iosoft.ubiconfor;
+
+import java.util.Properties;
+
+/**
+ * Settings given as "-key=value" program arguments. A system property
+ * "ubiconfor.key" overrides the argument.
+ */
+public final class Config {
+	private Config() {
+	}
+
+	private static final String PROPERTY_PREFIX = "ubiconfor.";
+
+	private static final Properties _values = new Properties();
+
+	public static void parseArgs(String[] args) {
+		for (String arg : args) {
+			if (!arg.startsWith("-")) {
+				continue;
+			}
+			// "-key" and "--key" are the same
+			arg = arg.substring(arg.startsWith("--") ? 2 : 1);
+			int index = arg.indexOf('=');
+			if (index > 0) {
+				_values.setProperty(arg.substring(0, index), arg.substring(index + 1));
+			} else if (index < 0) {
+				// plain flag like "-noexe"
+				_values.setProperty(arg, "true");
+			}
+		}
+	}
+
+	public static String getString(String key, String defaultValue) {
+		return System.getProperty(PROPERTY_PREFIX + key, _values.getProperty(key, defaultValue));
+	}
+
+	public static int getInt(String key, int defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid number for '" + key + "': " + value);
+			return defaultValue;
+		}
+	}
+
+	public static boolean getBoolean(String key, boolean defaultValue) {
+		String value = getString(key, null);
+		return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+	}
+}
@@ -1,105 +1,513 @@
 package com.iosoft.ubiconfor;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.DataInput;
+import java.io.File;
 import java.io.IOException;
-import java.net.Socket;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
-import com.iosoft.helpers.DataHelper;
-import com.iosoft.helpers.WeirdException;
+import com.iosoft.helpers.Misc;
 import com.iosoft.helpers.WrapException;
-import com.iosoft.helpers.network.ReceiverHelper;
-import com.iosoft.helpers.network.tcp.TcpConnection;
+import com.iosoft.ubiconfor.dtos.BodyChunkDto;
+import com.iosoft.ubiconfor.dtos.BodyEndDto;
+import com.iosoft.ubiconfor.dtos.CancelDto;
+import com.iosoft.ubiconfor.dtos.ChannelHello;
+import com.iosoft.ubiconfor.dtos.DataObject;
+import com.iosoft.ubiconfor.dtos.Doorbell;
+import com.iosoft.ubiconfor.dtos.HeaderCodec;
 import com.iosoft.ubiconfor.dtos.JavaDnsReady;
+import com.iosoft.ubiconfor.dtos.JavaHello;
 import com.iosoft.ubiconfor.dtos.RequestDto;
+import com.iosoft.ubiconfor.dtos.RequestHeadDto;
 import com.iosoft.ubiconfor.dtos.ResponseDto;
+import com.iosoft.ubiconfor.dtos.ResponseHeadDto;
 import com.iosoft.ubiconfor.dtos.WebserverErrorDto;
+import com.iosoft.ubiconfor.dtos.WebserverHello;
 import com.iosoft.ubiconfor.dtos.WebserverReady;
+import com.iosoft.ubiconfor.log.Log;
+import com.iosoft.ubiconfor.trace.Stage;
+import com.iosoft.ubiconfor.trace.Trace;
+import com.iosoft.ubiconfor.wire.BufferPool;
+import com.iosoft.ubiconfor.wire.FrameChannel;
+import com.iosoft.ubiconfor.wire.MappedAtomics;
+import com.iosoft.ubiconfor.wire.SharedMemoryChannel;
 
+/**
+ * The link to the webserver. From protocol version 3 on, the webserver opens
+ * "-wire.channels" TCP connections that join with the session token from
+ * JavaHello. Control messages and small responses stay on the first channel,
+ * big and streamed responses are spread over the others, so a big download
+ * does not hold up everything behind it.
+ * <p>
+ * From version 5 on, with "-wire.sharedMemory", one more channel joins whose
+ * frames go through a SharedMemoryChannel instead; its socket only carries
+ * Doorbells. Requests come in there and small responses go out there.
+ */
 public class Connection {
-	private final TcpConnection _tcpConnection;
+	private static final BufferPool _bufferPool = new BufferPool(Config.getInt("wire.pooledBuffers", 64),
+			Config.getInt("wire.bufferSize", 80 * 1024), Config.getBoolean("wire.directBuffers", true));
+
+	// for everything but requests
+	private final Executor _dispatcher;
 	private final Consumer<Exception> _onDisconnected;
+	// called on a receive thread, must not block
 	private final Consumer<RequestDto> _onRequest;
+	private final IntConsumer _onCancel;
 	private final Consumer<WebserverReady> _onReady;
 	private final Consumer<WebserverErrorDto> _onError;
-	private final DataHelper _dh = new DataHelper();
+	// one more if there is a shared memory channel, guarded by this
+	private int _numChannels = Math.max(1, Config.getInt("wire.channels", 4));
+	private final int _maxSmallResponse = Config.getInt("wire.smallResponseBytes", 16 * 1024);
+	private final byte[] _sessionToken = new byte[JavaHello.SessionTokenLength];
+	private final Lane _primary;
+	// only the primary until all channels joined, then all of them in order
+	private volatile Lane[] _lanes;
+	// null without shared memory or until it joined
+	private volatile Lane _sharedLane;
+	// until the shared memory channel joined, then the file is deleted
+	private File _sharedMemoryFile;
+	private MappedByteBuffer _sharedMemory;
+	// guarded by this
+	private Lane[] _joined;
+	private final List<Lane> _allLanes = new ArrayList<>();
+	// streamed responses stay on the channel their head went to
+	private final Map<Integer, Lane> _responseLanes = new ConcurrentHashMap<>();
+	private final AtomicBoolean _disconnected = new AtomicBoolean();
+	private volatile int _protocolVersion = 1;
+	private boolean _acceptingChannels = true;
+
+	public Connection(SocketChannel socket, Executor dispatcher, Consumer<Exception> onDisconnected,
+			Consumer<RequestDto> onRequest, Consumer<WebserverReady> onReady, Consumer<WebserverErrorDto> onError)
+			throws IOException {
+		this(socket, dispatcher, onDisconnected, onRequest, requestId -> {
+		}, onReady, onError);
+	}
 
-	public Connection(Socket socket, Consumer<Exception> onDisconnected, Consumer<RequestDto> onRequest,
-			Consumer<WebserverReady> onReady, Consumer<WebserverErrorDto> onError) throws WeirdException {
+	/**
+	 * onCancel gets the id of a request the webserver does not want anymore, on a
+	 * receive thread, and must not block either.
+	 */
+	public Connection(SocketChannel socket, Executor dispatcher, Consumer<Exception> onDisconnected,
+			Consumer<RequestDto> onRequest, IntConsumer onCancel, Consumer<WebserverReady> onReady,
+			Consumer<WebserverErrorDto> onError) throws IOException {
 		_onDisconnected = onDisconnected;
 		_onRequest = onRequest;
+		_onCancel = onCancel;
 		_onReady = onReady;
 		_onError = onError;
+		_dispatcher = dispatcher;
+		new SecureRandom().nextBytes(_sessionToken);
 
-		_tcpConnection = new TcpConnection(socket, this::receiveWorkerThread);
-		_tcpConnection.eventOnDisconnected().register(this::onDisconnected);
+		_primary = new Lane(socket);
+		_primary.Joined = true;
+		_lanes = new Lane[] { _primary };
+		_joined = new Lane[_numChannels];
+		_joined[0] = _primary;
+		_allLanes.add(_primary);
+		_primary.Channel.start("Webserver connection");
 		// named pipes did not work, as Java does not support async access for them
-		// (read&write at the same time)
-		// _pipe = new RandomAccessFile("\\\\.\\pipe\\ubiconfor", "rw");
+		// (read&write at the same time), so a local webserver gets shared memory
+	}
+
+	/**
+	 * Another connection from the webserver, it has to send ChannelHello first.
+	 */
+	public void addChannel(SocketChannel socket) throws IOException {
+		Lane lane;
+		int number;
+		synchronized (this) {
+			if (!_acceptingChannels || _allLanes.size() >= _numChannels) {
+				Misc.forceClose(socket);
+				Log.warn("Rejected an extra webserver channel");
+				return;
+			}
+			lane = new Lane(socket);
+			_allLanes.add(lane);
+			number = _allLanes.size() - 1;
+		}
+		lane.Channel.start("Webserver channel " + number);
+	}
+
+	/**
+	 * Closes channels that did not join (yet), no new ones are accepted.
+	 */
+	public void stopAcceptingChannels() {
+		List<Lane> unjoined = new ArrayList<>();
+		synchronized (this) {
+			_acceptingChannels = false;
+			for (Lane lane : _allLanes) {
+				if (!lane.Joined) {
+					unjoined.add(lane);
+				}
+			}
+		}
+		for (Lane lane : unjoined) {
+			lane.Channel.close();
+		}
+		int numJoined = _lanes.length + (_sharedLane != null ? 1 : 0);
+		int numChannels;
+		synchronized (this) {
+			numChannels = _numChannels;
+		}
+		if (numJoined < numChannels && _protocolVersion >= 3) {
+			Log.warn("Only " + numJoined + " of " + numChannels + " webserver channels joined, using one");
+		}
+		deleteSharedMemoryFile();
 	}
 
 	public void send(ResponseDto dto) {
-		sendMsg(dto, ResponseDto.MsgId);
+		Lane lane = dto.Data.Content.length <= _maxSmallResponse ? getSmallLane() : getBulkLane(dto.RequestId);
+		lane.send(out -> dto.write(out, lane.HeaderEncoder), ResponseDto.MsgId);
 	}
 
 	public void sendDnsReady() {
-		sendMsg(null, JavaDnsReady.MsgId);
+		_primary.send((DataObject) null, JavaDnsReady.MsgId);
+	}
+
+	public void sendHead(ResponseHeadDto dto) {
+		Lane lane = getBulkLane(dto.RequestId);
+		_responseLanes.put(dto.RequestId, lane);
+		lane.send(out -> dto.write(out, lane.HeaderEncoder), ResponseHeadDto.MsgId);
+	}
+
+	public void sendChunk(BodyChunkDto dto) {
+		getResponseLane(dto.RequestId).send(dto, BodyChunkDto.ResponseMsgId);
+	}
+
+	public void sendEnd(BodyEndDto dto) {
+		Lane lane = getResponseLane(dto.RequestId);
+		_responseLanes.remove(dto.RequestId);
+		lane.send(dto, BodyEndDto.ResponseMsgId);
+	}
+
+	private Lane getSmallLane() {
+		Lane shared = _sharedLane;
+		return shared != null ? shared : _primary;
+	}
+
+	private Lane getBulkLane(int requestId) {
+		Lane[] lanes = _lanes;
+		return lanes.length == 1 ? lanes[0] : lanes[1 + Math.floorMod(requestId, lanes.length - 1)];
+	}
+
+	private Lane getResponseLane(int requestId) {
+		Lane lane = _responseLanes.get(requestId);
+		return lane == null ? _primary : lane;
+	}
+
+	public void kick() {
+		List<Lane> lanes;
+		synchronized (this) {
+			lanes = new ArrayList<>(_allLanes);
+		}
+		for (Lane lane : lanes) {
+			lane.close();
+		}
+	}
+
+	private void onClosed(Lane lane, Exception e) {
+		if (!lane.Joined) {
+			if (!_disconnected.get()) {
+				Log.warn("Extra webserver channel closed before joining: " + e);
+			}
+			synchronized (this) {
+				_allLanes.remove(lane);
+			}
+			return;
+		}
+		// one channel is gone, so responses on it would be lost
+		if (_disconnected.compareAndSet(false, true)) {
+			deleteSharedMemoryFile();
+			kick();
+			_dispatcher.execute(() -> _onDisconnected.accept(e));
+		}
+	}
+
+	private void onFrame(Lane lane, byte msgId, DataInput in) throws IOException {
+		if (!lane.Joined) {
+			if (msgId != ChannelHello.MsgId) {
+				throw new IOException("Expected ChannelHello, got msgId " + msgId);
+			}
+			ChannelHello hello = new ChannelHello();
+			hello.read(in);
+			join(lane, hello);
+		} else if (msgId == RequestDto.MsgId) {
+			RequestDto request = new RequestDto();
+			request.Trace = new Trace();
+			request.Trace.stamp(Stage.RECEIVED);
+			request.read(in, lane.HeaderDecoder);
+			if (_protocolVersion >= 4) {
+				request.Data.readTimeout(in);
+			}
+			request.Trace.stamp(Stage.DECODED);
+			_onRequest.accept(request);
+		} else if (msgId == RequestHeadDto.MsgId) {
+			Trace trace = new Trace();
+			trace.stamp(Stage.RECEIVED);
+			RequestHeadDto head = new RequestHeadDto();
+			head.read(in, lane.HeaderDecoder);
+			if (_protocolVersion >= 4) {
+				head.Data.readTimeout(in);
+			}
+			if (lane.StreamedRequests.put(head.RequestId, new StreamedRequest(head, trace)) != null) {
+				throw new IOException("Duplicate request " + head.RequestId);
+			}
+		} else if (msgId == BodyChunkDto.RequestMsgId) {
+			BodyChunkDto chunk = new BodyChunkDto();
+			chunk.read(in);
+			lane.getStreamedRequest(chunk.RequestId).Body.write(chunk.Data);
+		} else if (msgId == BodyEndDto.RequestMsgId) {
+			BodyEndDto end = new BodyEndDto();
+			end.read(in);
+			StreamedRequest streamed = lane.getStreamedRequest(end.RequestId);
+			lane.StreamedRequests.remove(end.RequestId);
+			if (!end.Failed) {
+				RequestDto request = streamed.toRequest();
+				// the body counts as decoding, it came as fast as the webserver sent it
+				request.Trace.stamp(Stage.DECODED);
+				_onRequest.accept(request);
+			}
+		} else if (msgId == CancelDto.MsgId) {
+			CancelDto cancel = new CancelDto();
+			cancel.read(in);
+			// sent on the same channel as the request, so it cannot overtake it
+			if (lane.StreamedRequests.remove(cancel.RequestId) == null) {
+				_onCancel.accept(cancel.RequestId);
+			}
+		} else if (msgId == WebserverErrorDto.MsgId && lane == _primary) {
+			WebserverErrorDto request = new WebserverErrorDto();
+			request.read(in);
+			_dispatcher.execute(() -> _onError.accept(request));
+		} else if (msgId == WebserverReady.MsgId && lane == _primary) {
+			WebserverReady request = new WebserverReady();
+			request.read(in);
+			_dispatcher.execute(() -> _onReady.accept(request));
+		} else if (msgId == WebserverHello.MsgId && lane == _primary) {
+			WebserverHello hello = new WebserverHello();
+			hello.read(in);
+			onHello(hello);
+		} else {
+			throw new IOException("Unknown msgId " + msgId);
+		}
 	}
 
-	private void sendMsg(ResponseDto dto, byte msgId) {
+	private void onHello(WebserverHello hello) {
+		JavaHello answer = new JavaHello();
+		answer.ProtocolVersion = Math.min(hello.MaxProtocolVersion, JavaHello.MaxProtocolVersion);
+		answer.SessionToken = _sessionToken;
+		if (answer.ProtocolVersion >= 5 && hello.SharedMemory && Config.getBoolean("wire.sharedMemory", false)) {
+			answer.SharedMemoryPath = createSharedMemory();
+		}
+		synchronized (this) {
+			if (!answer.SharedMemoryPath.isEmpty()) {
+				_numChannels++;
+				_joined = new Lane[_numChannels];
+				_joined[0] = _primary;
+			}
+			answer.NumChannels = _numChannels;
+		}
+		_protocolVersion = answer.ProtocolVersion;
+		_primary.send(answer, JavaHello.MsgId);
+		// everything sent after the answer may use it
+		if (answer.ProtocolVersion >= 2) {
+			_primary.HeaderEncoder = new HeaderCodec();
+		}
+		Log.info("Webserver protocol version " + answer.ProtocolVersion
+				+ (answer.ProtocolVersion >= 3 ? ", " + answer.NumChannels + " channels" : "")
+				+ (answer.SharedMemoryPath.isEmpty() ? "" : ", the last one in " + answer.SharedMemoryPath));
+	}
+
+	/**
+	 * The path of the file, or "" if shared memory does not work here.
+	 */
+	private String createSharedMemory() {
+		if (!MappedAtomics.isSupported()) {
+			Log.warn("Shared memory is not supported by this JVM, staying on TCP");
+			return "";
+		}
+		File devShm = new File("/dev/shm");
+		String defaultDir = devShm.isDirectory() ? devShm.getPath() : System.getProperty("java.io.tmpdir");
+		File dir = new File(Config.getString("wire.sharedMemory.dir", defaultDir));
+		File file = null;
 		try {
-			_dh.getStream().writeByte(msgId);
-			if (dto != null) {
-				try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-					try (DataOutputStream dos = new DataOutputStream(baos)) {
-						dto.write(dos);
-						_dh.getStream().writeInt(baos.size());
-						_dh.getStream().write(baos.toByteArray());
-					}
+			file = File.createTempFile("ubiconfor", ".ring", dir);
+			file.deleteOnExit();
+			MappedByteBuffer mapped = SharedMemoryChannel.create(file,
+					Config.getInt("wire.sharedMemory.ringBytes", 4 * 1024 * 1024));
+			synchronized (this) {
+				_sharedMemoryFile = file;
+				_sharedMemory = mapped;
+			}
+			return file.getAbsolutePath();
+		} catch (IOException | RuntimeException e) {
+			Log.warn("Could not create the shared memory, staying on TCP: " + e);
+			if (file != null) {
+				file.delete();
+			}
+			return "";
+		}
+	}
+
+	private void deleteSharedMemoryFile() {
+		File file;
+		synchronized (this) {
+			file = _sharedMemoryFile;
+			_sharedMemoryFile = null;
+		}
+		// the webserver mapped it already or is not going to anymore
+		if (file != null) {
+			file.delete();
+		}
+	}
+
+	private void join(Lane lane, ChannelHello hello) throws IOException {
+		if (_protocolVersion < 3 || !MessageDigest.isEqual(hello.SessionToken, _sessionToken)) {
+			throw new IOException("Extra webserver channel with a wrong session");
+		}
+		int index = hello.ChannelIndex;
+		synchronized (this) {
+			if (index < 1 || index >= _numChannels || _joined[index] != null) {
+				throw new IOException("Invalid webserver channel " + index);
+			}
+			// the webserver only sends compact headers on extra channels
+			lane.HeaderEncoder = new HeaderCodec();
+			lane.Joined = true;
+			_joined[index] = lane;
+			if (_sharedMemory != null && index == _numChannels - 1) {
+				// the webserver mapped the file before joining
+				lane.startShared(_sharedMemory);
+				_sharedMemory = null;
+				_sharedLane = lane;
+			}
+			for (Lane joined : _joined) {
+				if (joined == null) {
+					return;
 				}
 			}
-			_tcpConnection.send(_dh.finish());
-		} catch (IOException e) {
-			throw new WrapException(e);
+			List<Lane> lanes = new ArrayList<>();
+			for (Lane joined : _joined) {
+				if (joined.Shared == null) {
+					lanes.add(joined);
+				}
+			}
+			_lanes = lanes.toArray(new Lane[0]);
 		}
+		deleteSharedMemoryFile();
+		Log.info("All " + _numChannels + " webserver channels joined");
 	}
 
-	public void kick() {
-		_tcpConnection.disconnect();
-	}
-
-	private void onDisconnected(Exception e) {
-		_onDisconnected.accept(e);
-	}
-
-	private void receiveWorkerThread(ReceiverHelper rh) throws IOException {
-		while (true) {
-			rh.checkDisconnecting();
-
-			byte msgId = rh.Stream.readByte();
-
-			byte[] message = new byte[rh.Stream.readInt()];
-			rh.Stream.readFully(message);
-			try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(message))) {
-				if (msgId == RequestDto.MsgId) {
-					RequestDto request = new RequestDto();
-					request.read(dis);
-					rh.post(() -> _onRequest.accept(request));
-				} else if (msgId == WebserverErrorDto.MsgId) {
-					WebserverErrorDto request = new WebserverErrorDto();
-					request.read(dis);
-					rh.post(() -> _onError.accept(request));
-				} else if (msgId == WebserverReady.MsgId) {
-					WebserverReady request = new WebserverReady();
-					request.read(dis);
-					rh.post(() -> _onReady.accept(request));
+	private final class Lane {
+		public final FrameChannel Channel;
+		// set when the lane joins as the shared memory channel, the socket then only rings
+		// and its receive thread reads the frames
+		public volatile SharedMemoryChannel Shared;
+		// streamed requests whose body is not complete yet, only used by the receive thread
+		public final Map<Integer, StreamedRequest> StreamedRequests = new HashMap<>();
+		// only used by the receive thread, can always read compact headers
+		public final HeaderCodec HeaderDecoder = new HeaderCodec();
+		// null until the webserver said it understands compact headers
+		public volatile HeaderCodec HeaderEncoder;
+		// set by the receive thread, the primary is always joined
+		public volatile boolean Joined;
+
+		public Lane(SocketChannel socket) throws IOException {
+			Channel = new FrameChannel(socket, _bufferPool, Config.getInt("wire.maxQueuedFrames", 256),
+					this::onSocketFrame, e -> onClosed(this, e));
+		}
+
+		public void startShared(MappedByteBuffer mapped) {
+			long spinNanos = TimeUnit.MICROSECONDS.toNanos(Config.getInt("wire.sharedMemory.spinMicros",
+					Runtime.getRuntime().availableProcessors() > 1 ? 50 : 0));
+			Shared = new SharedMemoryChannel(mapped, true, _bufferPool, spinNanos,
+					(msgId, in) -> onFrame(this, msgId, in), this::ringDoorbell);
+		}
+
+		private void ringDoorbell() {
+			send(out -> {
+			}, Doorbell.MsgId, false);
+		}
+
+		private void onSocketFrame(byte msgId, DataInput in) throws IOException {
+			SharedMemoryChannel shared = Shared;
+			if (shared == null) {
+				onFrame(this, msgId, in);
+			} else if (msgId == Doorbell.MsgId) {
+				// the frames are read right here, the socket is only for sleeping
+				shared.onDoorbell();
+			} else {
+				throw new IOException("Expected a Doorbell on the shared memory channel, got msgId " + msgId);
+			}
+		}
+
+		public void send(DataObject dto, byte msgId) {
+			send(dto == null ? null : dto::write, msgId);
+		}
+
+		// thread-safe, streamed responses are sent from the request threads
+		public void send(FrameChannel.FrameWriter writer, byte msgId) {
+			send(writer, msgId, true);
+		}
+
+		private void send(FrameChannel.FrameWriter writer, byte msgId, boolean shared) {
+			try {
+				if (shared && Shared != null) {
+					Shared.send(msgId, writer);
 				} else {
-					throw new IOException("Unknown msgId " + msgId);
+					Channel.send(msgId, writer);
 				}
+			} catch (IOException e) {
+				throw new WrapException(e);
 			}
 		}
+
+		public void close() {
+			Channel.close();
+			if (Shared != null) {
+				Shared.close();
+			}
+		}
+
+		public StreamedRequest getStreamedRequest(int requestId) throws IOException {
+			StreamedRequest streamed = StreamedRequests.get(requestId);
+			if (streamed == null) {
+				throw new IOException("Unknown streamed request " + requestId);
+			}
+			return streamed;
+		}
+	}
+
+	private static final class StreamedRequest {
+		public final RequestHeadDto Head;
+		public final Trace Trace;
+		// request bodies are small (chat messages etc.), so they are collected here
+		public final ByteArrayOutputStream Body = new ByteArrayOutputStream();
+
+		public StreamedRequest(RequestHeadDto head, Trace trace) {
+			Head = head;
+			Trace = trace;
+		}
+
+		public RequestDto toRequest() {
+			RequestDto request = new RequestDto();
+			request.RequestId = Head.RequestId;
+			request.Data = Head.Data;
+			request.Data.Content = Body.toByteArray();
+			request.StreamResponse = true;
+			request.Trace = Trace;
+			return request;
+		}
 	}
 }
@@ -0,0 +1,370 @@
+package com.iosoft.ubiconfor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import javax.net.ssl.SSLContext;
+
+import com.iosoft.helpers.Misc;
+import com.iosoft.helpers.web.MiscWeb;
+import com.iosoft.ubiconfor.dtos.WebserverErrorDto;
+import com.iosoft.ubiconfor.dtos.WebserverReady;
+import com.iosoft.ubiconfor.dtos.WebserverReady.Ready;
+import com.iosoft.ubiconfor.log.Log;
+import com.iosoft.ubiconfor.metrics.MetricsServer;
+import com.iosoft.ubiconfor.upstream.AddressPool;
+
+/**
+ * The startup steps and the webserver connection, without any UI. All methods
+ * and callbacks run on the logic executor (the EDT in windowed mode), the
+ * startup steps themselves in the background, see StartupGraph.
+ */
+public final class Forwarder {
+	private static final String UPSTREAM_HOST = "channel-service.upc.ubi.com";
+
+	private static final String EXE_NAME = "UbisoftConnectProxy.exe";
+	private static final int OLD_WEBSERVER_TIMEOUT_MILLIS = 5000;
+
+	private final String _exePath; // null=use default, ""=none, other=that path
+	private final Executor _logic;
+	private final StatusListener _status;
+	private final ForwardingCore _core;
+	private final ChannelListener _webserverListener;
+
+	private final StartupGraph _startup = new StartupGraph();
+
+	// also read by the startup steps
+	private volatile Connection _webserverConnection;
+	private boolean _webserverAccepted;
+
+	public Forwarder(String exePath, Executor logic, StatusListener status) {
+		_exePath = exePath;
+		_logic = logic;
+		_status = status;
+		_core = new ForwardingCore(text -> logic.execute(() -> status.setError(text, false)));
+		_webserverListener = new ChannelListener(WebserverTransport.create(Config.getString("webserver.transport", "tcp")),
+				this::onWebserverConnected, logic);
+	}
+
+	public ForwardingCore getCore() {
+		return _core;
+	}
+
+	/**
+	 * Starts the steps that need nothing else at once: the check of 443, the TLS
+	 * and JIT warm-ups, the listener and stopping an old webserver. The rest
+	 * follows as soon as what it needs is done. The timeline is logged once it runs.
+	 */
+	public void start() {
+		startMetrics();
+		List<String> beforeLaunch = new ArrayList<>(Arrays.asList("listener", "oldWebserver"));
+		if (Config.getBoolean("check443", true)) {
+			_status.setStatus("Checking TCP 443...");
+			onDone(_startup.add("check443", () -> {
+				Exception error = check443();
+				if (error != null) {
+					throw error;
+				}
+			}), error -> {
+				if (error == null) {
+					if (!_webserverAccepted) {
+						_status.setStatus("Launching webserver...");
+					}
+				} else {
+					Log.error("TCP 443 is not available", error);
+					_status.onPortInUse(error instanceof Exception ? (Exception) error : new Exception(error));
+				}
+			});
+			beforeLaunch.add("check443");
+		} else {
+			// the webserver is not ours (load tests)
+			_status.setStatus("Launching webserver...");
+		}
+
+		// the warm-ups only make it faster, so they may fail
+		_startup.addOptional("ssl", () -> {
+			// JSSE and the trust store, the first handshake would wait for them otherwise
+			MiscWeb.ensureSSLWarmupIsDone();
+			SSLContext.getDefault();
+			WebRequester.getClient();
+		});
+		// the JIT needs neither upstream nor the webserver, and gets the time until the rest is done
+		CompletableFuture<Void> hostsAndUpstream = new CompletableFuture<>();
+		_startup.add("requestPath", () -> Prewarmer.warmRequestPath(UPSTREAM_HOST, hostsAndUpstream::isDone));
+		onDone(_startup.add("listener", _webserverListener::start), error -> {
+			if (error != null) {
+				Log.error("Could not start the " + _webserverListener.getTransport().getName() + " server", error);
+				_status.setError(error.getMessage(), true);
+			}
+		});
+		_startup.add("oldWebserver", this::stopOldWebserver);
+		onDone(_startup.add("webserver", this::launchWebserver, beforeLaunch.toArray(new String[0])), error -> {
+			if (error != null) {
+				Log.error("Could not start webserver", error);
+				_status.setError("Could not start webserver: " + error, true);
+			} else if (!_webserverAccepted) {
+				_status.setStatus("Waiting for webserver to connect via " + _webserverListener.getTransport().getName()
+						+ "...");
+			}
+		});
+
+		_startup.addEvent("connected", "webserver");
+		CompletableFuture<Void> hosts = _startup.addEvent("hosts", "connected");
+		// with its own DNS server or a fixed address upstream can be found before the hosts file is checked
+		CompletableFuture<Void> upstream = _startup.addOptional("upstream", Forwarder::warmUpstream,
+				usesHostsFile() ? new String[] { "ssl", "hosts" } : new String[] { "ssl" });
+		CompletableFuture.allOf(hosts, upstream)
+				.whenComplete((result, error) -> hostsAndUpstream.complete(null));
+		onDone(_startup.add("dnsReady", () -> {
+			Connection connection = _webserverConnection;
+			if (connection == null) {
+				throw new IOException("Webserver is not connected anymore!");
+			}
+			// before the answers to it
+			_logic.execute(() -> _status.setStatus("Installing certificate..."));
+			connection.sendDnsReady();
+		}, "hosts", "upstream", "requestPath"), error -> {
+			if (error != null) {
+				_status.setError(error.getMessage(), true);
+			}
+		});
+		_startup.addEvent("starting", "dnsReady");
+		_startup.addEvent("running", "starting");
+	}
+
+	/**
+	 * "-metrics.port=0" turns the endpoint off, the MBeans are always there.
+	 */
+	private void startMetrics() {
+		_core.getMetrics().registerMBeans();
+		int port = Config.getInt("metrics.port", 44450);
+		if (port > 0) {
+			try {
+				new MetricsServer(_core.getMetrics()).start(port);
+				Log.info("Metrics on http://127.0.0.1:" + port + "/metrics");
+			} catch (IOException e) {
+				Log.warn("Could not start metrics endpoint on port " + port + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Returns null if we can listen on 443 and connect to it.
+	 */
+	private static Exception check443() {
+		try (ServerSocket server = new ServerSocket()) {
+			server.bind(new InetSocketAddress(443));
+			server.setSoTimeout(5000);
+			try (Socket client = new Socket()) {
+				try {
+					client.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), 443), 5000);
+				} catch (SocketTimeoutException e) {
+					return new TimeoutException("Could not connect to server");
+				}
+				// only the first connection counts
+				try {
+					server.accept().close();
+					return null;
+				} catch (SocketTimeoutException e) {
+					return new TimeoutException("No client connected");
+				}
+			}
+		} catch (IOException e) {
+			return e;
+		}
+	}
+
+	/**
+	 * Whether finding upstream goes through the system resolver, and so through
+	 * the hosts file the webserver checks first.
+	 */
+	private static boolean usesHostsFile() {
+		return WebRequester.getUpstreamAddress() == null
+				&& (WebRequester.getAddressPool() == null || Config.getString("upstream.dnsServer", null) == null);
+	}
+
+	/**
+	 * The DNS lookup and the keep-alive connections, so the first client requests
+	 * are fast too.
+	 */
+	private static void warmUpstream() throws Exception {
+		// make sure the DNS lookup is done, not needed with a fixed address
+		AddressPool addresses = WebRequester.getAddressPool();
+		if (addresses != null) {
+			addresses.pin(UPSTREAM_HOST);
+		} else if (WebRequester.getUpstreamAddress() == null) {
+			MiscWeb.getFirstLine("https://" + UPSTREAM_HOST + "/");
+		}
+		Prewarmer.prewarmConnections(UPSTREAM_HOST);
+	}
+
+	/**
+	 * Null if no webserver is started.
+	 */
+	private File getExeFile() {
+		if (_exePath != null && _exePath.isEmpty()) {
+			return null;
+		}
+		return new File(_exePath == null ? "Webserver" : _exePath, EXE_NAME);
+	}
+
+	/**
+	 * Asks a webserver that is still running to quit and waits until it is gone,
+	 * at most a few seconds. Only a precaution, so failures are just logged.
+	 */
+	private void stopOldWebserver() throws InterruptedException {
+		File exeFile = getExeFile();
+		if (exeFile == null || !exeFile.exists()) {
+			return;
+		}
+		try {
+			Process taskkill = new ProcessBuilder("taskkill", "/IM", EXE_NAME).redirectErrorStream(true).start();
+			// anything else than 0: none was running
+			if (!taskkill.waitFor(OLD_WEBSERVER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) || taskkill.exitValue() != 0) {
+				taskkill.destroy();
+				return;
+			}
+			long start = System.nanoTime();
+			while (isWebserverRunning()) {
+				if (System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(OLD_WEBSERVER_TIMEOUT_MILLIS)) {
+					Log.warn("Old webserver did not quit within " + OLD_WEBSERVER_TIMEOUT_MILLIS + " ms");
+					return;
+				}
+				Thread.sleep(20);
+			}
+		} catch (IOException e) {
+			Log.warn("Could not stop an old webserver: " + e);
+		}
+	}
+
+	private static boolean isWebserverRunning() throws IOException, InterruptedException {
+		Process tasklist = new ProcessBuilder("tasklist", "/NH", "/FI", "IMAGENAME eq " + EXE_NAME)
+				.redirectErrorStream(true).start();
+		boolean running;
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(tasklist.getInputStream(), Charset.defaultCharset()))) {
+			running = reader.lines().anyMatch(line -> line.regionMatches(true, 0, EXE_NAME, 0, EXE_NAME.length()));
+		}
+		tasklist.waitFor();
+		return running;
+	}
+
+	private void launchWebserver() throws IOException {
+		File exeFile = getExeFile();
+		if (exeFile == null) {
+			// don't start the webserver
+			return;
+		}
+		if (!exeFile.exists()) {
+			throw new IOException("Webserver EXE not found: '" + exeFile.getAbsolutePath() + "'");
+		}
+		new ProcessBuilder(exeFile.getAbsolutePath(), _webserverListener.getAddress()) //
+				.directory(exeFile.getParentFile()) //
+				.start();
+		// don't kill, it should kill itself!
+	}
+
+	private void onWebserverConnected(SocketChannel socket) {
+		if (_webserverAccepted) {
+			onWebserverChannel(socket);
+			return;
+		}
+		_webserverAccepted = true;
+		try {
+			_webserverConnection = new Connection(socket, _logic, this::onWebserverDisconnected, _core::onRequest,
+					_core::cancel, this::onWebserverReady, this::onWebserverError);
+			_core.setConnection(_webserverConnection);
+
+			_startup.complete("connected");
+			_status.setStatus("Webserver connected, checking hosts and certificates...");
+			// waiting for hosts file...
+		} catch (IOException e) {
+			// too bad
+			Log.error("Could not set up the webserver connection", e);
+			_status.setError("What? " + e, true);
+		}
+	}
+
+	/**
+	 * More channels from the same webserver, the listener stays open until it
+	 * runs.
+	 */
+	private void onWebserverChannel(SocketChannel socket) {
+		if (_webserverConnection == null) {
+			Misc.forceClose(socket);
+			return;
+		}
+		try {
+			_webserverConnection.addChannel(socket);
+		} catch (IOException e) {
+			Misc.forceClose(socket);
+			Log.warn("Could not add a webserver channel: " + e);
+		}
+	}
+
+	private void onWebserverReady(WebserverReady msg) {
+		if (msg.What == Ready.Hosts) {
+			// 4. Hosts file ready (no redirect), the DNS cache entry and the prewarming
+			// may already be done
+			_startup.complete("hosts");
+			_status.setStatus("Creating DNS cache entry and prewarming...");
+		} else if (msg.What == Ready.Starting) {
+			_startup.complete("starting");
+			_status.setStatus("Starting web listener...");
+		} else if (msg.What == Ready.Running) {
+			// only one client pls
+			_webserverListener.stop();
+			if (_webserverConnection != null) {
+				_webserverConnection.stopAcceptingChannels();
+			}
+			_startup.complete("running");
+			long sinceStart = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+			Log.info("Running, " + sinceStart + " ms after JVM start");
+			Log.info(_startup.getTimeline());
+			_startup.getDurationNanos().forEach(_core.getMetrics()::recordStartupStep);
+			_status.onRunning();
+		}
+	}
+
+	private void onWebserverDisconnected(Exception e) {
+		_webserverConnection = null;
+		_webserverListener.stop();
+		Log.warn("Got disconnected: " + e);
+		_core.setConnection(null);
+		// the listener is stopped, there will be no other connection
+		_core.shutdown();
+		_status.setError("Webserver lost the connection, please restart the app.", true);
+	}
+
+	private void onWebserverError(WebserverErrorDto dto) {
+		if (dto.Fatal) {
+			_webserverConnection.kick();
+		}
+		_status.setError("Webserver error" + (dto.Fatal ? " (fatal)" : "") + ": " + dto.Text, dto.Fatal);
+	}
+
+	/**
+	 * The callback gets null or the error of the step on the logic executor.
+	 */
+	private void onDone(CompletableFuture<Void> step, Consumer<Throwable> onDone) {
+		step.whenCompleteAsync((result, error) -> onDone.accept(error), _logic);
+	}
+}
@@ -0,0 +1,153 @@
+package com.iosoft.ubiconfor;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.io.IOException;
+
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.Timer;
+import javax.swing.WindowConstants;
+import javax.swing.text.StyleConstants;
+
+import com.iosoft.helpers.MiscImg;
+import com.iosoft.helpers.async.dispatcher.Dispatcher;
+import com.iosoft.helpers.ui.awt.ErrorScreen;
+import com.iosoft.helpers.ui.awt.GameTextPane;
+import com.iosoft.helpers.ui.awt.MiscAWT;
+import com.iosoft.ubiconfor.ForwardingCore.CompletedRequest;
+import com.iosoft.ubiconfor.cache.CachingClient;
+
+/**
+ * The window, runs the forwarder on the EDT.
+ */
+public final class ForwarderWindow implements StatusListener {
+	private final Forwarder _forwarder;
+	private final ForwardingCore _core;
+
+	private final JPanel _panel;
+	private final GameTextPane _labelCurrentStatus;
+	private final JLabel _labelRequests;
+	private final JPanel _bottomPanel;
+	private final RequestsView _requestsView;
+
+	public ForwarderWindow(String exePath) {
+		MiscAWT.setSystemLookAndFeel();
+
+		JFrame window = new JFrame("ubisoftconnect-win7fix by AyCe");
+		window.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+		try {
+			window.setIconImage(MiscImg.loadImage("/Assets/icon.png"));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		_labelCurrentStatus = new GameTextPane("Starting...");
+		_labelCurrentStatus.setFont(_labelCurrentStatus.getFont().deriveFont(20f));
+		_labelCurrentStatus.setHorizontalCentered();
+		_panel = new JPanel(new BorderLayout());
+		_panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+		_panel.add(new JLabel("v2 - 2022-02-04"), BorderLayout.NORTH);
+		_panel.add(_labelCurrentStatus, BorderLayout.CENTER);
+		
+		_bottomPanel = new JPanel(new BorderLayout());
+		_bottomPanel.setOpaque(false);
+		_labelRequests = new JLabel();
+		_labelRequests.setBorder(BorderFactory.createEmptyBorder(0, 5, 0, 0));
+		_bottomPanel.add(_labelRequests, BorderLayout.CENTER);
+		JButton buttonShowRequests = new JButton("Show");
+		buttonShowRequests.setOpaque(false);
+		_bottomPanel.add(buttonShowRequests, BorderLayout.WEST);
+		
+		window.add(_panel);
+		window.setPreferredSize(new Dimension(400, 300));
+		window.setMinimumSize(new Dimension(400, 300));
+		window.pack();
+		window.setLocationRelativeTo(null);
+		window.setVisible(true);
+
+		JFrame requestsWindow = new JFrame("Requests");
+		requestsWindow.setIconImage(window.getIconImage());
+		requestsWindow.setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
+		_requestsView = new RequestsView();
+		requestsWindow.add(_requestsView.Panel);
+		requestsWindow.setPreferredSize(new Dimension(700, 500));
+		requestsWindow.setMinimumSize(new Dimension(400, 300));
+		requestsWindow.pack();
+		requestsWindow.setLocationRelativeTo(window);
+
+		buttonShowRequests.addActionListener(evt -> requestsWindow.setVisible(true));
+
+		Dispatcher dispatcher = Dispatcher.getForCurrentThread();
+		dispatcher.setMainUnhandledExceptionHandler(x -> ErrorScreen.showAndDump(window, x, "ubisoftconnect-win7fix"));
+
+		_forwarder = new Forwarder(exePath, dispatcher::dispatch, this);
+		_core = _forwarder.getCore();
+		_forwarder.start();
+	}
+
+	private void setStatus(String text, Boolean isGood) {
+		_labelCurrentStatus.setText(text);
+		_labelCurrentStatus.setForeground(isGood == null || isGood.booleanValue() ? Color.BLACK : Color.RED);
+		// _labelCurrentStatus.addHyperlink("testuhu", null);
+	}
+
+	@Override
+	public void setStatus(String text) {
+		setStatus(text, null);
+	}
+
+	@Override
+	public void setError(String text, boolean fatal) {
+		_labelCurrentStatus.setFont(_labelRequests.getFont());
+		setStatus(text, false);
+	}
+
+	@Override
+	public void onPortInUse(Exception error) {
+		_labelCurrentStatus.setAlign(StyleConstants.ALIGN_JUSTIFIED);
+		setError(
+				"TCP port 443 seems to be already in use by another application, likely a webserver. As we need to start our own webserver, you must temporarily close that application. Restart this tool afterwards to try again.\n\nWays to find out which application is responsible:\n- Visiting https://localhost and see where you land.\n- Use TCPView (download from Microsoft).\n\nError message:\n"
+						+ error,
+				true);
+	}
+
+	@Override
+	public void onRunning() {
+		_panel.setBackground(new Color(170, 255, 170));
+		setStatus("Ready!\n\nYou can start Ubisoft Connect now.\n\nKeep this window open.", true);
+		_panel.add(_bottomPanel, BorderLayout.SOUTH);
+		// the UI only samples the state of the forwarder, it never blocks it
+		new Timer(Config.getInt("ui.refreshMillis", 100), evt -> refreshRequests()).start();
+		updateRequestsLabel();
+	}
+
+	private void updateRequestsLabel() {
+		String upstreamStatus = WebRequester.getClient().getStatusText();
+		CachingClient cache = WebRequester.getCache();
+		AdmissionController longPolls = _core.getLongPollLane();
+		_labelRequests.setText("<html>" + _core.getNumRequests() + " requests, " + _core.getNumRequestsCompleted()
+				+ " completed, " + _core.getNumRequestsFailed() + " failed, " + _core.getNumRequestsCancelled()
+				+ " cancelled, " + _core.getNumRejected() + " rejected"
+				+ (cache == null ? "" : ", " + Math.round(cache.getHitRatio() * 100) + "% cache hits") + "<br>"
+				+ describeLane("short calls", _core.getAdmission())
+				+ (longPolls == null ? "" : ", " + describeLane("long polls", longPolls))
+				+ (upstreamStatus == null ? "" : "<br>" + upstreamStatus) + "</html>");
+	}
+
+	private static String describeLane(String name, AdmissionController lane) {
+		return name + ": " + lane.getNumRunning() + " running, " + lane.getNumQueued() + " queued";
+	}
+
+	private void refreshRequests() {
+		CompletedRequest completed;
+		while ((completed = _core.pollCompleted()) != null) {
+			_requestsView.add(completed);
+		}
+		_requestsView.update();
+		updateRequestsLabel();
+	}
+}
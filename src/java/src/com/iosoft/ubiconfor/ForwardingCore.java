@@ -0,0 +1,425 @@
+package com.iosoft.ubiconfor;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import com.iosoft.ubiconfor.dtos.HeaderDto;
+import com.iosoft.ubiconfor.dtos.RequestDataDto;
+import com.iosoft.ubiconfor.dtos.RequestDto;
+import com.iosoft.ubiconfor.dtos.ResponseDataDto;
+import com.iosoft.ubiconfor.dtos.ResponseDto;
+import com.iosoft.ubiconfor.journal.JournalRecorder;
+import com.iosoft.ubiconfor.log.Level;
+import com.iosoft.ubiconfor.log.Log;
+import com.iosoft.ubiconfor.metrics.Metrics;
+import com.iosoft.ubiconfor.trace.Stage;
+import com.iosoft.ubiconfor.trace.Trace;
+import com.iosoft.ubiconfor.trace.TraceExporter;
+import com.iosoft.ubiconfor.upstream.AddressPool;
+import com.iosoft.ubiconfor.upstream.Cancellation;
+import com.iosoft.ubiconfor.upstream.HostResolver;
+import com.iosoft.ubiconfor.upstream.RequestCancelledException;
+
+/**
+ * Forwards requests from the webserver to upstream on its own worker threads.
+ * Knows nothing about the UI: that polls the counters and completed requests
+ * whenever it wants to.
+ */
+public final class ForwardingCore {
+	private static final int MAX_COMPLETED = 1000;
+	/**
+	 * Set on 503 responses we generate ourselves, with the reason.
+	 */
+	public static final String OVERLOAD_HEADER = "X-Forwarder-Overload";
+
+	// short calls, and everything if there is no long poll lane
+	private final AdmissionController _admission;
+	// null with "-lanes.longPoll=false"
+	private final AdmissionController _longPollLane;
+	private final RequestClassifier _classifier;
+	// a local upstream.address is on purpose
+	private final LoopDetector _loopDetector = WebRequester.isUpstreamRedirected() ? null : createLoopDetector();
+	private final int _retryAfterSeconds = Config.getInt("admission.retryAfterSeconds", 1);
+	// until the response (head) arrives, for requests without TimeoutMillis. the
+	// webserver gives up after 30 s anyway
+	private final int _defaultTimeoutMillis = Config.getInt("upstream.timeoutMillis", 30000);
+	private final AtomicBoolean _loopReported = new AtomicBoolean(), _firstRequestDone = new AtomicBoolean();
+	private final Map<Integer, PendingRequest> _pendingRequests = new ConcurrentHashMap<>();
+	private final AtomicLong _numRequests = new AtomicLong(), _numRequestsCompleted = new AtomicLong(),
+			_numRequestsFailed = new AtomicLong(), _numRequestsCancelled = new AtomicLong();
+	private final ArrayBlockingQueue<CompletedRequest> _completed = new ArrayBlockingQueue<>(MAX_COMPLETED);
+	private final int _streamChunkSize = Config.getInt("stream.chunkSize", 64 * 1024);
+	private final Consumer<String> _onError;
+	private final Metrics _metrics = new Metrics(Config.getInt("metrics.maxEndpoints", 200));
+	// null unless recording
+	private final JournalRecorder _journal = JournalRecorder.create();
+	// null unless exporting
+	private final TraceExporter _traceExporter = TraceExporter.create();
+	private volatile Connection _connection;
+
+	/**
+	 * onError is called from the worker threads.
+	 */
+	public ForwardingCore(Consumer<String> onError) {
+		_onError = onError;
+		boolean virtual = useVirtualThreads();
+		// long polls only cost memory on virtual threads
+		_admission = new AdmissionController("Forwarder", Config.getInt("admission.maxConcurrent", virtual ? 1024 : 64),
+				Config.getInt("admission.maxQueued", 256), Config.getInt("admission.maxQueueMillis", 10000), virtual);
+		if (Config.getBoolean("lanes.longPoll", true)) {
+			_longPollLane = new AdmissionController("Long poll",
+					Config.getInt("lanes.longPoll.maxConcurrent", virtual ? 4096 : 512),
+					Config.getInt("lanes.longPoll.maxQueued", 256),
+					Config.getInt("lanes.longPoll.maxQueueMillis", 10000), virtual);
+			_classifier = new RequestClassifier(
+					Config.getString("lanes.longPollPattern", "(?i)long-?poll|/notifications\\b"),
+					Config.getInt("lanes.longPollMillis", 5000));
+			_metrics.addLane("longPoll", _longPollLane::getNumRunning, _longPollLane::getNumQueued,
+					_longPollLane::getNumRejected);
+		} else {
+			_longPollLane = null;
+			_classifier = null;
+		}
+		_metrics.addLane("short", _admission::getNumRunning, _admission::getNumQueued, _admission::getNumRejected);
+		Log.info("Forwarding on " + (virtual ? "virtual" : "platform") + " threads"
+				+ (_longPollLane == null ? "" : ", long polls separately"));
+	}
+
+	/**
+	 * "-threads=auto" (default) uses virtual threads on Java 21 and newer,
+	 * "-threads=platform" never.
+	 */
+	private static boolean useVirtualThreads() {
+		String threads = Config.getString("threads", "auto");
+		if (threads.equalsIgnoreCase("platform")) {
+			return false;
+		}
+		if (!VirtualThreads.isSupported()) {
+			if (threads.equalsIgnoreCase("virtual")) {
+				Log.warn("Virtual threads need Java 21 and the multi-release JAR, using platform threads");
+			}
+			return false;
+		}
+		return true;
+	}
+
+	private static LoopDetector createLoopDetector() {
+		AddressPool addresses = WebRequester.getAddressPool();
+		return new LoopDetector(addresses == null ? HostResolver.system() : addresses::pin);
+	}
+
+	public void setConnection(Connection connection) {
+		_connection = connection;
+	}
+
+	/**
+	 * Can be called from any thread, does not block.
+	 */
+	public void onRequest(RequestDto msg) {
+		if (Log.isEnabled(Level.DEBUG)) {
+			Log.debug("Got a request: " + msg.RequestId + " -> " + msg.Data.Method + " " + msg.Data.Uri);
+		}
+		ResponseDto response = new ResponseDto();
+		response.RequestId = msg.RequestId;
+		response.Data = createErrorResponse();
+
+		long startNanos = System.nanoTime();
+		_numRequests.incrementAndGet();
+		if (msg.Trace == null) {
+			msg.Trace = new Trace();
+		}
+		PendingRequest pending = new PendingRequest();
+		AdmissionController lane = getLane(msg);
+		pending.Task = lane.newTask(() -> forward(msg, response, pending.Cancellation, startNanos),
+				reason -> reject(msg, response, reason, startNanos));
+		int timeoutMillis = msg.Data.TimeoutMillis > 0 ? msg.Data.TimeoutMillis : _defaultTimeoutMillis;
+		if (timeoutMillis > 0) {
+			// counts from here, the webserver waits since a bit earlier
+			pending.Cancellation.setDeadline(timeoutMillis);
+		}
+		// registered before it runs, so that it cannot remove itself too early
+		_pendingRequests.put(msg.RequestId, pending);
+		msg.Trace.stamp(Stage.SUBMITTED);
+		lane.submit(pending.Task);
+	}
+
+	/**
+	 * Long polls would fill up the short call lane while they are parked
+	 * upstream, see RequestClassifier.
+	 */
+	private AdmissionController getLane(RequestDto msg) {
+		return _classifier != null && _classifier.isLongPoll(msg.Data.Method, msg.Data.Uri) ? _longPollLane
+				: _admission;
+	}
+
+	/**
+	 * The webserver does not want the response anymore: aborts the upstream
+	 * request and sends nothing back. Can be called from any thread, does not
+	 * block.
+	 */
+	public void cancel(int requestId) {
+		PendingRequest pending = _pendingRequests.remove(requestId);
+		if (pending == null) {
+			// already done
+			return;
+		}
+		_numRequestsCancelled.incrementAndGet();
+		// not interrupted, as that could drop a frame that is being sent
+		pending.Task.cancel(false);
+		pending.Cancellation.cancel("the webserver cancelled it");
+		if (Log.isEnabled(Level.DEBUG)) {
+			Log.debug("Cancelled request " + requestId);
+		}
+	}
+
+	private void reject(RequestDto msg, ResponseDto response, String reason, long startNanos) {
+		if (_pendingRequests.remove(msg.RequestId) == null) {
+			// cancelled, nobody waits for the 503
+			return;
+		}
+		response.Data.StatusCode = 503;
+		response.Data.Headers = new HeaderDto[] { createHeader("Retry-After", Integer.toString(_retryAfterSeconds)),
+				createHeader(OVERLOAD_HEADER, reason) };
+		finish(msg, response, null, new RejectedExecutionException("Overloaded: " + reason), startNanos, -1);
+	}
+
+	private void forward(RequestDto msg, ResponseDto response, Cancellation cancellation, long startNanos) {
+		msg.Trace.stamp(Stage.STARTED);
+		Connection connection = _connection;
+		ResponseStreamer streamer = msg.StreamResponse && connection != null
+				? new ResponseStreamer(connection, msg.RequestId, _streamChunkSize, cancellation)
+				: null;
+		Exception ex = null;
+		long upstreamNanos = -1;
+		Cancellation.setCurrent(cancellation);
+		Trace.setCurrent(msg.Trace);
+		try {
+			if (_loopDetector != null) {
+				_loopDetector.check(msg.Data.Uri);
+			}
+			upstreamNanos = System.nanoTime();
+			if (streamer == null) {
+				WebRequester.getResponse(msg, response);
+			} else {
+				WebRequester.streamResponse(msg, response, streamer);
+			}
+			msg.Trace.stamp(Stage.RECEIVED_BODY);
+		} catch (LoopDetector.LoopException e) {
+			ex = e;
+			response.Data.StatusCode = 508;
+			if (_loopReported.compareAndSet(false, true)) {
+				_onError.accept("Requests seem to get redirected back to localhost?! " + e.getMessage());
+			}
+		} catch (RequestCancelledException e) {
+			// only the deadline, nobody waits for a cancelled one
+			ex = e;
+			response.Data.StatusCode = 504;
+		} catch (Exception e) {
+			ex = e;
+		} finally {
+			Cancellation.setCurrent(null);
+			Trace.setCurrent(null);
+			cancellation.clearDeadline();
+		}
+		if (upstreamNanos >= 0) {
+			upstreamNanos = System.nanoTime() - upstreamNanos;
+		}
+		// if it is gone, cancel() took it
+		boolean cancelled = _pendingRequests.remove(msg.RequestId) == null;
+		finish(msg, response, streamer, ex, startNanos, upstreamNanos, cancelled);
+	}
+
+	private void finish(RequestDto msg, ResponseDto response, ResponseStreamer streamer, Exception ex,
+			long startNanos, long upstreamNanos) {
+		finish(msg, response, streamer, ex, startNanos, upstreamNanos, false);
+	}
+
+	private void finish(RequestDto msg, ResponseDto response, ResponseStreamer streamer, Exception ex,
+			long startNanos, long upstreamNanos, boolean cancelled) {
+		_numRequestsCompleted.incrementAndGet();
+		if (ex != null) {
+			_numRequestsFailed.incrementAndGet();
+			if (cancelled) {
+				Log.debug("Request '" + msg.RequestId + "' was cancelled: " + ex);
+			} else {
+				Log.warn("Error with request '" + msg.RequestId + "': " + ex);
+			}
+		}
+
+		if (cancelled) {
+			if (streamer != null) {
+				streamer.abandon();
+			}
+		} else if (streamer == null) {
+			send(response);
+		} else {
+			try {
+				streamer.finish(ex == null ? 0 : response.Data.StatusCode);
+			} catch (RuntimeException e) {
+				Log.warn("Could not finish response '" + msg.RequestId + "': " + e);
+			}
+		}
+		msg.Trace.stamp(Stage.ANSWERED);
+		long totalNanos = System.nanoTime() - startNanos;
+
+		long numBytes = streamer == null ? response.Data.Content.length : streamer.getNumBytes();
+		// the trace is complete from here on
+		CompletedRequest completed = new CompletedRequest(msg.Data, response.Data, numBytes, ex, msg.Trace);
+		while (!_completed.offer(completed)) {
+			// nobody is looking, drop the oldest
+			_completed.poll();
+		}
+		if (_firstRequestDone.compareAndSet(false, true)) {
+			// to see what the prewarming is worth
+			Log.info("First request answered after " + TimeUnit.NANOSECONDS.toMicros(totalNanos) / 1000.0 + " ms"
+					+ (upstreamNanos < 0 ? ""
+							: " (upstream " + TimeUnit.NANOSECONDS.toMicros(upstreamNanos) / 1000.0 + " ms)")
+					+ ": " + msg.Data.Method + " " + msg.Data.Uri);
+		}
+		_metrics.record(msg.Data.Method, msg.Data.Uri, response.Data.StatusCode, totalNanos, upstreamNanos,
+				msg.Data.Content.length, numBytes, ex);
+		if (_classifier != null && upstreamNanos >= 0) {
+			_classifier.record(msg.Data.Method, msg.Data.Uri, upstreamNanos);
+		}
+		if (_journal != null) {
+			_journal.record(startNanos, totalNanos, upstreamNanos, numBytes, ex, msg.Data, response.Data);
+		}
+		if (_traceExporter != null) {
+			_traceExporter.export(msg.Trace, msg.Data.Method, msg.Data.Uri, response.Data.StatusCode,
+					ex == null ? null : ex.toString());
+		}
+	}
+
+	private void send(ResponseDto response) {
+		Connection connection = _connection;
+		if (connection != null) {
+			try {
+				connection.send(response);
+			} catch (RuntimeException e) {
+				// disconnected in the meantime
+				Log.warn("Could not send response '" + response.RequestId + "': " + e);
+			}
+		}
+	}
+
+	private static HeaderDto createHeader(String name, String value) {
+		HeaderDto header = new HeaderDto();
+		header.Name = name;
+		header.Values = new String[] { value };
+		return header;
+	}
+
+	private static ResponseDataDto createErrorResponse() {
+		ResponseDataDto data = new ResponseDataDto();
+		data.StatusCode = 500;
+		data.Content = new byte[0];
+		data.Headers = new HeaderDto[0];
+		return data;
+	}
+
+	/**
+	 * Interrupts the requests. On virtual threads, that also aborts blocking
+	 * socket I/O.
+	 */
+	public void cancelAll() {
+		for (PendingRequest pendingRequest : _pendingRequests.values()) {
+			pendingRequest.Task.cancel(true);
+			pendingRequest.Cancellation.cancel("disconnected");
+		}
+		_pendingRequests.clear();
+	}
+
+	/**
+	 * Cancels the requests and stops the lanes, for when there will be no more
+	 * requests. The numbers stay available.
+	 */
+	public void shutdown() {
+		cancelAll();
+		_admission.shutdown();
+		if (_longPollLane != null) {
+			_longPollLane.shutdown();
+		}
+	}
+
+	/**
+	 * Returns null if there are no more completed requests.
+	 */
+	public CompletedRequest pollCompleted() {
+		return _completed.poll();
+	}
+
+	public long getNumRequests() {
+		return _numRequests.get();
+	}
+
+	public long getNumRequestsCompleted() {
+		return _numRequestsCompleted.get();
+	}
+
+	public long getNumRequestsFailed() {
+		return _numRequestsFailed.get();
+	}
+
+	/**
+	 * Cancelled by the webserver. Those that had started already are also counted
+	 * as completed and failed.
+	 */
+	public long getNumRequestsCancelled() {
+		return _numRequestsCancelled.get();
+	}
+
+	public int getNumPending() {
+		return _pendingRequests.size();
+	}
+
+	public Metrics getMetrics() {
+		return _metrics;
+	}
+
+	/**
+	 * The lane for short calls, or for everything without a long poll lane.
+	 */
+	public AdmissionController getAdmission() {
+		return _admission;
+	}
+
+	/**
+	 * Null with "-lanes.longPoll=false".
+	 */
+	public AdmissionController getLongPollLane() {
+		return _longPollLane;
+	}
+
+	public long getNumRejected() {
+		return _admission.getNumRejected() + (_longPollLane == null ? 0 : _longPollLane.getNumRejected());
+	}
+
+	private static final class PendingRequest {
+		public final Cancellation Cancellation = new Cancellation();
+		public FutureTask<Void> Task;
+	}
+
+	public static final class CompletedRequest {
+		public final RequestDataDto Request;
+		public final ResponseDataDto Response;
+		public final long NumBytes;
+		public final Exception Error;
+		public final Trace Trace;
+
+		public CompletedRequest(RequestDataDto request, ResponseDataDto response, long numBytes, Exception error,
+				Trace trace) {
+			Request = request;
+			Response = response;
+			NumBytes = numBytes;
+			Error = error;
+			Trace = trace;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package com.iosoft.ubiconfor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.iosoft.ubiconfor.cache.CachingClient;
+import com.iosoft.ubiconfor.log.Log;
+
+/**
+ * Status for "--headless": lines on stdout, and optionally the current state
+ * in a file ("-statusFile=..."), rewritten every few seconds.
+ */
+public final class HeadlessStatus implements StatusListener {
+	private final Path _statusFile;
+	private volatile ForwardingCore _core;
+	private volatile String _state = "Starting";
+	private volatile String _text = "";
+
+	public HeadlessStatus(String statusFile) {
+		_statusFile = statusFile == null ? null : new File(statusFile).toPath();
+		if (_statusFile != null) {
+			ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "Status file");
+				thread.setDaemon(true);
+				return thread;
+			});
+			int interval = Config.getInt("statusIntervalSeconds", 5);
+			timer.scheduleWithFixedDelay(this::writeStatusFile, interval, interval, TimeUnit.SECONDS);
+		}
+	}
+
+	public void setCore(ForwardingCore core) {
+		_core = core;
+	}
+
+	@Override
+	public void setStatus(String text) {
+		update("Starting", text);
+	}
+
+	@Override
+	public void setError(String text, boolean fatal) {
+		update(fatal ? "Failed" : "Error", text);
+		if (fatal) {
+			// a supervisor can restart us
+			System.exit(1);
+		}
+	}
+
+	@Override
+	public void onPortInUse(Exception error) {
+		setError("TCP port 443 is already in use by another application: " + error, true);
+	}
+
+	@Override
+	public void onRunning() {
+		update("Running", "Ready");
+	}
+
+	private void update(String state, String text) {
+		_state = state;
+		_text = text.replace('\n', ' ');
+		System.out.println(new SimpleDateFormat("HH:mm:ss.SSS").format(new Date()) + " [" + state + "] " + _text);
+		writeStatusFile();
+	}
+
+	private synchronized void writeStatusFile() {
+		if (_statusFile == null) {
+			return;
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append("state=").append(_state).append('\n');
+		sb.append("text=").append(_text).append('\n');
+		ForwardingCore core = _core;
+		if (core != null) {
+			sb.append("requests=").append(core.getNumRequests()).append('\n');
+			sb.append("completed=").append(core.getNumRequestsCompleted()).append('\n');
+			sb.append("failed=").append(core.getNumRequestsFailed()).append('\n');
+			sb.append("cancelled=").append(core.getNumRequestsCancelled()).append('\n');
+			sb.append("pending=").append(core.getNumPending()).append('\n');
+			appendLane(sb, "", core.getAdmission());
+			if (core.getLongPollLane() != null) {
+				appendLane(sb, "longPoll.", core.getLongPollLane());
+			}
+		}
+		CachingClient cache = WebRequester.getCache();
+		if (cache != null) {
+			sb.append("cacheHits=").append(cache.getNumHits()).append('\n');
+			sb.append("cacheRevalidated=").append(cache.getNumRevalidated()).append('\n');
+			sb.append("cacheMisses=").append(cache.getNumMisses()).append('\n');
+			sb.append("cacheBytes=").append(cache.getBytes()).append('\n');
+		}
+		String upstreamStatus = WebRequester.getClient().getStatusText();
+		if (upstreamStatus != null) {
+			sb.append("upstream=").append(upstreamStatus).append('\n');
+		}
+
+		try {
+			Path temp = _statusFile.resolveSibling(_statusFile.getFileName() + ".tmp");
+			Files.write(temp, sb.toString().getBytes(StandardCharsets.UTF_8));
+			try {
+				Files.move(temp, _statusFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, _statusFile, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			Log.warn("Could not write status file: " + e);
+		}
+	}
+
+	private static void appendLane(StringBuilder sb, String prefix, AdmissionController lane) {
+		sb.append(prefix).append("running=").append(lane.getNumRunning()).append('\n');
+		sb.append(prefix).append("queued=").append(lane.getNumQueued()).append('\n');
+		sb.append(prefix).append("rejected=").append(lane.getNumRejected()).append('\n');
+	}
+}
@@ -0,0 +1,64 @@
+package com.iosoft.ubiconfor;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.iosoft.ubiconfor.upstream.HostResolver;
+
+/**
+ * Detects requests that would go right back to us, which happens if the hosts
+ * file redirect was active before we cached the real address.
+ */
+public final class LoopDetector {
+	public static final class LoopException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public LoopException(String message) {
+			super(message);
+		}
+	}
+
+	private final Map<InetAddress, Boolean> _isLocal = new ConcurrentHashMap<>();
+	private final HostResolver _resolver;
+
+	/**
+	 * resolver returns the addresses requests actually go to.
+	 */
+	public LoopDetector(HostResolver resolver) {
+		_resolver = resolver;
+	}
+
+	public void check(String uri) throws IOException {
+		String host;
+		try {
+			host = new URI(uri).getHost();
+		} catch (Exception e) {
+			throw new IOException("Invalid URI: " + uri, e);
+		}
+		if (host == null) {
+			throw new IOException("Invalid URI: " + uri);
+		}
+		// pinned or cached by the JVM forever (networkaddress.cache.ttl)
+		for (InetAddress address : _resolver.resolve(host)) {
+			if (_isLocal.computeIfAbsent(address, LoopDetector::isLocal).booleanValue()) {
+				throw new LoopException(host + " resolves to this machine (" + address.getHostAddress() + ")");
+			}
+		}
+	}
+
+	private static Boolean isLocal(InetAddress address) {
+		if (address.isLoopbackAddress() || address.isAnyLocalAddress()) {
+			return Boolean.TRUE;
+		}
+		try {
+			return Boolean.valueOf(NetworkInterface.getByInetAddress(address) != null);
+		} catch (SocketException e) {
+			return Boolean.FALSE;
+		}
+	}
+}
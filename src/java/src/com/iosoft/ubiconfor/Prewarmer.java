@@ -0,0 +1,247 @@
+package com.iosoft.ubiconfor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import com.iosoft.helpers.Misc;
+import com.iosoft.ubiconfor.dtos.HeaderCodec;
+import com.iosoft.ubiconfor.dtos.HeaderDto;
+import com.iosoft.ubiconfor.dtos.RequestDto;
+import com.iosoft.ubiconfor.dtos.ResponseDto;
+import com.iosoft.ubiconfor.log.Log;
+import com.iosoft.ubiconfor.trace.Trace;
+import com.iosoft.ubiconfor.upstream.PooledClient;
+import com.iosoft.ubiconfor.wire.BufferPool;
+import com.iosoft.ubiconfor.wire.ByteBufferInput;
+import com.iosoft.ubiconfor.wire.ByteBufferOutput;
+
+/**
+ * The prewarm steps of the startup, so that the first client requests are not
+ * slower than the rest: opens keep-alive connections to upstream, and runs the
+ * DTO codec and the HTTP client against a local server often enough for the
+ * JIT to compile them. Both run at the same time.
+ * <p>
+ * "-prewarm.connections=4" (at most upstream.maxIdlePerHost, kept until first
+ * used or closed by upstream, not just for upstream.idleTimeoutSeconds),
+ * "-prewarm.iterations=10000", stopped after "-prewarm.maxMillis=3000" or when
+ * the rest of the startup is done.
+ */
+final class Prewarmer {
+	private Prewarmer() {
+	}
+
+	/**
+	 * Opens the keep-alive connections, only fails if nothing could be connected
+	 * at all. Needs the DNS lookup, so it has to wait for the hosts file.
+	 */
+	static void prewarmConnections(String host) throws Exception {
+		int numConnections = Config.getInt("prewarm.connections", 4);
+		if (numConnections > 0) {
+			long start = System.nanoTime();
+			int numOpened = WebRequester.getClient().prewarm("https://" + host + "/", numConnections);
+			Log.info("Prewarmed " + numOpened + " connections in " + millisSince(start) + " ms");
+		}
+	}
+
+	/**
+	 * Runs the request path for the JIT, until done says the rest of the startup
+	 * is. Never touches upstream, so it can start right away.
+	 */
+	static void warmRequestPath(String host, BooleanSupplier done) {
+		int iterations = Config.getInt("prewarm.iterations", 10000);
+		if (iterations > 0) {
+			long start = System.nanoTime();
+			try {
+				int numDone = exerciseRequestPath(host, iterations,
+						TimeUnit.MILLISECONDS.toNanos(Config.getInt("prewarm.maxMillis", 3000)), done);
+				Log.info("Ran the request path " + numDone + " times in " + millisSince(start) + " ms");
+			} catch (IOException e) {
+				// only slower
+				Log.warn("Could not run the request path: " + e);
+			}
+		}
+	}
+
+	private static long millisSince(long startNanos) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * What a request goes through, with a local server instead of upstream and no
+	 * TLS: decoding the request from the webserver, the HTTP client, encoding the
+	 * response. The responses alternate between Content-Length and chunked.
+	 */
+	private static int exerciseRequestPath(String host, int iterations, long maxNanos, BooleanSupplier done)
+			throws IOException {
+		long start = System.nanoTime();
+		BufferPool pool = new BufferPool(2, 80 * 1024, false);
+		ByteBufferOutput out = new ByteBufferOutput(pool);
+		ByteBufferInput in = new ByteBufferInput();
+		HeaderCodec requestEncoder = new HeaderCodec(), requestDecoder = new HeaderCodec();
+		HeaderCodec responseEncoder = new HeaderCodec(), responseDecoder = new HeaderCodec();
+		RequestDto request = createRequest(host);
+
+		try (LocalServer server = new LocalServer()) {
+			PooledClient client = new PooledClient(1, 60, 5000, 5000,
+					new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+			try {
+				int i = 0;
+				while (i < iterations && System.nanoTime() - start < maxNanos && !done.getAsBoolean()) {
+					request.RequestId = i;
+					out.begin();
+					request.write(out, requestEncoder);
+					ByteBuffer frame = out.finish();
+					RequestDto received = new RequestDto();
+					received.read(in.wrap(frame), requestDecoder);
+					pool.release(frame);
+
+					ResponseDto response = new ResponseDto();
+					response.RequestId = received.RequestId;
+					// the stamps on the way too
+					Trace.setCurrent(new Trace());
+					client.execute(received.Data, response.Data);
+
+					out.begin();
+					response.write(out, responseEncoder);
+					frame = out.finish();
+					new ResponseDto().read(in.wrap(frame), responseDecoder);
+					pool.release(frame);
+					i++;
+				}
+				return i;
+			} finally {
+				Trace.setCurrent(null);
+				client.shutdown();
+			}
+		}
+	}
+
+	private static RequestDto createRequest(String host) {
+		RequestDto request = new RequestDto();
+		// plain HTTP, the client is pointed at the local server
+		request.Data.Uri = "http://" + host + "/v1/profiles/me/prewarm?limit=50";
+		request.Data.Method = "POST";
+		request.Data.Headers = new HeaderDto[] { createHeader("Accept", "application/json"),
+				createHeader("Accept-Language", "en-US"), createHeader("Authorization", "Ubi_v1 t=prewarm"),
+				createHeader("Content-Type", "application/json; charset=UTF-8"),
+				createHeader("Ubi-AppId", "f68a4bb5-608a-4ff2-8123-be8ef797e0a6") };
+		request.Data.Content = "{\"prewarm\":true}".getBytes(StandardCharsets.UTF_8);
+		return request;
+	}
+
+	private static HeaderDto createHeader(String name, String value) {
+		HeaderDto header = new HeaderDto();
+		header.Name = name;
+		header.Values = new String[] { value };
+		return header;
+	}
+
+	/**
+	 * Answers every request on a keep-alive connection with a small JSON body.
+	 */
+	private static final class LocalServer implements Closeable {
+		private static final byte[] BODY = new byte[1024];
+
+		static {
+			Arrays.fill(BODY, (byte) ' ');
+			BODY[0] = '{';
+			BODY[BODY.length - 1] = '}';
+		}
+
+		private final ServerSocket _serverSocket = new ServerSocket();
+
+		LocalServer() throws IOException {
+			_serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			Thread thread = new Thread(this::acceptLoop, "Prewarm server");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		int getPort() {
+			return _serverSocket.getLocalPort();
+		}
+
+		private void acceptLoop() {
+			while (!_serverSocket.isClosed()) {
+				try (Socket socket = _serverSocket.accept()) {
+					socket.setTcpNoDelay(true);
+					InputStream in = new BufferedInputStream(socket.getInputStream());
+					OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+					boolean chunked = false;
+					while (skipRequest(in)) {
+						writeResponse(out, chunked);
+						chunked = !chunked;
+					}
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		}
+
+		/**
+		 * Returns false at the end of the stream.
+		 */
+		private static boolean skipRequest(InputStream in) throws IOException {
+			StringBuilder line = new StringBuilder();
+			int contentLength = 0, numLines = 0, b;
+			while ((b = in.read()) >= 0) {
+				if (b == '\n') {
+					if (line.length() == 0) {
+						break;
+					}
+					String header = line.toString().toLowerCase(Locale.ROOT);
+					if (header.startsWith("content-length:")) {
+						contentLength = Integer.parseInt(header.substring(15).trim());
+					}
+					numLines++;
+					line.setLength(0);
+				} else if (b != '\r') {
+					line.append((char) b);
+				}
+			}
+			if (b < 0) {
+				return false;
+			}
+			for (int i = 0; i < contentLength; i++) {
+				if (in.read() < 0) {
+					return false;
+				}
+			}
+			return numLines > 0;
+		}
+
+		private static void writeResponse(OutputStream out, boolean chunked) throws IOException {
+			String head = "HTTP/1.1 200 OK\r\nContent-Type: application/json; charset=utf-8\r\n"
+					+ "Cache-Control: no-cache, no-store\r\n"
+					+ (chunked ? "Transfer-Encoding: chunked\r\n" : "Content-Length: " + BODY.length + "\r\n") + "\r\n";
+			out.write(head.getBytes(StandardCharsets.ISO_8859_1));
+			if (chunked) {
+				out.write((Integer.toHexString(BODY.length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+				out.write(BODY);
+				out.write("\r\n0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			} else {
+				out.write(BODY);
+			}
+			out.flush();
+		}
+
+		@Override
+		public void close() {
+			Misc.forceClose(_serverSocket);
+		}
+	}
+}
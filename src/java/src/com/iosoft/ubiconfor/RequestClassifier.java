@@ -0,0 +1,84 @@
+package com.iosoft.ubiconfor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import com.iosoft.ubiconfor.metrics.UriTemplates;
+
+/**
+ * Decides which requests are long polls: the URI matches a pattern, or
+ * requests for the same method and URI template were held upstream for a long
+ * time lately. Everything else is a short call.
+ */
+final class RequestClassifier {
+	private static final int MAX_TEMPLATES = 1000;
+	// weight of a new sample in the moving average
+	private static final double ALPHA = 0.25;
+
+	private final Pattern _longPollPattern;
+	private final long _longPollNanos;
+	private final Map<String, HoldTime> _holdTimes = new ConcurrentHashMap<>();
+
+	/**
+	 * An empty pattern matches nothing. longPollMillis 0 turns learning off.
+	 */
+	RequestClassifier(String longPollPattern, int longPollMillis) {
+		_longPollPattern = longPollPattern.isEmpty() ? null : Pattern.compile(longPollPattern);
+		_longPollNanos = TimeUnit.MILLISECONDS.toNanos(longPollMillis);
+	}
+
+	boolean isLongPoll(String method, String uri) {
+		if (_longPollPattern != null && _longPollPattern.matcher(uri).find()) {
+			return true;
+		}
+		if (_longPollNanos <= 0) {
+			return false;
+		}
+		HoldTime holdTime = _holdTimes.get(key(method, uri));
+		return holdTime != null && holdTime.LongPoll;
+	}
+
+	/**
+	 * How long upstream took to answer, call for every request that got there.
+	 */
+	void record(String method, String uri, long upstreamNanos) {
+		if (_longPollNanos <= 0) {
+			return;
+		}
+		String key = key(method, uri);
+		HoldTime holdTime = _holdTimes.get(key);
+		if (holdTime == null) {
+			if (_holdTimes.size() >= MAX_TEMPLATES) {
+				// only short calls are forgotten
+				_holdTimes.values().removeIf(x -> !x.LongPoll);
+				if (_holdTimes.size() >= MAX_TEMPLATES) {
+					return;
+				}
+			}
+			holdTime = _holdTimes.computeIfAbsent(key, x -> new HoldTime());
+		}
+		holdTime.record(upstreamNanos, _longPollNanos);
+	}
+
+	private static String key(String method, String uri) {
+		return method + " " + UriTemplates.normalize(uri);
+	}
+
+	private static final class HoldTime {
+		// both guarded by this, LongPoll is also read without
+		private double _averageNanos = -1;
+		public volatile boolean LongPoll;
+
+		synchronized void record(long nanos, long longPollNanos) {
+			_averageNanos = _averageNanos < 0 ? nanos : _averageNanos + ALPHA * (nanos - _averageNanos);
+			// switches back only well below the limit, so that it does not flap
+			if (_averageNanos >= longPollNanos) {
+				LongPoll = true;
+			} else if (_averageNanos < longPollNanos / 2) {
+				LongPoll = false;
+			}
+		}
+	}
+}
@@ -1,74 +1,236 @@
 package com.iosoft.ubiconfor;
 
+import java.awt.BorderLayout;
 import java.awt.Color;
-import java.util.ArrayList;
-import java.util.List;
+import java.awt.Font;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.BorderFactory;
+import javax.swing.BoundedRangeModel;
 import javax.swing.JComponent;
-import javax.swing.JEditorPane;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
-import javax.swing.ScrollPaneConstants;
+import javax.swing.JSplitPane;
+import javax.swing.JTable;
+import javax.swing.JTextArea;
+import javax.swing.ListSelectionModel;
+import javax.swing.table.AbstractTableModel;
 
-import com.iosoft.helpers.HtmlEscape;
-import com.iosoft.helpers.ui.awt.AntialiasedEditorPane;
-import com.iosoft.helpers.ui.awt.MiscAWT;
-import com.iosoft.ubiconfor.dtos.RequestDataDto;
-import com.iosoft.ubiconfor.dtos.ResponseDataDto;
+import com.iosoft.ubiconfor.ForwardingCore.CompletedRequest;
+import com.iosoft.ubiconfor.dtos.HeaderDto;
+import com.iosoft.ubiconfor.trace.Trace;
 
+/**
+ * The last requests in a table. Only the newest "-ui.maxRequests" are kept,
+ * without their bodies, and the table only renders the visible rows, so the
+ * cost per request stays the same however long we run. Only used on the EDT.
+ */
 public class RequestsView {
+	private static final String[] COLUMNS = { "Time", "Method", "URI", "Status", "Bytes", "Millis" };
 
 	public final JComponent Panel;
-	private final JEditorPane _editorPane;
+	private final JLabel _label = new JLabel(" ");
+	private final JTable _table;
 	private final JScrollPane _scrollPane;
+	private final JTextArea _details = new JTextArea();
+	private final Model _model = new Model();
+	private final SimpleDateFormat _timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
 
-	private final List<String> _entries = new ArrayList<>();
+	// ring buffer, the oldest entry is at _first
+	private final Entry[] _entries;
+	private int _first, _size;
+	private long _numTotal;
+	// since the last update()
+	private int _numAdded;
+	// the number of rows the table knows about
+	private int _numShown;
 
 	public RequestsView() {
-		_editorPane = new AntialiasedEditorPane("text/html", "");
-		_editorPane.putClientProperty(JEditorPane.HONOR_DISPLAY_PROPERTIES, Boolean.TRUE);
-		_editorPane.setEditable(false);
-		_editorPane.setOpaque(false);
-		_editorPane.setForeground(Color.BLACK);
-		_editorPane.setBackground(Color.WHITE);
-		_scrollPane = new JScrollPane(_editorPane);
-		_scrollPane.setOpaque(false);
-		_scrollPane.getViewport().setOpaque(false);
-		_scrollPane.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
-		_scrollPane.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS);
-		_scrollPane.setBorder(BorderFactory.createLineBorder(Color.BLACK, 2));
-		Panel = _scrollPane;
+		_entries = new Entry[Math.max(1, Config.getInt("ui.maxRequests", 2000))];
+
+		_table = new JTable(_model);
+		_table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		_table.setFillsViewportHeight(true);
+		_table.setAutoResizeMode(JTable.AUTO_RESIZE_LAST_COLUMN);
+		int[] widths = { 90, 60, 400, 60, 70, 70 };
+		for (int i = 0; i < widths.length; i++) {
+			_table.getColumnModel().getColumn(i).setPreferredWidth(widths[i]);
+		}
+		_table.getSelectionModel().addListSelectionListener(evt -> {
+			if (!evt.getValueIsAdjusting()) {
+				showDetails();
+			}
+		});
+		_scrollPane = new JScrollPane(_table);
+
+		_details.setEditable(false);
+		_details.setLineWrap(true);
+		_details.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+		JSplitPane split = new JSplitPane(JSplitPane.VERTICAL_SPLIT, _scrollPane, new JScrollPane(_details));
+		split.setResizeWeight(0.7);
+
+		JPanel panel = new JPanel(new BorderLayout());
+		panel.setBorder(BorderFactory.createLineBorder(Color.BLACK, 2));
+		panel.add(_label, BorderLayout.NORTH);
+		panel.add(split, BorderLayout.CENTER);
+		Panel = panel;
 	}
 
-	public void add(RequestDataDto request, ResponseDataDto response, Exception e) {
-		String entry = HtmlEscape.sanitizeForLabel(request.Method + " " + request.Uri) + "<br>\n-> "
-				+ HtmlEscape.sanitizeForLabel(
-						e == null ? (response.StatusCode + " (" + response.Content.length + " bytes)") : e.toString())
-				+ "<br>\n<br>\n";
-		_entries.add(entry);
+	/**
+	 * Only stored, shown with the next update().
+	 */
+	public void add(CompletedRequest completed) {
+		Entry entry = new Entry(System.currentTimeMillis(), completed);
+		if (_size < _entries.length) {
+			_entries[(_first + _size++) % _entries.length] = entry;
+		} else {
+			// overwrite the oldest
+			_entries[_first] = entry;
+			_first = (_first + 1) % _entries.length;
+		}
+		_numTotal++;
+		_numAdded++;
+	}
+
+	/**
+	 * Shows everything added since the last call at once, called at a fixed rate.
+	 */
+	public void update() {
+		if (_numAdded == 0) {
+			return;
+		}
+		BoundedRangeModel scroll = _scrollPane.getVerticalScrollBar().getModel();
+		boolean atBottom = scroll.getValue() + scroll.getExtent() >= scroll.getMaximum();
+
+		// rows the table knows that were overwritten, the selection moves with the rest
+		int numDropped = Math.min(_numShown, Math.max(0, _numShown + _numAdded - _entries.length));
+		if (numDropped > 0) {
+			_model.fireTableRowsDeleted(0, numDropped - 1);
+		}
+		int firstNew = _numShown - numDropped;
+		if (_size > firstNew) {
+			_model.fireTableRowsInserted(firstNew, _size - 1);
+		}
+		_numShown = _size;
+		_numAdded = 0;
+
+		_label.setText(_numTotal + " requests" + (_numTotal > _size ? ", the last " + _size + " are shown" : ""));
+		if (atBottom) {
+			_table.scrollRectToVisible(_table.getCellRect(_size - 1, 0, true));
+		}
+	}
 
-		rebuild();
+	private Entry get(int row) {
+		return _entries[(_first + row) % _entries.length];
 	}
 
-	private void rebuild() {
+	// built on selection only
+	private void showDetails() {
+		int row = _table.getSelectedRow();
+		if (row < 0 || row >= _numShown) {
+			_details.setText("");
+			return;
+		}
+		Entry entry = get(row);
 		StringBuilder sb = new StringBuilder();
-		sb.append("<html><body>");
-		sb.append(_entries.size());
-		sb.append(" entries<br><br>\n\n");
-		for (String entry : _entries) {
-			sb.append(entry);
-		}
-		sb.append("</body></html>");
-
-		_editorPane.setText(sb.toString());
-		scrollDown();
-		_scrollPane.revalidate();
-		_scrollPane.repaint();
+		sb.append(entry.Method).append(' ').append(entry.Uri).append('\n');
+		sb.append("-> ").append(entry.Status).append(" (").append(entry.NumBytes).append(" bytes) at ")
+				.append(_timeFormat.format(new Date(entry.TimeMillis))).append('\n');
+		if (entry.Error != null) {
+			sb.append(entry.Error).append('\n');
+		}
+		if (entry.Trace != null) {
+			sb.append("Took ").append(entry.Millis).append(" ms: ").append(entry.Trace.describe()).append('\n');
+		}
+		appendHeaders(sb, "Request headers", entry.RequestHeaders);
+		appendHeaders(sb, "Response headers", entry.ResponseHeaders);
+		_details.setText(sb.toString());
+		_details.setCaretPosition(0);
 	}
 
-	private void scrollDown() {
-		// TODO: Replace with UpdateCaret.Always?
-		MiscAWT.scrollDownContent(_editorPane);
+	private static void appendHeaders(StringBuilder sb, String title, HeaderDto[] headers) {
+		sb.append('\n').append(title).append(":\n");
+		if (headers == null) {
+			return;
+		}
+		for (HeaderDto header : headers) {
+			for (String value : header.Values) {
+				sb.append("  ").append(header.Name).append(": ").append(value).append('\n');
+			}
+		}
+	}
+
+	private final class Model extends AbstractTableModel {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public int getRowCount() {
+			return _numShown;
+		}
+
+		@Override
+		public int getColumnCount() {
+			return COLUMNS.length;
+		}
+
+		@Override
+		public String getColumnName(int column) {
+			return COLUMNS[column];
+		}
+
+		@Override
+		public Class<?> getColumnClass(int column) {
+			return column == 3 ? Integer.class : column == 4 ? Long.class : column == 5 ? Double.class : String.class;
+		}
+
+		@Override
+		public Object getValueAt(int row, int column) {
+			Entry entry = get(row);
+			switch (column) {
+			case 0:
+				return _timeFormat.format(new Date(entry.TimeMillis));
+			case 1:
+				return entry.Method;
+			case 2:
+				return entry.Error == null ? entry.Uri : entry.Uri + " (" + entry.Error + ")";
+			case 3:
+				return Integer.valueOf(entry.Status);
+			case 4:
+				return Long.valueOf(entry.NumBytes);
+			default:
+				return Double.valueOf(entry.Millis);
+			}
+		}
+	}
+
+	/**
+	 * What we keep of a request: no bodies, the error only as text. The trace is
+	 * only described when selected.
+	 */
+	private static final class Entry {
+		public final long TimeMillis;
+		public final String Method, Uri, Error;
+		public final int Status;
+		public final long NumBytes;
+		public final double Millis;
+		public final HeaderDto[] RequestHeaders, ResponseHeaders;
+		public final Trace Trace;
+
+		public Entry(long timeMillis, CompletedRequest completed) {
+			TimeMillis = timeMillis;
+			Method = completed.Request.Method;
+			Uri = completed.Request.Uri;
+			Error = completed.Error == null ? null : completed.Error.toString();
+			Status = completed.Response.StatusCode;
+			NumBytes = completed.NumBytes;
+			RequestHeaders = completed.Request.Headers;
+			ResponseHeaders = completed.Response.Headers;
+			Trace = completed.Trace;
+			Millis = Trace == null ? 0
+					: TimeUnit.NANOSECONDS.toMicros(Trace.getEndNanos() - Trace.getStartNanos()) / 1000.0;
+		}
 	}
 }
@@ -0,0 +1,105 @@
+package com.iosoft.ubiconfor;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.iosoft.ubiconfor.dtos.BodyChunkDto;
+import com.iosoft.ubiconfor.dtos.BodyEndDto;
+import com.iosoft.ubiconfor.dtos.HeaderDto;
+import com.iosoft.ubiconfor.dtos.ResponseDataDto;
+import com.iosoft.ubiconfor.dtos.ResponseHeadDto;
+import com.iosoft.ubiconfor.upstream.BodySink;
+import com.iosoft.ubiconfor.upstream.Cancellation;
+
+/**
+ * Sends a response to the webserver as head, chunks and end while it is still
+ * being received from upstream.
+ */
+public final class ResponseStreamer implements BodySink {
+	private final Connection _connection;
+	private final int _requestId;
+	private final int _maxChunkSize;
+	private final Cancellation _cancellation;
+	private volatile boolean _headSent;
+	private volatile long _numBytes;
+
+	/**
+	 * The deadline of the cancellation only applies until the head is sent, the
+	 * body may take as long as it takes.
+	 */
+	public ResponseStreamer(Connection connection, int requestId, int maxChunkSize, Cancellation cancellation) {
+		_connection = connection;
+		_requestId = requestId;
+		_maxChunkSize = maxChunkSize;
+		_cancellation = cancellation;
+	}
+
+	@Override
+	public void onHead(ResponseDataDto response) {
+		if (_cancellation != null) {
+			_cancellation.clearDeadline();
+		}
+		ResponseHeadDto head = new ResponseHeadDto();
+		head.RequestId = _requestId;
+		head.Data.StatusCode = response.StatusCode;
+		head.Data.Headers = response.Headers;
+		head.Data.Content = new byte[0];
+		_connection.sendHead(head);
+		_headSent = true;
+	}
+
+	@Override
+	public void onBody(byte[] buffer, int offset, int length) throws IOException {
+		while (length > 0) {
+			int size = Math.min(length, _maxChunkSize);
+			BodyChunkDto chunk = new BodyChunkDto();
+			chunk.RequestId = _requestId;
+			chunk.Data = Arrays.copyOfRange(buffer, offset, offset + size);
+			_connection.sendChunk(chunk);
+			_numBytes += size;
+			offset += size;
+			length -= size;
+		}
+	}
+
+	/**
+	 * Completes the response, failedStatus is 0 if it did not fail. If it failed
+	 * before the head was sent, a head with failedStatus is sent instead, just
+	 * like a failed buffered request.
+	 */
+	public void finish(int failedStatus) {
+		boolean failed = failedStatus != 0;
+		if (failed && !_headSent) {
+			ResponseDataDto error = new ResponseDataDto();
+			error.StatusCode = failedStatus;
+			error.Headers = new HeaderDto[0];
+			onHead(error);
+			failed = false;
+		}
+		BodyEndDto end = new BodyEndDto();
+		end.RequestId = _requestId;
+		end.Failed = failed;
+		_connection.sendEnd(end);
+	}
+
+	/**
+	 * The webserver cancelled the request. Only ends the response if the head was
+	 * sent already, so the connection can forget it.
+	 */
+	public void abandon() {
+		if (_headSent) {
+			BodyEndDto end = new BodyEndDto();
+			end.RequestId = _requestId;
+			end.Failed = true;
+			try {
+				_connection.sendEnd(end);
+			} catch (RuntimeException e) {
+				// disconnected in the meantime
+			}
+		}
+	}
+
+	public long getNumBytes() {
+		return _numBytes;
+	}
+}
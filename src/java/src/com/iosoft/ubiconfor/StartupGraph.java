@@ -0,0 +1,202 @@
+package com.iosoft.ubiconfor;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.iosoft.ubiconfor.log.Log;
+
+/**
+ * The startup as steps that run as soon as the steps they come after are done,
+ * each on its own thread, so that independent ones overlap. Events from the
+ * webserver are steps without work, completed from outside. Remembers when
+ * each step started and ended for the timeline.
+ * <p>
+ * A failed step does not stop the others, but the ones after it never start,
+ * unless it is optional.
+ */
+final class StartupGraph {
+	private static final int BAR_WIDTH = 40;
+
+	interface Step {
+		void run() throws Exception;
+	}
+
+	// System.nanoTime() at JVM start
+	private final long _originNanos;
+	// in the order they were added, guarded by this
+	private final Map<String, Node> _nodes = new LinkedHashMap<>();
+
+	StartupGraph() {
+		long sinceStartMillis = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+		_originNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(sinceStartMillis);
+	}
+
+	/**
+	 * Runs the step on a new thread once the steps in after are done. The future
+	 * fails only with the error of this step.
+	 */
+	CompletableFuture<Void> add(String name, Step step, String... after) {
+		return add(name, step, false, after);
+	}
+
+	/**
+	 * Like add(), but if the step fails that is only logged, and the steps after
+	 * it run anyway. For the ones that only make things faster.
+	 */
+	CompletableFuture<Void> addOptional(String name, Step step, String... after) {
+		return add(name, step, true, after);
+	}
+
+	private CompletableFuture<Void> add(String name, Step step, boolean optional, String... after) {
+		Node node = addNode(name, after);
+		node.Ready.thenRun(() -> {
+			Thread thread = new Thread(() -> {
+				node.start();
+				try {
+					step.run();
+					node.finish(null);
+				} catch (Exception e) {
+					if (optional) {
+						Log.warn("Startup step " + name + " failed, going on without it: " + e);
+						node.Failed = true;
+						node.finish(null);
+					} else {
+						node.finish(e);
+					}
+				}
+			}, "Startup " + name);
+			thread.setDaemon(true);
+			thread.start();
+		});
+		return node.Done;
+	}
+
+	/**
+	 * A step that happens outside, see complete(). Its time counts from when the
+	 * steps in after were done.
+	 */
+	CompletableFuture<Void> addEvent(String name, String... after) {
+		Node node = addNode(name, after);
+		node.Ready.thenRun(node::start);
+		return node.Done;
+	}
+
+	/**
+	 * Completes an event, does nothing the second time.
+	 */
+	void complete(String name) {
+		getNode(name).finish(null);
+	}
+
+	private synchronized Node addNode(String name, String... after) {
+		if (_nodes.containsKey(name)) {
+			throw new IllegalArgumentException("Startup step " + name + " exists already");
+		}
+		CompletableFuture<?>[] ready = new CompletableFuture<?>[after.length];
+		for (int i = 0; i < after.length; i++) {
+			ready[i] = getNode(after[i]).Done;
+		}
+		Node node = new Node(CompletableFuture.allOf(ready));
+		_nodes.put(name, node);
+		return node;
+	}
+
+	private synchronized Node getNode(String name) {
+		Node node = _nodes.get(name);
+		if (node == null) {
+			throw new IllegalArgumentException("Unknown startup step " + name);
+		}
+		return node;
+	}
+
+	/**
+	 * How long each finished step took, in the order they were added.
+	 */
+	synchronized Map<String, Long> getDurationNanos() {
+		Map<String, Long> durations = new LinkedHashMap<>();
+		_nodes.forEach((name, node) -> {
+			if (node.EndNanos != 0) {
+				durations.put(name, node.EndNanos - node.StartNanos);
+			}
+		});
+		return durations;
+	}
+
+	/**
+	 * One line per step: from when to when it ran in ms after JVM start, how long
+	 * it took and a bar, or why it did not run.
+	 */
+	synchronized String getTimeline() {
+		long lastEnd = 1;
+		int nameWidth = 0;
+		for (Map.Entry<String, Node> entry : _nodes.entrySet()) {
+			lastEnd = Math.max(lastEnd, entry.getValue().EndNanos - _originNanos);
+			nameWidth = Math.max(nameWidth, entry.getKey().length());
+		}
+		StringBuilder sb = new StringBuilder("Startup timeline, ms after JVM start:");
+		for (Map.Entry<String, Node> entry : _nodes.entrySet()) {
+			Node node = entry.getValue();
+			sb.append(String.format("%n  %-" + nameWidth + "s ", entry.getKey()));
+			if (node.StartNanos == 0) {
+				sb.append(node.Ready.isCompletedExceptionally() ? "skipped, an earlier step failed" : "waiting");
+			} else if (node.EndNanos == 0) {
+				sb.append(String.format("%6d ..        running", millis(node.StartNanos - _originNanos)));
+			} else {
+				long start = node.StartNanos - _originNanos, end = node.EndNanos - _originNanos;
+				sb.append(String.format("%6d .. %6d %6d ms |", millis(start), millis(end), millis(end - start)));
+				int from = (int) (BAR_WIDTH * start / lastEnd), to = (int) (BAR_WIDTH * end / lastEnd);
+				for (int i = 0; i < BAR_WIDTH; i++) {
+					sb.append(i < from ? ' ' : i <= Math.max(from, to - 1) ? '#' : ' ');
+				}
+				sb.append(node.Failed || node.Done.isCompletedExceptionally() ? "| failed" : "|");
+			}
+		}
+		return sb.toString();
+	}
+
+	private static long millis(long nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+	private static final class Node {
+		public final CompletableFuture<Void> Ready;
+		public final CompletableFuture<Void> Done = new CompletableFuture<>();
+		// both 0 until then, written under the lock of the node
+		public volatile long StartNanos, EndNanos;
+		// an optional step that failed
+		public volatile boolean Failed;
+
+		Node(CompletableFuture<Void> ready) {
+			Ready = ready;
+		}
+
+		void start() {
+			synchronized (this) {
+				if (StartNanos == 0) {
+					StartNanos = System.nanoTime();
+				}
+			}
+		}
+
+		void finish(Exception error) {
+			synchronized (this) {
+				if (EndNanos != 0) {
+					return;
+				}
+				EndNanos = System.nanoTime();
+				// an event that came before its steps were done
+				if (StartNanos == 0) {
+					StartNanos = EndNanos;
+				}
+			}
+			if (error == null) {
+				Done.complete(null);
+			} else {
+				Done.completeExceptionally(error);
+			}
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package com.iosoft.ubiconfor;
+
+/**
+ * Shows what the forwarder is doing. Always called on the logic thread.
+ */
+public interface StatusListener {
+	void setStatus(String text);
+
+	/**
+	 * If fatal, the forwarder cannot continue and has to be restarted.
+	 */
+	void setError(String text, boolean fatal);
+
+	/**
+	 * Another application is using port 443, nothing else was started (fatal).
+	 */
+	void onPortInUse(Exception error);
+
+	void onRunning();
+}
@@ -0,0 +1,62 @@
+package com.iosoft.ubiconfor;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import com.iosoft.helpers.Misc;
+
+/**
+ * Loopback TCP, on the given port or any free one if that is taken. Anything
+ * on this machine can connect, the session token keeps it from joining.
+ */
+final class TcpTransport implements WebserverTransport {
+	private final char _port;
+
+	TcpTransport(char port) {
+		_port = port;
+	}
+
+	@Override
+	public String getName() {
+		return "TCP";
+	}
+
+	@Override
+	public ServerSocketChannel bind() throws IOException {
+		try {
+			return bind(_port);
+		} catch (IOException e) {
+			// port blocked
+			return bind((char) 0);
+		}
+	}
+
+	private static ServerSocketChannel bind(char port) throws IOException {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		try {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		} catch (IOException e) {
+			Misc.forceClose(server);
+			throw e;
+		}
+		return server;
+	}
+
+	@Override
+	public String getAddress(ServerSocketChannel server) throws IOException {
+		return Integer.toString(((InetSocketAddress) server.getLocalAddress()).getPort());
+	}
+
+	@Override
+	public void unbind(ServerSocketChannel server) {
+		Misc.forceClose(server);
+	}
+
+	@Override
+	public SocketChannel connect(String address) throws IOException {
+		return SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address)));
+	}
+}
@@ -0,0 +1,166 @@
+package com.iosoft.ubiconfor;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import com.iosoft.helpers.Misc;
+
+/**
+ * A Unix domain socket. Without "-webserver.socketPath", it goes into a new
+ * temp directory that only the user can open, so unlike loopback TCP no other
+ * user can even connect. Java 16 added them, so everything goes through
+ * reflection to keep running on Java 8.
+ */
+final class UnixDomainTransport implements WebserverTransport {
+	private static final ProtocolFamily UNIX;
+	// ServerSocketChannel.open(ProtocolFamily), UnixDomainSocketAddress.of(Path) and getPath()
+	private static final Method OPEN_SERVER, ADDRESS_OF, GET_PATH;
+	private static volatile Boolean _supported;
+
+	static {
+		ProtocolFamily unix = null;
+		Method openServer = null, addressOf = null, getPath = null;
+		try {
+			unix = StandardProtocolFamily.valueOf("UNIX");
+			openServer = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+			Class<?> addressClass = Class.forName("java.net.UnixDomainSocketAddress");
+			addressOf = addressClass.getMethod("of", Path.class);
+			getPath = addressClass.getMethod("getPath");
+		} catch (ReflectiveOperationException | IllegalArgumentException e) {
+			// older than Java 16
+			unix = null;
+		}
+		UNIX = unix;
+		OPEN_SERVER = openServer;
+		ADDRESS_OF = addressOf;
+		GET_PATH = getPath;
+	}
+
+	// empty for a new one in a private directory
+	private final String _path;
+	// the private directory of the last bind(), removed with the socket
+	private volatile Path _directory;
+
+	UnixDomainTransport(String path) {
+		_path = path;
+	}
+
+	/**
+	 * Needs Java 16 and, on Windows, version 10 or newer.
+	 */
+	static boolean isSupported() {
+		Boolean supported = _supported;
+		if (supported == null) {
+			supported = UNIX != null;
+			if (supported) {
+				try {
+					open().close();
+				} catch (IOException | UnsupportedOperationException e) {
+					supported = false;
+				}
+			}
+			_supported = supported;
+		}
+		return supported;
+	}
+
+	@Override
+	public String getName() {
+		return "Unix domain socket";
+	}
+
+	@Override
+	public ServerSocketChannel bind() throws IOException {
+		Path path;
+		if (_path.isEmpty()) {
+			// the directory is only accessible by us, the socket inherits that
+			Path directory = Files.createTempDirectory("ubiconfor");
+			_directory = directory;
+			path = directory.resolve("webserver.sock");
+		} else {
+			path = Paths.get(_path);
+			// left over from a crash, a socket file cannot be bound twice
+			Files.deleteIfExists(path);
+		}
+		ServerSocketChannel server = open();
+		try {
+			server.bind(toAddress(path));
+		} catch (IOException e) {
+			unbind(server);
+			throw e;
+		}
+		return server;
+	}
+
+	@Override
+	public String getAddress(ServerSocketChannel server) throws IOException {
+		return getPath(server).toString();
+	}
+
+	@Override
+	public void unbind(ServerSocketChannel server) {
+		Path path = null;
+		try {
+			path = getPath(server);
+		} catch (IOException e) {
+			// not bound
+		}
+		Misc.forceClose(server);
+		if (path != null) {
+			new File(path.toString()).delete();
+		}
+		Path directory = _directory;
+		if (directory != null) {
+			// only works once it is empty
+			new File(directory.toString()).delete();
+		}
+	}
+
+	@Override
+	public SocketChannel connect(String address) throws IOException {
+		return SocketChannel.open(toAddress(Paths.get(address)));
+	}
+
+	private static ServerSocketChannel open() throws IOException {
+		return (ServerSocketChannel) invoke(OPEN_SERVER, null, UNIX);
+	}
+
+	private static SocketAddress toAddress(Path path) throws IOException {
+		return (SocketAddress) invoke(ADDRESS_OF, null, path);
+	}
+
+	private static Path getPath(ServerSocketChannel server) throws IOException {
+		SocketAddress address = server.getLocalAddress();
+		if (address == null) {
+			throw new IOException("Not bound");
+		}
+		return (Path) invoke(GET_PATH, address);
+	}
+
+	private static Object invoke(Method method, Object target, Object... args) throws IOException {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
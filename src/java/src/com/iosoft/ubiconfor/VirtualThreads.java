@@ -0,0 +1,23 @@
+package com.iosoft.ubiconfor;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Java 8 version: there are no virtual threads. The multi-release JAR
+ * contains a Java 21 version of this class (src-java21).
+ */
+public final class VirtualThreads {
+	private VirtualThreads() {
+	}
+
+	public static boolean isSupported() {
+		return false;
+	}
+
+	/**
+	 * Null if not supported.
+	 */
+	public static ThreadFactory newFactory(String name) {
+		return null;
+	}
+}
@@ -1,76 +1,156 @@
 package com.iosoft.ubiconfor;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.net.InetSocketAddress;
 
-import com.iosoft.helpers.MiscIO;
-import com.iosoft.ubiconfor.dtos.HeaderDto;
+import com.iosoft.ubiconfor.cache.CachingClient;
+import com.iosoft.ubiconfor.cache.CoalescingClient;
 import com.iosoft.ubiconfor.dtos.RequestDto;
 import com.iosoft.ubiconfor.dtos.ResponseDto;
+import com.iosoft.ubiconfor.log.Level;
+import com.iosoft.ubiconfor.log.Log;
+import com.iosoft.ubiconfor.upstream.AddressPool;
+import com.iosoft.ubiconfor.upstream.DnsResolver;
+import com.iosoft.ubiconfor.upstream.HostResolver;
+import com.iosoft.ubiconfor.upstream.PooledClient;
+import com.iosoft.ubiconfor.upstream.UpstreamClient;
+import com.iosoft.ubiconfor.upstream.UrlConnectionClient;
 
 public final class WebRequester {
 	private WebRequester() {
 	}
 
-	public static void getResponse(RequestDto request, ResponseDto response) throws IOException {
-		// TODO: If we get a cert error, the hosts file was modified before we got
-		// started! communicate that?
+	// requests that differ in these may get different responses
+	private static final String DEFAULT_KEY_HEADERS = "Authorization,Ubi-AppId,Ubi-SessionId,"
+			+ "Accept,Accept-Encoding,Accept-Language";
 
-		HttpURLConnection connection = (HttpURLConnection) new URL(request.Data.Uri).openConnection();
-		try {
-			// HttpURLConnection connection = (HttpURLConnection) new
-			// URL("http://localhost").openConnection();
-			connection.setUseCaches(false);
+	private static UpstreamClient _client;
+	private static CachingClient _cache;
+	private static InetSocketAddress _upstreamAddress;
+	private static boolean _upstreamAddressParsed;
+	private static AddressPool _addressPool;
+	private static boolean _addressPoolCreated;
 
-			connection.setRequestProperty("Accept", "*/*");
-			connection.setRequestMethod(request.Data.Method);
-			for (HeaderDto header : request.Data.Headers) {
-				connection.setRequestProperty(header.Name, String.join(",", header.Values));
+	/**
+	 * "-upstream=pooled" (default) keeps connections alive, "-upstream=urlconnection"
+	 * opens a new HttpURLConnection for every request. Identical GETs in flight at
+	 * the same time are sent only once unless "-coalesce=false", responses are
+	 * cached unless "-cache.maxBytes=0".
+	 */
+	public static synchronized UpstreamClient getClient() {
+		if (_client == null) {
+			String type = Config.getString("upstream", "pooled");
+			if (type.equalsIgnoreCase("urlconnection")) {
+				if (getUpstreamAddress() != null) {
+					Log.warn("upstream.address is ignored by the urlconnection client");
+				}
+				_client = new UrlConnectionClient();
+			} else {
+				if (!type.equalsIgnoreCase("pooled")) {
+					Log.warn("Unknown upstream client '" + type + "', using pooled");
+				}
+				_client = new PooledClient(Config.getInt("upstream.maxIdlePerHost", 8),
+						Config.getInt("upstream.idleTimeoutSeconds", 30),
+						Config.getInt("upstream.connectTimeoutMillis", 10000),
+						Config.getInt("upstream.readTimeoutMillis", 0), getUpstreamAddress(), getAddressPool());
+			}
+			if (Config.getBoolean("coalesce", true)) {
+				_client = new CoalescingClient(_client,
+						Config.getString("coalesce.keyHeaders", DEFAULT_KEY_HEADERS).split(","),
+						Config.getInt("coalesce.maxBodyBytes", 4 * 1024 * 1024));
+			}
+			int cacheBytes = Config.getInt("cache.maxBytes", 16 * 1024 * 1024);
+			if (cacheBytes > 0) {
+				_cache = new CachingClient(_client, cacheBytes, Config.getInt("cache.maxEntryBytes", 1024 * 1024),
+						Config.getString("cache.keyHeaders", DEFAULT_KEY_HEADERS).split(","),
+						Config.getInt("cache.maxHeuristicSeconds", 10));
+				_client = _cache;
 			}
+		}
+		return _client;
+	}
 
-			if (!request.Data.Method.equals("GET")) {
-				connection.setDoOutput(true);
-				try (OutputStream out = connection.getOutputStream()) {
-					out.write(request.Data.Content);
-					out.flush();
+	/**
+	 * "-upstream.address=host:port" sends all requests there instead of to the
+	 * host in the URI, e.g. to a local stand-in for channel-service. Null if not
+	 * set.
+	 */
+	public static synchronized InetSocketAddress getUpstreamAddress() {
+		if (!_upstreamAddressParsed) {
+			_upstreamAddressParsed = true;
+			String value = Config.getString("upstream.address", null);
+			int index = value == null ? -1 : value.lastIndexOf(':');
+			if (index > 0) {
+				try {
+					_upstreamAddress = new InetSocketAddress(value.substring(0, index),
+							Integer.parseInt(value.substring(index + 1)));
+				} catch (IllegalArgumentException e) {
+					Log.warn("Invalid upstream.address '" + value + "': " + e);
 				}
+			} else if (value != null) {
+				Log.warn("Invalid upstream.address '" + value + "', expected host:port");
+			}
+		}
+		return _upstreamAddress;
+	}
+
+	/**
+	 * The pinned addresses of the upstream hosts, see AddressPool. Null with
+	 * "-upstream.pin=false", "-upstream.address" or the urlconnection client,
+	 * which rely on the DNS cache of the JVM instead.
+	 * <p>
+	 * Addresses are looked up with the resolver of the OS, or the DNS server
+	 * "-upstream.dnsServer=host[:port]" if set, and refreshed from the DNS
+	 * server every "-upstream.dnsRefreshSeconds". "-upstream.raceDelayMillis" is
+	 * how long a connection attempt may take until the next address is tried at
+	 * the same time. "-upstream.port" replaces the port of the URIs, e.g. for a
+	 * local stand-in.
+	 */
+	public static synchronized AddressPool getAddressPool() {
+		if (!_addressPoolCreated) {
+			_addressPoolCreated = true;
+			if (Config.getBoolean("upstream.pin", true) && getUpstreamAddress() == null
+					&& !Config.getString("upstream", "pooled").equalsIgnoreCase("urlconnection")) {
+				String dnsServer = Config.getString("upstream.dnsServer", null);
+				DnsResolver dns = new DnsResolver(dnsServer, Config.getInt("upstream.dnsTimeoutMillis", 3000));
+				_addressPool = new AddressPool(dnsServer == null ? HostResolver.system() : dns, dns,
+						Config.getInt("upstream.dnsRefreshSeconds", 300), Config.getInt("upstream.raceDelayMillis", 250),
+						Config.getInt("upstream.port", 0));
 			}
+		}
+		return _addressPool;
+	}
 
-			System.out.println("Connecting to: " + connection);
+	/**
+	 * True if requests go somewhere else than the URI says on purpose.
+	 */
+	public static boolean isUpstreamRedirected() {
+		return getUpstreamAddress() != null || Config.getInt("upstream.port", 0) != 0;
+	}
 
-			connection.connect();
+	/**
+	 * Null if caching is disabled.
+	 */
+	public static synchronized CachingClient getCache() {
+		getClient();
+		return _cache;
+	}
 
-			try (InputStream in = connection.getInputStream()) {
-				response.Data.Content = MiscIO.readFully(in);
-			} catch (IOException e) {
-				InputStream in = connection.getErrorStream();
-				if (in != null) {
-					try (InputStream in2 = in) {
-						response.Data.Content = MiscIO.readFully(in2);
-					}
-				}
-			}
+	public static void getResponse(RequestDto request, ResponseDto response) throws IOException {
+		// TODO: If we get a cert error, the hosts file was modified before we got
+		// started! communicate that?
 
-			System.out.println("Got " + new String(response.Data.Content, StandardCharsets.UTF_8));
+		getClient().execute(request.Data, response.Data);
 
-			response.Data.StatusCode = connection.getResponseCode();
-			response.Data.Headers = connection.getHeaderFields().entrySet().stream() //
-					.filter(x -> x.getKey() != null).<HeaderDto>map(x -> {
-						HeaderDto header = new HeaderDto();
-						header.Name = x.getKey();
-						header.Values = x.getValue().toArray(new String[x.getValue().size()]);
-						return header;
-					}).toArray(HeaderDto[]::new);
-		} finally {
-			try {
-				connection.disconnect();
-			} catch (Exception e) {
-				System.out.println("Error disconnecting: " + e);
-			}
+		Log.body("Got " + request.RequestId + ": ", response.Data.Content);
+	}
+
+	public static void streamResponse(RequestDto request, ResponseDto response, ResponseStreamer streamer)
+			throws IOException {
+		getClient().execute(request.Data, response.Data, streamer);
+
+		if (Log.isEnabled(Level.DEBUG)) {
+			Log.debug("Streamed " + streamer.getNumBytes() + " bytes for " + request.RequestId);
 		}
 	}
 }
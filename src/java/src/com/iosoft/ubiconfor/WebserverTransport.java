@@ -0,0 +1,59 @@
+package com.iosoft.ubiconfor;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import com.iosoft.ubiconfor.log.Log;
+
+/**
+ * How the webserver connects to the forwarder, chosen with
+ * "-webserver.transport": "tcp" on loopback (default), or "unix" for a Unix
+ * domain socket in a directory only the user can open (Java 16+, Windows 10+).
+ * Either way the channels are SocketChannels, so everything after accepting
+ * is the same.
+ */
+public interface WebserverTransport {
+	/**
+	 * For the status, e.g. "TCP".
+	 */
+	String getName();
+
+	/**
+	 * A new listening channel, in blocking mode.
+	 */
+	ServerSocketChannel bind() throws IOException;
+
+	/**
+	 * What the webserver gets on its command line: the port or the socket path.
+	 */
+	String getAddress(ServerSocketChannel server) throws IOException;
+
+	/**
+	 * Closes the channel and removes what bind() left behind.
+	 */
+	void unbind(ServerSocketChannel server);
+
+	/**
+	 * Connects like the webserver does, for the load test and benchmarks.
+	 */
+	SocketChannel connect(String address) throws IOException;
+
+	/**
+	 * "unix" falls back to TCP where it is not supported.
+	 */
+	static WebserverTransport create(String name) {
+		switch (name) {
+		case "tcp":
+			return new TcpTransport((char) Config.getInt("webserver.port", 44449));
+		case "unix":
+			if (UnixDomainTransport.isSupported()) {
+				return new UnixDomainTransport(Config.getString("webserver.socketPath", ""));
+			}
+			Log.warn("Unix domain sockets are not supported here, using TCP");
+			return create("tcp");
+		default:
+			throw new IllegalArgumentException("Unknown webserver transport: " + name);
+		}
+	}
+}
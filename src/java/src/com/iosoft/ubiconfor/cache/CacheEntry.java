@@ -0,0 +1,139 @@
+package com.iosoft.ubiconfor.cache;
+
+import java.util.Map;
+
+import com.iosoft.ubiconfor.dtos.HeaderDto;
+
+/**
+ * A stored response with what is needed to tell whether it is still fresh
+ * (RFC 7234) and to revalidate it.
+ */
+final class CacheEntry {
+	// without them, Last-Modified alone does not allow heuristic freshness
+	private static final int[] HEURISTIC_STATUS_CODES = { 200, 203, 204, 300, 301, 404, 405, 410, 414, 501 };
+	private static final int OVERHEAD_BYTES = 256;
+
+	public final String Key;
+	public final String Uri;
+	public final int StatusCode;
+	public final HeaderDto[] Headers;
+	public final byte[] Content;
+	public final String ETag, LastModified;
+	public final int Size;
+	private final long _responseMillis, _initialAgeMillis, _freshnessMillis;
+	private final boolean _noCache;
+
+	private CacheEntry(String key, String uri, int statusCode, HeaderDto[] headers, byte[] content,
+			long responseMillis, long initialAgeMillis, long freshnessMillis, boolean noCache) {
+		Key = key;
+		Uri = uri;
+		StatusCode = statusCode;
+		Headers = headers;
+		Content = content;
+		ETag = CacheHeaders.get(headers, "ETag");
+		LastModified = CacheHeaders.get(headers, "Last-Modified");
+		_responseMillis = responseMillis;
+		_initialAgeMillis = initialAgeMillis;
+		_freshnessMillis = freshnessMillis;
+		_noCache = noCache;
+		int size = OVERHEAD_BYTES + content.length + 2 * (key.length() + uri.length());
+		for (HeaderDto header : headers) {
+			size += 2 * header.Name.length();
+			for (String value : header.Values) {
+				size += 2 * value.length();
+			}
+		}
+		Size = size;
+	}
+
+	/**
+	 * Returns null if the response must not be stored, because it can neither be
+	 * fresh nor revalidated.
+	 */
+	static CacheEntry create(String key, String uri, int statusCode, HeaderDto[] headers, byte[] content,
+			long requestMillis, long responseMillis, long maxHeuristicMillis) {
+		Map<String, String> control = CacheHeaders.parseCacheControl(headers);
+		if (control.containsKey("no-store")) {
+			return null;
+		}
+
+		long dateMillis = CacheHeaders.parseDate(CacheHeaders.get(headers, "Date"));
+		if (dateMillis < 0) {
+			dateMillis = responseMillis;
+		}
+		long ageMillis = 0;
+		String age = CacheHeaders.get(headers, "Age");
+		if (age != null) {
+			try {
+				ageMillis = Math.max(0, Long.parseLong(age.trim()) * 1000);
+			} catch (NumberFormatException e) {
+				// ignored
+			}
+		}
+		long apparentAgeMillis = Math.max(0, responseMillis - dateMillis);
+		long initialAgeMillis = Math.max(apparentAgeMillis, ageMillis + responseMillis - requestMillis);
+
+		long freshnessMillis = 0;
+		long maxAge = CacheHeaders.getSeconds(control, "max-age");
+		String expires = CacheHeaders.get(headers, "Expires");
+		long lastModified = CacheHeaders.parseDate(CacheHeaders.get(headers, "Last-Modified"));
+		if (maxAge >= 0) {
+			freshnessMillis = maxAge * 1000;
+		} else if (expires != null) {
+			// invalid dates like "0" mean already expired
+			freshnessMillis = Math.max(0, CacheHeaders.parseDate(expires) - dateMillis);
+		} else if (lastModified >= 0 && lastModified < dateMillis && isHeuristicallyCacheable(statusCode)) {
+			freshnessMillis = Math.min(maxHeuristicMillis, (dateMillis - lastModified) / 10);
+		}
+
+		boolean noCache = control.containsKey("no-cache");
+		CacheEntry entry = new CacheEntry(key, uri, statusCode, headers, content, responseMillis, initialAgeMillis,
+				freshnessMillis, noCache);
+		if ((noCache || freshnessMillis <= initialAgeMillis) && entry.ETag == null && entry.LastModified == null) {
+			return null;
+		}
+		return entry;
+	}
+
+	private static boolean isHeuristicallyCacheable(int statusCode) {
+		for (int code : HEURISTIC_STATUS_CODES) {
+			if (code == statusCode) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * After a 304: the headers it contains replace the stored ones. Returns null if
+	 * it must not be stored anymore.
+	 */
+	CacheEntry revalidated(HeaderDto[] notModifiedHeaders, long requestMillis, long responseMillis,
+			long maxHeuristicMillis) {
+		HeaderDto[] headers = Headers;
+		for (HeaderDto header : notModifiedHeaders) {
+			// these describe the (missing) body of the 304
+			if (!header.Name.equalsIgnoreCase("Content-Length") && !header.Name.equalsIgnoreCase("Transfer-Encoding")
+					&& !header.Name.equalsIgnoreCase("Connection")) {
+				headers = CacheHeaders.with(headers, header.Name, String.join(",", header.Values));
+			}
+		}
+		return create(Key, Uri, StatusCode, headers, Content, requestMillis, responseMillis, maxHeuristicMillis);
+	}
+
+	long getAgeMillis(long now) {
+		return _initialAgeMillis + Math.max(0, now - _responseMillis);
+	}
+
+	/**
+	 * maxAgeMillis comes from the request, -1 if it has none.
+	 */
+	boolean isFresh(long now, long maxAgeMillis) {
+		long age = getAgeMillis(now);
+		return !_noCache && age < _freshnessMillis && (maxAgeMillis < 0 || age <= maxAgeMillis);
+	}
+
+	boolean canRevalidate() {
+		return ETag != null || LastModified != null;
+	}
+}
@@ -0,0 +1,140 @@
+package com.iosoft.ubiconfor.cache;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.iosoft.ubiconfor.dtos.HeaderDto;
+import com.iosoft.ubiconfor.dtos.RequestDataDto;
+
+final class CacheHeaders {
+	private CacheHeaders() {
+	}
+
+	/**
+	 * All values joined with ",", or null.
+	 */
+	static String get(HeaderDto[] headers, String name) {
+		String result = null;
+		for (HeaderDto header : headers) {
+			if (header.Name.equalsIgnoreCase(name)) {
+				String value = String.join(",", header.Values);
+				result = result == null ? value : result + "," + value;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The method, URI and the values of the given headers, whose names must be
+	 * lower case.
+	 */
+	static String createKey(RequestDataDto request, String[] keyHeaders) {
+		StringBuilder sb = new StringBuilder(request.Uri.length() + 64);
+		sb.append(request.Method).append(' ').append(request.Uri);
+		for (String name : keyHeaders) {
+			String value = get(request.Headers, name);
+			if (value != null) {
+				sb.append('\n').append(name).append(':').append(value);
+			}
+		}
+		return sb.toString();
+	}
+
+	static String[] normalizeNames(String[] names) {
+		String[] result = new String[names.length];
+		for (int i = 0; i < names.length; i++) {
+			result[i] = names[i].trim().toLowerCase(Locale.ROOT);
+		}
+		return result;
+	}
+
+	static boolean has(HeaderDto[] headers, String name) {
+		for (HeaderDto header : headers) {
+			if (header.Name.equalsIgnoreCase(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A copy with the header set to the value, replacing any previous ones.
+	 */
+	static HeaderDto[] with(HeaderDto[] headers, String name, String value) {
+		List<HeaderDto> result = new ArrayList<>(headers.length + 1);
+		for (HeaderDto header : headers) {
+			if (!header.Name.equalsIgnoreCase(name)) {
+				result.add(header);
+			}
+		}
+		HeaderDto header = new HeaderDto();
+		header.Name = name;
+		header.Values = new String[] { value };
+		result.add(header);
+		return result.toArray(new HeaderDto[result.size()]);
+	}
+
+	/**
+	 * Directive names are lower case, directives without a value map to "".
+	 */
+	static Map<String, String> parseCacheControl(HeaderDto[] headers) {
+		Map<String, String> directives = new HashMap<>();
+		String value = get(headers, "Cache-Control");
+		if (value == null) {
+			// HTTP/1.0
+			String pragma = get(headers, "Pragma");
+			if (pragma != null && pragma.toLowerCase(Locale.ROOT).contains("no-cache")) {
+				directives.put("no-cache", "");
+			}
+			return directives;
+		}
+		for (String part : value.split(",")) {
+			int index = part.indexOf('=');
+			if (index < 0) {
+				directives.put(part.trim().toLowerCase(Locale.ROOT), "");
+			} else {
+				String argument = part.substring(index + 1).trim();
+				if (argument.length() >= 2 && argument.startsWith("\"") && argument.endsWith("\"")) {
+					argument = argument.substring(1, argument.length() - 1);
+				}
+				directives.put(part.substring(0, index).trim().toLowerCase(Locale.ROOT), argument);
+			}
+		}
+		return directives;
+	}
+
+	/**
+	 * Returns -1 if missing or invalid.
+	 */
+	static long getSeconds(Map<String, String> directives, String name) {
+		String value = directives.get(name);
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return Math.max(0, Long.parseLong(value));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns -1 if missing or invalid.
+	 */
+	static long parseDate(String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package com.iosoft.ubiconfor.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * W-TinyLFU bounded by bytes: new entries go into a small LRU window. What
+ * falls out of it only replaces the least recently used entries of the main
+ * LRU if it was asked for more often than them, so a burst of one-off
+ * requests cannot flush the entries that keep being asked for.
+ */
+final class CacheStore {
+	private final long _windowMaxBytes, _mainMaxBytes;
+	private final LinkedHashMap<String, CacheEntry> _window = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<String, CacheEntry> _main = new LinkedHashMap<>(16, 0.75f, true);
+	private final FrequencySketch _sketch;
+	private long _windowBytes, _mainBytes, _numEvicted;
+
+	CacheStore(long maxBytes) {
+		_windowMaxBytes = Math.max(1, maxBytes / 100);
+		_mainMaxBytes = maxBytes - _windowMaxBytes;
+		// the entries are usually a few KB of JSON
+		_sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(4096, maxBytes / 1024)));
+	}
+
+	/**
+	 * Counts as an access, even if there is no entry yet.
+	 */
+	synchronized CacheEntry get(String key) {
+		_sketch.increment(key.hashCode());
+		CacheEntry entry = _window.get(key);
+		return entry != null ? entry : _main.get(key);
+	}
+
+	synchronized void put(CacheEntry entry) {
+		remove(entry.Key);
+		_window.put(entry.Key, entry);
+		_windowBytes += entry.Size;
+		Iterator<CacheEntry> it = _window.values().iterator();
+		while (_windowBytes > _windowMaxBytes && it.hasNext()) {
+			CacheEntry candidate = it.next();
+			it.remove();
+			_windowBytes -= candidate.Size;
+			admit(candidate);
+		}
+	}
+
+	private void admit(CacheEntry candidate) {
+		int frequency = _sketch.frequency(candidate.Key.hashCode());
+		Iterator<CacheEntry> victims = _main.values().iterator();
+		while (_mainBytes + candidate.Size > _mainMaxBytes) {
+			if (!victims.hasNext()) {
+				// larger than the whole cache
+				_numEvicted++;
+				return;
+			}
+			CacheEntry victim = victims.next();
+			if (frequency <= _sketch.frequency(victim.Key.hashCode())) {
+				_numEvicted++;
+				return;
+			}
+			victims.remove();
+			_mainBytes -= victim.Size;
+			_numEvicted++;
+		}
+		_main.put(candidate.Key, candidate);
+		_mainBytes += candidate.Size;
+	}
+
+	synchronized void remove(String key) {
+		CacheEntry entry = _window.remove(key);
+		if (entry != null) {
+			_windowBytes -= entry.Size;
+		}
+		entry = _main.remove(key);
+		if (entry != null) {
+			_mainBytes -= entry.Size;
+		}
+	}
+
+	/**
+	 * Removes all variants of the URI.
+	 */
+	synchronized void removeUri(String uri) {
+		for (Iterator<CacheEntry> it = _window.values().iterator(); it.hasNext();) {
+			CacheEntry entry = it.next();
+			if (entry.Uri.equals(uri)) {
+				it.remove();
+				_windowBytes -= entry.Size;
+			}
+		}
+		for (Iterator<CacheEntry> it = _main.values().iterator(); it.hasNext();) {
+			CacheEntry entry = it.next();
+			if (entry.Uri.equals(uri)) {
+				it.remove();
+				_mainBytes -= entry.Size;
+			}
+		}
+	}
+
+	synchronized long getBytes() {
+		return _windowBytes + _mainBytes;
+	}
+
+	synchronized int getNumEntries() {
+		return _window.size() + _main.size();
+	}
+
+	synchronized long getNumEvicted() {
+		return _numEvicted;
+	}
+}
@@ -0,0 +1,252 @@
+package com.iosoft.ubiconfor.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.iosoft.ubiconfor.dtos.RequestDataDto;
+import com.iosoft.ubiconfor.dtos.ResponseDataDto;
+import com.iosoft.ubiconfor.upstream.BodySink;
+import com.iosoft.ubiconfor.upstream.UpstreamClient;
+
+/**
+ * Answers repeated GETs from memory as long as the response is fresh according
+ * to its Cache-Control, Expires and Last-Modified headers, and revalidates
+ * stale ones with If-None-Match / If-Modified-Since. Only one user goes
+ * through here, so it behaves like a browser cache, not like a shared one.
+ */
+public final class CachingClient implements UpstreamClient {
+	private static final int[] STORED_STATUS_CODES = { 200, 203, 204, 300, 301, 404, 405, 410, 414, 501 };
+
+	private final UpstreamClient _client;
+	private final CacheStore _store;
+	// lower case, part of the key as requests differing in them get different responses
+	private final String[] _keyHeaders;
+	private final int _maxEntryBytes;
+	private final long _maxHeuristicMillis;
+	private final AtomicLong _hits = new AtomicLong(), _revalidated = new AtomicLong(), _misses = new AtomicLong();
+
+	public CachingClient(UpstreamClient client, long maxBytes, int maxEntryBytes, String[] keyHeaders,
+			int maxHeuristicSeconds) {
+		_client = client;
+		_store = new CacheStore(maxBytes);
+		_maxEntryBytes = maxEntryBytes;
+		_maxHeuristicMillis = TimeUnit.SECONDS.toMillis(maxHeuristicSeconds);
+		_keyHeaders = CacheHeaders.normalizeNames(keyHeaders);
+	}
+
+	@Override
+	public void execute(RequestDataDto request, ResponseDataDto response, BodySink sink) throws IOException {
+		if (!request.Method.equals("GET")) {
+			_client.execute(request, response, sink);
+			if (!request.Method.equals("HEAD") && !request.Method.equals("OPTIONS") && response.StatusCode < 400) {
+				// whatever we have for it is likely outdated now
+				_store.removeUri(request.Uri);
+			}
+			return;
+		}
+
+		Map<String, String> control = CacheHeaders.parseCacheControl(request.Headers);
+		// the game asked for something specific, don't interfere
+		boolean passThrough = control.containsKey("no-store") || CacheHeaders.has(request.Headers, "Range")
+				|| CacheHeaders.has(request.Headers, "If-None-Match")
+				|| CacheHeaders.has(request.Headers, "If-Modified-Since");
+		if (passThrough) {
+			_client.execute(request, response, sink);
+			return;
+		}
+
+		String key = CacheHeaders.createKey(request, _keyHeaders);
+		long requestMillis = System.currentTimeMillis();
+		CacheEntry cached = _store.get(key);
+		long maxAgeSeconds = CacheHeaders.getSeconds(control, "max-age");
+		if (cached != null && !control.containsKey("no-cache")
+				&& cached.isFresh(requestMillis, maxAgeSeconds < 0 ? -1 : maxAgeSeconds * 1000)) {
+			_hits.incrementAndGet();
+			serve(cached, response, sink, requestMillis);
+			return;
+		}
+
+		if (cached != null && !cached.canRevalidate()) {
+			cached = null;
+		}
+		Capture capture = new Capture(sink, cached != null);
+		_client.execute(cached == null ? request : addValidators(request, cached), response, capture);
+		long responseMillis = System.currentTimeMillis();
+
+		if (capture._notModified) {
+			_revalidated.incrementAndGet();
+			CacheEntry updated = cached.revalidated(response.Headers, requestMillis, responseMillis,
+					_maxHeuristicMillis);
+			if (updated == null) {
+				_store.remove(key);
+				updated = cached;
+			} else {
+				_store.put(updated);
+			}
+			serve(updated, response, sink, responseMillis);
+			return;
+		}
+
+		_misses.incrementAndGet();
+		if (capture._content != null) {
+			CacheEntry entry = CacheEntry.create(key, request.Uri, response.StatusCode, response.Headers,
+					capture._content.toByteArray(), requestMillis, responseMillis, _maxHeuristicMillis);
+			if (entry == null) {
+				_store.remove(key);
+			} else {
+				_store.put(entry);
+			}
+		} else {
+			_store.remove(key);
+		}
+	}
+
+	private static void serve(CacheEntry entry, ResponseDataDto response, BodySink sink, long now)
+			throws IOException {
+		response.StatusCode = entry.StatusCode;
+		response.Headers = CacheHeaders.with(entry.Headers, "Age",
+				Long.toString(TimeUnit.MILLISECONDS.toSeconds(entry.getAgeMillis(now))));
+		sink.onHead(response);
+		if (entry.Content.length > 0) {
+			sink.onBody(entry.Content, 0, entry.Content.length);
+		}
+	}
+
+	private static RequestDataDto addValidators(RequestDataDto request, CacheEntry cached) {
+		RequestDataDto result = new RequestDataDto();
+		result.Uri = request.Uri;
+		result.Method = request.Method;
+		result.Content = request.Content;
+		result.Headers = request.Headers;
+		if (cached.ETag != null) {
+			result.Headers = CacheHeaders.with(result.Headers, "If-None-Match", cached.ETag);
+		}
+		if (cached.LastModified != null) {
+			result.Headers = CacheHeaders.with(result.Headers, "If-Modified-Since", cached.LastModified);
+		}
+		return result;
+	}
+
+	private boolean isStorable(ResponseDataDto response) {
+		boolean statusOk = false;
+		for (int code : STORED_STATUS_CODES) {
+			statusOk |= code == response.StatusCode;
+		}
+		if (!statusOk || CacheHeaders.has(response.Headers, "Set-Cookie")) {
+			return false;
+		}
+		String vary = CacheHeaders.get(response.Headers, "Vary");
+		if (vary != null) {
+			// only if everything it varies on is part of the key
+			for (String name : vary.split(",")) {
+				if (!isKeyHeader(name.trim().toLowerCase(Locale.ROOT))) {
+					return false;
+				}
+			}
+		}
+		String contentLength = CacheHeaders.get(response.Headers, "Content-Length");
+		if (contentLength != null) {
+			try {
+				return Long.parseLong(contentLength.trim()) <= _maxEntryBytes;
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isKeyHeader(String name) {
+		if (name.isEmpty()) {
+			return true;
+		}
+		for (String keyHeader : _keyHeaders) {
+			if (keyHeader.equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public int prewarm(String uri, int numConnections) throws IOException {
+		return _client.prewarm(uri, numConnections);
+	}
+
+	@Override
+	public String getStatusText() {
+		return _client.getStatusText();
+	}
+
+	public long getNumHits() {
+		return _hits.get();
+	}
+
+	public long getNumRevalidated() {
+		return _revalidated.get();
+	}
+
+	public long getNumMisses() {
+		return _misses.get();
+	}
+
+	/**
+	 * Revalidated responses count as hits, no body had to be transferred.
+	 */
+	public double getHitRatio() {
+		long hits = _hits.get() + _revalidated.get();
+		long total = hits + _misses.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	public long getBytes() {
+		return _store.getBytes();
+	}
+
+	public int getNumEntries() {
+		return _store.getNumEntries();
+	}
+
+	/**
+	 * Passes the response through while keeping a copy of the body, unless it is
+	 * a 304 for our own revalidation, which is answered from the cache instead.
+	 */
+	private final class Capture implements BodySink {
+		private final BodySink _sink;
+		private final boolean _revalidating;
+		private boolean _notModified;
+		private ByteArrayOutputStream _content;
+
+		Capture(BodySink sink, boolean revalidating) {
+			_sink = sink;
+			_revalidating = revalidating;
+		}
+
+		@Override
+		public void onHead(ResponseDataDto response) throws IOException {
+			if (_revalidating && response.StatusCode == 304) {
+				_notModified = true;
+				return;
+			}
+			if (isStorable(response)) {
+				_content = new ByteArrayOutputStream();
+			}
+			_sink.onHead(response);
+		}
+
+		@Override
+		public void onBody(byte[] buffer, int offset, int length) throws IOException {
+			if (_content != null) {
+				if (_content.size() + length > _maxEntryBytes) {
+					_content = null;
+				} else {
+					_content.write(buffer, offset, length);
+				}
+			}
+			_sink.onBody(buffer, offset, length);
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package com.iosoft.ubiconfor.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.iosoft.ubiconfor.dtos.HeaderDto;
+import com.iosoft.ubiconfor.dtos.RequestDataDto;
+import com.iosoft.ubiconfor.dtos.ResponseDataDto;
+import com.iosoft.ubiconfor.upstream.BodySink;
+import com.iosoft.ubiconfor.upstream.Cancellation;
+import com.iosoft.ubiconfor.upstream.RequestCancelledException;
+import com.iosoft.ubiconfor.upstream.UpstreamClient;
+
+/**
+ * Sends identical GETs that are in flight at the same time upstream only once.
+ * The others wait for that one and get a copy of its response, or its error.
+ */
+public final class CoalescingClient implements UpstreamClient {
+	// a conditional request must never get the answer for an unconditional one
+	private static final String[] ALWAYS_KEYED = { "if-none-match", "if-modified-since", "range" };
+
+	private final UpstreamClient _client;
+	private final String[] _keyHeaders;
+	private final int _maxBodyBytes;
+	private final ConcurrentHashMap<String, CompletableFuture<SharedResponse>> _inFlight = new ConcurrentHashMap<>();
+	private final AtomicLong _coalesced = new AtomicLong();
+
+	public CoalescingClient(UpstreamClient client, String[] keyHeaders, int maxBodyBytes) {
+		_client = client;
+		String[] names = CacheHeaders.normalizeNames(keyHeaders);
+		_keyHeaders = Arrays.copyOf(names, names.length + ALWAYS_KEYED.length);
+		System.arraycopy(ALWAYS_KEYED, 0, _keyHeaders, names.length, ALWAYS_KEYED.length);
+		_maxBodyBytes = maxBodyBytes;
+	}
+
+	@Override
+	public void execute(RequestDataDto request, ResponseDataDto response, BodySink sink) throws IOException {
+		if (!request.Method.equals("GET") && !request.Method.equals("HEAD")) {
+			_client.execute(request, response, sink);
+			return;
+		}
+
+		String key = CacheHeaders.createKey(request, _keyHeaders);
+		CompletableFuture<SharedResponse> own = new CompletableFuture<>();
+		CompletableFuture<SharedResponse> leader = _inFlight.putIfAbsent(key, own);
+		if (leader != null) {
+			SharedResponse shared = await(leader);
+			if (shared == null) {
+				// too large to keep a copy of, or only the other one was cancelled
+				_client.execute(request, response, sink);
+			} else {
+				_coalesced.incrementAndGet();
+				shared.replay(response, sink);
+			}
+			return;
+		}
+
+		try {
+			Capture capture = new Capture(sink);
+			_client.execute(request, response, capture);
+			own.complete(capture._content == null ? null
+					: new SharedResponse(response.StatusCode, response.Headers, capture._content.toByteArray()));
+		} catch (IOException | RuntimeException e) {
+			own.completeExceptionally(e);
+			throw e;
+		} finally {
+			_inFlight.remove(key, own);
+			// only has an effect if something worse than an exception happened
+			own.complete(null);
+		}
+	}
+
+	/**
+	 * Like the request itself, the wait ends when it is cancelled or its deadline
+	 * passes.
+	 */
+	private static SharedResponse await(CompletableFuture<SharedResponse> leader) throws IOException {
+		Cancellation cancellation = Cancellation.getCurrent();
+		if (cancellation == null) {
+			return await(leader, null);
+		}
+		// a copy, so that cancelling ends only the wait of this request
+		CompletableFuture<SharedResponse> wait = leader.thenApply(shared -> shared);
+		cancellation.attach(() -> wait.cancel(false));
+		try {
+			return await(wait, cancellation);
+		} finally {
+			cancellation.detach();
+		}
+	}
+
+	private static SharedResponse await(CompletableFuture<SharedResponse> leader, Cancellation cancellation)
+			throws IOException {
+		try {
+			if (cancellation == null) {
+				return leader.get();
+			}
+			return leader.get(cancellation.getRemainingNanos(), TimeUnit.NANOSECONDS);
+		} catch (CancellationException | TimeoutException e) {
+			// throws, as only cancelling and the deadline end the wait early
+			cancellation.check();
+			throw new RequestCancelledException("wait ended early", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for identical request");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RequestCancelledException) {
+				return null;
+			}
+			throw new IOException("Identical request failed: " + e.getCause(), e.getCause());
+		}
+	}
+
+	@Override
+	public int prewarm(String uri, int numConnections) throws IOException {
+		return _client.prewarm(uri, numConnections);
+	}
+
+	@Override
+	public String getStatusText() {
+		String status = _client.getStatusText();
+		String coalesced = _coalesced.get() + " coalesced";
+		return status == null ? coalesced : status + ", " + coalesced;
+	}
+
+	public long getNumCoalesced() {
+		return _coalesced.get();
+	}
+
+	private static final class SharedResponse {
+		private final int _statusCode;
+		private final HeaderDto[] _headers;
+		private final byte[] _content;
+
+		SharedResponse(int statusCode, HeaderDto[] headers, byte[] content) {
+			_statusCode = statusCode;
+			_headers = headers;
+			_content = content;
+		}
+
+		void replay(ResponseDataDto response, BodySink sink) throws IOException {
+			response.StatusCode = _statusCode;
+			response.Headers = _headers.clone();
+			sink.onHead(response);
+			if (_content.length > 0) {
+				sink.onBody(_content, 0, _content.length);
+			}
+		}
+	}
+
+	private final class Capture implements BodySink {
+		private final BodySink _sink;
+		private ByteArrayOutputStream _content = new ByteArrayOutputStream();
+
+		Capture(BodySink sink) {
+			_sink = sink;
+		}
+
+		@Override
+		public void onHead(ResponseDataDto response) throws IOException {
+			_sink.onHead(response);
+		}
+
+		@Override
+		public void onBody(byte[] buffer, int offset, int length) throws IOException {
+			if (_content != null) {
+				if (_content.size() + length > _maxBodyBytes) {
+					_content = null;
+				} else {
+					_content.write(buffer, offset, length);
+				}
+			}
+			_sink.onBody(buffer, offset, length);
+		}
+	}
+}
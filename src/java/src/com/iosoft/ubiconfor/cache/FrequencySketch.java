@@ -0,0 +1,69 @@
+package com.iosoft.ubiconfor.cache;
+
+/**
+ * Count-min sketch with 4 bit counters, estimates how often a key was asked
+ * for recently. All counters are halved after a while, so old popularity fades.
+ * Not thread-safe.
+ */
+final class FrequencySketch {
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+			0xcbf29ce484222325L };
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final int MAX_COUNT = 15;
+
+	// 16 counters per long
+	private final long[] _table;
+	private final int _mask;
+	private final int _sampleSize;
+	private int _size;
+
+	FrequencySketch(int expectedEntries) {
+		int length = Integer.highestOneBit(Math.max(64, expectedEntries) - 1) << 1;
+		_table = new long[length];
+		_mask = length - 1;
+		_sampleSize = 10 * length;
+	}
+
+	int frequency(int hash) {
+		int frequency = MAX_COUNT;
+		for (int i = 0; i < SEEDS.length; i++) {
+			int index = indexOf(hash, i);
+			frequency = Math.min(frequency, (int) (_table[index & _mask] >>> offsetOf(index)) & MAX_COUNT);
+		}
+		return frequency;
+	}
+
+	void increment(int hash) {
+		boolean added = false;
+		for (int i = 0; i < SEEDS.length; i++) {
+			int index = indexOf(hash, i);
+			int slot = index & _mask;
+			int offset = offsetOf(index);
+			if (((_table[slot] >>> offset) & MAX_COUNT) < MAX_COUNT) {
+				_table[slot] += 1L << offset;
+				added = true;
+			}
+		}
+		if (added && ++_size >= _sampleSize) {
+			reset();
+		}
+	}
+
+	private void reset() {
+		for (int i = 0; i < _table.length; i++) {
+			_table[i] = (_table[i] >>> 1) & RESET_MASK;
+		}
+		_size /= 2;
+	}
+
+	private static int indexOf(int hash, int i) {
+		long h = (hash + SEEDS[i]) * SEEDS[i];
+		h += h >>> 32;
+		return (int) h;
+	}
+
+	// which of the 16 counters in the slot, taken from the bits not used for the slot
+	private static int offsetOf(int index) {
+		return ((index >>> 24) & 15) << 2;
+	}
+}
@@ -0,0 +1,27 @@
+package com.iosoft.ubiconfor.dtos;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+public final class BodyChunkDto implements DataObject {
+	public static final byte ResponseMsgId = 4;
+	public static final byte RequestMsgId = 14;
+
+	public int RequestId;
+	public byte[] Data;
+
+	@Override
+	public void read(DataInput in) throws IOException {
+		RequestId = in.readInt();
+		Data = new byte[in.readInt()];
+		in.readFully(Data);
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(RequestId);
+		out.writeInt(Data.length);
+		out.write(Data);
+	}
+}
@@ -0,0 +1,28 @@
+package com.iosoft.ubiconfor.dtos;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+public final class BodyEndDto implements DataObject {
+	public static final byte ResponseMsgId = 5;
+	public static final byte RequestMsgId = 15;
+
+	public int RequestId;
+	/**
+	 * The body is incomplete, the receiver should abort.
+	 */
+	public boolean Failed;
+
+	@Override
+	public void read(DataInput in) throws IOException {
+		RequestId = in.readInt();
+		Failed = in.readBoolean();
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(RequestId);
+		out.writeBoolean(Failed);
+	}
+}
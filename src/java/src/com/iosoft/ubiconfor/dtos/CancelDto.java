@@ -0,0 +1,25 @@
+package com.iosoft.ubiconfor.dtos;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The client went away, the response is not wanted anymore (protocol version
+ * 4). Unknown or finished requests are ignored.
+ */
+public final class CancelDto implements DataObject {
+	public static final byte MsgId = 18;
+
+	public int RequestId;
+
+	@Override
+	public void read(DataInput in) throws IOException {
+		RequestId = in.readInt();
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(RequestId);
+	}
+}
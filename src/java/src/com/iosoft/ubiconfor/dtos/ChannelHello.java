@@ -0,0 +1,30 @@
+package com.iosoft.ubiconfor.dtos;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * First message on every channel but the first one (protocol version 3), with
+ * the token from JavaHello. Anything else closes the channel.
+ */
+public final class ChannelHello implements DataObject {
+	public static final byte MsgId = 17;
+
+	public byte[] SessionToken;
+	// 1 to NumChannels - 1
+	public int ChannelIndex;
+
+	@Override
+	public void read(DataInput in) throws IOException {
+		SessionToken = new byte[JavaHello.SessionTokenLength];
+		in.readFully(SessionToken);
+		ChannelIndex = in.readInt();
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.write(SessionToken);
+		out.writeInt(ChannelIndex);
+	}
+}
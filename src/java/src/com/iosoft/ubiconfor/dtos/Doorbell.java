@@ -0,0 +1,13 @@
+package com.iosoft.ubiconfor.dtos;
+
+/**
+ * Sent over the TCP socket of the shared memory channel (protocol version 5),
+ * in both directions, when the other side went to sleep waiting for frames in
+ * the shared memory. Has an empty body.
+ */
+public final class Doorbell {
+	private Doorbell() {
+	}
+
+	public static final byte MsgId = 19;
+}
@@ -0,0 +1,233 @@
+package com.iosoft.ubiconfor.dtos;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK-like compression of the headers for one direction of a connection
+ * (protocol version 2). Names are sent as an index into a static table, or into
+ * the names seen before. A header that was sent before (Authorization,
+ * User-Agent, ...) is sent as a single index into a table of recent headers,
+ * which both sides update the same way. Decoded names and repeated headers are
+ * the same instances every time instead of new strings.
+ * <p>
+ * Must see the messages in wire order, not thread-safe. Must match
+ * HeaderCodec.cs of the webserver.
+ */
+public final class HeaderCodec {
+	/**
+	 * Written instead of the number of headers, the compressed headers follow.
+	 */
+	static final int COMPACT = -1;
+	/**
+	 * Of the table of recent headers, on both sides.
+	 */
+	private static final int TABLE_SIZE = 16 * 1024;
+	// per header in the table, like HPACK
+	private static final int ENTRY_OVERHEAD = 32;
+	private static final int MAX_NAMES = 256;
+
+	private static final int INDEXED = 0, LITERAL_ADDED = 1, LITERAL = 2;
+
+	private static final String[] STATIC_NAMES = { "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language",
+			"Access-Control-Allow-Origin", "Age", "Allow", "Authorization", "Cache-Control", "Connection",
+			"Content-Disposition", "Content-Encoding", "Content-Language", "Content-Length", "Content-Location",
+			"Content-Range", "Content-Type", "Cookie", "Date", "ETag", "Expect", "Expires", "Host", "If-Match",
+			"If-Modified-Since", "If-None-Match", "If-Range", "If-Unmodified-Since", "Keep-Alive", "Last-Modified",
+			"Location", "Origin", "Pragma", "Range", "Referer", "Retry-After", "Server", "Set-Cookie",
+			"Strict-Transport-Security", "Transfer-Encoding", "User-Agent", "Vary", "Via", "WWW-Authenticate",
+			"Ubi-AppId", "Ubi-SessionId", "Ubi-RequestedPlatformType", "Ubi-LocaleCode", "X-Forwarder-Overload" };
+
+	private final List<String> _names = new ArrayList<>();
+	// only used for encoding
+	private final Map<String, Integer> _nameIndices = new HashMap<>();
+	private final Map<String, Long> _entryIds = new HashMap<>();
+
+	// ring of recent headers, entry with id n is at n % length
+	private final Entry[] _entries = new Entry[TABLE_SIZE / ENTRY_OVERHEAD];
+	private long _numAdded;
+	private int _numEntries, _tableSize;
+
+	public HeaderCodec() {
+		for (String name : STATIC_NAMES) {
+			_nameIndices.put(name, _names.size());
+			_names.add(name);
+		}
+	}
+
+	public void write(DataOutput out, HeaderDto[] headers) throws IOException {
+		// checked first, as failing halfway would leave the tables out of sync
+		for (HeaderDto header : headers) {
+			checkLength(header.Name);
+			for (String value : header.Values) {
+				checkLength(value);
+			}
+		}
+
+		writeVarInt(out, headers.length);
+		for (HeaderDto header : headers) {
+			String key = createKey(header);
+			Long id = _entryIds.get(key);
+			if (id != null) {
+				out.writeByte(INDEXED);
+				writeVarInt(out, (int) (_numAdded - 1 - id));
+				continue;
+			}
+
+			int size = sizeOf(header);
+			boolean add = size <= TABLE_SIZE / 4;
+			out.writeByte(add ? LITERAL_ADDED : LITERAL);
+			Integer nameIndex = _nameIndices.get(header.Name);
+			if (nameIndex == null) {
+				writeVarInt(out, 0);
+				out.writeUTF(header.Name);
+				addName(header.Name);
+			} else {
+				writeVarInt(out, nameIndex + 1);
+			}
+			writeVarInt(out, header.Values.length);
+			for (String value : header.Values) {
+				out.writeUTF(value);
+			}
+			if (add) {
+				_entryIds.put(key, addEntry(header, size, key));
+			}
+		}
+	}
+
+	public HeaderDto[] read(DataInput in) throws IOException {
+		HeaderDto[] headers = new HeaderDto[readVarInt(in)];
+		for (int i = 0; i < headers.length; i++) {
+			int type = in.readUnsignedByte();
+			if (type == INDEXED) {
+				int index = readVarInt(in);
+				if (index >= _numEntries) {
+					throw new IOException("Invalid header index " + index);
+				}
+				headers[i] = _entries[(int) ((_numAdded - 1 - index) % _entries.length)].Header;
+				continue;
+			}
+			if (type != LITERAL_ADDED && type != LITERAL) {
+				throw new IOException("Invalid header type " + type);
+			}
+
+			HeaderDto header = new HeaderDto();
+			int nameIndex = readVarInt(in);
+			if (nameIndex == 0) {
+				header.Name = in.readUTF();
+				addName(header.Name);
+			} else if (nameIndex <= _names.size()) {
+				header.Name = _names.get(nameIndex - 1);
+			} else {
+				throw new IOException("Invalid header name index " + nameIndex);
+			}
+			header.Values = new String[readVarInt(in)];
+			for (int j = 0; j < header.Values.length; j++) {
+				header.Values[j] = in.readUTF();
+			}
+			if (type == LITERAL_ADDED) {
+				addEntry(header, sizeOf(header), null);
+			}
+			headers[i] = header;
+		}
+		return headers;
+	}
+
+	private void addName(String name) {
+		if (_names.size() < STATIC_NAMES.length + MAX_NAMES) {
+			_nameIndices.put(name, _names.size());
+			_names.add(name);
+		}
+	}
+
+	private long addEntry(HeaderDto header, int size, String key) {
+		while (_tableSize + size > TABLE_SIZE || _numEntries == _entries.length) {
+			long oldestId = _numAdded - _numEntries;
+			int slot = (int) (oldestId % _entries.length);
+			Entry oldest = _entries[slot];
+			if (oldest.Key != null) {
+				_entryIds.remove(oldest.Key, oldestId);
+			}
+			_entries[slot] = null;
+			_tableSize -= oldest.Size;
+			_numEntries--;
+		}
+		long id = _numAdded++;
+		_entries[(int) (id % _entries.length)] = new Entry(header, size, key);
+		_tableSize += size;
+		_numEntries++;
+		return id;
+	}
+
+	private static String createKey(HeaderDto header) {
+		StringBuilder sb = new StringBuilder(header.Name);
+		for (String value : header.Values) {
+			sb.append('\0').append(value);
+		}
+		return sb.toString();
+	}
+
+	private static int sizeOf(HeaderDto header) {
+		int size = ENTRY_OVERHEAD + header.Name.length();
+		for (String value : header.Values) {
+			size += value.length();
+		}
+		return size;
+	}
+
+	private static void checkLength(String value) throws UTFDataFormatException {
+		if (value.length() <= 65535 / 3) {
+			return;
+		}
+		int length = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			length += c >= 1 && c <= 0x7F ? 1 : c <= 0x7FF ? 2 : 3;
+		}
+		if (length > 65535) {
+			throw new UTFDataFormatException("Header too long: " + length + " bytes");
+		}
+	}
+
+	private static void writeVarInt(DataOutput out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarInt(DataInput in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				if (value < 0) {
+					break;
+				}
+				return value;
+			}
+		}
+		throw new IOException("Invalid varint");
+	}
+
+	private static final class Entry {
+		public final HeaderDto Header;
+		public final int Size;
+		// null on the decoding side
+		public final String Key;
+
+		public Entry(HeaderDto header, int size, String key) {
+			Header = header;
+			Size = size;
+			Key = key;
+		}
+	}
+}
@@ -9,20 +9,47 @@ public class HttpDataDto implements DataObject {
 	public byte[] Content;
 
 	@Override
-	public void read(DataInput in) throws IOException {
-		Headers = new HeaderDto[in.readInt()];
-		for (int i = 0; i < Headers.length; i++) {
-			(Headers[i] = new HeaderDto()).read(in);
+	public final void read(DataInput in) throws IOException {
+		read(in, null);
+	}
+
+	/**
+	 * Without a codec, only plain headers can be read.
+	 */
+	public void read(DataInput in, HeaderCodec codec) throws IOException {
+		int numHeaders = in.readInt();
+		if (numHeaders == HeaderCodec.COMPACT) {
+			if (codec == null) {
+				throw new IOException("Compact headers were not negotiated");
+			}
+			Headers = codec.read(in);
+		} else {
+			Headers = new HeaderDto[numHeaders];
+			for (int i = 0; i < Headers.length; i++) {
+				(Headers[i] = new HeaderDto()).read(in);
+			}
 		}
 		Content = new byte[in.readInt()];
 		in.readFully(Content);
 	}
 
 	@Override
-	public void write(DataOutput out) throws IOException {
-		out.writeInt(Headers.length);
-		for (int i = 0; i < Headers.length; i++) {
-			Headers[i].write(out);
+	public final void write(DataOutput out) throws IOException {
+		write(out, null);
+	}
+
+	/**
+	 * Without a codec, the headers are written plain (protocol version 1).
+	 */
+	public void write(DataOutput out, HeaderCodec codec) throws IOException {
+		if (codec == null) {
+			out.writeInt(Headers.length);
+			for (int i = 0; i < Headers.length; i++) {
+				Headers[i].write(out);
+			}
+		} else {
+			out.writeInt(HeaderCodec.COMPACT);
+			codec.write(out, Headers);
 		}
 		out.writeInt(Content.length);
 		out.write(Content);
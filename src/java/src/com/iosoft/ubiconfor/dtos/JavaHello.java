@@ -0,0 +1,54 @@
+package com.iosoft.ubiconfor.dtos;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Answer to WebserverHello with the protocol version both sides use from now
+ * on. From version 3 on, also how many channels the webserver should open, the
+ * others join with ChannelHello and the session token. From version 5 on, the
+ * file of the SharedMemoryChannel if the webserver offered it, the last channel
+ * then only joins and carries Doorbells.
+ */
+public final class JavaHello implements DataObject {
+	public static final byte MsgId = 6;
+	/**
+	 * 1: plain headers, 2: headers compressed with HeaderCodec, 3: several
+	 * channels, 4: CancelDto and RequestDataDto.TimeoutMillis, 5: shared memory.
+	 */
+	public static final int MaxProtocolVersion = 5;
+	public static final int SessionTokenLength = 16;
+
+	public int ProtocolVersion;
+	// only for version 3 and newer
+	public int NumChannels = 1;
+	public byte[] SessionToken;
+	// only for version 5 and newer, empty for none
+	public String SharedMemoryPath = "";
+
+	@Override
+	public void read(DataInput in) throws IOException {
+		ProtocolVersion = in.readInt();
+		if (ProtocolVersion >= 3) {
+			NumChannels = in.readInt();
+			SessionToken = new byte[SessionTokenLength];
+			in.readFully(SessionToken);
+		}
+		if (ProtocolVersion >= 5) {
+			SharedMemoryPath = in.readUTF();
+		}
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(ProtocolVersion);
+		if (ProtocolVersion >= 3) {
+			out.writeInt(NumChannels);
+			out.write(SessionToken);
+		}
+		if (ProtocolVersion >= 5) {
+			out.writeUTF(SharedMemoryPath);
+		}
+	}
+}
@@ -4,19 +4,27 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 
-public abstract class MessageDto<T extends DataObject> implements DataObject {
+public abstract class MessageDto<T extends HttpDataDto> implements DataObject {
 	public int RequestId;
 	public T Data;
 
 	@Override
 	public void read(DataInput in) throws IOException {
+		read(in, null);
+	}
+
+	public void read(DataInput in, HeaderCodec codec) throws IOException {
 		RequestId = in.readInt();
-		Data.read(in);
+		Data.read(in, codec);
 	}
 
 	@Override
 	public void write(DataOutput out) throws IOException {
+		write(out, null);
+	}
+
+	public void write(DataOutput out, HeaderCodec codec) throws IOException {
 		out.writeInt(RequestId);
-		Data.write(out);
+		Data.write(out, codec);
 	}
 }
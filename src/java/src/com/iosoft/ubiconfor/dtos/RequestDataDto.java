@@ -7,18 +7,32 @@ import java.io.IOException;
 public class RequestDataDto extends HttpDataDto {
 	public String Uri;
 	public String Method;
+	/**
+	 * How long the webserver waits for the response (head), 0 for the default.
+	 * From protocol version 4 on, it follows RequestDto and RequestHeadDto on the
+	 * wire (readTimeout), so read and write and the journal stay as they are.
+	 */
+	public int TimeoutMillis;
 
 	@Override
-	public void read(DataInput in) throws IOException {
+	public void read(DataInput in, HeaderCodec codec) throws IOException {
 		Uri = in.readUTF();
 		Method = in.readUTF();
-		super.read(in);
+		super.read(in, codec);
 	}
 
 	@Override
-	public void write(DataOutput out) throws IOException {
+	public void write(DataOutput out, HeaderCodec codec) throws IOException {
 		out.writeUTF(Uri);
 		out.writeUTF(Method);
-		super.write(out);
+		super.write(out, codec);
+	}
+
+	public void readTimeout(DataInput in) throws IOException {
+		TimeoutMillis = in.readInt();
+	}
+
+	public void writeTimeout(DataOutput out) throws IOException {
+		out.writeInt(TimeoutMillis);
 	}
 }
@@ -1,8 +1,22 @@
 package com.iosoft.ubiconfor.dtos;
 
+import com.iosoft.ubiconfor.trace.Trace;
+
 public class RequestDto extends MessageDto<RequestDataDto> {
 	public static final byte MsgId = 10;
 
+	/**
+	 * Not part of the message: the request arrived as RequestHeadDto and chunks,
+	 * so the response should be streamed back the same way.
+	 */
+	public boolean StreamResponse;
+
+	/**
+	 * Not part of the message either: stamped from the moment the frame arrived.
+	 * Null if it was not received from the webserver.
+	 */
+	public Trace Trace;
+
 	{
 		Data = new RequestDataDto();
 	}
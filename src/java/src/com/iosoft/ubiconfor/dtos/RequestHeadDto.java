@@ -0,0 +1,14 @@
+package com.iosoft.ubiconfor.dtos;
+
+/**
+ * Start of a request whose body follows as BodyChunkDto messages, ended by a
+ * BodyEndDto. Data.Content is empty. The response will be streamed the same
+ * way.
+ */
+public final class RequestHeadDto extends MessageDto<RequestDataDto> {
+	public static final byte MsgId = 13;
+
+	{
+		Data = new RequestDataDto();
+	}
+}
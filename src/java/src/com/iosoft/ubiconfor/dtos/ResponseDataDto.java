@@ -8,14 +8,14 @@ public class ResponseDataDto extends HttpDataDto {
 	public int StatusCode;
 
 	@Override
-	public void read(DataInput in) throws IOException {
+	public void read(DataInput in, HeaderCodec codec) throws IOException {
 		StatusCode = in.readInt();
-		super.read(in);
+		super.read(in, codec);
 	}
 
 	@Override
-	public void write(DataOutput out) throws IOException {
+	public void write(DataOutput out, HeaderCodec codec) throws IOException {
 		out.writeInt(StatusCode);
-		super.write(out);
+		super.write(out, codec);
 	}
 }
@@ -0,0 +1,12 @@
+package com.iosoft.ubiconfor.dtos;
+
+/**
+ * Status and headers of a streamed response, Data.Content is empty.
+ */
+public final class ResponseHeadDto extends MessageDto<ResponseDataDto> {
+	public static final byte MsgId = 3;
+
+	{
+		Data = new ResponseDataDto();
+	}
+}
@@ -0,0 +1,33 @@
+package com.iosoft.ubiconfor.dtos;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * First message of webservers that know protocol versions. Older ones don't
+ * send it and get version 1.
+ */
+public final class WebserverHello implements DataObject {
+	public static final byte MsgId = 16;
+
+	public int MaxProtocolVersion;
+	// only for version 5 and newer: the webserver can map a file from Java
+	public boolean SharedMemory;
+
+	@Override
+	public void read(DataInput in) throws IOException {
+		MaxProtocolVersion = in.readInt();
+		if (MaxProtocolVersion >= 5) {
+			SharedMemory = in.readBoolean();
+		}
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(MaxProtocolVersion);
+		if (MaxProtocolVersion >= 5) {
+			out.writeBoolean(SharedMemory);
+		}
+	}
+}
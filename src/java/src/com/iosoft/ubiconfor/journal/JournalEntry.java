@@ -0,0 +1,53 @@
+package com.iosoft.ubiconfor.journal;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.iosoft.ubiconfor.dtos.DataObject;
+import com.iosoft.ubiconfor.dtos.RequestDataDto;
+import com.iosoft.ubiconfor.dtos.ResponseDataDto;
+
+/**
+ * One request and its response, as recorded in the journal. Streamed
+ * responses have no content, only NumBytes.
+ */
+public final class JournalEntry implements DataObject {
+	/**
+	 * Wall clock, but with the precision of nanoTime within one run.
+	 */
+	public long StartMicros;
+	public long TotalNanos;
+	// -1 if upstream was not contacted
+	public long UpstreamNanos;
+	public long NumBytes;
+	// null if there was none
+	public String Error;
+	public RequestDataDto Request = new RequestDataDto();
+	public ResponseDataDto Response = new ResponseDataDto();
+
+	@Override
+	public void read(DataInput in) throws IOException {
+		StartMicros = in.readLong();
+		TotalNanos = in.readLong();
+		UpstreamNanos = in.readLong();
+		NumBytes = in.readLong();
+		Error = in.readBoolean() ? in.readUTF() : null;
+		Request.read(in);
+		Response.read(in);
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeLong(StartMicros);
+		out.writeLong(TotalNanos);
+		out.writeLong(UpstreamNanos);
+		out.writeLong(NumBytes);
+		out.writeBoolean(Error != null);
+		if (Error != null) {
+			out.writeUTF(Error.length() > 1000 ? Error.substring(0, 1000) : Error);
+		}
+		Request.write(out);
+		Response.write(out);
+	}
+}
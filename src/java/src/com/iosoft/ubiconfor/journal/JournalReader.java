@@ -0,0 +1,89 @@
+package com.iosoft.ubiconfor.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.iosoft.ubiconfor.wire.ByteBufferInput;
+
+/**
+ * All entries of a journal directory, sorted by their start time. Only the
+ * start times and durations are kept in memory, the entries are decoded from
+ * the mapped segments when needed.
+ */
+public final class JournalReader {
+	private final List<MappedByteBuffer> _segments = new ArrayList<>();
+	// sorted by start
+	private final long[] _startMicros, _totalNanos;
+	// segment index << 32 | position of the entry
+	private final long[] _locations;
+
+	public JournalReader(File dir) throws IOException {
+		List<long[]> index = new ArrayList<>();
+		for (File file : JournalRecorder.listSegments(dir)) {
+			MappedByteBuffer segment;
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+				segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			}
+			if (segment.remaining() < 4 || segment.getInt(0) != JournalRecorder.MAGIC) {
+				throw new IOException("Not a journal segment: " + file);
+			}
+			int segmentIndex = _segments.size();
+			_segments.add(segment);
+
+			int position = 4;
+			while (position + 4 <= segment.limit()) {
+				int length = segment.getInt(position);
+				if (length <= 0 || position + 4 + length > segment.limit()) {
+					break;
+				}
+				// StartMicros and TotalNanos are the first fields
+				index.add(new long[] { segment.getLong(position + 4), segment.getLong(position + 12),
+						(long) segmentIndex << 32 | (position + 4) });
+				position += 4 + length;
+			}
+		}
+
+		long[][] sorted = index.toArray(new long[0][]);
+		Arrays.sort(sorted, (a, b) -> Long.compare(a[0], b[0]));
+		_startMicros = new long[sorted.length];
+		_totalNanos = new long[sorted.length];
+		_locations = new long[sorted.length];
+		for (int i = 0; i < sorted.length; i++) {
+			_startMicros[i] = sorted[i][0];
+			_totalNanos[i] = sorted[i][1];
+			_locations[i] = sorted[i][2];
+		}
+	}
+
+	public int size() {
+		return _startMicros.length;
+	}
+
+	public long getStartMicros(int index) {
+		return _startMicros[index];
+	}
+
+	public long getTotalNanos(int index) {
+		return _totalNanos[index];
+	}
+
+	/**
+	 * Thread-safe.
+	 */
+	public JournalEntry read(int index) throws IOException {
+		ByteBuffer segment = _segments.get((int) (_locations[index] >>> 32)).duplicate();
+		int position = (int) _locations[index];
+		segment.limit(position + segment.getInt(position - 4));
+		segment.position(position);
+		JournalEntry entry = new JournalEntry();
+		entry.read(new ByteBufferInput().wrap(segment));
+		return entry;
+	}
+}
@@ -0,0 +1,188 @@
+package com.iosoft.ubiconfor.journal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.iosoft.ubiconfor.Config;
+import com.iosoft.ubiconfor.dtos.RequestDataDto;
+import com.iosoft.ubiconfor.dtos.ResponseDataDto;
+import com.iosoft.ubiconfor.log.Log;
+
+/**
+ * Records every request and response into memory-mapped segment files of a
+ * fixed size, for replaying them later. The request threads only queue the
+ * entry, a background thread encodes and writes it; if that falls behind,
+ * entries are dropped.
+ * <p>
+ * A segment is the magic number followed by "int length, JournalEntry" frames.
+ * The length is written last, so a length of 0 marks the end.
+ */
+public final class JournalRecorder {
+	static final int MAGIC = 0x55434A31; // "UCJ1"
+	static final String PREFIX = "journal-", SUFFIX = ".ucj";
+
+	private final File _dir;
+	private final int _segmentBytes, _maxSegments;
+	private final ArrayBlockingQueue<JournalEntry> _queue;
+	private final AtomicLong _numRecorded = new AtomicLong(), _numDropped = new AtomicLong();
+	// wall clock and nanoTime at the same moment
+	private final long _baseMicros = System.currentTimeMillis() * 1000, _baseNanos = System.nanoTime();
+
+	// only used by the writer thread
+	private final Deque<File> _segments = new ArrayDeque<>();
+	private final ByteArrayOutputStream _encoded = new ByteArrayOutputStream(64 * 1024);
+	private final DataOutputStream _encodedOut = new DataOutputStream(_encoded);
+	private MappedByteBuffer _segment;
+	private int _nextSegment;
+
+	/**
+	 * Null unless "-journal.dir" is set.
+	 */
+	public static JournalRecorder create() {
+		String dir = Config.getString("journal.dir", null);
+		if (dir == null) {
+			return null;
+		}
+		JournalRecorder recorder = new JournalRecorder(new File(dir),
+				Config.getInt("journal.segmentBytes", 64 * 1024 * 1024), Config.getInt("journal.maxSegments", 8),
+				Config.getInt("journal.queueSize", 1024));
+		Log.info("Recording traffic to " + recorder._dir.getAbsolutePath());
+		return recorder;
+	}
+
+	public JournalRecorder(File dir, int segmentBytes, int maxSegments, int queueSize) {
+		_dir = dir;
+		_segmentBytes = segmentBytes;
+		_maxSegments = Math.max(1, maxSegments);
+		_queue = new ArrayBlockingQueue<>(queueSize);
+
+		dir.mkdirs();
+		// continue after the segments of earlier runs, which count towards the limit
+		for (File file : listSegments(dir)) {
+			_segments.add(file);
+			_nextSegment = Math.max(_nextSegment, parseNumber(file) + 1);
+		}
+
+		Thread thread = new Thread(this::writeLoop, "Journal writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Never blocks. The DTOs must not change afterwards.
+	 */
+	public void record(long startNanos, long totalNanos, long upstreamNanos, long numBytes, Exception error,
+			RequestDataDto request, ResponseDataDto response) {
+		JournalEntry entry = new JournalEntry();
+		entry.StartMicros = _baseMicros + (startNanos - _baseNanos) / 1000;
+		entry.TotalNanos = totalNanos;
+		entry.UpstreamNanos = upstreamNanos;
+		entry.NumBytes = numBytes;
+		entry.Error = error == null ? null : error.toString();
+		entry.Request = request;
+		entry.Response = response;
+		if (!_queue.offer(entry)) {
+			_numDropped.incrementAndGet();
+		}
+	}
+
+	public long getNumRecorded() {
+		return _numRecorded.get();
+	}
+
+	public long getNumDropped() {
+		return _numDropped.get();
+	}
+
+	private void writeLoop() {
+		try {
+			while (true) {
+				write(_queue.take());
+			}
+		} catch (InterruptedException e) {
+			// only on exit
+		} catch (IOException | RuntimeException e) {
+			Log.error("Journal stopped", e);
+			// nobody takes them anymore
+			_queue.clear();
+		}
+	}
+
+	private void write(JournalEntry entry) throws IOException {
+		_encoded.reset();
+		entry.write(_encodedOut);
+		int length = _encoded.size();
+		// room for the length and the 0 after it
+		if (length + 8 > _segmentBytes - 4) {
+			Log.warn("Not recording a response of " + length + " bytes, bigger than a journal segment");
+			_numDropped.incrementAndGet();
+			return;
+		}
+		if (_segment == null || _segment.remaining() < length + 8) {
+			nextSegment();
+		}
+
+		int position = _segment.position();
+		_segment.position(position + 4);
+		_segment.put(_encoded.toByteArray(), 0, length);
+		// makes it visible to readers
+		_segment.putInt(position, length);
+		_numRecorded.incrementAndGet();
+	}
+
+	private void nextSegment() throws IOException {
+		while (_segments.size() >= _maxSegments) {
+			File oldest = _segments.peekFirst();
+			// a mapping that is not garbage collected yet keeps it alive on Windows
+			if (!oldest.delete() && oldest.exists()) {
+				Log.warn("Could not delete journal segment " + oldest + ", trying again later");
+				break;
+			}
+			_segments.removeFirst();
+		}
+
+		File file = new File(_dir, String.format("%s%06d%s", PREFIX, _nextSegment++, SUFFIX));
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(_segmentBytes);
+			// stays valid after closing the file
+			_segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, _segmentBytes);
+		}
+		_segment.putInt(MAGIC);
+		_segments.addLast(file);
+	}
+
+	static List<File> listSegments(File dir) {
+		List<File> result = new ArrayList<>();
+		File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+		if (files != null) {
+			for (File file : files) {
+				if (parseNumber(file) >= 0) {
+					result.add(file);
+				}
+			}
+		}
+		Collections.sort(result, (a, b) -> Integer.compare(parseNumber(a), parseNumber(b)));
+		return result;
+	}
+
+	private static int parseNumber(File file) {
+		String name = file.getName();
+		try {
+			return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
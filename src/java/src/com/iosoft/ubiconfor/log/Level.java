@@ -0,0 +1,5 @@
+package com.iosoft.ubiconfor.log;
+
+public enum Level {
+	TRACE, DEBUG, INFO, WARN, ERROR, OFF
+}
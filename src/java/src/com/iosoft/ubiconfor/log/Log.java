@@ -0,0 +1,221 @@
+package com.iosoft.ubiconfor.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.iosoft.ubiconfor.Config;
+
+/**
+ * Logging that costs the calling thread only a level check and a queue
+ * insert: the events are formatted and written by a background thread, to
+ * stdout and optionally a rolling file. If the writer cannot keep up, events
+ * are dropped (and counted) instead of slowing down requests.
+ * <p>
+ * Settings (read on first use, after the arguments were parsed):
+ * "-log.level=info", "-log.console=true", "-log.file=..." with
+ * "-log.maxFileBytes" and "-log.maxFiles", "-log.bodyBytes=0" (bodies are not
+ * logged by default) and "-log.bodySamplePercent=100".
+ */
+public final class Log {
+	private Log() {
+	}
+
+	private static final Level _level = parseLevel(Config.getString("log.level", "info"));
+	private static final int _bodyBytes = Config.getInt("log.bodyBytes", 0);
+	private static final int _bodySamplePercent = Config.getInt("log.bodySamplePercent", 100);
+	private static final LogRing<Event> _ring = new LogRing<>(Config.getInt("log.queueSize", 16 * 1024));
+	private static final AtomicLong _numDropped = new AtomicLong();
+	private static final Writer _writer = new Writer();
+
+	private static Level parseLevel(String value) {
+		try {
+			return Level.valueOf(value.trim().toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			System.out.println("Invalid log.level '" + value + "', using info");
+			return Level.INFO;
+		}
+	}
+
+	public static boolean isEnabled(Level level) {
+		return level.compareTo(_level) >= 0 && level != Level.OFF;
+	}
+
+	public static void trace(String message) {
+		log(Level.TRACE, message, null);
+	}
+
+	public static void debug(String message) {
+		log(Level.DEBUG, message, null);
+	}
+
+	public static void info(String message) {
+		log(Level.INFO, message, null);
+	}
+
+	public static void warn(String message) {
+		log(Level.WARN, message, null);
+	}
+
+	public static void error(String message, Throwable error) {
+		log(Level.ERROR, message, error);
+	}
+
+	/**
+	 * Build expensive messages only after checking isEnabled().
+	 */
+	public static void log(Level level, String message, Throwable error) {
+		if (!isEnabled(level)) {
+			return;
+		}
+		Event event = new Event(System.currentTimeMillis(), level, Thread.currentThread().getName(), message, error);
+		if (_ring.offer(event)) {
+			_writer.wakeUp();
+		} else {
+			_numDropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Logs the start of the body if body logging is on and this one is sampled.
+	 * Only the logged part is decoded.
+	 */
+	public static void body(String prefix, byte[] content) {
+		if (_bodyBytes <= 0 || !isEnabled(Level.INFO) || _bodySamplePercent < 100
+				&& ThreadLocalRandom.current().nextInt(100) >= _bodySamplePercent) {
+			return;
+		}
+		int length = Math.min(content.length, _bodyBytes);
+		info(prefix + new String(content, 0, length, StandardCharsets.UTF_8)
+				+ (length < content.length ? "... (" + content.length + " bytes)" : ""));
+	}
+
+	public static long getNumDropped() {
+		return _numDropped.get();
+	}
+
+	private static final class Event {
+		public final long TimeMillis;
+		public final Level Level;
+		public final String Thread, Message;
+		public final Throwable Error;
+
+		public Event(long timeMillis, Level level, String thread, String message, Throwable error) {
+			TimeMillis = timeMillis;
+			Level = level;
+			Thread = thread;
+			Message = message;
+			Error = error;
+		}
+	}
+
+	private static final class Writer implements Runnable {
+		private final Thread _thread = new Thread(this, "Log writer");
+		private final boolean _console = Config.getBoolean("log.console", true);
+		private final SimpleDateFormat _timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		private final StringBuilder _line = new StringBuilder(256);
+		private RollingFile _file;
+		private long _numDroppedReported;
+		private volatile boolean _sleeping;
+
+		Writer() {
+			String file = Config.getString("log.file", null);
+			if (file != null) {
+				try {
+					_file = new RollingFile(new File(file), Config.getInt("log.maxFileBytes", 10 * 1024 * 1024),
+							Config.getInt("log.maxFiles", 5));
+				} catch (IOException e) {
+					System.out.println("Could not open log file '" + file + "': " + e);
+				}
+			}
+			_thread.setDaemon(true);
+			_thread.start();
+			// whatever is still queued when we exit
+			Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "Log flush"));
+		}
+
+		void wakeUp() {
+			if (_sleeping) {
+				LockSupport.unpark(_thread);
+			}
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				if (!drain()) {
+					_sleeping = true;
+					// checked again, an event may have come in before _sleeping was set
+					if (!drain()) {
+						LockSupport.parkNanos(this, 100_000_000);
+					}
+					_sleeping = false;
+				}
+			}
+		}
+
+		/**
+		 * Writes everything queued, returns false if there was nothing.
+		 */
+		private synchronized boolean drain() {
+			Event event = _ring.poll();
+			if (event == null) {
+				return false;
+			}
+			do {
+				write(event);
+			} while ((event = _ring.poll()) != null);
+
+			long numDropped = _numDropped.get();
+			if (numDropped != _numDroppedReported) {
+				write(new Event(System.currentTimeMillis(), Level.WARN, _thread.getName(),
+						(numDropped - _numDroppedReported) + " log messages dropped", null));
+				_numDroppedReported = numDropped;
+			}
+			if (_console) {
+				System.out.flush();
+			}
+			if (_file != null) {
+				try {
+					_file.flush();
+				} catch (IOException e) {
+					// reported on the next write
+				}
+			}
+			return true;
+		}
+
+		private void write(Event event) {
+			StringBuilder sb = _line;
+			sb.setLength(0);
+			sb.append(_timeFormat.format(new Date(event.TimeMillis))).append(' ').append(event.Level).append(" [")
+					.append(event.Thread).append("] ").append(event.Message);
+			if (event.Error != null) {
+				StringWriter trace = new StringWriter();
+				event.Error.printStackTrace(new PrintWriter(trace));
+				sb.append(System.lineSeparator()).append(trace.toString().trim());
+			}
+			String line = sb.append(System.lineSeparator()).toString();
+
+			if (_console) {
+				System.out.print(line);
+			}
+			if (_file != null) {
+				try {
+					_file.write(line.getBytes(StandardCharsets.UTF_8));
+				} catch (IOException e) {
+					System.out.println("Could not write log file, stopping: " + e);
+					_file = null;
+				}
+			}
+		}
+	}
+}
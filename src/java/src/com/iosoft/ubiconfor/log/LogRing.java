@@ -0,0 +1,50 @@
+package com.iosoft.ubiconfor.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded queue for many producers and one consumer without locks. Producers
+ * claim a slot with a CAS and publish into it, the consumer takes the slots in
+ * order. If it is full, offer() fails right away instead of blocking.
+ */
+final class LogRing<T> {
+	private final AtomicReferenceArray<T> _slots;
+	private final int _mask;
+	private final AtomicLong _tail = new AtomicLong();
+	// only written by the consumer
+	private volatile long _head;
+
+	LogRing(int minCapacity) {
+		int capacity = Integer.highestOneBit(Math.max(2, minCapacity) - 1) << 1;
+		_slots = new AtomicReferenceArray<>(capacity);
+		_mask = capacity - 1;
+	}
+
+	boolean offer(T value) {
+		long tail;
+		do {
+			tail = _tail.get();
+			if (tail - _head >= _slots.length()) {
+				return false;
+			}
+		} while (!_tail.compareAndSet(tail, tail + 1));
+		_slots.lazySet((int) tail & _mask, value);
+		return true;
+	}
+
+	/**
+	 * Only for the consumer thread, null if empty or the next value is not
+	 * published yet.
+	 */
+	T poll() {
+		long head = _head;
+		int slot = (int) head & _mask;
+		T value = _slots.get(slot);
+		if (value != null) {
+			_slots.lazySet(slot, null);
+			_head = head + 1;
+		}
+		return value;
+	}
+}
@@ -0,0 +1,57 @@
+package com.iosoft.ubiconfor.log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * "name" is the current file, "name.1" to "name.N" the older ones. Only used
+ * by one writer thread, for the log and the trace export.
+ */
+public final class RollingFile {
+	private final File _file;
+	private final long _maxBytes;
+	private final int _maxFiles;
+	private OutputStream _out;
+	private long _size;
+
+	public RollingFile(File file, long maxBytes, int maxFiles) throws IOException {
+		_file = file;
+		_maxBytes = maxBytes;
+		_maxFiles = maxFiles;
+		open();
+	}
+
+	private void open() throws IOException {
+		_size = _file.length();
+		_out = new BufferedOutputStream(new FileOutputStream(_file, true), 64 * 1024);
+	}
+
+	public void write(byte[] bytes) throws IOException {
+		if (_size > 0 && _size + bytes.length > _maxBytes) {
+			roll();
+		}
+		_out.write(bytes);
+		_size += bytes.length;
+	}
+
+	private void roll() throws IOException {
+		_out.close();
+		new File(_file.getPath() + "." + _maxFiles).delete();
+		for (int i = _maxFiles - 1; i >= 1; i--) {
+			new File(_file.getPath() + "." + i).renameTo(new File(_file.getPath() + "." + (i + 1)));
+		}
+		if (_maxFiles > 0) {
+			_file.renameTo(new File(_file.getPath() + ".1"));
+		} else {
+			_file.delete();
+		}
+		open();
+	}
+
+	public void flush() throws IOException {
+		_out.flush();
+	}
+}
@@ -0,0 +1,56 @@
+package com.iosoft.ubiconfor.metrics;
+
+final class Endpoint implements EndpointMXBean {
+	final String Method, Uri;
+	final Histogram Total = new Histogram(), Upstream = new Histogram();
+
+	Endpoint(String method, String uri) {
+		Method = method;
+		Uri = uri;
+	}
+
+	@Override
+	public String getMethod() {
+		return Method;
+	}
+
+	@Override
+	public String getUri() {
+		return Uri;
+	}
+
+	@Override
+	public long getCount() {
+		return Total.snapshot().Count;
+	}
+
+	@Override
+	public double getP50Millis() {
+		return Total.snapshot().getMillis(0.5);
+	}
+
+	@Override
+	public double getP99Millis() {
+		return Total.snapshot().getMillis(0.99);
+	}
+
+	@Override
+	public double getP999Millis() {
+		return Total.snapshot().getMillis(0.999);
+	}
+
+	@Override
+	public double getUpstreamP50Millis() {
+		return Upstream.snapshot().getMillis(0.5);
+	}
+
+	@Override
+	public double getUpstreamP99Millis() {
+		return Upstream.snapshot().getMillis(0.99);
+	}
+
+	@Override
+	public double getUpstreamP999Millis() {
+		return Upstream.snapshot().getMillis(0.999);
+	}
+}
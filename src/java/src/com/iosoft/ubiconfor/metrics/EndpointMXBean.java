@@ -0,0 +1,24 @@
+package com.iosoft.ubiconfor.metrics;
+
+/**
+ * Latencies of one method and URI template, in milliseconds.
+ */
+public interface EndpointMXBean {
+	String getMethod();
+
+	String getUri();
+
+	long getCount();
+
+	double getP50Millis();
+
+	double getP99Millis();
+
+	double getP999Millis();
+
+	double getUpstreamP50Millis();
+
+	double getUpstreamP99Millis();
+
+	double getUpstreamP999Millis();
+}
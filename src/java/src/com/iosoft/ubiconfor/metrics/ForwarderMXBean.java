@@ -0,0 +1,23 @@
+package com.iosoft.ubiconfor.metrics;
+
+import java.util.Map;
+
+public interface ForwarderMXBean {
+	long getRequests();
+
+	long getErrors();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	/**
+	 * Status code to count.
+	 */
+	Map<String, Long> getStatusCodes();
+
+	/**
+	 * Exception type to count.
+	 */
+	Map<String, Long> getErrorTypes();
+}
@@ -0,0 +1,106 @@
+package com.iosoft.ubiconfor.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram in the style of HdrHistogram: every power of two is split
+ * into 16 linear buckets, so values are kept with about 6% precision from 1
+ * microsecond to many hours. Recording is a few atomic increments, no locks or
+ * allocations.
+ */
+public final class Histogram {
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// in microseconds, 2^36 us is about 19 hours
+	private static final int MAX_EXPONENT = 36;
+	private static final int NUM_BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray _counts = new AtomicLongArray(NUM_BUCKETS);
+	private final LongAdder _sumMicros = new LongAdder();
+
+	public void record(long nanos) {
+		long micros = Math.min(Math.max(0, nanos / 1000), (1L << (MAX_EXPONENT + 1)) - 1);
+		_counts.incrementAndGet(indexOf(micros));
+		_sumMicros.add(micros);
+	}
+
+	private static int indexOf(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(micros));
+		int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	// the middle of the bucket
+	private static long valueOf(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return (1L << exponent) + (index % SUB_BUCKETS) * width + width / 2;
+	}
+
+	public Snapshot snapshot() {
+		long[] counts = new long[NUM_BUCKETS];
+		long total = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			counts[i] = _counts.get(i);
+			total += counts[i];
+		}
+		return new Snapshot(counts, total, _sumMicros.sum());
+	}
+
+	/**
+	 * Consistent enough: taken while values are still being recorded.
+	 */
+	public static final class Snapshot {
+		private final long[] _counts;
+		public final long Count;
+		public final long SumMicros;
+
+		private Snapshot(long[] counts, long count, long sumMicros) {
+			_counts = counts;
+			Count = count;
+			SumMicros = sumMicros;
+		}
+
+		/**
+		 * quantile is between 0 and 1, returns 0 if empty.
+		 */
+		public double getMillis(double quantile) {
+			if (Count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(quantile * Count));
+			long seen = 0;
+			for (int i = 0; i < _counts.length; i++) {
+				seen += _counts[i];
+				if (seen >= rank) {
+					return valueOf(i) / 1000.0;
+				}
+			}
+			return valueOf(_counts.length - 1) / 1000.0;
+		}
+
+		/**
+		 * Counts of values up to each of the bounds (in seconds), for Prometheus.
+		 */
+		public long[] getCumulativeCounts(double[] boundsSeconds) {
+			long[] result = new long[boundsSeconds.length];
+			int bucket = 0;
+			long seen = 0;
+			for (int i = 0; i < boundsSeconds.length; i++) {
+				double boundMicros = boundsSeconds[i] * 1_000_000;
+				while (bucket < _counts.length && valueOf(bucket) <= boundMicros) {
+					seen += _counts[bucket++];
+				}
+				result[i] = seen;
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package com.iosoft.ubiconfor.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.iosoft.ubiconfor.log.Log;
+
+/**
+ * Latencies per method and URI template, plus counters for everything. Written
+ * by the request threads, read as Prometheus text or via JMX.
+ */
+public final class Metrics implements ForwarderMXBean {
+	private static final String JMX_DOMAIN = "com.iosoft.ubiconfor";
+	private static final double[] BUCKET_SECONDS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1,
+			2.5, 5, 10, 30, 60 };
+	private static final int MAX_STATUS_CODE = 599;
+	private static final int MAX_CACHED_URIS = 4096;
+
+	private final int _maxEndpoints;
+	private final Map<String, Endpoint> _endpoints = new ConcurrentHashMap<>();
+	private final Map<String, Endpoint> _byUri = new ConcurrentHashMap<>();
+	private final LongAdder _requests = new LongAdder(), _errors = new LongAdder(), _bytesIn = new LongAdder(),
+			_bytesOut = new LongAdder();
+	private final AtomicLongArray _statusCodes = new AtomicLongArray(MAX_STATUS_CODE + 1);
+	private final Map<String, LongAdder> _errorTypes = new ConcurrentHashMap<>();
+	private final Map<String, Lane> _lanes = new ConcurrentHashMap<>();
+	private final Map<String, Long> _startupNanos = new ConcurrentHashMap<>();
+	private volatile MBeanServer _mbeanServer;
+
+	/**
+	 * Requests for more URI templates than maxEndpoints are counted as "other".
+	 */
+	public Metrics(int maxEndpoints) {
+		_maxEndpoints = maxEndpoints;
+	}
+
+	/**
+	 * upstreamNanos is negative if the request never got to upstream.
+	 */
+	public void record(String method, String uri, int statusCode, long totalNanos, long upstreamNanos,
+			long bytesIn, long bytesOut, Exception error) {
+		Endpoint endpoint = getEndpoint(method, uri);
+		endpoint.Total.record(totalNanos);
+		if (upstreamNanos >= 0) {
+			endpoint.Upstream.record(upstreamNanos);
+		}
+		_requests.increment();
+		_bytesIn.add(bytesIn);
+		_bytesOut.add(bytesOut);
+		_statusCodes.incrementAndGet(Math.max(0, Math.min(MAX_STATUS_CODE, statusCode)));
+		if (error != null) {
+			_errors.increment();
+			_errorTypes.computeIfAbsent(error.getClass().getSimpleName(), x -> new LongAdder()).increment();
+		}
+	}
+
+	private Endpoint getEndpoint(String method, String uri) {
+		// normalizing costs a few 100 ns, looking up the exact same URI less
+		Endpoint endpoint = _byUri.get(uri);
+		if (endpoint != null && endpoint.Method.equals(method)) {
+			return endpoint;
+		}
+		endpoint = getEndpointSlow(method, uri);
+		if (_byUri.size() >= MAX_CACHED_URIS) {
+			_byUri.clear();
+		}
+		_byUri.put(uri, endpoint);
+		return endpoint;
+	}
+
+	private Endpoint getEndpointSlow(String method, String uri) {
+		String template = UriTemplates.normalize(uri);
+		String key = method + " " + template;
+		Endpoint endpoint = _endpoints.get(key);
+		if (endpoint != null) {
+			return endpoint;
+		}
+		if (_endpoints.size() >= _maxEndpoints) {
+			template = "other";
+			key = method + " " + template;
+		}
+		String finalTemplate = template;
+		return _endpoints.computeIfAbsent(key, x -> register(new Endpoint(method, finalTemplate)));
+	}
+
+	/**
+	 * Reports the occupancy of an admission lane, sampled when scraped.
+	 */
+	public void addLane(String name, IntSupplier running, IntSupplier queued, LongSupplier rejected) {
+		_lanes.put(name, new Lane(running, queued, rejected));
+	}
+
+	/**
+	 * How long a step of the startup took.
+	 */
+	public void recordStartupStep(String step, long nanos) {
+		_startupNanos.put(step, nanos);
+	}
+
+	/**
+	 * Registers this and all endpoints, also the ones that come later.
+	 */
+	public void registerMBeans() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.registerMBean(this, new ObjectName(JMX_DOMAIN + ":type=Forwarder"));
+		} catch (Exception e) {
+			Log.warn("Could not register MBean: " + e);
+			return;
+		}
+		_mbeanServer = server;
+		_endpoints.values().forEach(this::register);
+	}
+
+	private Endpoint register(Endpoint endpoint) {
+		MBeanServer server = _mbeanServer;
+		if (server != null) {
+			try {
+				server.registerMBean(endpoint, new ObjectName(JMX_DOMAIN + ":type=Endpoint,name="
+						+ ObjectName.quote(endpoint.Method + " " + endpoint.Uri)));
+			} catch (Exception e) {
+				// already there if registerMBeans() raced with a new endpoint
+			}
+		}
+		return endpoint;
+	}
+
+	public String toPrometheusText() {
+		StringBuilder sb = new StringBuilder(4096);
+		appendCounter(sb, "ubiconfor_requests_total", "Requests answered.", _requests.sum());
+		appendCounter(sb, "ubiconfor_errors_total", "Requests that failed.", _errors.sum());
+		appendCounter(sb, "ubiconfor_request_bytes_total", "Request body bytes.", _bytesIn.sum());
+		appendCounter(sb, "ubiconfor_response_bytes_total", "Response body bytes.", _bytesOut.sum());
+
+		sb.append("# HELP ubiconfor_responses_total Responses by status code.\n");
+		sb.append("# TYPE ubiconfor_responses_total counter\n");
+		getStatusCodes().forEach((code, count) -> sb.append("ubiconfor_responses_total{code=\"").append(code)
+				.append("\"} ").append(count).append('\n'));
+
+		sb.append("# HELP ubiconfor_error_types_total Failed requests by exception type.\n");
+		sb.append("# TYPE ubiconfor_error_types_total counter\n");
+		getErrorTypes().forEach((type, count) -> sb.append("ubiconfor_error_types_total{type=\"")
+				.append(escape(type)).append("\"} ").append(count).append('\n'));
+
+		Map<String, Lane> lanes = new TreeMap<>(_lanes);
+		appendLanes(sb, "ubiconfor_lane_running", "Requests running per lane.", "gauge", lanes,
+				lane -> lane.Running.getAsInt());
+		appendLanes(sb, "ubiconfor_lane_queued", "Requests waiting per lane.", "gauge", lanes,
+				lane -> lane.Queued.getAsInt());
+		appendLanes(sb, "ubiconfor_lane_rejected_total", "Requests rejected per lane.", "counter", lanes,
+				lane -> lane.Rejected.getAsLong());
+
+		sb.append("# HELP ubiconfor_startup_step_seconds Time each startup step took.\n");
+		sb.append("# TYPE ubiconfor_startup_step_seconds gauge\n");
+		new TreeMap<>(_startupNanos).forEach((step, nanos) -> sb.append("ubiconfor_startup_step_seconds{step=\"")
+				.append(escape(step)).append("\"} ").append(nanos / 1e9).append('\n'));
+
+		Map<String, Endpoint> endpoints = new TreeMap<>(_endpoints);
+		appendHistograms(sb, "ubiconfor_request_duration_seconds", "Time from receiving to answering a request.",
+				endpoints, false);
+		appendHistograms(sb, "ubiconfor_upstream_duration_seconds", "Time spent in the upstream client.",
+				endpoints, true);
+		return sb.toString();
+	}
+
+	private static void appendCounter(StringBuilder sb, String name, String help, long value) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(" counter\n");
+		sb.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void appendLanes(StringBuilder sb, String name, String help, String type, Map<String, Lane> lanes,
+			ToLongFunction<Lane> value) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		lanes.forEach((laneName, lane) -> sb.append(name).append("{lane=\"").append(escape(laneName)).append("\"} ")
+				.append(value.applyAsLong(lane)).append('\n'));
+	}
+
+	private static void appendHistograms(StringBuilder sb, String name, String help, Map<String, Endpoint> endpoints,
+			boolean upstream) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(" histogram\n");
+		for (Endpoint endpoint : endpoints.values()) {
+			Histogram.Snapshot snapshot = (upstream ? endpoint.Upstream : endpoint.Total).snapshot();
+			if (snapshot.Count == 0) {
+				continue;
+			}
+			String labels = "method=\"" + escape(endpoint.Method) + "\",uri=\"" + escape(endpoint.Uri) + "\"";
+			long[] counts = snapshot.getCumulativeCounts(BUCKET_SECONDS);
+			for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+				sb.append(name).append("_bucket{").append(labels).append(",le=\"").append(BUCKET_SECONDS[i])
+						.append("\"} ").append(counts[i]).append('\n');
+			}
+			sb.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(snapshot.Count)
+					.append('\n');
+			sb.append(name).append("_sum{").append(labels).append("} ").append(snapshot.SumMicros / 1e6)
+					.append('\n');
+			sb.append(name).append("_count{").append(labels).append("} ").append(snapshot.Count).append('\n');
+		}
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	@Override
+	public long getRequests() {
+		return _requests.sum();
+	}
+
+	@Override
+	public long getErrors() {
+		return _errors.sum();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return _bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return _bytesOut.sum();
+	}
+
+	@Override
+	public Map<String, Long> getStatusCodes() {
+		Map<String, Long> result = new TreeMap<>();
+		for (int i = 0; i <= MAX_STATUS_CODE; i++) {
+			long count = _statusCodes.get(i);
+			if (count > 0) {
+				result.put(Integer.toString(i), count);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getErrorTypes() {
+		Map<String, Long> result = new TreeMap<>();
+		_errorTypes.forEach((type, count) -> result.put(type, count.sum()));
+		return result;
+	}
+
+	private static final class Lane {
+		public final IntSupplier Running, Queued;
+		public final LongSupplier Rejected;
+
+		Lane(IntSupplier running, IntSupplier queued, LongSupplier rejected) {
+			Running = running;
+			Queued = queued;
+			Rejected = rejected;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package com.iosoft.ubiconfor.metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import com.iosoft.ubiconfor.log.Log;
+
+/**
+ * Serves "GET /metrics" in Prometheus text format, on the loopback interface
+ * only. Requests are handled one after another, scrapes are rare.
+ */
+public final class MetricsServer {
+	private static final int TIMEOUT_MILLIS = 5000;
+
+	private final Metrics _metrics;
+	private ServerSocket _serverSocket;
+
+	public MetricsServer(Metrics metrics) {
+		_metrics = metrics;
+	}
+
+	public void start(int port) throws IOException {
+		_serverSocket = new ServerSocket();
+		_serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		Thread thread = new Thread(this::acceptLoop, "Metrics server");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void acceptLoop() {
+		while (!_serverSocket.isClosed()) {
+			try (Socket socket = _serverSocket.accept()) {
+				socket.setSoTimeout(TIMEOUT_MILLIS);
+				handle(socket);
+			} catch (IOException e) {
+				if (!_serverSocket.isClosed()) {
+					Log.debug("Metrics request failed: " + e);
+				}
+			}
+		}
+	}
+
+	private void handle(Socket socket) throws IOException {
+		String requestLine = readHead(socket.getInputStream());
+		String[] parts = requestLine.split(" ");
+		int status;
+		String body;
+		if (parts.length < 2 || !parts[0].equals("GET")) {
+			status = 405;
+			body = "Only GET\n";
+		} else if (parts[1].equals("/metrics") || parts[1].startsWith("/metrics?")) {
+			status = 200;
+			body = _metrics.toPrometheusText();
+		} else {
+			status = 404;
+			body = "Try /metrics\n";
+		}
+
+		byte[] content = body.getBytes(StandardCharsets.UTF_8);
+		String head = "HTTP/1.1 " + status + (status == 200 ? " OK" : " Error") + "\r\n"
+				+ "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n" + "Content-Length: " + content.length
+				+ "\r\n" + "Connection: close\r\n\r\n";
+		OutputStream out = socket.getOutputStream();
+		out.write(head.getBytes(StandardCharsets.ISO_8859_1));
+		out.write(content);
+		out.flush();
+	}
+
+	/**
+	 * Returns the request line, skips the headers.
+	 */
+	private static String readHead(InputStream in) throws IOException {
+		StringBuilder requestLine = new StringBuilder();
+		int lineLength = 0, numLines = 0, b;
+		while ((b = in.read()) >= 0) {
+			if (b == '\n') {
+				if (lineLength == 0) {
+					break;
+				}
+				numLines++;
+				lineLength = 0;
+			} else if (b != '\r') {
+				if (numLines == 0 && requestLine.length() < 1024) {
+					requestLine.append((char) b);
+				}
+				lineLength++;
+			}
+		}
+		return requestLine.toString();
+	}
+
+	public void stop() {
+		try {
+			_serverSocket.close();
+		} catch (IOException e) {
+			// ignored
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package com.iosoft.ubiconfor.metrics;
+
+/**
+ * Turns "https://host/v1/profiles/0b8c.../friends?x=1" into
+ * "/v1/profiles/{id}/friends", so that all users and objects end up in the same
+ * histogram.
+ */
+public final class UriTemplates {
+	private UriTemplates() {
+	}
+
+	public static String normalize(String uri) {
+		int start = uri.indexOf("://");
+		start = start < 0 ? 0 : uri.indexOf('/', start + 3);
+		if (start < 0) {
+			return "/";
+		}
+		int end = uri.length();
+		for (int i = start; i < end; i++) {
+			char c = uri.charAt(i);
+			if (c == '?' || c == '#') {
+				end = i;
+			}
+		}
+
+		StringBuilder sb = null;
+		int segmentStart = start + 1;
+		for (int i = segmentStart; i <= end; i++) {
+			if (i < end && uri.charAt(i) != '/') {
+				continue;
+			}
+			if (isId(uri, segmentStart, i)) {
+				if (sb == null) {
+					sb = new StringBuilder(end - start).append(uri, start, segmentStart);
+				}
+				sb.append("{id}");
+			} else if (sb != null) {
+				sb.append(uri, segmentStart, i);
+			}
+			if (sb != null && i < end) {
+				sb.append('/');
+			}
+			segmentStart = i + 1;
+		}
+		return sb == null ? uri.substring(start, end) : sb.toString();
+	}
+
+	/**
+	 * Numbers, UUIDs, long hex strings and other long tokens with digits.
+	 */
+	private static boolean isId(String uri, int start, int end) {
+		int length = end - start;
+		if (length == 0) {
+			return false;
+		}
+		boolean allDigits = true, allHex = true, hasDigit = false;
+		for (int i = start; i < end; i++) {
+			char c = uri.charAt(i);
+			boolean digit = c >= '0' && c <= '9';
+			hasDigit |= digit;
+			allDigits &= digit;
+			allHex &= digit || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F' || c == '-';
+		}
+		return allDigits || allHex && length >= 16 || hasDigit && length >= 24;
+	}
+}
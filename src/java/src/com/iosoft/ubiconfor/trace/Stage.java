@@ -0,0 +1,28 @@
+package com.iosoft.ubiconfor.trace;
+
+/**
+ * The points a request passes, in order. Each one is named after the time
+ * since the previous stamped one, as not every request passes all of them: a
+ * reused connection has no DNS, connect or TLS.
+ */
+public enum Stage {
+	RECEIVED("receive"), // frame read from the webserver
+	DECODED("decode"),
+	SUBMITTED("dispatch"), // handed to its admission lane
+	STARTED("queue"), // a worker picked it up
+	RESOLVED("dns"),
+	CONNECTED("connect"),
+	HANDSHAKEN("tls"),
+	SENT("send"), // request written upstream
+	FIRST_BYTE("ttfb"),
+	RECEIVED_BODY("body"), // response complete, also from the cache
+	ANSWERED("reply"); // response encoded and queued to the webserver
+
+	static final Stage[] VALUES = values();
+
+	public final String Label;
+
+	Stage(String label) {
+		Label = label;
+	}
+}
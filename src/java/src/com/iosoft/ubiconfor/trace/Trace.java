@@ -0,0 +1,130 @@
+package com.iosoft.ubiconfor.trace;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When a request passed each stage, as System.nanoTime(). Stamping only
+ * writes into the array allocated with it. Stamped by one thread at a time, the
+ * hand-over between them (queue, executor) publishes the stamps. The request
+ * thread binds it with setCurrent, so the upstream client can find it.
+ */
+public final class Trace {
+	private static final ThreadLocal<Trace> _current = new ThreadLocal<>();
+
+	// 0 if not stamped
+	private final long[] _nanos = new long[Stage.VALUES.length];
+
+	/**
+	 * Null if the thread has none.
+	 */
+	public static Trace getCurrent() {
+		return _current.get();
+	}
+
+	/**
+	 * null removes it again.
+	 */
+	public static void setCurrent(Trace trace) {
+		if (trace == null) {
+			_current.remove();
+		} else {
+			_current.set(trace);
+		}
+	}
+
+	/**
+	 * Stamps the trace of this thread, if it has one.
+	 */
+	public static void stampCurrent(Stage stage) {
+		Trace trace = _current.get();
+		if (trace != null) {
+			trace.stamp(stage);
+		}
+	}
+
+	/**
+	 * A stage passed more than once (a retry on a new connection) keeps the last
+	 * time.
+	 */
+	public void stamp(Stage stage) {
+		long nanos = System.nanoTime();
+		// 0 means not stamped
+		_nanos[stage.ordinal()] = nanos == 0 ? 1 : nanos;
+	}
+
+	public boolean isStamped(Stage stage) {
+		return _nanos[stage.ordinal()] != 0;
+	}
+
+	/**
+	 * 0 if not stamped.
+	 */
+	public long getNanos(Stage stage) {
+		return _nanos[stage.ordinal()];
+	}
+
+	/**
+	 * The first stamp, 0 if there is none.
+	 */
+	public long getStartNanos() {
+		for (long nanos : _nanos) {
+			if (nanos != 0) {
+				return nanos;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * The last stamp, 0 if there is none.
+	 */
+	public long getEndNanos() {
+		for (int i = _nanos.length - 1; i >= 0; i--) {
+			if (_nanos[i] != 0) {
+				return _nanos[i];
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * The time from the previous stamp to this one, -1 if not stamped or if it is
+	 * the first.
+	 */
+	public long getDurationNanos(Stage stage) {
+		long end = _nanos[stage.ordinal()];
+		if (end == 0) {
+			return -1;
+		}
+		for (int i = stage.ordinal() - 1; i >= 0; i--) {
+			if (_nanos[i] != 0) {
+				return end - _nanos[i];
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Like "decode 0.02 ms, queue 1.50 ms, ttfb 20.31 ms", only the stamped
+	 * stages.
+	 */
+	public String describe() {
+		StringBuilder sb = new StringBuilder(128);
+		for (Stage stage : Stage.VALUES) {
+			long nanos = getDurationNanos(stage);
+			if (nanos >= 0) {
+				if (sb.length() > 0) {
+					sb.append(", ");
+				}
+				sb.append(stage.Label).append(' ').append(formatMillis(nanos)).append(" ms");
+			}
+		}
+		return sb.toString();
+	}
+
+	static String formatMillis(long nanos) {
+		long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+		long hundredths = (micros + 5) / 10;
+		return hundredths / 100 + "." + (hundredths % 100 < 10 ? "0" : "") + hundredths % 100;
+	}
+}
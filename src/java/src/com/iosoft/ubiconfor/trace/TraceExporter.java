@@ -0,0 +1,214 @@
+package com.iosoft.ubiconfor.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.iosoft.ubiconfor.Config;
+import com.iosoft.ubiconfor.log.Log;
+import com.iosoft.ubiconfor.log.RollingFile;
+import com.iosoft.ubiconfor.metrics.UriTemplates;
+
+/**
+ * Writes the traces of completed requests to "-trace.file" as OTLP JSON, one
+ * ExportTraceServiceRequest per line, like the file exporter of the
+ * OpenTelemetry collector. That can be read back by its "otlpjsonfile"
+ * receiver or looked at as it is, so nothing has to run next to us. Each
+ * request is a span with a child span per stage.
+ * <p>
+ * The request threads only queue the trace, a background thread encodes and
+ * writes it; if that falls behind, traces are dropped.
+ */
+public final class TraceExporter {
+	private static final int MAX_BATCH = 256;
+	private static final int SPAN_KIND_INTERNAL = 1, SPAN_KIND_SERVER = 2, STATUS_CODE_ERROR = 2;
+
+	private final RollingFile _file;
+	private final ArrayBlockingQueue<Span> _queue;
+	private final AtomicLong _numExported = new AtomicLong(), _numDropped = new AtomicLong();
+	// wall clock and nanoTime at the same moment
+	private final long _baseUnixNanos = System.currentTimeMillis() * 1_000_000, _baseNanos = System.nanoTime();
+
+	// only used by the writer thread
+	private final Random _random = new Random();
+	private final StringBuilder _line = new StringBuilder(64 * 1024);
+
+	/**
+	 * Null unless "-trace.file" is set.
+	 */
+	public static TraceExporter create() {
+		String file = Config.getString("trace.file", null);
+		if (file == null) {
+			return null;
+		}
+		try {
+			TraceExporter exporter = new TraceExporter(new File(file),
+					Config.getInt("trace.maxFileBytes", 64 * 1024 * 1024), Config.getInt("trace.maxFiles", 4),
+					Config.getInt("trace.queueSize", 4096));
+			Log.info("Exporting traces to " + new File(file).getAbsolutePath());
+			return exporter;
+		} catch (IOException e) {
+			Log.warn("Could not open trace file '" + file + "': " + e);
+			return null;
+		}
+	}
+
+	public TraceExporter(File file, long maxFileBytes, int maxFiles, int queueSize) throws IOException {
+		_file = new RollingFile(file, maxFileBytes, maxFiles);
+		_queue = new ArrayBlockingQueue<>(queueSize);
+
+		Thread thread = new Thread(this::writeLoop, "Trace writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Never blocks. The trace must not be stamped afterwards. error is null if
+	 * there was none.
+	 */
+	public void export(Trace trace, String method, String uri, int statusCode, String error) {
+		if (!_queue.offer(new Span(trace, method, uri, statusCode, error))) {
+			_numDropped.incrementAndGet();
+		}
+	}
+
+	public long getNumExported() {
+		return _numExported.get();
+	}
+
+	public long getNumDropped() {
+		return _numDropped.get();
+	}
+
+	private void writeLoop() {
+		List<Span> batch = new ArrayList<>(MAX_BATCH);
+		try {
+			while (true) {
+				batch.add(_queue.take());
+				_queue.drainTo(batch, MAX_BATCH - 1);
+				write(batch);
+				_numExported.addAndGet(batch.size());
+				batch.clear();
+				if (_queue.isEmpty()) {
+					_file.flush();
+				}
+			}
+		} catch (InterruptedException e) {
+			// only on exit
+		} catch (IOException | RuntimeException e) {
+			Log.error("Trace export stopped", e);
+			// nobody takes them anymore
+			_queue.clear();
+		}
+	}
+
+	private void write(List<Span> batch) throws IOException {
+		StringBuilder sb = _line;
+		sb.setLength(0);
+		sb.append("{\"resourceSpans\":[{\"resource\":{\"attributes\":[");
+		appendAttribute(sb, "service.name", "ubiconfor");
+		sb.append("]},\"scopeSpans\":[{\"scope\":{\"name\":\"com.iosoft.ubiconfor\"},\"spans\":[");
+		boolean first = true;
+		for (Span span : batch) {
+			first = appendSpans(sb, span, first);
+		}
+		sb.append("]}]}]}\n");
+		_file.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private boolean appendSpans(StringBuilder sb, Span span, boolean first) {
+		Trace trace = span.Trace;
+		long start = trace.getStartNanos(), end = trace.getEndNanos();
+		if (start == 0) {
+			return first;
+		}
+		String traceId = randomHex(16), requestSpanId = randomHex(8);
+		if (!first) {
+			sb.append(',');
+		}
+		sb.append("{\"traceId\":\"").append(traceId).append("\",\"spanId\":\"").append(requestSpanId);
+		sb.append("\",\"name\":\"");
+		appendEscaped(sb, span.Method + " " + UriTemplates.normalize(span.Uri));
+		sb.append("\",\"kind\":").append(SPAN_KIND_SERVER);
+		appendTimes(sb, start, end);
+		sb.append(",\"attributes\":[");
+		appendAttribute(sb, "http.request.method", span.Method);
+		sb.append(',');
+		appendAttribute(sb, "url.full", span.Uri);
+		sb.append(",{\"key\":\"http.response.status_code\",\"value\":{\"intValue\":\"").append(span.StatusCode)
+				.append("\"}}]");
+		if (span.Error != null) {
+			sb.append(",\"status\":{\"code\":").append(STATUS_CODE_ERROR).append(",\"message\":\"");
+			appendEscaped(sb, span.Error);
+			sb.append("\"}");
+		}
+		sb.append('}');
+
+		for (Stage stage : Stage.VALUES) {
+			long nanos = trace.getDurationNanos(stage);
+			if (nanos < 0) {
+				continue;
+			}
+			long stageEnd = trace.getNanos(stage);
+			sb.append(",{\"traceId\":\"").append(traceId).append("\",\"spanId\":\"").append(randomHex(8))
+					.append("\",\"parentSpanId\":\"").append(requestSpanId).append("\",\"name\":\"")
+					.append(stage.Label).append("\",\"kind\":").append(SPAN_KIND_INTERNAL);
+			appendTimes(sb, stageEnd - nanos, stageEnd);
+			sb.append('}');
+		}
+		return false;
+	}
+
+	private void appendTimes(StringBuilder sb, long startNanos, long endNanos) {
+		// int64 is a string in the JSON mapping of protobuf
+		sb.append(",\"startTimeUnixNano\":\"").append(_baseUnixNanos + startNanos - _baseNanos)
+				.append("\",\"endTimeUnixNano\":\"").append(_baseUnixNanos + endNanos - _baseNanos).append('"');
+	}
+
+	private static void appendAttribute(StringBuilder sb, String key, String value) {
+		sb.append("{\"key\":\"").append(key).append("\",\"value\":{\"stringValue\":\"");
+		appendEscaped(sb, value);
+		sb.append("\"}}");
+	}
+
+	private static void appendEscaped(StringBuilder sb, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+	}
+
+	private String randomHex(int numBytes) {
+		StringBuilder sb = new StringBuilder(numBytes * 2);
+		for (int i = 0; i < numBytes; i++) {
+			int b = _random.nextInt(256);
+			sb.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 15, 16));
+		}
+		return sb.toString();
+	}
+
+	private static final class Span {
+		public final Trace Trace;
+		public final String Method, Uri, Error;
+		public final int StatusCode;
+
+		Span(Trace trace, String method, String uri, int statusCode, String error) {
+			Trace = trace;
+			Method = method;
+			Uri = uri;
+			StatusCode = statusCode;
+			Error = error;
+		}
+	}
+}
@@ -0,0 +1,469 @@
+package com.iosoft.ubiconfor.upstream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.iosoft.helpers.Misc;
+import com.iosoft.ubiconfor.log.Log;
+
+/**
+ * The addresses of the upstream hosts, looked up once and then kept, so the
+ * hosts file redirect does not matter afterwards. A connection goes to the
+ * address that connected fastest recently. If that does not connect within the
+ * race delay, the next one is tried at the same time (happy eyeballs, RFC 8305),
+ * the first to connect wins. Addresses that failed are avoided for a while. The
+ * records are refreshed in the background, through a resolver that ignores the
+ * hosts file.
+ */
+public final class AddressPool {
+	private static final long MIN_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final long MAX_BACKOFF_NANOS = TimeUnit.MINUTES.toNanos(1);
+	// when all addresses are down, not more often than this
+	private static final long MIN_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	private final HostResolver _pinResolver, _refreshResolver;
+	private final long _raceDelayNanos;
+	private final int _port;
+	private final Map<String, Host> _hosts = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService _refresher;
+
+	/**
+	 * pinResolver looks up hosts the first time, refreshResolver every
+	 * refreshSeconds after that (null or 0: never). If port is not 0, it is used
+	 * instead of the port of the URI.
+	 */
+	public AddressPool(HostResolver pinResolver, HostResolver refreshResolver, int refreshSeconds,
+			int raceDelayMillis, int port) {
+		_pinResolver = pinResolver;
+		_refreshResolver = refreshResolver;
+		_raceDelayNanos = TimeUnit.MILLISECONDS.toNanos(raceDelayMillis);
+		_port = port;
+		if (refreshResolver == null) {
+			_refresher = null;
+		} else {
+			_refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "Address refresher");
+				thread.setDaemon(true);
+				return thread;
+			});
+			if (refreshSeconds > 0) {
+				_refresher.scheduleWithFixedDelay(() -> _hosts.values().forEach(this::refresh), refreshSeconds,
+						refreshSeconds, TimeUnit.SECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Looks up the host unless it is known already. Called during startup, before
+	 * the hosts file is changed.
+	 */
+	public InetAddress[] pin(String host) throws IOException {
+		Host entry = _hosts.get(host);
+		if (entry == null) {
+			entry = new Host(host, _pinResolver.resolve(host));
+			Host existing = _hosts.putIfAbsent(host, entry);
+			if (existing == null) {
+				Log.info("Pinned " + host + ": " + entry);
+			} else {
+				entry = existing;
+			}
+		}
+		return entry.getAddresses();
+	}
+
+	/**
+	 * A connected socket in blocking mode. timeoutMillis 0 waits forever.
+	 * Cancelling the cancellation (may be null) aborts all attempts.
+	 */
+	public Socket connect(String host, int port, int timeoutMillis, Cancellation cancellation) throws IOException {
+		pin(host);
+		Host entry = _hosts.get(host);
+		if (_port != 0) {
+			port = _port;
+		}
+		long start = System.nanoTime();
+		Candidate[] ranked = entry.rank(start);
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		IOException error = null;
+		SocketChannel winner = null;
+
+		try (Selector selector = Selector.open()) {
+			try {
+				if (cancellation != null) {
+					cancellation.attach(selector::wakeup);
+				}
+				int next = 0, numPending = 0;
+				long nextStart = start;
+				while (winner == null) {
+					if (cancellation != null) {
+						cancellation.check();
+					}
+					long now = System.nanoTime();
+					if (next < ranked.length && (numPending == 0 || now - nextStart >= 0)) {
+						Candidate candidate = ranked[next++];
+						nextStart = now + _raceDelayNanos;
+						SocketChannel channel = SocketChannel.open();
+						try {
+							channel.configureBlocking(false);
+							if (channel.connect(new InetSocketAddress(candidate.Address, port))) {
+								candidate.onConnected(System.nanoTime() - now);
+								winner = channel;
+							} else {
+								channel.register(selector, SelectionKey.OP_CONNECT, new Attempt(candidate, now));
+								numPending++;
+							}
+						} catch (IOException e) {
+							Misc.forceClose(channel);
+							candidate.onFailed(entry, e);
+							error = addError(error, e);
+						}
+						continue;
+					}
+					if (numPending == 0) {
+						break;
+					}
+					if (timeoutMillis > 0 && now - deadline >= 0) {
+						error = addError(error, new SocketTimeoutException("Connect timed out"));
+						for (SelectionKey key : selector.keys()) {
+							if (key.isValid()) {
+								((Attempt) key.attachment()).Candidate.onFailed(entry, null);
+							}
+						}
+						break;
+					}
+
+					long waitNanos = next < ranked.length ? nextStart - now : Long.MAX_VALUE;
+					if (timeoutMillis > 0) {
+						waitNanos = Math.min(waitNanos, deadline - now);
+					}
+					if (waitNanos == Long.MAX_VALUE) {
+						selector.select();
+					} else {
+						selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+					}
+					if (Thread.interrupted()) {
+						throw new InterruptedIOException("Interrupted while connecting");
+					}
+
+					for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+						SelectionKey key = it.next();
+						it.remove();
+						Attempt attempt = (Attempt) key.attachment();
+						SocketChannel channel = (SocketChannel) key.channel();
+						try {
+							if (channel.finishConnect()) {
+								attempt.Candidate.onConnected(System.nanoTime() - attempt.StartNanos);
+								key.cancel();
+								winner = channel;
+								break;
+							}
+						} catch (IOException e) {
+							key.cancel();
+							Misc.forceClose(channel);
+							numPending--;
+							attempt.Candidate.onFailed(entry, e);
+							error = addError(error, e);
+						}
+					}
+				}
+			} finally {
+				if (cancellation != null) {
+					cancellation.detach();
+				}
+				long now = System.nanoTime();
+				for (SelectionKey key : selector.keys()) {
+					if (key.channel() != winner && key.channel().isOpen()) {
+						// lost the race, it was at least this slow
+						Attempt attempt = (Attempt) key.attachment();
+						if (winner != null) {
+							attempt.Candidate.onConnected(now - attempt.StartNanos);
+						}
+						Misc.forceClose(key.channel());
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			if (winner != null) {
+				Misc.forceClose(winner);
+			}
+			throw e;
+		}
+
+		if (winner == null) {
+			if (entry.isAllDown(System.nanoTime())) {
+				requestRefresh(entry);
+			}
+			throw error;
+		}
+		// deregistered by closing the selector
+		winner.configureBlocking(true);
+		return winner.socket();
+	}
+
+	/**
+	 * For errors after connecting, e.g. if the TLS handshake failed because some
+	 * other server answers at that address.
+	 */
+	public void reportFailure(String host, InetAddress address, IOException e) {
+		Host entry = _hosts.get(host);
+		if (entry == null) {
+			return;
+		}
+		for (Candidate candidate : entry._candidates) {
+			if (candidate.Address.equals(address)) {
+				candidate.onFailed(entry, e);
+			}
+		}
+	}
+
+	private static IOException addError(IOException error, IOException e) {
+		if (error == null) {
+			return e;
+		}
+		error.addSuppressed(e);
+		return error;
+	}
+
+	private void requestRefresh(Host entry) {
+		if (_refresher == null) {
+			return;
+		}
+		long now = System.nanoTime();
+		synchronized (entry) {
+			if (entry._lastRefreshRequest != 0 && now - entry._lastRefreshRequest < MIN_REFRESH_NANOS) {
+				return;
+			}
+			entry._lastRefreshRequest = now;
+		}
+		_refresher.execute(() -> refresh(entry));
+	}
+
+	private void refresh(Host entry) {
+		InetAddress[] addresses;
+		try {
+			addresses = _refreshResolver.resolve(entry.Name);
+		} catch (IOException e) {
+			Log.warn("Could not refresh the addresses of " + entry.Name + ", keeping them: " + e);
+			return;
+		}
+		if (entry.update(addresses)) {
+			Log.info("Addresses of " + entry.Name + " changed: " + entry);
+		}
+	}
+
+	/**
+	 * For the UI, e.g. "host: 1.2.3.4 23 ms, 5.6.7.8 down".
+	 */
+	public String getStatusText() {
+		StringBuilder sb = new StringBuilder();
+		for (Host entry : _hosts.values()) {
+			if (sb.length() > 0) {
+				sb.append("; ");
+			}
+			sb.append(entry.Name).append(": ").append(entry);
+		}
+		return sb.toString();
+	}
+
+	private static final class Attempt {
+		public final Candidate Candidate;
+		public final long StartNanos;
+
+		public Attempt(Candidate candidate, long startNanos) {
+			Candidate = candidate;
+			StartNanos = startNanos;
+		}
+	}
+
+	private static final class Host {
+		public final String Name;
+		private volatile Candidate[] _candidates;
+		private long _lastRefreshRequest;
+
+		public Host(String name, InetAddress[] addresses) {
+			Name = name;
+			_candidates = createCandidates(interleave(addresses), new Candidate[0]);
+		}
+
+		public InetAddress[] getAddresses() {
+			Candidate[] candidates = _candidates;
+			InetAddress[] result = new InetAddress[candidates.length];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = candidates[i].Address;
+			}
+			return result;
+		}
+
+		/**
+		 * Usable ones first, fastest first, not measured yet before that (in the
+		 * order of the lookup). Then the ones that failed, those that may be retried
+		 * first.
+		 */
+		public Candidate[] rank(long now) {
+			Candidate[] candidates = _candidates.clone();
+			long[] keys = new long[candidates.length];
+			Integer[] order = new Integer[candidates.length];
+			for (int i = 0; i < candidates.length; i++) {
+				keys[i] = candidates[i].getRankKey(now);
+				order[i] = i;
+			}
+			Arrays.sort(order, Comparator.comparingLong(i -> keys[i]));
+			Candidate[] result = new Candidate[candidates.length];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = candidates[order[i]];
+			}
+			return result;
+		}
+
+		public boolean isAllDown(long now) {
+			for (Candidate candidate : _candidates) {
+				if (!candidate.isDown(now)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Keeps what we know about addresses that are still there. Returns true if
+		 * anything changed.
+		 */
+		public boolean update(InetAddress[] addresses) {
+			Candidate[] old = _candidates;
+			Candidate[] updated = createCandidates(interleave(addresses), old);
+			if (Arrays.equals(addressesOf(old), addressesOf(updated))) {
+				return false;
+			}
+			_candidates = updated;
+			return true;
+		}
+
+		private static Candidate[] createCandidates(InetAddress[] addresses, Candidate[] old) {
+			Candidate[] result = new Candidate[addresses.length];
+			for (int i = 0; i < addresses.length; i++) {
+				for (Candidate candidate : old) {
+					if (candidate.Address.equals(addresses[i])) {
+						result[i] = candidate;
+					}
+				}
+				if (result[i] == null) {
+					result[i] = new Candidate(addresses[i]);
+				}
+			}
+			return result;
+		}
+
+		private static InetAddress[] addressesOf(Candidate[] candidates) {
+			InetAddress[] result = new InetAddress[candidates.length];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = candidates[i].Address;
+			}
+			return result;
+		}
+
+		/**
+		 * Alternates between IPv6 and IPv4, starting with the family of the first
+		 * one (RFC 8305, section 4).
+		 */
+		private static InetAddress[] interleave(InetAddress[] addresses) {
+			List<InetAddress> first = new ArrayList<>(), second = new ArrayList<>();
+			for (InetAddress address : addresses) {
+				boolean sameFamily = (address instanceof Inet6Address) == (addresses[0] instanceof Inet6Address);
+				(sameFamily ? first : second).add(address);
+			}
+			InetAddress[] result = new InetAddress[addresses.length];
+			int index = 0;
+			for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+				if (i < first.size()) {
+					result[index++] = first.get(i);
+				}
+				if (i < second.size()) {
+					result[index++] = second.get(i);
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			long now = System.nanoTime();
+			StringBuilder sb = new StringBuilder();
+			for (Candidate candidate : _candidates) {
+				if (sb.length() > 0) {
+					sb.append(", ");
+				}
+				sb.append(candidate.toString(now));
+			}
+			return sb.toString();
+		}
+	}
+
+	private static final class Candidate {
+		public final InetAddress Address;
+		// moving average, 0 = not measured yet
+		private long _connectNanos;
+		private int _numFailures;
+		private long _retryAt;
+
+		public Candidate(InetAddress address) {
+			Address = address;
+		}
+
+		public synchronized void onConnected(long nanos) {
+			nanos = Math.max(1, nanos);
+			_connectNanos = _connectNanos == 0 ? nanos : (_connectNanos * 3 + nanos) / 4;
+			_numFailures = 0;
+		}
+
+		/**
+		 * Backs off exponentially. e is null for a timeout.
+		 */
+		public void onFailed(Host host, IOException e) {
+			boolean wasUp;
+			synchronized (this) {
+				wasUp = _numFailures == 0;
+				_numFailures++;
+				_retryAt = System.nanoTime()
+						+ Math.min(MAX_BACKOFF_NANOS, MIN_BACKOFF_NANOS << Math.min(_numFailures - 1, 16));
+			}
+			if (wasUp) {
+				Log.warn("Could not connect to " + host.Name + " at " + Address.getHostAddress() + ": "
+						+ (e == null ? "timeout" : e.toString()));
+			}
+		}
+
+		public synchronized boolean isDown(long now) {
+			return _numFailures > 0 && now - _retryAt < 0;
+		}
+
+		public synchronized long getRankKey(long now) {
+			if (isDown(now)) {
+				return Long.MAX_VALUE / 2 + (_retryAt - now);
+			}
+			return _connectNanos;
+		}
+
+		public synchronized String toString(long now) {
+			return Address.getHostAddress() + (isDown(now) ? " down"
+					: _connectNanos == 0 ? "" : " " + TimeUnit.NANOSECONDS.toMillis(_connectNanos) + " ms");
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package com.iosoft.ubiconfor.upstream;
+
+import java.io.IOException;
+
+import com.iosoft.ubiconfor.dtos.ResponseDataDto;
+
+/**
+ * Receives a response while it is being read from upstream.
+ */
+public interface BodySink {
+	/**
+	 * StatusCode and Headers are set, Content is not.
+	 */
+	void onHead(ResponseDataDto response) throws IOException;
+
+	void onBody(byte[] buffer, int offset, int length) throws IOException;
+}
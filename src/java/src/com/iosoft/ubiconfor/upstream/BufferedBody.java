@@ -0,0 +1,25 @@
+package com.iosoft.ubiconfor.upstream;
+
+import java.io.ByteArrayOutputStream;
+
+import com.iosoft.ubiconfor.dtos.ResponseDataDto;
+
+/**
+ * Collects the whole body, for the non-streaming path.
+ */
+final class BufferedBody implements BodySink {
+	private final ByteArrayOutputStream _content = new ByteArrayOutputStream();
+
+	@Override
+	public void onHead(ResponseDataDto response) {
+	}
+
+	@Override
+	public void onBody(byte[] buffer, int offset, int length) {
+		_content.write(buffer, offset, length);
+	}
+
+	byte[] toByteArray() {
+		return _content.toByteArray();
+	}
+}
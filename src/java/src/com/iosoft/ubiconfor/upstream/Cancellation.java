@@ -0,0 +1,157 @@
+package com.iosoft.ubiconfor.upstream;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.iosoft.helpers.Misc;
+
+/**
+ * Lets another thread abort a request: the client attaches the socket it is
+ * blocked on, and cancelling closes it. Interrupting is not enough, as that
+ * does not wake up a platform thread in socket I/O. The request thread binds
+ * it with setCurrent, so the clients don't need another parameter.
+ */
+public final class Cancellation {
+	private static final ThreadLocal<Cancellation> _current = new ThreadLocal<>();
+	private static final ScheduledThreadPoolExecutor _timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+		Thread thread = new Thread(runnable, "Request deadlines");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	static {
+		// most deadlines are cleared long before they are due
+		_timer.setRemoveOnCancelPolicy(true);
+	}
+
+	// all guarded by this
+	private String _reason;
+	private Closeable _resource;
+	private ScheduledFuture<?> _deadline;
+	private long _deadlineNanos, _deadlineMillis;
+
+	/**
+	 * Null if the thread has none.
+	 */
+	public static Cancellation getCurrent() {
+		return _current.get();
+	}
+
+	/**
+	 * null removes it again.
+	 */
+	public static void setCurrent(Cancellation cancellation) {
+		if (cancellation == null) {
+			_current.remove();
+		} else {
+			_current.set(cancellation);
+		}
+	}
+
+	/**
+	 * Cancels after the time, unless clearDeadline is called first.
+	 */
+	public synchronized void setDeadline(long millis) {
+		clearDeadline();
+		if (_reason == null) {
+			_deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+			_deadlineMillis = millis;
+			_deadline = _timer.schedule(() -> cancel(getDeadlineReason(millis)), millis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static String getDeadlineReason(long millis) {
+		return "deadline of " + millis + " ms exceeded";
+	}
+
+	public synchronized void clearDeadline() {
+		if (_deadline != null) {
+			_deadline.cancel(false);
+			_deadline = null;
+		}
+	}
+
+	/**
+	 * Long.MAX_VALUE if there is no deadline, at most 0 if it has passed.
+	 */
+	public synchronized long getRemainingNanos() {
+		return _deadline == null ? Long.MAX_VALUE : _deadlineNanos - System.nanoTime();
+	}
+
+	/**
+	 * Throws if cancelled, also if the deadline has passed but the timer has not
+	 * got to it yet.
+	 */
+	public void check() throws RequestCancelledException {
+		long deadlineMillis;
+		synchronized (this) {
+			deadlineMillis = _deadlineMillis;
+		}
+		if (getRemainingNanos() <= 0) {
+			cancel(getDeadlineReason(deadlineMillis));
+		}
+		String reason = getReason();
+		if (reason != null) {
+			throw new RequestCancelledException(reason, null);
+		}
+	}
+
+	/**
+	 * Only the first reason counts. Closes the attached resource, if any.
+	 */
+	public void cancel(String reason) {
+		Closeable resource;
+		synchronized (this) {
+			if (_reason != null) {
+				return;
+			}
+			_reason = reason;
+			resource = _resource;
+			_resource = null;
+			clearDeadline();
+		}
+		if (resource != null) {
+			Misc.forceClose(resource);
+		}
+	}
+
+	public synchronized boolean isCancelled() {
+		return _reason != null;
+	}
+
+	/**
+	 * Null unless cancelled.
+	 */
+	public synchronized String getReason() {
+		return _reason;
+	}
+
+	/**
+	 * Closed when cancelled until detach is called. Throws if already cancelled.
+	 */
+	public void attach(Closeable resource) throws RequestCancelledException {
+		synchronized (this) {
+			if (_reason == null) {
+				_resource = resource;
+				return;
+			}
+		}
+		throw new RequestCancelledException(getReason(), null);
+	}
+
+	public synchronized void detach() {
+		_resource = null;
+	}
+
+	/**
+	 * Turns the error into a RequestCancelledException if it came from
+	 * cancelling, otherwise returns it.
+	 */
+	public IOException explain(IOException e) {
+		String reason = getReason();
+		return reason == null || e instanceof RequestCancelledException ? e : new RequestCancelledException(reason, e);
+	}
+}
@@ -0,0 +1,115 @@
+package com.iosoft.ubiconfor.upstream;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Idle keep-alive connections, at most a fixed number per host. Connections in
+ * use are not tracked, they come back via release(). Prewarmed ones stay until
+ * they are first used or upstream closes them, not just for the idle timeout.
+ */
+final class ConnectionPool {
+	private final Map<String, ArrayDeque<UpstreamSocket>> _idle = new HashMap<>();
+	private final int _maxIdlePerHost;
+	private final long _idleTimeoutNanos;
+	private final AtomicLong _hits = new AtomicLong(), _misses = new AtomicLong();
+
+	ConnectionPool(int maxIdlePerHost, int idleTimeoutSeconds) {
+		_maxIdlePerHost = maxIdlePerHost;
+		_idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+	}
+
+	int getMaxIdlePerHost() {
+		return _maxIdlePerHost;
+	}
+
+	/**
+	 * Returns an idle connection, or null if a new one must be opened.
+	 */
+	UpstreamSocket poll(String key) {
+		while (true) {
+			UpstreamSocket socket = pollIdle(key);
+			// may have waited long, not checked under the lock as it takes a moment
+			if (socket == null || !socket.isPrewarmed() || socket.isOpenUpstream()) {
+				(socket == null ? _misses : _hits).incrementAndGet();
+				return socket;
+			}
+			socket.close();
+		}
+	}
+
+	private UpstreamSocket pollIdle(String key) {
+		List<UpstreamSocket> expired = null;
+		UpstreamSocket result = null;
+		long now = System.nanoTime();
+		synchronized (_idle) {
+			ArrayDeque<UpstreamSocket> queue = _idle.get(key);
+			if (queue != null) {
+				// most recently used first, it's the least likely to be closed by the server
+				UpstreamSocket socket;
+				while ((socket = queue.pollFirst()) != null) {
+					if (socket.isUsable(now, _idleTimeoutNanos)) {
+						result = socket;
+						break;
+					}
+					if (expired == null) {
+						expired = new ArrayList<>();
+					}
+					expired.add(socket);
+				}
+			}
+		}
+		if (expired != null) {
+			expired.forEach(UpstreamSocket::close);
+		}
+		return result;
+	}
+
+	void release(UpstreamSocket socket) {
+		socket.markIdle();
+		add(socket);
+	}
+
+	/**
+	 * For a connection that was opened ahead of time, exempt from the idle
+	 * timeout until it is used.
+	 */
+	void releasePrewarmed(UpstreamSocket socket) {
+		socket.markIdle();
+		socket.markPrewarmed();
+		add(socket);
+	}
+
+	private void add(UpstreamSocket socket) {
+		synchronized (_idle) {
+			ArrayDeque<UpstreamSocket> queue = _idle.computeIfAbsent(socket.Key, x -> new ArrayDeque<>());
+			if (queue.size() < _maxIdlePerHost) {
+				queue.addFirst(socket);
+				return;
+			}
+		}
+		socket.close();
+	}
+
+	void clear() {
+		List<UpstreamSocket> all = new ArrayList<>();
+		synchronized (_idle) {
+			_idle.values().forEach(all::addAll);
+			_idle.clear();
+		}
+		all.forEach(UpstreamSocket::close);
+	}
+
+	long getHits() {
+		return _hits.get();
+	}
+
+	long getMisses() {
+		return _misses.get();
+	}
+}
@@ -0,0 +1,82 @@
+package com.iosoft.ubiconfor.upstream;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+/**
+ * Asks a DNS server directly via the DNS provider of JNDI, so the hosts file
+ * (which redirects channel-service to us) is not used.
+ */
+public final class DnsResolver implements HostResolver {
+	private final String _providerUrl;
+	private final int _timeoutMillis;
+
+	/**
+	 * server is "host" or "host:port", null for the DNS servers the OS is
+	 * configured with.
+	 */
+	public DnsResolver(String server, int timeoutMillis) {
+		_providerUrl = server == null ? "dns:" : "dns://" + server;
+		_timeoutMillis = timeoutMillis;
+	}
+
+	@Override
+	public InetAddress[] resolve(String host) throws IOException {
+		Hashtable<String, String> env = new Hashtable<>();
+		env.put(DirContext.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.dns.DnsContextFactory");
+		env.put(DirContext.PROVIDER_URL, _providerUrl);
+		// the first try waits this long, every retry twice as long as the one before
+		env.put("com.sun.jndi.dns.timeout.initial", Integer.toString(Math.max(1, _timeoutMillis / 3)));
+		env.put("com.sun.jndi.dns.timeout.retries", "2");
+		List<InetAddress> result = new ArrayList<>();
+		try {
+			DirContext context = new InitialDirContext(env);
+			try {
+				// separately, servers may refuse the ANY query JNDI would send for both
+				add(result, host, context, "A");
+				add(result, host, context, "AAAA");
+			} finally {
+				context.close();
+			}
+		} catch (NamingException e) {
+			throw new IOException("DNS lookup of " + host + " failed: " + e, e);
+		}
+		if (result.isEmpty()) {
+			throw new UnknownHostException(host);
+		}
+		return result.toArray(new InetAddress[result.size()]);
+	}
+
+	private static void add(List<InetAddress> result, String host, DirContext context, String type)
+			throws NamingException, UnknownHostException {
+		Attributes attributes;
+		try {
+			// trailing dot: no search domains
+			attributes = context.getAttributes(host + ".", new String[] { type });
+		} catch (NameNotFoundException e) {
+			return;
+		}
+		Attribute attribute = attributes.get(type);
+		if (attribute == null) {
+			return;
+		}
+		NamingEnumeration<?> values = attribute.getAll();
+		while (values.hasMore()) {
+			// a literal, so not looked up again, but keep the host name
+			InetAddress address = InetAddress.getByName(values.next().toString());
+			result.add(InetAddress.getByAddress(host, address.getAddress()));
+		}
+	}
+}
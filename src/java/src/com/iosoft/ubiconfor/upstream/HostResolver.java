@@ -0,0 +1,21 @@
+package com.iosoft.ubiconfor.upstream;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * Looks up all addresses of a host.
+ */
+public interface HostResolver {
+	/**
+	 * Never empty, throws instead.
+	 */
+	InetAddress[] resolve(String host) throws IOException;
+
+	/**
+	 * The resolver of the OS, which includes the hosts file.
+	 */
+	static HostResolver system() {
+		return InetAddress::getAllByName;
+	}
+}
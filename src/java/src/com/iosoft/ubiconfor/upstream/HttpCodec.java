@@ -0,0 +1,259 @@
+package com.iosoft.ubiconfor.upstream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.iosoft.ubiconfor.dtos.HeaderDto;
+import com.iosoft.ubiconfor.dtos.RequestDataDto;
+import com.iosoft.ubiconfor.dtos.ResponseDataDto;
+import com.iosoft.ubiconfor.trace.Stage;
+import com.iosoft.ubiconfor.trace.Trace;
+
+/**
+ * Minimal HTTP/1.1 client side encoding, just enough for keep-alive
+ * connections to channel-service.
+ */
+final class HttpCodec {
+	private HttpCodec() {
+	}
+
+	private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+	// we manage these ourselves
+	private static final Set<String> SKIPPED_REQUEST_HEADERS = new HashSet<>(Arrays.asList("connection",
+			"keep-alive", "proxy-connection", "transfer-encoding", "te", "trailer", "upgrade", "content-length",
+			"host"));
+
+	/**
+	 * Thrown if the connection was closed before a single byte of the response
+	 * arrived, which on a reused connection means that the server has closed it
+	 * while it was idle.
+	 */
+	static final class NoResponseException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		NoResponseException(String message, Throwable cause) {
+			super(message, cause);
+		}
+	}
+
+	static void writeRequest(OutputStream out, URI uri, RequestDataDto request) throws IOException {
+		String path = uri.getRawPath();
+		if (path == null || path.isEmpty()) {
+			path = "/";
+		}
+		if (uri.getRawQuery() != null) {
+			path += "?" + uri.getRawQuery();
+		}
+
+		StringBuilder sb = new StringBuilder(512);
+		sb.append(request.Method).append(' ').append(path).append(" HTTP/1.1\r\n");
+		appendHeader(sb, "Host", uri.getPort() < 0 ? uri.getHost() : uri.getHost() + ":" + uri.getPort());
+		boolean hasAccept = false;
+		for (HeaderDto header : request.Headers) {
+			String name = header.Name.toLowerCase(Locale.ROOT);
+			if (SKIPPED_REQUEST_HEADERS.contains(name)) {
+				continue;
+			}
+			hasAccept |= name.equals("accept");
+			appendHeader(sb, header.Name, String.join(",", header.Values));
+		}
+		if (!hasAccept) {
+			appendHeader(sb, "Accept", "*/*");
+		}
+		boolean hasBody = request.Content.length > 0
+				|| !(request.Method.equals("GET") || request.Method.equals("HEAD"));
+		if (hasBody) {
+			appendHeader(sb, "Content-Length", Integer.toString(request.Content.length));
+		}
+		sb.append("\r\n");
+
+		out.write(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+		if (hasBody) {
+			out.write(request.Content);
+		}
+		out.flush();
+	}
+
+	private static void appendHeader(StringBuilder sb, String name, String value) {
+		sb.append(name).append(": ").append(value).append("\r\n");
+	}
+
+	/**
+	 * Returns whether the connection can be used for another request.
+	 */
+	static boolean readResponse(InputStream in, String method, ResponseDataDto response, BodySink sink)
+			throws IOException {
+		int firstByte;
+		try {
+			firstByte = in.read();
+		} catch (SocketException e) {
+			throw new NoResponseException("Connection reset before response", e);
+		}
+		if (firstByte < 0) {
+			throw new NoResponseException("Connection closed before response", null);
+		}
+		Trace.stampCurrent(Stage.FIRST_BYTE);
+
+		String statusLine = (char) firstByte + readLine(in);
+		int statusCode = parseStatusCode(statusLine);
+		Map<String, List<String>> headers = readHeaders(in);
+		// skip interim responses like "100 Continue"
+		while (statusCode >= 100 && statusCode < 200 && statusCode != 101) {
+			statusLine = readLine(in);
+			statusCode = parseStatusCode(statusLine);
+			headers = readHeaders(in);
+		}
+
+		boolean keepAlive;
+		String connection = getLast(headers, "Connection");
+		if (statusLine.startsWith("HTTP/1.0")) {
+			keepAlive = connection != null && connection.equalsIgnoreCase("keep-alive");
+		} else {
+			keepAlive = connection == null || !connection.equalsIgnoreCase("close");
+		}
+
+		response.StatusCode = statusCode;
+		response.Headers = headers.entrySet().stream().map(x -> {
+			HeaderDto header = new HeaderDto();
+			header.Name = x.getKey();
+			header.Values = x.getValue().toArray(new String[x.getValue().size()]);
+			return header;
+		}).toArray(HeaderDto[]::new);
+		sink.onHead(response);
+
+		byte[] buffer = new byte[16 * 1024];
+		String transferEncoding = getLast(headers, "Transfer-Encoding");
+		String contentLength = getLast(headers, "Content-Length");
+		if (method.equals("HEAD") || statusCode < 200 || statusCode == 204 || statusCode == 304) {
+			// no body
+		} else if (transferEncoding != null && transferEncoding.toLowerCase(Locale.ROOT).endsWith("chunked")) {
+			readChunked(in, buffer, sink);
+		} else if (contentLength != null) {
+			long length;
+			try {
+				length = Long.parseLong(contentLength.trim());
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid Content-Length: " + contentLength, e);
+			}
+			if (length < 0) {
+				throw new IOException("Invalid Content-Length: " + contentLength);
+			}
+			copy(in, length, buffer, sink);
+		} else {
+			// body ends when the connection does
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				sink.onBody(buffer, 0, read);
+			}
+			keepAlive = false;
+		}
+		return keepAlive;
+	}
+
+	private static int parseStatusCode(String statusLine) throws IOException {
+		// "HTTP/1.1 200 OK"
+		int start = statusLine.indexOf(' ');
+		if (!statusLine.startsWith("HTTP/") || start < 0 || statusLine.length() < start + 4) {
+			throw new IOException("Invalid status line: " + statusLine);
+		}
+		try {
+			return Integer.parseInt(statusLine.substring(start + 1, start + 4));
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid status line: " + statusLine, e);
+		}
+	}
+
+	private static Map<String, List<String>> readHeaders(InputStream in) throws IOException {
+		// keeps the spelling of the first occurrence
+		Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		String line;
+		while (!(line = readLine(in)).isEmpty()) {
+			int index = line.indexOf(':');
+			if (index <= 0) {
+				throw new IOException("Invalid header line: " + line);
+			}
+			headers.computeIfAbsent(line.substring(0, index).trim(), x -> new ArrayList<>(1))
+					.add(line.substring(index + 1).trim());
+		}
+		return headers;
+	}
+
+	/**
+	 * The last value of the header. For a repeated Transfer-Encoding that is the
+	 * one that counts, chunked has to come last.
+	 */
+	private static String getLast(Map<String, List<String>> headers, String name) {
+		List<String> values = headers.get(name);
+		return values == null ? null : values.get(values.size() - 1);
+	}
+
+	private static void readChunked(InputStream in, byte[] buffer, BodySink sink) throws IOException {
+		while (true) {
+			String line = readLine(in);
+			int extension = line.indexOf(';');
+			long size;
+			try {
+				size = Long.parseLong((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid chunk size: " + line, e);
+			}
+			if (size < 0) {
+				throw new IOException("Invalid chunk size: " + line);
+			}
+			if (size == 0) {
+				// trailers are dropped
+				readHeaders(in);
+				return;
+			}
+			copy(in, size, buffer, sink);
+			if (!readLine(in).isEmpty()) {
+				throw new IOException("Missing CRLF after chunk");
+			}
+		}
+	}
+
+	private static void copy(InputStream in, long length, byte[] buffer, BodySink sink) throws IOException {
+		while (length > 0) {
+			int read = in.read(buffer, 0, (int) Math.min(length, buffer.length));
+			if (read < 0) {
+				throw new EOFException("Connection closed, " + length + " bytes missing");
+			}
+			sink.onBody(buffer, 0, read);
+			length -= read;
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder(64);
+		while (true) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException("Connection closed inside of a line");
+			}
+			if (b == '\n') {
+				break;
+			}
+			if (b != '\r') {
+				if (sb.length() >= MAX_LINE_LENGTH) {
+					throw new IOException("Line too long");
+				}
+				sb.append((char) b);
+			}
+		}
+		return sb.toString();
+	}
+}
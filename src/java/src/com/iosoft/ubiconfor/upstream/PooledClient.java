@@ -0,0 +1,309 @@
+package com.iosoft.ubiconfor.upstream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import com.iosoft.helpers.Misc;
+import com.iosoft.ubiconfor.dtos.RequestDataDto;
+import com.iosoft.ubiconfor.dtos.ResponseDataDto;
+import com.iosoft.ubiconfor.log.Log;
+import com.iosoft.ubiconfor.trace.Stage;
+import com.iosoft.ubiconfor.trace.Trace;
+
+/**
+ * Speaks HTTP/1.1 itself and keeps connections alive between requests. TLS
+ * sessions are resumed via the session cache of the default SSLContext, so
+ * even a new connection usually skips the full handshake.
+ * <p>
+ * Unlike HttpURLConnection, redirects are not followed but passed through to
+ * the caller, like a proxy should: Ubisoft Connect follows them itself. A
+ * request that got no response on a reused connection is only sent again if
+ * its method is idempotent.
+ */
+public final class PooledClient implements UpstreamClient {
+	private final SSLSocketFactory _sslSocketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+	private final ConnectionPool _pool;
+	private final int _connectTimeoutMillis, _readTimeoutMillis;
+	private final InetSocketAddress _address;
+	private final AddressPool _addresses;
+	private final AtomicLong _tlsHandshakes = new AtomicLong(), _tlsResumed = new AtomicLong();
+
+	public PooledClient(int maxIdlePerHost, int idleTimeoutSeconds, int connectTimeoutMillis, int readTimeoutMillis,
+			InetSocketAddress address) {
+		this(maxIdlePerHost, idleTimeoutSeconds, connectTimeoutMillis, readTimeoutMillis, address, null);
+	}
+
+	/**
+	 * If address is not null, all connections go there instead of the host of the
+	 * URI, which is still used for TLS and the Host header. Otherwise the address
+	 * of the host comes from addresses, or from the JVM if that is null.
+	 */
+	public PooledClient(int maxIdlePerHost, int idleTimeoutSeconds, int connectTimeoutMillis, int readTimeoutMillis,
+			InetSocketAddress address, AddressPool addresses) {
+		_pool = new ConnectionPool(maxIdlePerHost, idleTimeoutSeconds);
+		_connectTimeoutMillis = connectTimeoutMillis;
+		_readTimeoutMillis = readTimeoutMillis;
+		_address = address;
+		_addresses = addresses;
+	}
+
+	@Override
+	public void execute(RequestDataDto request, ResponseDataDto response, BodySink sink) throws IOException {
+		URI uri = parseUri(request.Uri);
+		boolean https = "https".equalsIgnoreCase(uri.getScheme());
+		int port = uri.getPort() < 0 ? (https ? 443 : 80) : uri.getPort();
+		String key = uri.getScheme().toLowerCase() + "://" + uri.getHost() + ":" + port;
+		Cancellation cancellation = Cancellation.getCurrent();
+
+		while (true) {
+			if (cancellation != null) {
+				// a pooled connection would be aborted right away
+				cancellation.check();
+			}
+			UpstreamSocket socket = _pool.poll(key);
+			boolean reused = socket != null;
+			if (!reused) {
+				socket = connect(key, https, uri.getHost(), port, cancellation);
+			}
+			if (cancellation != null) {
+				try {
+					cancellation.attach(socket::abort);
+				} catch (RequestCancelledException e) {
+					// nothing was sent yet, it is still good
+					_pool.release(socket);
+					throw e;
+				}
+			}
+
+			boolean sent = false, keepAlive = false;
+			try {
+				HttpCodec.writeRequest(socket.Out, uri, request);
+				sent = true;
+				Trace.stampCurrent(Stage.SENT);
+				keepAlive = HttpCodec.readResponse(socket.In, request.Method, response, sink);
+				return;
+			} catch (IOException e) {
+				if (cancellation != null && cancellation.isCancelled()) {
+					throw cancellation.explain(e);
+				}
+				if (!reused || sent && (!(e instanceof HttpCodec.NoResponseException) || !isIdempotent(request.Method))) {
+					throw e;
+				}
+				// the server has closed the idle connection in the meantime, use a new one
+			} finally {
+				if (cancellation != null) {
+					cancellation.detach();
+				}
+				if (keepAlive) {
+					_pool.release(socket);
+				} else {
+					socket.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Opens the connections at the same time, at most maxIdlePerHost. Fails only
+	 * if none could be opened.
+	 */
+	@Override
+	public int prewarm(String uri, int numConnections) throws IOException {
+		URI parsed = parseUri(uri);
+		boolean https = "https".equalsIgnoreCase(parsed.getScheme());
+		int port = parsed.getPort() < 0 ? (https ? 443 : 80) : parsed.getPort();
+		String key = parsed.getScheme().toLowerCase() + "://" + parsed.getHost() + ":" + port;
+
+		List<CompletableFuture<UpstreamSocket>> futures = new ArrayList<>();
+		for (int i = 0; i < Math.min(numConnections, _pool.getMaxIdlePerHost()); i++) {
+			CompletableFuture<UpstreamSocket> future = new CompletableFuture<>();
+			Thread thread = new Thread(() -> {
+				try {
+					future.complete(connect(key, https, parsed.getHost(), port, null));
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				}
+			}, "Prewarm connection " + (i + 1));
+			thread.setDaemon(true);
+			thread.start();
+			futures.add(future);
+		}
+
+		int numOpened = 0;
+		IOException error = null;
+		for (CompletableFuture<UpstreamSocket> future : futures) {
+			try {
+				_pool.releasePrewarmed(future.get());
+				numOpened++;
+			} catch (ExecutionException e) {
+				error = e.getCause() instanceof IOException ? (IOException) e.getCause()
+						: new IOException(e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while prewarming");
+			}
+		}
+		if (numOpened == 0 && error != null) {
+			throw error;
+		}
+		return numOpened;
+	}
+
+	/**
+	 * The server may have got a request without answering it, so only these may
+	 * be sent again.
+	 */
+	private static boolean isIdempotent(String method) {
+		switch (method) {
+		case "GET":
+		case "HEAD":
+		case "OPTIONS":
+		case "TRACE":
+		case "PUT":
+		case "DELETE":
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static URI parseUri(String text) throws IOException {
+		URI uri;
+		try {
+			uri = new URI(text);
+		} catch (Exception e) {
+			throw new IOException("Invalid URI: " + text, e);
+		}
+		boolean https = "https".equalsIgnoreCase(uri.getScheme());
+		if (!https && !"http".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null) {
+			throw new IOException("Unsupported URI: " + text);
+		}
+		return uri;
+	}
+
+	/**
+	 * The connect is bounded by the connect timeout and what is left of the
+	 * deadline, cancelling aborts it and the TLS handshake.
+	 */
+	private UpstreamSocket connect(String key, boolean https, String host, int port, Cancellation cancellation)
+			throws IOException {
+		Log.debug("Connecting to: " + key);
+		int timeoutMillis = _connectTimeoutMillis;
+		if (cancellation != null) {
+			cancellation.check();
+			long remainingMillis = TimeUnit.NANOSECONDS.toMillis(cancellation.getRemainingNanos());
+			if (remainingMillis < Integer.MAX_VALUE && (timeoutMillis <= 0 || remainingMillis < timeoutMillis)) {
+				timeoutMillis = (int) Math.max(1, remainingMillis);
+			}
+		}
+		Socket socket = openSocket(host, port, timeoutMillis, cancellation);
+		Socket raw = socket;
+		try {
+			if (cancellation != null) {
+				cancellation.attach(raw);
+			}
+			socket.setTcpNoDelay(true);
+			socket.setKeepAlive(true);
+			socket.setSoTimeout(_readTimeoutMillis);
+			if (https) {
+				SSLSocket sslSocket = (SSLSocket) _sslSocketFactory.createSocket(socket, host, port, true);
+				socket = sslSocket;
+				SSLParameters parameters = sslSocket.getSSLParameters();
+				parameters.setEndpointIdentificationAlgorithm("HTTPS");
+				sslSocket.setSSLParameters(parameters);
+				long handshakeStart = System.currentTimeMillis();
+				sslSocket.startHandshake();
+				Trace.stampCurrent(Stage.HANDSHAKEN);
+				_tlsHandshakes.incrementAndGet();
+				if (sslSocket.getSession().getCreationTime() < handshakeStart) {
+					_tlsResumed.incrementAndGet();
+				}
+			}
+			return new UpstreamSocket(key, socket, raw);
+		} catch (SSLException e) {
+			boolean cancelled = cancellation != null && cancellation.isCancelled();
+			if (!cancelled && _addresses != null && _address == null) {
+				_addresses.reportFailure(host, socket.getInetAddress(), e);
+			}
+			Misc.forceClose(socket);
+			throw cancelled ? cancellation.explain(e) : e;
+		} catch (IOException e) {
+			Misc.forceClose(socket);
+			throw cancellation == null ? e : cancellation.explain(e);
+		} catch (RuntimeException e) {
+			Misc.forceClose(socket);
+			throw e;
+		} finally {
+			if (cancellation != null) {
+				cancellation.detach();
+			}
+		}
+	}
+
+	private Socket openSocket(String host, int port, int timeoutMillis, Cancellation cancellation)
+			throws IOException {
+		if (_address == null && _addresses != null) {
+			// cached, so connect() does not resolve again
+			_addresses.pin(host);
+			Trace.stampCurrent(Stage.RESOLVED);
+			Socket socket = _addresses.connect(host, port, timeoutMillis, cancellation);
+			Trace.stampCurrent(Stage.CONNECTED);
+			return socket;
+		}
+		InetSocketAddress address = _address == null ? new InetSocketAddress(host, port) : _address;
+		Trace.stampCurrent(Stage.RESOLVED);
+		Socket socket = new Socket();
+		try {
+			if (cancellation != null) {
+				cancellation.attach(socket);
+			}
+			socket.connect(address, timeoutMillis);
+		} catch (IOException e) {
+			Misc.forceClose(socket);
+			throw cancellation == null ? e : cancellation.explain(e);
+		} catch (RuntimeException e) {
+			Misc.forceClose(socket);
+			throw e;
+		} finally {
+			if (cancellation != null) {
+				cancellation.detach();
+			}
+		}
+		Trace.stampCurrent(Stage.CONNECTED);
+		return socket;
+	}
+
+	public void shutdown() {
+		_pool.clear();
+	}
+
+	public long getPoolHits() {
+		return _pool.getHits();
+	}
+
+	public long getPoolMisses() {
+		return _pool.getMisses();
+	}
+
+	@Override
+	public String getStatusText() {
+		String text = "connections: " + _pool.getHits() + " reused, " + _pool.getMisses() + " new ("
+				+ _tlsResumed.get() + "/" + _tlsHandshakes.get() + " TLS resumed)";
+		return _addresses == null ? text : text + ", " + _addresses.getStatusText();
+	}
+}
@@ -0,0 +1,18 @@
+package com.iosoft.ubiconfor.upstream;
+
+import java.io.InterruptedIOException;
+
+/**
+ * The request was aborted on purpose (the webserver cancelled it or its
+ * deadline passed), not because upstream failed.
+ */
+public final class RequestCancelledException extends InterruptedIOException {
+	private static final long serialVersionUID = 1L;
+
+	public RequestCancelledException(String reason, Throwable cause) {
+		super("Cancelled: " + reason);
+		if (cause != null) {
+			initCause(cause);
+		}
+	}
+}
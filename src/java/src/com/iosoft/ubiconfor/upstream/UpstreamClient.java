@@ -0,0 +1,38 @@
+package com.iosoft.ubiconfor.upstream;
+
+import java.io.IOException;
+
+import com.iosoft.ubiconfor.dtos.RequestDataDto;
+import com.iosoft.ubiconfor.dtos.ResponseDataDto;
+
+/**
+ * Sends a request to the actual Ubisoft endpoint and fills in the response.
+ */
+public interface UpstreamClient {
+	/**
+	 * Sets StatusCode and Headers of the response, the body goes to the sink only.
+	 */
+	void execute(RequestDataDto request, ResponseDataDto response, BodySink sink) throws IOException;
+
+	default void execute(RequestDataDto request, ResponseDataDto response) throws IOException {
+		BufferedBody body = new BufferedBody();
+		execute(request, response, body);
+		response.Content = body.toByteArray();
+	}
+
+	/**
+	 * Opens up to numConnections keep-alive connections to the host of the URI
+	 * ahead of time, if this client keeps connections. Returns how many it
+	 * opened.
+	 */
+	default int prewarm(String uri, int numConnections) throws IOException {
+		return 0;
+	}
+
+	/**
+	 * Short text for the UI, or null if there is nothing to report.
+	 */
+	default String getStatusText() {
+		return null;
+	}
+}
@@ -0,0 +1,91 @@
+package com.iosoft.ubiconfor.upstream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import com.iosoft.helpers.Misc;
+
+/**
+ * A connection to an upstream host that can be kept alive between requests.
+ */
+final class UpstreamSocket implements Closeable {
+	public final String Key;
+	public final InputStream In;
+	public final OutputStream Out;
+	private final Socket _socket;
+	// the TCP socket below TLS, or the same
+	private final Socket _raw;
+	private long _lastUsedNanos;
+	// opened ahead of time and not used yet, see ConnectionPool.releasePrewarmed()
+	private boolean _prewarmed;
+
+	UpstreamSocket(String key, Socket socket, Socket raw) throws IOException {
+		Key = key;
+		_socket = socket;
+		_raw = raw;
+		In = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+		Out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+		_lastUsedNanos = System.nanoTime();
+	}
+
+	void markIdle() {
+		_lastUsedNanos = System.nanoTime();
+		_prewarmed = false;
+	}
+
+	void markPrewarmed() {
+		_prewarmed = true;
+	}
+
+	boolean isPrewarmed() {
+		return _prewarmed;
+	}
+
+	/**
+	 * Prewarmed ones do not time out, see isOpenUpstream().
+	 */
+	boolean isUsable(long now, long idleTimeoutNanos) {
+		return !_socket.isClosed() && !_socket.isInputShutdown()
+				&& (_prewarmed || now - _lastUsedNanos < idleTimeoutNanos);
+	}
+
+	/**
+	 * False if upstream has closed the connection in the meantime (or sent
+	 * something nobody asked for). Waits a millisecond for that.
+	 */
+	boolean isOpenUpstream() {
+		try {
+			int timeout = _socket.getSoTimeout();
+			_socket.setSoTimeout(1);
+			try {
+				In.read();
+				return false;
+			} catch (SocketTimeoutException e) {
+				return true;
+			} finally {
+				_socket.setSoTimeout(timeout);
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public void close() {
+		Misc.forceClose(_socket);
+	}
+
+	/**
+	 * Closes the TCP connection without a TLS goodbye, which cannot wait for a
+	 * thread that is blocked reading.
+	 */
+	void abort() {
+		Misc.forceClose(_raw);
+	}
+}
@@ -0,0 +1,77 @@
+package com.iosoft.ubiconfor.upstream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import com.iosoft.ubiconfor.dtos.HeaderDto;
+import com.iosoft.ubiconfor.dtos.RequestDataDto;
+import com.iosoft.ubiconfor.dtos.ResponseDataDto;
+import com.iosoft.ubiconfor.log.Log;
+
+/**
+ * The original implementation, one HttpURLConnection per request.
+ */
+public final class UrlConnectionClient implements UpstreamClient {
+	@Override
+	public void execute(RequestDataDto request, ResponseDataDto response, BodySink sink) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(request.Uri).openConnection();
+		try {
+			// HttpURLConnection connection = (HttpURLConnection) new
+			// URL("http://localhost").openConnection();
+			connection.setUseCaches(false);
+
+			connection.setRequestProperty("Accept", "*/*");
+			connection.setRequestMethod(request.Method);
+			for (HeaderDto header : request.Headers) {
+				connection.setRequestProperty(header.Name, String.join(",", header.Values));
+			}
+
+			if (!request.Method.equals("GET")) {
+				connection.setDoOutput(true);
+				try (OutputStream out = connection.getOutputStream()) {
+					out.write(request.Content);
+					out.flush();
+				}
+			}
+
+			Log.debug("Connecting to: " + connection);
+
+			connection.connect();
+
+			response.StatusCode = connection.getResponseCode();
+			response.Headers = connection.getHeaderFields().entrySet().stream() //
+					.filter(x -> x.getKey() != null).<HeaderDto>map(x -> {
+						HeaderDto header = new HeaderDto();
+						header.Name = x.getKey();
+						header.Values = x.getValue().toArray(new String[x.getValue().size()]);
+						return header;
+					}).toArray(HeaderDto[]::new);
+			sink.onHead(response);
+
+			InputStream in;
+			try {
+				in = connection.getInputStream();
+			} catch (IOException e) {
+				in = connection.getErrorStream();
+			}
+			if (in != null) {
+				try (InputStream in2 = in) {
+					byte[] buffer = new byte[16 * 1024];
+					int read;
+					while ((read = in2.read(buffer)) >= 0) {
+						sink.onBody(buffer, 0, read);
+					}
+				}
+			}
+		} finally {
+			try {
+				connection.disconnect();
+			} catch (Exception e) {
+				Log.debug("Error disconnecting: " + e);
+			}
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package com.iosoft.ubiconfor.wire;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Fixed size buffers for frames. Bigger frames get a temporary buffer that is
+ * not pooled.
+ */
+public final class BufferPool {
+	private final ArrayBlockingQueue<ByteBuffer> _buffers;
+	private final int _bufferSize;
+	private final boolean _direct;
+
+	public BufferPool(int maxPooled, int bufferSize, boolean direct) {
+		_buffers = new ArrayBlockingQueue<>(maxPooled);
+		_bufferSize = bufferSize;
+		_direct = direct;
+	}
+
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = _buffers.poll();
+		return buffer == null ? allocate(_bufferSize) : buffer;
+	}
+
+	/**
+	 * A buffer with at least the given capacity.
+	 */
+	public ByteBuffer acquire(int capacity) {
+		return capacity <= _bufferSize ? acquire() : allocate(capacity);
+	}
+
+	public void release(ByteBuffer buffer) {
+		if (buffer.capacity() == _bufferSize) {
+			buffer.clear();
+			_buffers.offer(buffer);
+		}
+	}
+
+	public int getBufferSize() {
+		return _bufferSize;
+	}
+
+	private ByteBuffer allocate(int capacity) {
+		return _direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+}
@@ -0,0 +1,172 @@
+package com.iosoft.ubiconfor.wire;
+
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * DataInput reading from a ByteBuffer, same encoding as DataInputStream. Meant
+ * to be reused for every frame.
+ */
+public final class ByteBufferInput implements DataInput {
+	private ByteBuffer _buffer;
+	private char[] _chars = new char[256];
+
+	public ByteBufferInput wrap(ByteBuffer buffer) {
+		_buffer = buffer;
+		return this;
+	}
+
+	public int remaining() {
+		return _buffer.remaining();
+	}
+
+	private void need(int numBytes) throws EOFException {
+		if (_buffer.remaining() < numBytes) {
+			throw new EOFException("Frame too short, " + numBytes + " bytes needed, " + _buffer.remaining()
+					+ " left");
+		}
+	}
+
+	@Override
+	public void readFully(byte[] b) throws EOFException {
+		readFully(b, 0, b.length);
+	}
+
+	@Override
+	public void readFully(byte[] b, int off, int len) throws EOFException {
+		need(len);
+		_buffer.get(b, off, len);
+	}
+
+	@Override
+	public int skipBytes(int n) {
+		int skipped = Math.max(0, Math.min(n, _buffer.remaining()));
+		_buffer.position(_buffer.position() + skipped);
+		return skipped;
+	}
+
+	@Override
+	public boolean readBoolean() throws EOFException {
+		return readByte() != 0;
+	}
+
+	@Override
+	public byte readByte() throws EOFException {
+		need(1);
+		return _buffer.get();
+	}
+
+	@Override
+	public int readUnsignedByte() throws EOFException {
+		return readByte() & 0xFF;
+	}
+
+	@Override
+	public short readShort() throws EOFException {
+		need(2);
+		return _buffer.getShort();
+	}
+
+	@Override
+	public int readUnsignedShort() throws EOFException {
+		return readShort() & 0xFFFF;
+	}
+
+	@Override
+	public char readChar() throws EOFException {
+		need(2);
+		return _buffer.getChar();
+	}
+
+	@Override
+	public int readInt() throws EOFException {
+		need(4);
+		return _buffer.getInt();
+	}
+
+	@Override
+	public long readLong() throws EOFException {
+		need(8);
+		return _buffer.getLong();
+	}
+
+	@Override
+	public float readFloat() throws EOFException {
+		need(4);
+		return _buffer.getFloat();
+	}
+
+	@Override
+	public double readDouble() throws EOFException {
+		need(8);
+		return _buffer.getDouble();
+	}
+
+	/**
+	 * Same as DataInputStream.readLine: one char per byte, up to "\n", "\r" or
+	 * "\r\n". Null at the end of the frame.
+	 */
+	@Override
+	public String readLine() {
+		if (!_buffer.hasRemaining()) {
+			return null;
+		}
+		StringBuilder line = new StringBuilder();
+		while (_buffer.hasRemaining()) {
+			int b = _buffer.get() & 0xFF;
+			if (b == '\n') {
+				break;
+			}
+			if (b == '\r') {
+				if (_buffer.hasRemaining() && _buffer.get(_buffer.position()) == '\n') {
+					_buffer.get();
+				}
+				break;
+			}
+			line.append((char) b);
+		}
+		return line.toString();
+	}
+
+	@Override
+	public String readUTF() throws EOFException, UTFDataFormatException {
+		// modified UTF-8, see DataInputStream.readUTF
+		int utfLength = readUnsignedShort();
+		need(utfLength);
+		if (_chars.length < utfLength) {
+			_chars = new char[Math.max(utfLength, _chars.length * 2)];
+		}
+		int end = _buffer.position() + utfLength;
+		int numChars = 0;
+		while (_buffer.position() < end) {
+			int a = _buffer.get() & 0xFF;
+			if (a < 0x80) {
+				_chars[numChars++] = (char) a;
+			} else if ((a & 0xE0) == 0xC0) {
+				if (_buffer.position() >= end) {
+					throw new UTFDataFormatException("Partial character at end");
+				}
+				int b = _buffer.get() & 0xFF;
+				if ((b & 0xC0) != 0x80) {
+					throw new UTFDataFormatException("Malformed input");
+				}
+				_chars[numChars++] = (char) ((a & 0x1F) << 6 | b & 0x3F);
+			} else if ((a & 0xF0) == 0xE0) {
+				if (_buffer.position() + 1 >= end) {
+					throw new UTFDataFormatException("Partial character at end");
+				}
+				int b = _buffer.get() & 0xFF;
+				int c = _buffer.get() & 0xFF;
+				if ((b & 0xC0) != 0x80 || (c & 0xC0) != 0x80) {
+					throw new UTFDataFormatException("Malformed input");
+				}
+				_chars[numChars++] = (char) ((a & 0x0F) << 12 | (b & 0x3F) << 6 | c & 0x3F);
+			} else {
+				throw new UTFDataFormatException("Malformed input");
+			}
+		}
+		return new String(_chars, 0, numChars);
+	}
+}
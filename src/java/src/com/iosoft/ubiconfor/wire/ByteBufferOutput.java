@@ -0,0 +1,180 @@
+package com.iosoft.ubiconfor.wire;
+
+import java.io.DataOutput;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * DataOutput that writes into a pooled ByteBuffer, same encoding as
+ * DataOutputStream. Switches to a bigger buffer when needed.
+ */
+public final class ByteBufferOutput implements DataOutput {
+	private final BufferPool _pool;
+	private ByteBuffer _buffer;
+
+	public ByteBufferOutput(BufferPool pool) {
+		_pool = pool;
+	}
+
+	public void begin() {
+		if (_buffer != null) {
+			throw new IllegalStateException("Previous frame was not finished");
+		}
+		_buffer = _pool.acquire();
+	}
+
+	/**
+	 * Returns the written data, ready for reading. Must be given back to the pool
+	 * after use.
+	 */
+	public ByteBuffer finish() {
+		ByteBuffer buffer = _buffer;
+		_buffer = null;
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Gives the buffer back without using it, for errors while writing.
+	 */
+	public void abort() {
+		if (_buffer != null) {
+			_pool.release(_buffer);
+			_buffer = null;
+		}
+	}
+
+	public int position() {
+		return _buffer.position();
+	}
+
+	public void skip(int numBytes) {
+		ensure(numBytes);
+		_buffer.position(_buffer.position() + numBytes);
+	}
+
+	public void putInt(int index, int value) {
+		_buffer.putInt(index, value);
+	}
+
+	private void ensure(int numBytes) {
+		if (_buffer.remaining() >= numBytes) {
+			return;
+		}
+		ByteBuffer bigger = _pool.acquire(Math.max(_buffer.capacity() * 2, _buffer.position() + numBytes));
+		_buffer.flip();
+		bigger.put(_buffer);
+		_pool.release(_buffer);
+		_buffer = bigger;
+	}
+
+	@Override
+	public void write(int b) {
+		ensure(1);
+		_buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b) {
+		write(b, 0, b.length);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensure(len);
+		_buffer.put(b, off, len);
+	}
+
+	@Override
+	public void writeBoolean(boolean v) {
+		write(v ? 1 : 0);
+	}
+
+	@Override
+	public void writeByte(int v) {
+		write(v);
+	}
+
+	@Override
+	public void writeShort(int v) {
+		ensure(2);
+		_buffer.putShort((short) v);
+	}
+
+	@Override
+	public void writeChar(int v) {
+		ensure(2);
+		_buffer.putChar((char) v);
+	}
+
+	@Override
+	public void writeInt(int v) {
+		ensure(4);
+		_buffer.putInt(v);
+	}
+
+	@Override
+	public void writeLong(long v) {
+		ensure(8);
+		_buffer.putLong(v);
+	}
+
+	@Override
+	public void writeFloat(float v) {
+		ensure(4);
+		_buffer.putFloat(v);
+	}
+
+	@Override
+	public void writeDouble(double v) {
+		ensure(8);
+		_buffer.putDouble(v);
+	}
+
+	@Override
+	public void writeBytes(String s) {
+		int length = s.length();
+		ensure(length);
+		for (int i = 0; i < length; i++) {
+			_buffer.put((byte) s.charAt(i));
+		}
+	}
+
+	@Override
+	public void writeChars(String s) {
+		int length = s.length();
+		ensure(length * 2);
+		for (int i = 0; i < length; i++) {
+			_buffer.putChar(s.charAt(i));
+		}
+	}
+
+	@Override
+	public void writeUTF(String s) throws UTFDataFormatException {
+		// modified UTF-8, see DataOutputStream.writeUTF
+		int length = s.length();
+		int utfLength = 0;
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			utfLength += c >= 0x0001 && c <= 0x007F ? 1 : c > 0x07FF ? 3 : 2;
+		}
+		if (utfLength > 65535) {
+			throw new UTFDataFormatException("Encoded string too long: " + utfLength + " bytes");
+		}
+		ensure(2 + utfLength);
+		_buffer.putShort((short) utfLength);
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				_buffer.put((byte) c);
+			} else if (c > 0x07FF) {
+				_buffer.put((byte) (0xE0 | c >> 12 & 0x0F));
+				_buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+				_buffer.put((byte) (0x80 | c & 0x3F));
+			} else {
+				_buffer.put((byte) (0xC0 | c >> 6 & 0x1F));
+				_buffer.put((byte) (0x80 | c & 0x3F));
+			}
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package com.iosoft.ubiconfor.wire;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import com.iosoft.helpers.Misc;
+import com.iosoft.ubiconfor.dtos.DataObject;
+
+/**
+ * Frames are "msgId, int length, data" (only "msgId" for messages without
+ * data). Frames are encoded straight into pooled buffers and written by a
+ * sender thread with gathering writes; received frames are decoded from one
+ * reused buffer.
+ */
+public final class FrameChannel {
+	public interface FrameHandler {
+		/**
+		 * Called on the receive thread, the DataInput is only valid during the call.
+		 */
+		void onFrame(byte msgId, DataInput in) throws IOException;
+	}
+
+	public interface FrameWriter {
+		void write(DataOutput out) throws IOException;
+	}
+
+	private static final int MAX_BATCH = 64;
+	// bigger receive buffers are not kept around after the frame
+	private static final int MAX_RETAINED_RECEIVE_BUFFER = 1024 * 1024;
+
+	private final SocketChannel _channel;
+	private final BufferPool _pool;
+	private final FrameHandler _handler;
+	private final Consumer<Exception> _onClosed;
+	private final ArrayBlockingQueue<ByteBuffer> _outgoing;
+	// frames are queued in the order they were encoded in, as the header
+	// compression relies on that. not synchronized, as waiting for the queue
+	// would pin a virtual thread to its carrier
+	private final ReentrantLock _sendLock = new ReentrantLock();
+	private final ByteBufferOutput _encoder;
+	private final AtomicBoolean _closed = new AtomicBoolean();
+
+	public FrameChannel(SocketChannel channel, BufferPool pool, int maxQueuedFrames, FrameHandler handler,
+			Consumer<Exception> onClosed) throws IOException {
+		_channel = channel;
+		_pool = pool;
+		_handler = handler;
+		_onClosed = onClosed;
+		_outgoing = new ArrayBlockingQueue<>(maxQueuedFrames);
+		_encoder = new ByteBufferOutput(pool);
+
+		channel.configureBlocking(true);
+		// not for Unix domain sockets
+		if (channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		}
+	}
+
+	public void start(String name) {
+		Thread receiver = new Thread(this::receiveLoop, name + " receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+		Thread sender = new Thread(this::sendLoop, name + " sender");
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	public void send(byte msgId, DataObject dto) throws IOException {
+		send(msgId, dto == null ? null : dto::write);
+	}
+
+	/**
+	 * Encodes the message and queues it. Blocks if too many frames are queued
+	 * already, so a fast producer cannot fill up the memory.
+	 */
+	public void send(byte msgId, FrameWriter writer) throws IOException {
+		_sendLock.lock();
+		try {
+			if (_closed.get()) {
+				throw new ClosedChannelException();
+			}
+
+			ByteBuffer frame = encode(_encoder, msgId, writer);
+
+			try {
+				while (!_outgoing.offer(frame, 100, TimeUnit.MILLISECONDS)) {
+					if (_closed.get()) {
+						_pool.release(frame);
+						throw new ClosedChannelException();
+					}
+				}
+				if (_closed.get()) {
+					// closed while queueing, the sender may be gone already
+					releaseQueued();
+				}
+			} catch (InterruptedException e) {
+				_pool.release(frame);
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while sending", e);
+			}
+		} finally {
+			_sendLock.unlock();
+		}
+	}
+
+	/**
+	 * The frame as it goes over the wire, to be given back to the pool of the
+	 * output.
+	 */
+	static ByteBuffer encode(ByteBufferOutput out, byte msgId, FrameWriter writer) throws IOException {
+		out.begin();
+		try {
+			out.writeByte(msgId);
+			if (writer != null) {
+				int lengthPosition = out.position();
+				out.skip(4);
+				writer.write(out);
+				out.putInt(lengthPosition, out.position() - lengthPosition - 4);
+			}
+		} catch (IOException | RuntimeException e) {
+			out.abort();
+			throw e;
+		}
+		return out.finish();
+	}
+
+	public void close() {
+		close(null);
+	}
+
+	private void close(Exception e) {
+		if (_closed.compareAndSet(false, true)) {
+			Misc.forceClose(_channel);
+			releaseQueued();
+			// wakes up the sender
+			_outgoing.offer(ByteBuffer.allocate(0));
+			_onClosed.accept(e);
+		}
+	}
+
+	/**
+	 * Gives the frames that will never be sent back to the pool.
+	 */
+	private void releaseQueued() {
+		ByteBuffer frame;
+		while ((frame = _outgoing.poll()) != null) {
+			_pool.release(frame);
+		}
+	}
+
+	private void sendLoop() {
+		ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+		try {
+			while (!_closed.get()) {
+				batch[0] = _outgoing.take();
+				int count = 1;
+				ByteBuffer next;
+				while (count < MAX_BATCH && (next = _outgoing.poll()) != null) {
+					batch[count++] = next;
+				}
+
+				int first = 0;
+				while (first < count) {
+					_channel.write(batch, first, count - first);
+					while (first < count && !batch[first].hasRemaining()) {
+						_pool.release(batch[first]);
+						batch[first++] = null;
+					}
+				}
+			}
+		} catch (IOException | InterruptedException e) {
+			close(e);
+		} finally {
+			// the ones that were not written completely
+			for (ByteBuffer frame : batch) {
+				if (frame != null) {
+					_pool.release(frame);
+				}
+			}
+			releaseQueued();
+		}
+	}
+
+	private void receiveLoop() {
+		ByteBuffer header = ByteBuffer.allocate(5);
+		ByteBuffer body = _pool.acquire();
+		ByteBufferInput in = new ByteBufferInput();
+		try {
+			while (true) {
+				header.clear();
+				readFully(header);
+				byte msgId = header.get(0);
+				int length = header.getInt(1);
+				if (length < 0) {
+					throw new IOException("Invalid length " + length + " for msgId " + msgId);
+				}
+
+				if (body.capacity() < length) {
+					_pool.release(body);
+					body = _pool.acquire(length);
+				}
+				body.clear().limit(length);
+				readFully(body);
+				body.flip();
+
+				_handler.onFrame(msgId, in.wrap(body));
+
+				if (body.capacity() > MAX_RETAINED_RECEIVE_BUFFER) {
+					body = _pool.acquire();
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			close(e);
+		} finally {
+			_pool.release(body);
+		}
+	}
+
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (_channel.read(buffer) < 0) {
+				throw new EOFException("Connection closed");
+			}
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package com.iosoft.ubiconfor.wire;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Volatile access to ints and longs in a mapped ByteBuffer that another process
+ * uses at the same time. Offsets must be aligned to the size of the value,
+ * values are little endian.
+ * <p>
+ * Java 8 version: goes through sun.misc.Unsafe, found via reflection, and only
+ * works where that is there and the native order is little endian. The
+ * multi-release JAR contains a Java 21 version with VarHandles (src-java21).
+ */
+public final class MappedAtomics {
+	private static final MethodHandle GET_INT, PUT_INT, CAS_INT, GET_LONG, PUT_LONG, GET_ADDRESS;
+	private static final long ADDRESS_OFFSET;
+
+	static {
+		MethodHandle getInt = null, putInt = null, casInt = null, getLong = null, putLong = null, getAddress = null;
+		long addressOffset = -1;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Object unsafe = field.get(null);
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			getInt = bind(lookup, unsafeClass, unsafe, "getIntVolatile", int.class, Object.class, long.class);
+			putInt = bind(lookup, unsafeClass, unsafe, "putIntVolatile", void.class, Object.class, long.class,
+					int.class);
+			casInt = bind(lookup, unsafeClass, unsafe, "compareAndSwapInt", boolean.class, Object.class, long.class,
+					int.class, int.class);
+			getLong = bind(lookup, unsafeClass, unsafe, "getLongVolatile", long.class, Object.class, long.class);
+			putLong = bind(lookup, unsafeClass, unsafe, "putLongVolatile", void.class, Object.class, long.class,
+					long.class);
+			getAddress = bind(lookup, unsafeClass, unsafe, "getLong", long.class, Object.class, long.class);
+			addressOffset = (long) lookup
+					.findVirtual(unsafeClass, "objectFieldOffset", MethodType.methodType(long.class, Field.class))
+					.invoke(unsafe, Buffer.class.getDeclaredField("address"));
+		} catch (Throwable e) {
+			getInt = null;
+		}
+		boolean supported = getInt != null && ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+		GET_INT = supported ? getInt : null;
+		PUT_INT = putInt;
+		CAS_INT = casInt;
+		GET_LONG = getLong;
+		PUT_LONG = putLong;
+		GET_ADDRESS = getAddress;
+		ADDRESS_OFFSET = addressOffset;
+	}
+
+	private MappedAtomics() {
+	}
+
+	private static MethodHandle bind(MethodHandles.Lookup lookup, Class<?> unsafeClass, Object unsafe, String name,
+			Class<?> returnType, Class<?>... parameterTypes) throws ReflectiveOperationException {
+		return lookup.findVirtual(unsafeClass, name, MethodType.methodType(returnType, parameterTypes)).bindTo(unsafe);
+	}
+
+	public static boolean isSupported() {
+		return GET_INT != null;
+	}
+
+	public static int getIntVolatile(ByteBuffer buffer, int offset) {
+		try {
+			return (int) GET_INT.invokeExact((Object) null, address(buffer) + offset);
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static void putIntVolatile(ByteBuffer buffer, int offset, int value) {
+		try {
+			PUT_INT.invokeExact((Object) null, address(buffer) + offset, value);
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static boolean compareAndSetInt(ByteBuffer buffer, int offset, int expected, int value) {
+		try {
+			return (boolean) CAS_INT.invokeExact((Object) null, address(buffer) + offset, expected, value);
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static long getLongVolatile(ByteBuffer buffer, int offset) {
+		try {
+			return (long) GET_LONG.invokeExact((Object) null, address(buffer) + offset);
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static void putLongVolatile(ByteBuffer buffer, int offset, long value) {
+		try {
+			PUT_LONG.invokeExact((Object) null, address(buffer) + offset, value);
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Thread.onSpinWait() needs Java 9.
+	 */
+	public static void onSpinWait() {
+	}
+
+	private static long address(ByteBuffer buffer) throws Throwable {
+		if (!buffer.isDirect()) {
+			throw new IllegalArgumentException("Not a direct buffer");
+		}
+		return (long) GET_ADDRESS.invokeExact((Object) buffer, ADDRESS_OFFSET);
+	}
+}
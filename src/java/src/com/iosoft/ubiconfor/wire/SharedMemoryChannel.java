@@ -0,0 +1,230 @@
+package com.iosoft.ubiconfor.wire;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.iosoft.ubiconfor.wire.FrameChannel.FrameHandler;
+import com.iosoft.ubiconfor.wire.FrameChannel.FrameWriter;
+
+/**
+ * Frames through two SharedRings in a memory-mapped file instead of a socket,
+ * for a peer on the same machine. The file is "int magic, int version, int ring
+ * size", then the ring the forwarder reads and the one it writes.
+ * <p>
+ * There is no futex in Java, so the socket that both sides have anyway is the
+ * way to sleep: a receiver that ran out of frames spins for a moment, yields,
+ * then sets its sleeping flag and goes back to reading the socket. The sender
+ * clears the flag and sends a Doorbell there, whose receiver then calls
+ * onDoorbell() and reads the frames. Under load the doorbell is never needed.
+ */
+public final class SharedMemoryChannel {
+	public static final int MAGIC = 0x55435231; // "UCR1"
+	public static final int VERSION = 1;
+	private static final int HEADER_BYTES = 64;
+	private static final int YIELDS = 20;
+
+	private final SharedRing _incoming, _outgoing;
+	private final BufferPool _pool;
+	private final FrameHandler _handler;
+	private final Runnable _doorbell;
+	private final long _spinNanos;
+	// same as FrameChannel: frames go into the ring in the order they were encoded
+	private final ReentrantLock _sendLock = new ReentrantLock();
+	private final ByteBufferOutput _encoder;
+	private final AtomicBoolean _closed = new AtomicBoolean();
+	// only used by the thread that gets the doorbells
+	private final ByteBufferInput _input = new ByteBufferInput();
+	// for frames that were split over several records, they may span doorbells
+	private ByteBuffer _assembled;
+
+	/**
+	 * Creates the file with two rings of ringBytes each (a power of 2) and maps
+	 * it. Only for the forwarder.
+	 */
+	public static MappedByteBuffer create(File file, int ringBytes) throws IOException {
+		if (Integer.bitCount(ringBytes) != 1 || ringBytes < 4096) {
+			throw new IllegalArgumentException("Ring size must be a power of 2 of at least 4096: " + ringBytes);
+		}
+		MappedByteBuffer mapped = map(file, HEADER_BYTES + 2 * (SharedRing.CONTROL_BYTES + ringBytes));
+		ByteBuffer header = mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(4, VERSION);
+		header.putInt(8, ringBytes);
+		// both start out asleep, so the first frames ring
+		new SharedRing(mapped, HEADER_BYTES, ringBytes).setSleeping(true);
+		new SharedRing(mapped, HEADER_BYTES + SharedRing.CONTROL_BYTES + ringBytes, ringBytes).setSleeping(true);
+		// the magic last, in case the peer opens it too early
+		MappedAtomics.putIntVolatile(mapped, 0, MAGIC);
+		return mapped;
+	}
+
+	/**
+	 * Maps a file created by the forwarder, for the peer.
+	 */
+	public static MappedByteBuffer open(File file) throws IOException {
+		MappedByteBuffer mapped = map(file, file.length());
+		if (mapped.capacity() < HEADER_BYTES || MappedAtomics.getIntVolatile(mapped, 0) != MAGIC) {
+			throw new IOException("Not a shared memory channel: " + file);
+		}
+		ByteBuffer header = mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		if (header.getInt(4) != VERSION) {
+			throw new IOException("Unknown shared memory channel version " + header.getInt(4));
+		}
+		if (mapped.capacity() != HEADER_BYTES + 2 * (SharedRing.CONTROL_BYTES + (long) header.getInt(8))) {
+			throw new IOException("Shared memory channel file has the wrong size");
+		}
+		return mapped;
+	}
+
+	private static MappedByteBuffer map(File file, long size) throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Shared memory channel file too big: " + size);
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			if (raf.length() != size) {
+				raf.setLength(size);
+			}
+			// stays valid after closing the file
+			MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			mapped.order(ByteOrder.BIG_ENDIAN);
+			return mapped;
+		}
+	}
+
+	/**
+	 * forwarder tells which of the rings to read. The doorbell has to make the
+	 * peer call onDoorbell(), it is called while sending. spinNanos 0 never
+	 * spins, the right thing on a single core.
+	 */
+	public SharedMemoryChannel(MappedByteBuffer mapped, boolean forwarder, BufferPool pool, long spinNanos,
+			FrameHandler handler, Runnable doorbell) {
+		int ringBytes = mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(8);
+		SharedRing toForwarder = new SharedRing(mapped, HEADER_BYTES, ringBytes);
+		SharedRing toPeer = new SharedRing(mapped, HEADER_BYTES + SharedRing.CONTROL_BYTES + ringBytes, ringBytes);
+		_incoming = forwarder ? toForwarder : toPeer;
+		_outgoing = forwarder ? toPeer : toForwarder;
+		_pool = pool;
+		_spinNanos = spinNanos;
+		_handler = handler;
+		_doorbell = doorbell;
+		_encoder = new ByteBufferOutput(pool);
+	}
+
+	public void send(byte msgId, FrameWriter writer) throws IOException {
+		_sendLock.lock();
+		try {
+			if (_closed.get()) {
+				throw new ClosedChannelException();
+			}
+			ByteBuffer frame = FrameChannel.encode(_encoder, msgId, writer);
+			try {
+				_outgoing.write(frame, _closed::get, _doorbell);
+			} finally {
+				_pool.release(frame);
+			}
+		} finally {
+			_sendLock.unlock();
+		}
+	}
+
+	/**
+	 * The peer rang the doorbell: hands all frames there are to the handler,
+	 * until there were none for a moment. Always call it from the same thread.
+	 */
+	public void onDoorbell() throws IOException {
+		while (!_closed.get()) {
+			ByteBuffer record = _incoming.next();
+			if (record == null) {
+				if (awaitFrames()) {
+					continue;
+				}
+				return;
+			}
+			if (_assembled == null && !_incoming.continues()) {
+				// the usual case, decoded right in the ring
+				onFrame(record);
+			} else {
+				if (_assembled == null) {
+					_assembled = _pool.acquire(getFrameBytes(record));
+				}
+				if (_assembled.remaining() < record.remaining()) {
+					throw new IOException("Split frame longer than announced");
+				}
+				_assembled.put(record);
+				if (!_incoming.continues()) {
+					ByteBuffer assembled = _assembled;
+					_assembled = null;
+					assembled.flip();
+					try {
+						onFrame(assembled);
+					} finally {
+						_pool.release(assembled);
+					}
+				}
+			}
+			_incoming.release();
+		}
+	}
+
+	public void close() {
+		_closed.set(true);
+	}
+
+	private static int getFrameBytes(ByteBuffer firstRecord) throws IOException {
+		if (firstRecord.remaining() < 5) {
+			throw new IOException("Split frame without a length");
+		}
+		int length = firstRecord.getInt(firstRecord.position() + 1);
+		if (length < 0) {
+			throw new IOException("Invalid length " + length);
+		}
+		return 5 + length;
+	}
+
+	private void onFrame(ByteBuffer frame) throws IOException {
+		byte msgId = frame.get();
+		// only messages without data have no length
+		if (frame.hasRemaining()) {
+			int length = frame.getInt();
+			if (length != frame.remaining()) {
+				throw new IOException("Invalid length " + length + " for msgId " + msgId);
+			}
+		}
+		_handler.onFrame(msgId, _input.wrap(frame));
+	}
+
+	/**
+	 * True if frames came in while waiting, false if the peer has to ring.
+	 */
+	private boolean awaitFrames() {
+		if (_spinNanos > 0) {
+			long start = System.nanoTime();
+			do {
+				if (!_incoming.isEmpty()) {
+					return true;
+				}
+				MappedAtomics.onSpinWait();
+			} while (System.nanoTime() - start < _spinNanos);
+		}
+		for (int i = 0; i < YIELDS; i++) {
+			if (!_incoming.isEmpty()) {
+				return true;
+			}
+			Thread.yield();
+		}
+		_incoming.setSleeping(true);
+		// a frame may have come in before the peer could see the flag
+		if (_incoming.isEmpty()) {
+			return false;
+		}
+		_incoming.setSleeping(false);
+		return true;
+	}
+}
@@ -0,0 +1,194 @@
+package com.iosoft.ubiconfor.wire;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * One direction of a SharedMemoryChannel: a ring buffer in a mapped file with
+ * one producer and one consumer, each in its own process.
+ * <p>
+ * The control block holds the head (bytes ever written, set by the producer),
+ * the tail (bytes ever read, set by the consumer) and the flag the consumer
+ * sets before it sleeps, each on its own cache line. The data are records of
+ * "int header, bytes", padded to 8 bytes. The header is the number of bytes,
+ * with MORE set if the next record continues the same frame; -1 means the rest
+ * up to the end of the ring is unused. Control values and headers are little
+ * endian, the frames inside are the same as on TCP.
+ */
+final class SharedRing {
+	static final int CONTROL_BYTES = 192;
+	private static final int HEAD = 0, TAIL = 64, SLEEPING = 128;
+	private static final int PADDING = -1, MORE = 1 << 30, LENGTH_MASK = MORE - 1;
+	private static final int SPINS = 100, YIELDS = 100;
+	private static final long MAX_PARK_NANOS = 1_000_000;
+
+	private final ByteBuffer _buffer;
+	private final int _control, _data, _capacity;
+	private final long _mask;
+	// frames bigger than this are split, so that they never need the whole ring
+	private final int _maxRecord;
+	private final boolean _spin = Runtime.getRuntime().availableProcessors() > 1;
+
+	// producer: bytes written, only used by the producer (under its send lock)
+	private long _head;
+	private final ByteBuffer _writeView;
+	// consumer: bytes read and the size of the record returned by next()
+	private long _tail;
+	private int _recordBytes;
+	private boolean _recordContinues;
+	private final ByteBuffer _readView;
+
+	/**
+	 * capacity must be a power of 2, the data starts CONTROL_BYTES after offset.
+	 */
+	SharedRing(ByteBuffer mapped, int offset, int capacity) {
+		_buffer = mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		_control = offset;
+		_data = offset + CONTROL_BYTES;
+		_capacity = capacity;
+		_mask = capacity - 1;
+		_maxRecord = capacity / 4 - 8;
+		// frames are big endian like DataOutput, duplicate() resets the order
+		_writeView = mapped.duplicate();
+		_readView = mapped.duplicate();
+		_head = MappedAtomics.getLongVolatile(_buffer, _control + HEAD);
+		_tail = MappedAtomics.getLongVolatile(_buffer, _control + TAIL);
+	}
+
+	/**
+	 * Copies the frame (position to limit) into the ring, waits while it is full.
+	 * Runs the doorbell if the consumer was asleep, also before waiting.
+	 */
+	void write(ByteBuffer frame, BooleanSupplier closed, Runnable doorbell) throws IOException {
+		int limit = frame.limit();
+		try {
+			do {
+				int length = Math.min(frame.remaining(), _maxRecord);
+				boolean continues = frame.remaining() > length;
+				frame.limit(frame.position() + length);
+				writeRecord(frame, continues, closed, doorbell);
+				frame.limit(limit);
+			} while (frame.hasRemaining());
+		} finally {
+			frame.limit(limit);
+		}
+		wakeUp(doorbell);
+	}
+
+	private void wakeUp(Runnable doorbell) {
+		int sleeping = MappedAtomics.getIntVolatile(_buffer, _control + SLEEPING);
+		// cleared here, so that the doorbell rings once per sleep
+		if (sleeping != 0 && MappedAtomics.compareAndSetInt(_buffer, _control + SLEEPING, sleeping, 0)) {
+			doorbell.run();
+		}
+	}
+
+	private void writeRecord(ByteBuffer bytes, boolean continues, BooleanSupplier closed, Runnable doorbell)
+			throws IOException {
+		int length = bytes.remaining();
+		int recordBytes = align(4 + length);
+		int index = (int) (_head & _mask);
+		int untilEnd = _capacity - index;
+		if (untilEnd < recordBytes) {
+			awaitSpace(untilEnd + recordBytes, closed, doorbell);
+			_buffer.putInt(_data + index, PADDING);
+			_head += untilEnd;
+			index = 0;
+		} else {
+			awaitSpace(recordBytes, closed, doorbell);
+		}
+		_buffer.putInt(_data + index, continues ? length | MORE : length);
+		_writeView.limit(_data + index + 4 + length).position(_data + index + 4);
+		_writeView.put(bytes);
+		_head += recordBytes;
+		// publishes the record, the consumer reads the head before the data
+		MappedAtomics.putLongVolatile(_buffer, _control + HEAD, _head);
+	}
+
+	private void awaitSpace(int numBytes, BooleanSupplier closed, Runnable doorbell) throws IOException {
+		for (int attempt = 0; getFreeBytes() < numBytes; attempt++) {
+			if (closed.getAsBoolean()) {
+				throw new ClosedChannelException();
+			}
+			// a frame bigger than the free space would otherwise wait for a sleeping consumer
+			wakeUp(doorbell);
+			backOff(attempt);
+		}
+	}
+
+	private long getFreeBytes() {
+		return _capacity - (_head - MappedAtomics.getLongVolatile(_buffer, _control + TAIL));
+	}
+
+	private void backOff(int attempt) {
+		if (attempt < SPINS && _spin) {
+			MappedAtomics.onSpinWait();
+		} else if (attempt < SPINS + YIELDS) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(this, Math.min(MAX_PARK_NANOS, 1000L * (attempt - SPINS - YIELDS + 1)));
+		}
+	}
+
+	/**
+	 * The bytes of the next record, valid until release(), or null if there is
+	 * none yet.
+	 */
+	ByteBuffer next() {
+		long head = MappedAtomics.getLongVolatile(_buffer, _control + HEAD);
+		if (head == _tail) {
+			return null;
+		}
+		int index = (int) (_tail & _mask);
+		int header = _buffer.getInt(_data + index);
+		if (header == PADDING) {
+			_tail += _capacity - index;
+			MappedAtomics.putLongVolatile(_buffer, _control + TAIL, _tail);
+			return next();
+		}
+		int length = header & LENGTH_MASK;
+		if (length > _capacity - index - 4) {
+			throw new IllegalStateException("Corrupt shared memory record of " + length + " bytes");
+		}
+		_recordContinues = (header & MORE) != 0;
+		_recordBytes = align(4 + length);
+		_readView.limit(_data + index + 4 + length).position(_data + index + 4);
+		return _readView;
+	}
+
+	/**
+	 * Whether the frame of the record from next() continues in the next record.
+	 */
+	boolean continues() {
+		return _recordContinues;
+	}
+
+	/**
+	 * Gives the space of the record from next() back to the producer.
+	 */
+	void release() {
+		_tail += _recordBytes;
+		_recordBytes = 0;
+		MappedAtomics.putLongVolatile(_buffer, _control + TAIL, _tail);
+	}
+
+	boolean isEmpty() {
+		return MappedAtomics.getLongVolatile(_buffer, _control + HEAD) == _tail;
+	}
+
+	/**
+	 * Set by the consumer before it sleeps. Check isEmpty() afterwards, a record
+	 * may have come in before the producer could see it.
+	 */
+	void setSleeping(boolean sleeping) {
+		MappedAtomics.putIntVolatile(_buffer, _control + SLEEPING, sleeping ? 1 : 0);
+	}
+
+	private static int align(int numBytes) {
+		return (numBytes + 7) & ~7;
+	}
+}
@@ -0,0 +1,209 @@
+package com.iosoft.ubiconfor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class AdmissionControllerTest {
+	private static final long WAIT_SECONDS = 5;
+
+	@Test
+	void rejectsRightAwayWhenTheQueueIsFull() throws Exception {
+		AdmissionController admission = new AdmissionController("Test", 1, 1, 60000);
+		CountDownLatch release = new CountDownLatch(1);
+		BlockingQueue<String> reasons = new LinkedBlockingQueue<>();
+		try {
+			admission.submit(admission.newTask(awaitRunnable(release), reasons::add));
+			waitFor(() -> admission.getNumRunning() == 1);
+			AtomicInteger ran = new AtomicInteger();
+			FutureTask<Void> queued = admission.newTask(ran::incrementAndGet, reasons::add);
+			admission.submit(queued);
+			admission.submit(admission.newTask(ran::incrementAndGet, reasons::add));
+
+			assertEquals("queue full", reasons.poll());
+			assertEquals(1, admission.getNumQueued());
+			assertEquals(1, admission.getNumRejected());
+
+			release.countDown();
+			queued.get(WAIT_SECONDS, TimeUnit.SECONDS);
+			assertEquals(1, ran.get());
+			assertTrue(reasons.isEmpty());
+		} finally {
+			release.countDown();
+			admission.shutdown();
+		}
+	}
+
+	@Test
+	void rejectsWhatWaitedTooLong() throws Exception {
+		AdmissionController admission = new AdmissionController("Test", 1, 10, 50);
+		CountDownLatch release = new CountDownLatch(1);
+		BlockingQueue<String> reasons = new LinkedBlockingQueue<>();
+		try {
+			admission.submit(admission.newTask(awaitRunnable(release), reasons::add));
+			waitFor(() -> admission.getNumRunning() == 1);
+			AtomicInteger ran = new AtomicInteger();
+			FutureTask<Void> queued = admission.newTask(ran::incrementAndGet, reasons::add);
+			admission.submit(queued);
+
+			// the sweeper, while the first one still runs
+			assertEquals("queue timeout", reasons.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+			assertEquals(0, admission.getNumQueued());
+			assertEquals(1, admission.getNumRejected());
+			assertTrue(queued.isCancelled());
+
+			release.countDown();
+			waitFor(() -> admission.getNumRunning() == 0);
+			assertEquals(0, ran.get());
+			assertTrue(reasons.isEmpty());
+		} finally {
+			release.countDown();
+			admission.shutdown();
+		}
+	}
+
+	@Test
+	void cancelGivesUpTheQueuePlaceWithoutRejecting() throws Exception {
+		AdmissionController admission = new AdmissionController("Test", 1, 1, 50);
+		CountDownLatch release = new CountDownLatch(1);
+		BlockingQueue<String> reasons = new LinkedBlockingQueue<>();
+		try {
+			admission.submit(admission.newTask(awaitRunnable(release), reasons::add));
+			waitFor(() -> admission.getNumRunning() == 1);
+			AtomicInteger ran = new AtomicInteger();
+			FutureTask<Void> queued = admission.newTask(ran::incrementAndGet, reasons::add);
+			admission.submit(queued);
+
+			assertTrue(queued.cancel(false));
+			assertEquals(0, admission.getNumQueued());
+			// the place is free again
+			FutureTask<Void> next = admission.newTask(ran::incrementAndGet, reasons::add);
+			admission.submit(next);
+			assertEquals(1, admission.getNumQueued());
+			next.cancel(false);
+
+			// well past the queue timeout and a few sweeps
+			Thread.sleep(300);
+			release.countDown();
+			waitFor(() -> admission.getNumRunning() == 0);
+			assertEquals(0, ran.get());
+			assertTrue(reasons.isEmpty());
+			assertEquals(0, admission.getNumRejected());
+		} finally {
+			release.countDown();
+			admission.shutdown();
+		}
+	}
+
+	@Test
+	void neverRunsAndRejectsTheSameTask() throws Exception {
+		// queue timeouts about as long as the tasks, so the sweeper and the workers
+		// race for the same tasks
+		AdmissionController admission = new AdmissionController("Test", 4, 1000, 2);
+		int numTasks = 2000;
+		AtomicInteger[] outcomes = new AtomicInteger[numTasks];
+		List<FutureTask<Void>> tasks = new ArrayList<>();
+		CountDownLatch done = new CountDownLatch(numTasks);
+		for (int i = 0; i < numTasks; i++) {
+			AtomicInteger outcome = outcomes[i] = new AtomicInteger();
+			FutureTask<Void> task = admission.newTask(() -> {
+				outcome.incrementAndGet();
+				sleepMicros(500);
+				done.countDown();
+			}, reason -> {
+				outcome.addAndGet(1000);
+				done.countDown();
+			});
+			tasks.add(task);
+			admission.submit(task);
+			if (i % 100 == 0) {
+				Thread.sleep(5);
+			}
+		}
+
+		assertTrue(done.await(WAIT_SECONDS * 4, TimeUnit.SECONDS));
+		int numRan = 0, numRejected = 0;
+		for (AtomicInteger outcome : outcomes) {
+			int value = outcome.get();
+			assertTrue(value == 1 || value == 1000, "ran " + value % 1000 + " times, rejected " + value / 1000);
+			if (value == 1) {
+				numRan++;
+			} else {
+				numRejected++;
+			}
+		}
+		assertEquals(numTasks, numRan + numRejected);
+		assertEquals(numRejected, admission.getNumRejected());
+		assertTrue(numRan > 0 && numRejected > 0, numRan + " ran, " + numRejected + " rejected");
+		for (FutureTask<Void> task : tasks) {
+			assertTrue(task.isDone());
+		}
+		assertEquals(0, admission.getNumQueued());
+		waitFor(() -> admission.getNumRunning() == 0);
+		admission.shutdown();
+	}
+
+	@Test
+	void rejectsNewTasksAfterShutdown() throws Exception {
+		AdmissionController admission = new AdmissionController("Test", 1, 1, 60000);
+		CountDownLatch release = new CountDownLatch(1);
+		BlockingQueue<String> reasons = new LinkedBlockingQueue<>();
+		try {
+			admission.submit(admission.newTask(awaitRunnable(release), reasons::add));
+			waitFor(() -> admission.getNumRunning() == 1);
+			AtomicInteger ran = new AtomicInteger();
+			FutureTask<Void> queued = admission.newTask(ran::incrementAndGet, reasons::add);
+			admission.submit(queued);
+			admission.shutdown();
+
+			admission.submit(admission.newTask(ran::incrementAndGet, reasons::add));
+			assertEquals("shut down", reasons.poll());
+			// the queued one still runs
+			release.countDown();
+			queued.get(WAIT_SECONDS, TimeUnit.SECONDS);
+			assertEquals(1, ran.get());
+			assertTrue(reasons.isEmpty());
+		} finally {
+			release.countDown();
+		}
+	}
+
+	private static Runnable awaitRunnable(CountDownLatch release) {
+		return () -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		};
+	}
+
+	private static void sleepMicros(long micros) {
+		long end = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(micros);
+		while (System.nanoTime() < end) {
+			Thread.yield();
+		}
+	}
+
+	private interface Condition {
+		boolean isMet();
+	}
+
+	private static void waitFor(Condition condition) throws InterruptedException {
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(WAIT_SECONDS);
+		while (!condition.isMet()) {
+			assertTrue(System.nanoTime() < end, "timed out");
+			Thread.sleep(5);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package com.iosoft.ubiconfor.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import com.iosoft.ubiconfor.dtos.HeaderDto;
+
+class CacheStoreTest {
+	// window of 1 KB, so entries of 4 KB go straight to the main LRU, 23 fit
+	private static final long MAX_BYTES = 100 * 1024;
+	private static final int CONTENT_BYTES = 4000;
+
+	@Test
+	void keepsPopularEntriesAgainstABurstOfNewOnes() {
+		CacheStore store = new CacheStore(MAX_BYTES);
+		for (int i = 0; i < 20; i++) {
+			askFor(store, "/hot/" + i, 3);
+			store.put(entry("/hot/" + i, CONTENT_BYTES));
+		}
+		for (int i = 0; i < 200; i++) {
+			askFor(store, "/cold/" + i, 1);
+			store.put(entry("/cold/" + i, CONTENT_BYTES));
+		}
+
+		for (int i = 0; i < 20; i++) {
+			assertNotNull(store.get("/hot/" + i), "/hot/" + i);
+		}
+		assertTrue(store.getBytes() <= MAX_BYTES);
+		assertTrue(store.getNumEvicted() >= 190);
+	}
+
+	@Test
+	void admitsWhatIsAskedForMoreOftenThanTheLeastRecentlyUsed() {
+		CacheStore store = new CacheStore(MAX_BYTES);
+		for (int i = 0; i < 23; i++) {
+			askFor(store, "/old/" + i, 1);
+			store.put(entry("/old/" + i, CONTENT_BYTES));
+		}
+		assertEquals(23, store.getNumEntries());
+		assertEquals(0, store.getNumEvicted());
+
+		askFor(store, "/new", 5);
+		CacheEntry entry = entry("/new", CONTENT_BYTES);
+		store.put(entry);
+
+		assertSame(entry, store.get("/new"));
+		// the least recently used one made room
+		assertNull(store.get("/old/0"));
+		assertNotNull(store.get("/old/1"));
+		assertEquals(23, store.getNumEntries());
+		assertEquals(1, store.getNumEvicted());
+		assertTrue(store.getBytes() <= MAX_BYTES);
+	}
+
+	@Test
+	void passesSmallEntriesThroughTheWindow() {
+		CacheStore store = new CacheStore(MAX_BYTES);
+		for (int i = 0; i < 10; i++) {
+			store.put(entry("/small/" + i, 100));
+		}
+		// the window holds only the newest ones, the others were admitted to the
+		// empty main LRU
+		for (int i = 0; i < 10; i++) {
+			assertNotNull(store.get("/small/" + i), "/small/" + i);
+		}
+		assertEquals(0, store.getNumEvicted());
+	}
+
+	@Test
+	void doesNotStoreWhatIsLargerThanTheCache() {
+		CacheStore store = new CacheStore(MAX_BYTES);
+		askFor(store, "/huge", 10);
+		store.put(entry("/huge", (int) MAX_BYTES));
+		assertNull(store.get("/huge"));
+		assertEquals(0, store.getBytes());
+		assertEquals(1, store.getNumEvicted());
+	}
+
+	@Test
+	void keepsTrackOfTheBytes() {
+		CacheStore store = new CacheStore(MAX_BYTES);
+		CacheEntry a = entry("/a", CONTENT_BYTES), b = entry("/b", 100);
+		store.put(a);
+		store.put(b);
+		assertEquals(a.Size + b.Size, store.getBytes());
+
+		// replaced, not counted twice
+		CacheEntry a2 = entry("/a", 2 * CONTENT_BYTES);
+		store.put(a2);
+		assertEquals(a2.Size + b.Size, store.getBytes());
+		assertEquals(2, store.getNumEntries());
+
+		store.remove("/b");
+		assertEquals(a2.Size, store.getBytes());
+		store.remove("/b");
+		assertEquals(a2.Size, store.getBytes());
+	}
+
+	@Test
+	void removesAllVariantsOfAUri() {
+		CacheStore store = new CacheStore(MAX_BYTES);
+		store.put(entry("/a gzip", "/a", CONTENT_BYTES));
+		store.put(entry("/a br", "/a", 100));
+		CacheEntry other = entry("/b", CONTENT_BYTES);
+		store.put(other);
+
+		store.removeUri("/a");
+		assertNull(store.get("/a gzip"));
+		assertNull(store.get("/a br"));
+		assertSame(other, store.get("/b"));
+		assertEquals(other.Size, store.getBytes());
+	}
+
+	// like CachingClient, which looks before it fetches
+	private static void askFor(CacheStore store, String key, int times) {
+		for (int i = 0; i < times; i++) {
+			store.get(key);
+		}
+	}
+
+	private static CacheEntry entry(String key, int contentBytes) {
+		return entry(key, key, contentBytes);
+	}
+
+	private static CacheEntry entry(String key, String uri, int contentBytes) {
+		HeaderDto header = new HeaderDto();
+		header.Name = "Cache-Control";
+		header.Values = new String[] { "max-age=60" };
+		long now = System.currentTimeMillis();
+		return CacheEntry.create(key, uri, 200, new HeaderDto[] { header }, new byte[contentBytes], now, now, 0);
+	}
+}
@@ -0,0 +1,135 @@
+package com.iosoft.ubiconfor.cache;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.iosoft.ubiconfor.dtos.HeaderDto;
+import com.iosoft.ubiconfor.dtos.RequestDataDto;
+import com.iosoft.ubiconfor.dtos.ResponseDataDto;
+import com.iosoft.ubiconfor.upstream.Cancellation;
+import com.iosoft.ubiconfor.upstream.RequestCancelledException;
+import com.iosoft.ubiconfor.upstream.UpstreamClient;
+
+class CoalescingClientTest {
+	private static final long WAIT_SECONDS = 5;
+	private static final byte[] BODY = "{\"ok\":true}".getBytes(StandardCharsets.UTF_8);
+
+	private final CountDownLatch _release = new CountDownLatch(1);
+	private final AtomicInteger _numCalls = new AtomicInteger();
+	private final CountDownLatch _called = new CountDownLatch(1);
+	// answers after _release
+	private final UpstreamClient _slowClient = (request, response, sink) -> {
+		_numCalls.incrementAndGet();
+		_called.countDown();
+		try {
+			_release.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		response.StatusCode = 200;
+		response.Headers = new HeaderDto[0];
+		sink.onHead(response);
+		sink.onBody(BODY, 0, BODY.length);
+	};
+	private final CoalescingClient _client = new CoalescingClient(_slowClient, new String[0], 1024);
+
+	@AfterEach
+	void release() {
+		_release.countDown();
+	}
+
+	@Test
+	void sendsIdenticalRequestsOnce() throws Exception {
+		CompletableFuture<ResponseDataDto> leader = execute(null);
+		assertTrue(_called.await(WAIT_SECONDS, TimeUnit.SECONDS));
+		CompletableFuture<ResponseDataDto> follower = execute(null);
+		waitForFollower();
+		_release.countDown();
+
+		assertArrayEquals(BODY, leader.get(WAIT_SECONDS, TimeUnit.SECONDS).Content);
+		ResponseDataDto response = follower.get(WAIT_SECONDS, TimeUnit.SECONDS);
+		assertEquals(200, response.StatusCode);
+		assertArrayEquals(BODY, response.Content);
+		assertEquals(1, _numCalls.get());
+		assertEquals(1, _client.getNumCoalesced());
+	}
+
+	@Test
+	void stopsWaitingWhenCancelled() throws Exception {
+		execute(null);
+		assertTrue(_called.await(WAIT_SECONDS, TimeUnit.SECONDS));
+		Cancellation cancellation = new Cancellation();
+		CompletableFuture<ResponseDataDto> follower = execute(cancellation);
+		waitForFollower();
+
+		cancellation.cancel("the webserver cancelled it");
+		assertCancelled(follower, "the webserver cancelled it");
+		assertEquals(0, _client.getNumCoalesced());
+	}
+
+	@Test
+	void stopsWaitingAtTheDeadline() throws Exception {
+		execute(null);
+		assertTrue(_called.await(WAIT_SECONDS, TimeUnit.SECONDS));
+		Cancellation cancellation = new Cancellation();
+		cancellation.setDeadline(100);
+		CompletableFuture<ResponseDataDto> follower = execute(cancellation);
+
+		assertCancelled(follower, "deadline");
+		assertEquals(1, _numCalls.get());
+	}
+
+	private CompletableFuture<ResponseDataDto> execute(Cancellation cancellation) {
+		CompletableFuture<ResponseDataDto> result = new CompletableFuture<>();
+		Thread thread = new Thread(() -> {
+			Cancellation.setCurrent(cancellation);
+			try {
+				RequestDataDto request = new RequestDataDto();
+				request.Method = "GET";
+				request.Uri = "https://example.com/v1/spaces";
+				request.Headers = new HeaderDto[0];
+				request.Content = new byte[0];
+				ResponseDataDto response = new ResponseDataDto();
+				_client.execute(request, response);
+				result.complete(response);
+			} catch (IOException | RuntimeException e) {
+				result.completeExceptionally(e);
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+		return result;
+	}
+
+	// there is nothing to observe, but the follower gets there quickly
+	private static void waitForFollower() throws InterruptedException {
+		Thread.sleep(100);
+	}
+
+	private static void assertCancelled(CompletableFuture<ResponseDataDto> future, String reason)
+			throws InterruptedException {
+		try {
+			future.get(WAIT_SECONDS, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			assertInstanceOf(RequestCancelledException.class, e.getCause());
+			assertTrue(e.getCause().getMessage().contains(reason), e.getCause().getMessage());
+			return;
+		} catch (Exception e) {
+			throw new AssertionError("still waiting", e);
+		}
+		throw new AssertionError("not cancelled");
+	}
+}
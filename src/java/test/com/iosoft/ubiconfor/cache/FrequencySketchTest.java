@@ -0,0 +1,44 @@
+package com.iosoft.ubiconfor.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class FrequencySketchTest {
+	@Test
+	void countsAccesses() {
+		FrequencySketch sketch = new FrequencySketch(1024);
+		for (int i = 0; i < 7; i++) {
+			sketch.increment("/a".hashCode());
+		}
+		sketch.increment("/b".hashCode());
+		// never less, more only on collisions
+		assertEquals(7, sketch.frequency("/a".hashCode()));
+		assertEquals(1, sketch.frequency("/b".hashCode()));
+		assertEquals(0, sketch.frequency("/c".hashCode()));
+	}
+
+	@Test
+	void stopsCountingAt15() {
+		FrequencySketch sketch = new FrequencySketch(1024);
+		for (int i = 0; i < 100; i++) {
+			sketch.increment(42);
+		}
+		assertEquals(15, sketch.frequency(42));
+	}
+
+	@Test
+	void halvesAllCountsAfterAWhile() {
+		// 64 longs, halved after 640 increments
+		FrequencySketch sketch = new FrequencySketch(64);
+		for (int i = 0; i < 12; i++) {
+			sketch.increment(42);
+		}
+		for (int i = 0; i < 640; i++) {
+			sketch.increment(1000 + i);
+		}
+		int frequency = sketch.frequency(42);
+		assertTrue(frequency >= 6 && frequency < 12, "frequency " + frequency);
+	}
+}
@@ -0,0 +1,208 @@
+package com.iosoft.ubiconfor.dtos;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class HeaderCodecTest {
+	@Test
+	void writesTheGoldenBytes() throws IOException {
+		HeaderCodec encoder = new HeaderCodec(), decoder = new HeaderCodec();
+		List<GoldenMessage> messages = readGolden();
+		assertTrue(messages.size() > 10);
+		for (int i = 0; i < messages.size(); i++) {
+			GoldenMessage message = messages.get(i);
+			byte[] bytes = encode(encoder, message.Headers);
+			String actual = message.Hashed ? "sha256 " + toHex(sha256(bytes)) : toHex(bytes);
+			assertEquals(message.Expected, actual, "message " + (i + 1) + " of the golden file");
+			assertHeadersEqual(message.Headers, decode(decoder, bytes));
+		}
+	}
+
+	@Test
+	void roundTripsRandomHeaders() throws IOException {
+		HeaderCodec encoder = new HeaderCodec(), decoder = new HeaderCodec();
+		Random random = new Random(42);
+		// few distinct headers, so many are repeated, and enough for the table to
+		// evict by count as well as by size
+		List<HeaderDto> pool = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			int length = random.nextInt(10) == 0 ? 2000 + random.nextInt(3000) : random.nextInt(40);
+			pool.add(header("X-Name-" + random.nextInt(400), randomValue(random, length), "v" + i));
+		}
+		for (int i = 0; i < 3000; i++) {
+			HeaderDto[] headers = new HeaderDto[random.nextInt(12)];
+			for (int j = 0; j < headers.length; j++) {
+				headers[j] = pool.get((int) Math.abs(random.nextGaussian() * 300) % pool.size());
+			}
+			assertHeadersEqual(headers, decode(decoder, encode(encoder, headers)));
+		}
+	}
+
+	@Test
+	void returnsTheSameInstancesForRepeatedHeaders() throws IOException {
+		HeaderCodec encoder = new HeaderCodec(), decoder = new HeaderCodec();
+		HeaderDto[] headers = { header("Authorization", "Ubi_v1 t=abc"), header("X-New", "1") };
+		HeaderDto[] first = decode(decoder, encode(encoder, headers));
+		HeaderDto[] second = decode(decoder, encode(encoder, headers));
+		assertSame(first[0], second[0]);
+		assertSame(first[1], second[1]);
+
+		HeaderDto[] other = decode(decoder, encode(encoder, new HeaderDto[] { header("X-New", "2") }));
+		assertSame(first[1].Name, other[0].Name);
+	}
+
+	@Test
+	void rejectsAnIndexOutsideTheTable() {
+		// one header, indexed, index 0 of an empty table
+		byte[] bytes = { 1, 0, 0 };
+		assertThrows(IOException.class, () -> decode(new HeaderCodec(), bytes));
+	}
+
+	@Test
+	void checksTheLengthBeforeWritingAnything() throws IOException {
+		HeaderCodec encoder = new HeaderCodec(), decoder = new HeaderCodec();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 30000; i++) {
+			sb.append('€');
+		}
+		HeaderDto[] tooLong = { header("X-Ok", "1"), header("X-Long", sb.toString()) };
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertThrows(UTFDataFormatException.class, () -> encoder.write(new DataOutputStream(out), tooLong));
+		assertEquals(0, out.size());
+
+		// the tables are still in sync
+		HeaderDto[] headers = { header("X-Ok", "1") };
+		assertHeadersEqual(headers, decode(decoder, encode(encoder, headers)));
+		assertHeadersEqual(headers, decode(decoder, encode(encoder, headers)));
+	}
+
+	private static byte[] encode(HeaderCodec codec, HeaderDto[] headers) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		codec.write(new DataOutputStream(bytes), headers);
+		return bytes.toByteArray();
+	}
+
+	private static HeaderDto[] decode(HeaderCodec codec, byte[] bytes) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		HeaderDto[] headers = codec.read(in);
+		assertEquals(-1, in.read(), "bytes left after the headers");
+		return headers;
+	}
+
+	private static void assertHeadersEqual(HeaderDto[] expected, HeaderDto[] actual) {
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i].Name, actual[i].Name);
+			assertArrayEquals(expected[i].Values, actual[i].Values);
+		}
+	}
+
+	private static HeaderDto header(String name, String... values) {
+		HeaderDto header = new HeaderDto();
+		header.Name = name;
+		header.Values = values;
+		return header;
+	}
+
+	private static String randomValue(Random random, int length) {
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			int kind = random.nextInt(20);
+			chars[i] = kind == 0 ? (char) random.nextInt(0x800) : kind == 1 ? '€' : (char) ('a' + random.nextInt(26));
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * See testdata/header-codec-golden.txt for the format.
+	 */
+	private static List<GoldenMessage> readGolden() throws IOException {
+		String dir = System.getProperty("testdata.dir", "../testdata");
+		List<GoldenMessage> messages = new ArrayList<>();
+		List<HeaderDto> headers = new ArrayList<>();
+		for (String line : Files.readAllLines(Paths.get(dir, "header-codec-golden.txt"), StandardCharsets.UTF_8)) {
+			if (line.startsWith("> ")) {
+				int colon = line.indexOf(": ");
+				String[] values = line.substring(colon + 2).split(" \\| ", -1);
+				for (int i = 0; i < values.length; i++) {
+					values[i] = unescape(values[i]);
+				}
+				headers.add(header(line.substring(2, colon), values));
+			} else if (line.startsWith("=")) {
+				String expected = line.substring(1).trim();
+				messages.add(new GoldenMessage(headers.toArray(new HeaderDto[0]), expected));
+				headers.clear();
+			}
+		}
+		return messages;
+	}
+
+	private static String unescape(String value) {
+		if (value.startsWith("*")) {
+			int space = value.indexOf(' ');
+			StringBuilder sb = new StringBuilder();
+			for (int i = Integer.parseInt(value.substring(1, space)); i > 0; i--) {
+				sb.append(value, space + 1, value.length());
+			}
+			return sb.toString();
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < value.length(); i++) {
+			if (value.startsWith("\\u", i)) {
+				sb.append((char) Integer.parseInt(value.substring(i + 2, i + 6), 16));
+				i += 5;
+			} else {
+				sb.append(value.charAt(i));
+			}
+		}
+		return sb.toString();
+	}
+
+	private static byte[] sha256(byte[] bytes) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(bytes);
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	private static final class GoldenMessage {
+		public final HeaderDto[] Headers;
+		public final String Expected;
+		public final boolean Hashed;
+
+		GoldenMessage(HeaderDto[] headers, String expected) {
+			Headers = headers;
+			Expected = expected;
+			Hashed = expected.startsWith("sha256 ");
+		}
+	}
+}